@@ -0,0 +1,57 @@
+package org.sakaiproject.search.producer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * Coarse-grained access control details of a document, obtained all at once when the document is indexed.
+ *
+ * @author Colin Hebert
+ */
+public final class AccessControl {
+    private final boolean publicAccess;
+    private final Collection<String> groups;
+    private final boolean hidden;
+    private final Date releaseDate;
+    private final Date retractDate;
+
+    /**
+     * Creates the access control details of a document.
+     *
+     * @param publicAccess true if the document is readable by anyone, including anonymous users.
+     * @param groups       references of the groups (such as "/site/siteId/group/groupId") to which the access is
+     *                     restricted, empty if the document is available to the entire site.
+     * @param hidden       true if the document is hidden to users who can't see hidden content.
+     * @param releaseDate  date from which the document is available, null if it's available immediately.
+     * @param retractDate  date from which the document isn't available anymore, null if it's never retracted.
+     */
+    public AccessControl(boolean publicAccess, Collection<String> groups, boolean hidden, Date releaseDate,
+                         Date retractDate) {
+        this.publicAccess = publicAccess;
+        this.groups = Collections.unmodifiableCollection(groups);
+        this.hidden = hidden;
+        this.releaseDate = releaseDate;
+        this.retractDate = retractDate;
+    }
+
+    public boolean isPublic() {
+        return publicAccess;
+    }
+
+    public Collection<String> getGroups() {
+        return groups;
+    }
+
+    public boolean isHidden() {
+        return hidden;
+    }
+
+    public Date getReleaseDate() {
+        return releaseDate;
+    }
+
+    public Date getRetractDate() {
+        return retractDate;
+    }
+}
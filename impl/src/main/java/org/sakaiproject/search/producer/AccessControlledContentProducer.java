@@ -0,0 +1,28 @@
+package org.sakaiproject.search.producer;
+
+import org.sakaiproject.search.api.EntityContentProducer;
+
+/**
+ * Produce indexable documents while providing coarse-grained access control details.
+ * <p>
+ * Access control details are indexed with the document, allowing the search engine to exclude documents that
+ * are obviously unreadable for the current user before any result is returned.<br />
+ * These details don't replace {@link #canRead(String)}, which is still called to check the remaining results.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface AccessControlledContentProducer extends EntityContentProducer {
+    /**
+     * Obtains the access control details of the referenced document.
+     * <p>
+     * Called once for each indexed document, the details should be obtained with as few lookups as possible.<br />
+     * The details are only updated when the document itself is indexed again, so restrictions inherited from a
+     * container (such as a folder) shouldn't be part of them, they would be outdated once the container changes.
+     * </p>
+     *
+     * @param reference reference of the document
+     * @return the access control details of the document
+     */
+    AccessControl getAccessControl(String reference);
+}
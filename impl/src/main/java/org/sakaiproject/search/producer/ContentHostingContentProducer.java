@@ -3,6 +3,7 @@ package org.sakaiproject.search.producer;
 import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.content.api.ContentHostingService;
 import org.sakaiproject.content.api.ContentResource;
+import org.sakaiproject.content.api.GroupAwareEntity.AccessMode;
 import org.sakaiproject.entity.api.EntityManager;
 import org.sakaiproject.entity.api.ResourceProperties;
 import org.sakaiproject.event.api.Event;
@@ -11,6 +12,7 @@ import org.sakaiproject.search.api.EntityContentProducer;
 import org.sakaiproject.search.api.SearchIndexBuilder;
 import org.sakaiproject.search.api.SearchService;
 import org.sakaiproject.search.model.SearchBuilderItem;
+import org.sakaiproject.time.api.Time;
 
 import java.util.*;
 
@@ -24,7 +26,7 @@ import static org.sakaiproject.content.api.ContentHostingService.*;
  *
  * @author Colin Hebert
  */
-public abstract class ContentHostingContentProducer implements EntityContentProducer {
+public abstract class ContentHostingContentProducer implements AccessControlledContentProducer {
     /**
      * Content hosting service providing details on the potentially indexed documents.
      */
@@ -182,6 +184,41 @@ public abstract class ContentHostingContentProducer implements EntityContentProd
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the access set on the resource itself is returned. Resources aren't indexed again when the access of a
+     * parent collection changes, restrictions (or public access) inherited from collections are left to
+     * {@link #canRead(String)}.
+     * </p>
+     */
+    @Override
+    public AccessControl getAccessControl(String reference) {
+        ContentResource contentResource;
+        try {
+            contentResource = contentHostingService.getResource(getId(reference));
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to resolve resource ", e);
+        }
+        String resourceId = contentResource.getId();
+        boolean publicAccess = contentHostingService.isPubView(resourceId)
+                && !contentHostingService.isInheritingPubView(resourceId);
+        return new AccessControl(publicAccess, getGroups(contentResource), contentResource.isHidden(),
+                toDate(contentResource.getReleaseDate()), toDate(contentResource.getRetractDate()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<String> getGroups(ContentResource contentResource) {
+        if (contentResource.getAccess() == AccessMode.GROUPED)
+            return contentResource.getGroups();
+        else
+            return Collections.<String>emptyList();
+    }
+
+    private static Date toDate(Time time) {
+        return (time != null) ? new Date(time.getTime()) : null;
+    }
+
     @Override
     public Map<String, Collection<String>> getCustomProperties(String ref) {
         try {
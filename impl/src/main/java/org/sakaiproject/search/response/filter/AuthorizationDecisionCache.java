@@ -0,0 +1,131 @@
+package org.sakaiproject.search.response.filter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short lived cache of the authorization decisions taken for search results.
+ * <p>
+ * The same user often runs similar queries or pages through the results, checking again and again the access to
+ * the same references. Decisions are kept per reference and per user for a short period of time.<br />
+ * Decisions are grouped by reference, once the time to live of a reference is reached every decision for this
+ * reference is discarded, so a decision is never kept longer than the time to live.
+ * </p>
+ * <p>
+ * Changes that may affect the permissions should invalidate the decisions:
+ * <ul>
+ * <li>{@link #invalidateReference(String)} for a modified entity (a modified collection invalidates its content)</li>
+ * <li>{@link #invalidateSite(String)} for a modified site (membership, groups, ...)</li>
+ * </ul>
+ * Permission changes which aren't notified are reflected once the time to live is reached.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class AuthorizationDecisionCache {
+    private final Cache<String, Decisions> decisionsPerReference;
+
+    /**
+     * Creates a decision cache.
+     *
+     * @param maximumReferences maximum number of references for which decisions are kept.
+     * @param timeToLiveSeconds time in seconds after which decisions are discarded.
+     */
+    public AuthorizationDecisionCache(int maximumReferences, int timeToLiveSeconds) {
+        decisionsPerReference = CacheBuilder.newBuilder()
+                .maximumSize(maximumReferences)
+                .expireAfterWrite(timeToLiveSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Gets the decision taken for a user and a reference.
+     *
+     * @param userId    user accessing the reference.
+     * @param reference reference accessed.
+     * @return true if the user can read the reference, false if they can't, null if there is no decision in cache.
+     */
+    public Boolean getDecision(String userId, String reference) {
+        Decisions decisions = decisionsPerReference.getIfPresent(reference);
+        return (decisions != null) ? decisions.canRead.get(getKey(userId)) : null;
+    }
+
+    /**
+     * Saves the decision taken for a user and a reference.
+     *
+     * @param userId    user accessing the reference.
+     * @param reference reference accessed.
+     * @param siteId    site containing the reference.
+     * @param canRead   true if the user can read the reference, false otherwise.
+     */
+    public void putDecision(String userId, String reference, String siteId, boolean canRead) {
+        Decisions decisions = decisionsPerReference.getIfPresent(reference);
+        if (decisions == null) {
+            decisions = new Decisions(siteId);
+            Decisions existingDecisions = decisionsPerReference.asMap().putIfAbsent(reference, decisions);
+            if (existingDecisions != null)
+                decisions = existingDecisions;
+        }
+        decisions.canRead.put(getKey(userId), canRead);
+    }
+
+    /**
+     * Discards every decision taken for a reference.
+     * <p>
+     * If the reference is a collection (ending with '/'), decisions taken for its content are discarded as well.
+     * </p>
+     *
+     * @param reference modified reference.
+     */
+    public void invalidateReference(String reference) {
+        decisionsPerReference.invalidate(reference);
+        if (reference.endsWith("/")) {
+            for (Iterator<String> iterator = decisionsPerReference.asMap().keySet().iterator(); iterator.hasNext(); ) {
+                if (iterator.next().startsWith(reference))
+                    iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Discards every decision taken for the references of a site.
+     *
+     * @param siteId modified site.
+     */
+    public void invalidateSite(String siteId) {
+        if (siteId == null)
+            return;
+        for (Iterator<Decisions> iterator = decisionsPerReference.asMap().values().iterator(); iterator.hasNext(); ) {
+            if (siteId.equals(iterator.next().siteId))
+                iterator.remove();
+        }
+    }
+
+    /**
+     * Discards every decision.
+     */
+    public void invalidateAll() {
+        decisionsPerReference.invalidateAll();
+    }
+
+    private static String getKey(String userId) {
+        return (userId != null) ? userId : "";
+    }
+
+    /**
+     * Decisions taken for a single reference.
+     */
+    private static final class Decisions {
+        private final String siteId;
+        private final ConcurrentMap<String, Boolean> canRead = new ConcurrentHashMap<String, Boolean>();
+
+        private Decisions(String siteId) {
+            this.siteId = siteId;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.sakaiproject.search.response.filter;
+
+import org.sakaiproject.search.api.SearchResult;
+
+import java.util.List;
+
+/**
+ * Filter for search results able to filter a page of results at once.
+ * <p>
+ * Filters only implementing {@link SearchItemFilter} can be used wherever a batch filter is expected through
+ * {@link SearchItemFilterAdapter#adapt(SearchItemFilter)}.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface BatchSearchItemFilter extends SearchItemFilter {
+    /**
+     * Filters a page of results at once.
+     * <p>
+     * Allows the filter to share work between results, the order of the results must be preserved.
+     * </p>
+     *
+     * @param results original results.
+     * @return massaged results, in the same order as the original results.
+     */
+    List<SearchResult> filter(List<SearchResult> results);
+}
@@ -0,0 +1,21 @@
+package org.sakaiproject.search.response.filter;
+
+import org.sakaiproject.search.api.EntityContentProducer;
+import org.sakaiproject.search.api.SearchResult;
+
+/**
+ * Search result which already knows the content producer of its entity.
+ * <p>
+ * Filters use that content producer rather than looking it up again from the reference of the result.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface ProducerAwareSearchResult extends SearchResult {
+    /**
+     * Gets the content producer of the entity found.
+     *
+     * @return the content producer of the entity, null if it isn't known.
+     */
+    EntityContentProducer getContentProducer();
+}
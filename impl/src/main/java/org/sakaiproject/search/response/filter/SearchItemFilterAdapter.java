@@ -0,0 +1,45 @@
+package org.sakaiproject.search.response.filter;
+
+import org.sakaiproject.search.api.SearchResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batch filter filtering each result of a page with a {@link SearchItemFilter}, one after the other.
+ *
+ * @author Colin Hebert
+ */
+public final class SearchItemFilterAdapter implements BatchSearchItemFilter {
+    private final SearchItemFilter searchItemFilter;
+
+    private SearchItemFilterAdapter(SearchItemFilter searchItemFilter) {
+        this.searchItemFilter = searchItemFilter;
+    }
+
+    /**
+     * Gets a batch filter for any search item filter.
+     *
+     * @param searchItemFilter filter to adapt.
+     * @return the filter itself if it's already a batch filter, a filter checking results one by one otherwise.
+     */
+    public static BatchSearchItemFilter adapt(SearchItemFilter searchItemFilter) {
+        if (searchItemFilter instanceof BatchSearchItemFilter)
+            return (BatchSearchItemFilter) searchItemFilter;
+        else
+            return new SearchItemFilterAdapter(searchItemFilter);
+    }
+
+    @Override
+    public SearchResult filter(SearchResult result) {
+        return searchItemFilter.filter(result);
+    }
+
+    @Override
+    public List<SearchResult> filter(List<SearchResult> results) {
+        List<SearchResult> filteredResults = new ArrayList<SearchResult>(results.size());
+        for (SearchResult result : results)
+            filteredResults.add(searchItemFilter.filter(result));
+        return filteredResults;
+    }
+}
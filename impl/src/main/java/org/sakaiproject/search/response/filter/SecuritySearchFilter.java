@@ -1,37 +1,248 @@
 package org.sakaiproject.search.response.filter;
 
+import org.sakaiproject.authz.api.SecurityService;
 import org.sakaiproject.search.api.EntityContentProducer;
 import org.sakaiproject.search.api.SearchResult;
 import org.sakaiproject.search.api.TermFrequency;
 import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Filter for search results based on the current user's rights.
  * <p>
  * Every result considered as not accessible to the current user is automatically censored.
  * </p>
+ * <p>
+ * When a page of results is filtered, the realms are evaluated first: a super user can read every result, so the
+ * page is kept without checking any result. Otherwise each result is still checked by its content producer, as the
+ * realms of a site never prove that an entity is readable (hidden or unreleased items, group access, folder
+ * permissions...).<br />
+ * Results are grouped by site so the realm of a site is loaded once and then found in the authz cache for the other
+ * results of the site. Each site is checked concurrently on a bounded pool of threads running with the session of the
+ * current user.<br />
+ * Security advisors can't be transferred to another thread, if the caller pushed some the page is checked by the
+ * caller itself.<br />
+ * If a result couldn't be checked, it is censored.
+ * </p>
  *
  * @author Colin Hebert
  */
-public class SecuritySearchFilter implements SearchItemFilter {
+public class SecuritySearchFilter implements BatchSearchItemFilter {
     private static final SearchResult CENSORED_SEARCH_RESULT = new CensoredSearchResult();
+    private static final Logger logger = LoggerFactory.getLogger(SecuritySearchFilter.class);
     private ContentProducerFactory contentProducerFactory;
+    /**
+     * Decisions taken recently, if null every result is checked.
+     */
+    private AuthorizationDecisionCache authorizationDecisionCache;
+    private SessionManager sessionManager;
+    private SecurityService securityService;
+    private ThreadLocalManager threadLocalManager;
+    private int threadCount = 4;
+    private int queueSize = 100;
+    private ExecutorService executor;
+
+    /**
+     * Creates the pool of threads used to check the results of a page concurrently.
+     */
+    public void init() {
+        if (threadCount <= 0) {
+            logger.info("The results will be checked sequentially");
+            return;
+        }
+
+        // When the pool is saturated, the sites are checked by the thread running the search
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private int threadNumber;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "search-security-filter-" + threadNumber++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Stops the pool of threads.
+     */
+    public void destroy() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
 
     @Override
     public SearchResult filter(SearchResult result) {
-        String reference = result.getReference();
-        EntityContentProducer contentProducer = contentProducerFactory.getContentProducerForElement(reference);
-        return contentProducer == null || !contentProducer.canRead(reference) ? CENSORED_SEARCH_RESULT : result;
+        return canRead(result) ? result : CENSORED_SEARCH_RESULT;
+    }
+
+    @Override
+    public List<SearchResult> filter(List<SearchResult> results) {
+        // Realm level evaluation, nothing is hidden to super users
+        if (securityService.isSuperUser())
+            return new ArrayList<SearchResult>(results);
+
+        final SearchResult[] filteredResults = new SearchResult[results.size()];
+        // Security advisors only apply to the thread of the caller
+        if (executor == null || results.size() <= 1 || securityService.hasAdvisors()) {
+            for (int i = 0; i < filteredResults.length; i++)
+                filteredResults[i] = filter(results.get(i));
+            return Arrays.asList(filteredResults);
+        }
+
+        // Group the position of each result by site
+        Map<String, List<Integer>> positionsPerSite = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < results.size(); i++) {
+            String siteId = results.get(i).getSiteId();
+            List<Integer> positions = positionsPerSite.get(siteId);
+            if (positions == null) {
+                positions = new ArrayList<Integer>();
+                positionsPerSite.put(siteId, positions);
+            }
+            positions.add(i);
+        }
+
+        List<Callable<Void>> siteChecks = new ArrayList<Callable<Void>>(positionsPerSite.size());
+        for (List<Integer> positions : positionsPerSite.values())
+            siteChecks.add(new SiteCheck(results, positions, filteredResults));
+
+        try {
+            executor.invokeAll(siteChecks);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while checking the search results, unchecked results are censored", e);
+            Thread.currentThread().interrupt();
+        }
+
+        // Results that couldn't be checked are censored
+        for (int i = 0; i < filteredResults.length; i++) {
+            if (filteredResults[i] == null)
+                filteredResults[i] = CENSORED_SEARCH_RESULT;
+        }
+        return Arrays.asList(filteredResults);
+    }
+
+    /**
+     * Checks if the current user can read a result, using a previous decision if there is one.
+     *
+     * @param result result to check.
+     * @return true if the current user can read the result, false otherwise.
+     */
+    private boolean canRead(SearchResult result) {
+        if (authorizationDecisionCache == null)
+            return checkAccess(result);
+
+        String userId = sessionManager.getCurrentSessionUserId();
+        Boolean decision = authorizationDecisionCache.getDecision(userId, result.getReference());
+        if (decision == null) {
+            decision = checkAccess(result);
+            authorizationDecisionCache.putDecision(userId, result.getReference(), result.getSiteId(), decision);
+        }
+        return decision;
+    }
+
+    /**
+     * Checks if the current user can read a result through its content producer.
+     *
+     * @param result result to check.
+     * @return true if the current user can read the result, false otherwise.
+     */
+    private boolean checkAccess(SearchResult result) {
+        EntityContentProducer contentProducer = getContentProducer(result);
+        return contentProducer != null && contentProducer.canRead(result.getReference());
+    }
+
+    /**
+     * Gets the content producer of a result, reusing the one already resolved if the result knows it.
+     *
+     * @param result result for which the content producer is needed.
+     * @return the content producer of the result, null if there is none.
+     */
+    private EntityContentProducer getContentProducer(SearchResult result) {
+        EntityContentProducer contentProducer = null;
+        if (result instanceof ProducerAwareSearchResult)
+            contentProducer = ((ProducerAwareSearchResult) result).getContentProducer();
+        if (contentProducer == null)
+            contentProducer = contentProducerFactory.getContentProducerForElement(result.getReference());
+        return contentProducer;
     }
 
     public void setContentProducerFactory(ContentProducerFactory contentProducerFactory) {
         this.contentProducerFactory = contentProducerFactory;
     }
 
+    public void setAuthorizationDecisionCache(AuthorizationDecisionCache authorizationDecisionCache) {
+        this.authorizationDecisionCache = authorizationDecisionCache;
+    }
+
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public void setSecurityService(SecurityService securityService) {
+        this.securityService = securityService;
+    }
+
+    public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+        this.threadLocalManager = threadLocalManager;
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Checks every result of a site with the session of the user running the search.
+     */
+    private class SiteCheck implements Callable<Void> {
+        private final List<SearchResult> results;
+        private final List<Integer> positions;
+        private final SearchResult[] filteredResults;
+        private final Thread callerThread = Thread.currentThread();
+        private final Session session = sessionManager.getCurrentSession();
+
+        private SiteCheck(List<SearchResult> results, List<Integer> positions, SearchResult[] filteredResults) {
+            this.results = results;
+            this.positions = positions;
+            this.filteredResults = filteredResults;
+        }
+
+        @Override
+        public Void call() {
+            // The check may be run by the caller itself if the pool is saturated
+            boolean pooledThread = Thread.currentThread() != callerThread;
+            try {
+                if (pooledThread)
+                    sessionManager.setCurrentSession(session);
+                for (int position : positions) {
+                    try {
+                        filteredResults[position] = filter(results.get(position));
+                    } catch (Exception e) {
+                        logger.warn("Couldn't check the access to '{}'", results.get(position).getReference(), e);
+                    }
+                }
+            } finally {
+                // Clean up the session and the realms loaded by this thread
+                if (pooledThread)
+                    threadLocalManager.clear();
+            }
+            return null;
+        }
+    }
+
     private static class CensoredSearchResult implements SearchResult {
         private static final TermFrequency TERM_FREQUENCY = new TermFrequency() {
             @Override
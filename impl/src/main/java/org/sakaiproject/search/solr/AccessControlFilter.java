@@ -0,0 +1,252 @@
+package org.sakaiproject.search.solr;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.authz.api.SecurityService;
+import org.sakaiproject.content.api.ContentHostingService;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.solr.indexing.SolrTools;
+import org.sakaiproject.tool.api.SessionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates a filter query excluding the documents provably unreadable for the current user.
+ * <p>
+ * The filter query relies on the access control fields indexed with each document (see {@link SolrTools}) and on
+ * the realms of the current user. Only the documents of the sites where the user can read the content from the site
+ * realm are considered, a document of those sites is excluded if it isn't public and if:
+ * <ul>
+ * <li>it is restricted to groups of which the user isn't a member, unless the user can access every group of the
+ * site,</li>
+ * <li>or it is unavailable (hidden, not released yet or retracted), unless the user can see hidden content in the
+ * site.</li>
+ * </ul>
+ * Everything else is kept: documents without access control fields, documents of the sites where the user can't read
+ * the content (they may still be readable through other realms) and documents of the sites where the user has been
+ * granted access in a content realm (folder permissions).<br />
+ * This filter is coarse-grained, every remaining result is still checked by the
+ * {@link org.sakaiproject.search.response.filter.SearchItemFilter}.
+ * </p>
+ * <p>
+ * The filter query is kept for each user for a short period of time, changes in the realms of a user are reflected
+ * once the filter query expires or once a membership change is notified with {@link #invalidateAll()}.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class AccessControlFilter {
+    private static final Logger logger = LoggerFactory.getLogger(AccessControlFilter.class);
+    private static final String SITE_REALM_PREFIX = "/site/";
+    private static final String GROUP_REALM_INFIX = "/group/";
+    private static final String CONTENT_REALM_PREFIX = "/content/";
+    /**
+     * Dates are rounded to the minute so the filter query can be cached by Solr.
+     */
+    private static final String NOW = "NOW/MINUTE";
+    private final Cache<String, String> filterQueries;
+    private AuthzGroupService authzGroupService;
+    private SecurityService securityService;
+    private SessionManager sessionManager;
+
+    /**
+     * Creates an access control filter.
+     *
+     * @param maximumUsers      maximum number of users for which a filter query is kept.
+     * @param timeToLiveSeconds time in seconds after which a filter query is created again.
+     */
+    public AccessControlFilter(int maximumUsers, int timeToLiveSeconds) {
+        filterQueries = CacheBuilder.newBuilder()
+                .maximumSize(maximumUsers)
+                .expireAfterWrite(timeToLiveSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Gets the filter query for the current user.
+     *
+     * @return the filter query to apply to the search or null if no filter should be applied.
+     */
+    public String getFilterQuery() {
+        if (securityService.isSuperUser())
+            return null;
+
+        final String userId = sessionManager.getCurrentSessionUserId();
+        try {
+            return filterQueries.get((userId != null) ? userId : "", new Callable<String>() {
+                @Override
+                public String call() {
+                    return createFilterQuery(userId);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Couldn't create the access control filter for '" + userId + "'", e);
+        }
+    }
+
+    /**
+     * Discards the filter query of every user.
+     * <p>
+     * The filter queries are created from the realms, a membership change may affect the filter query of any member
+     * of the modified site.
+     * </p>
+     */
+    public void invalidateAll() {
+        filterQueries.invalidateAll();
+    }
+
+    /**
+     * Creates the filter query for a user based on their realms.
+     *
+     * @param userId user running the search.
+     * @return the filter query excluding the documents which are unreadable by the user, or null if no document can
+     *         be excluded.
+     */
+    private String createFilterQuery(String userId) {
+        Set<String> groups = new TreeSet<String>();
+        Set<String> uncertainSites = new TreeSet<String>();
+        Set<String> readableSites = getSites(userId, ContentHostingService.AUTH_RESOURCE_READ, groups, uncertainSites);
+        Set<String> allGroupsSites = getSites(userId, ContentHostingService.AUTH_RESOURCE_ALL_GROUPS, null,
+                uncertainSites);
+        Set<String> hiddenContentSites = getSites(userId, ContentHostingService.AUTH_RESOURCE_HIDDEN, null,
+                uncertainSites);
+        if (readableSites == null || allGroupsSites == null || hiddenContentSites == null) {
+            logger.debug("Permissions granted outside of sites, no access control filter for '{}'", userId);
+            return null;
+        }
+
+        // The content realms of a site can grant permissions the site realm doesn't have
+        readableSites.removeAll(uncertainSites);
+        Set<String> groupRestrictedSites = new TreeSet<String>(readableSites);
+        groupRestrictedSites.removeAll(allGroupsSites);
+        Set<String> availabilityRestrictedSites = new TreeSet<String>(readableSites);
+        availabilityRestrictedSites.removeAll(hiddenContentSites);
+        if (groupRestrictedSites.isEmpty() && availabilityRestrictedSites.isEmpty())
+            return null;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("*:* -(-").append(SolrTools.ACL_PUBLIC).append(":true +(");
+        if (!groupRestrictedSites.isEmpty()) {
+            // Restricted to groups, none of which is one of the user's groups
+            sb.append("(+");
+            appendValues(sb, SearchService.FIELD_SITEID, groupRestrictedSites);
+            sb.append(" +").append(SolrTools.ACL_GROUPS).append(":[* TO *]");
+            if (!groups.isEmpty()) {
+                sb.append(" -");
+                appendValues(sb, SolrTools.ACL_GROUPS, groups);
+            }
+            sb.append(')');
+        }
+        if (!availabilityRestrictedSites.isEmpty()) {
+            // Hidden, not released yet or retracted
+            if (!groupRestrictedSites.isEmpty())
+                sb.append(" OR ");
+            sb.append("(+");
+            appendValues(sb, SearchService.FIELD_SITEID, availabilityRestrictedSites);
+            sb.append(" +(").append(SolrTools.ACL_HIDDEN).append(":true")
+                    .append(" OR ").append(SolrTools.ACL_RELEASE).append(":[").append(NOW).append(" TO *]")
+                    .append(" OR ").append(SolrTools.ACL_RETRACT).append(":[* TO ").append(NOW).append("]))");
+        }
+        sb.append("))");
+        logger.debug("Create access control filter query {} for '{}'", sb, userId);
+        return sb.toString();
+    }
+
+    /**
+     * Gets the sites in which a user is allowed to use a function through the site realm.
+     * <p>
+     * Sites in which the function is granted through a content realm, or through a group realm if the groups aren't
+     * collected, are added to the uncertain sites.
+     * </p>
+     *
+     * @param userId         user running the search.
+     * @param function       function required.
+     * @param groups         collects the group realms in which the function is allowed, null to consider the sites of
+     *                       those groups as uncertain.
+     * @param uncertainSites collects the sites in which the function is allowed without the site realm.
+     * @return the sites in which the function is allowed by the site realm, or null if the function is allowed in a
+     *         realm unrelated to a site.
+     */
+    private Set<String> getSites(String userId, String function, Set<String> groups, Set<String> uncertainSites) {
+        Set<String> sites = new TreeSet<String>();
+        for (String realm : getRealms(userId, function)) {
+            if (realm.startsWith(SITE_REALM_PREFIX)) {
+                String siteId = realm.substring(SITE_REALM_PREFIX.length());
+                int groupIndex = siteId.indexOf(GROUP_REALM_INFIX);
+                if (groupIndex < 0)
+                    sites.add(siteId);
+                else if (groups != null)
+                    groups.add(realm);
+                else
+                    uncertainSites.add(siteId.substring(0, groupIndex));
+            } else if (realm.startsWith(CONTENT_REALM_PREFIX)) {
+                String siteId = getContentRealmSite(realm);
+                if (siteId == null)
+                    return null;
+                uncertainSites.add(siteId);
+            }
+        }
+        return sites;
+    }
+
+    /**
+     * Gets the site containing the content of a content realm.
+     *
+     * @param realm content realm, such as "/content/group/siteId/folder/".
+     * @return the id of the site, or null if the content doesn't belong to a site.
+     */
+    private static String getContentRealmSite(String realm) {
+        String[] parts = realm.substring(CONTENT_REALM_PREFIX.length()).split("/");
+        if (parts.length < 2)
+            return null;
+        if ("group".equals(parts[0]) || "group-user".equals(parts[0]))
+            return parts[1];
+        else if ("user".equals(parts[0]))
+            return "~" + parts[1];
+        else
+            return null;
+    }
+
+    /**
+     * Gets the realms in which a user is allowed to use a function.
+     *
+     * @param userId   user running the search.
+     * @param function function required.
+     * @return the realm ids in which the user is allowed to use the function.
+     */
+    @SuppressWarnings("unchecked")
+    private Collection<String> getRealms(String userId, String function) {
+        return authzGroupService.getAuthzGroupsIsAllowed(userId, function, null);
+    }
+
+    private static void appendValues(StringBuilder sb, String field, Collection<String> values) {
+        sb.append(field).append(":(");
+        for (Iterator<String> valuesIterator = values.iterator(); valuesIterator.hasNext(); ) {
+            sb.append('"').append(valuesIterator.next()).append('"');
+            if (valuesIterator.hasNext())
+                sb.append(" OR ");
+        }
+        sb.append(')');
+    }
+
+    public void setAuthzGroupService(AuthzGroupService authzGroupService) {
+        this.authzGroupService = authzGroupService;
+    }
+
+    public void setSecurityService(SecurityService securityService) {
+        this.securityService = securityService;
+    }
+
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+}
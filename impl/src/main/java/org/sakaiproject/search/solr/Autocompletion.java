@@ -0,0 +1,50 @@
+package org.sakaiproject.search.solr;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Completions proposed while a user is typing a query.
+ * <p>
+ * Titles are the titles of readable documents matching every word typed so far, terms are the most frequent terms in
+ * the searched sites starting with the last word typed.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class Autocompletion {
+    /**
+     * Autocompletion without any proposal.
+     */
+    public static final Autocompletion EMPTY = new Autocompletion(Collections.<String>emptyList(),
+            Collections.<String>emptyList());
+    private final List<String> titles;
+    private final List<String> terms;
+
+    /**
+     * Creates an autocompletion.
+     *
+     * @param titles titles of documents matching the prefix.
+     * @param terms  terms completing the last word of the prefix, the most frequent first.
+     */
+    public Autocompletion(List<String> titles, List<String> terms) {
+        this.titles = Collections.unmodifiableList(titles);
+        this.terms = Collections.unmodifiableList(terms);
+    }
+
+    public List<String> getTitles() {
+        return titles;
+    }
+
+    public List<String> getTerms() {
+        return terms;
+    }
+
+    @Override
+    public String toString() {
+        return "Autocompletion{"
+                + "titles=" + titles
+                + ", terms=" + terms
+                + '}';
+    }
+}
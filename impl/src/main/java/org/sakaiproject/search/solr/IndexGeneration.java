@@ -0,0 +1,81 @@
+package org.sakaiproject.search.solr;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.search.solr.util.AdminStatRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Tracks the generation of the index currently searched.
+ * <p>
+ * The generation is based on the searcher currently opened by Solr (its name and index version), it changes as soon
+ * as a commit makes new documents visible.<br />
+ * The searcher is checked at most once every {@link #checkIntervalMillis}, so caches depending on the content of the
+ * index can be discarded without a round trip to Solr for every lookup.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class IndexGeneration {
+    private static final Logger logger = LoggerFactory.getLogger(IndexGeneration.class);
+    private SolrServer solrServer;
+    private long checkIntervalMillis = 1000;
+    private volatile String generation;
+    private volatile long nextCheck;
+
+    /**
+     * Gets the generation of the index currently searched, checking it again if it hasn't been checked recently.
+     *
+     * @return the current generation of the index, or null if it couldn't be obtained.
+     */
+    public String getGeneration() {
+        long now = System.currentTimeMillis();
+        if (now < nextCheck)
+            return generation;
+
+        synchronized (this) {
+            if (now < nextCheck)
+                return generation;
+
+            String currentGeneration = loadGeneration();
+            if (currentGeneration == null || !currentGeneration.equals(generation))
+                logger.debug("Index generation changed from '{}' to '{}'", generation, currentGeneration);
+            generation = currentGeneration;
+            nextCheck = now + checkIntervalMillis;
+            return generation;
+        }
+    }
+
+    /**
+     * Loads the generation of the index from the searcher currently opened by Solr.
+     *
+     * @return the name and index version of the current searcher, or null if they couldn't be obtained.
+     */
+    private String loadGeneration() {
+        try {
+            NamedList<Object> stats = AdminStatRequest.getStatistics(solrServer, "CORE", "searcher");
+            return stats.get("searcherName") + "/" + stats.get("indexVersion");
+        } catch (SolrServerException e) {
+            logger.warn("Couldn't obtain the generation of the index", e);
+            return null;
+        } catch (IOException e) {
+            logger.error("Can't contact the search server", e);
+            return null;
+        } catch (RuntimeException e) {
+            logger.warn("Unexpected statistics for the current searcher", e);
+            return null;
+        }
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+
+    public void setCheckIntervalMillis(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+}
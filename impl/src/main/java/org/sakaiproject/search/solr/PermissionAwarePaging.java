@@ -0,0 +1,225 @@
+package org.sakaiproject.search.solr;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the censored results for each user in order to fill pages of search results.
+ * <p>
+ * When results are censored, more results than requested must be fetched to fill a page.
+ * The number of results to fetch is estimated from the ratio of censored results observed for the user.<br />
+ * As the position of a result in the page doesn't match the position of that result in the index anymore, a
+ * continuation is kept for the last query of each user. It maps the position of readable results to the position
+ * in the index, allowing to get the next page without going through the previous results again.
+ * </p>
+ * <p>
+ * Positions in the index change as soon as a commit opens a new searcher, so each continuation is only valid for the
+ * {@link IndexGeneration} it was built on. Without an index generation, or if it's unknown, checkpoints aren't used.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class PermissionAwarePaging {
+    /**
+     * Weight of the last observation in the censor ratio.
+     */
+    private static final double SMOOTHING_FACTOR = 0.3;
+    /**
+     * Lowest ratio of readable results used to estimate the number of results to fetch.
+     */
+    private static final double MINIMUM_READABLE_RATIO = 0.1;
+    /**
+     * Additional results (one for every ten estimated) fetched to compensate for an inaccurate estimation.
+     */
+    private static final int OVERFETCH_MARGIN = 10;
+    private static final int MAXIMUM_CHECKPOINTS = 100;
+    private final Cache<String, Double> censorRatios;
+    private final Cache<String, Continuation> continuations;
+    private final int maximumRows;
+    private IndexGeneration indexGeneration;
+
+    /**
+     * Creates a paging helper.
+     *
+     * @param maximumUsers  maximum number of users tracked at the same time.
+     * @param expiryMinutes time in minutes after which the data of an inactive user is discarded.
+     * @param maximumRows   maximum number of results fetched at once.
+     */
+    public PermissionAwarePaging(int maximumUsers, int expiryMinutes, int maximumRows) {
+        this.maximumRows = maximumRows;
+        censorRatios = CacheBuilder.newBuilder()
+                .maximumSize(maximumUsers)
+                .expireAfterAccess(expiryMinutes, TimeUnit.MINUTES)
+                .build();
+        continuations = CacheBuilder.newBuilder()
+                .maximumSize(maximumUsers)
+                .expireAfterAccess(expiryMinutes, TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * Estimates the number of results to fetch to obtain enough readable results.
+     *
+     * @param userId          user running the search.
+     * @param readableResults number of readable results needed.
+     * @return the number of results to fetch.
+     */
+    public int estimateRows(String userId, int readableResults) {
+        double readableRatio = Math.max(1 - getCensorRatio(userId), MINIMUM_READABLE_RATIO);
+        int rows = (int) Math.ceil(readableResults / readableRatio);
+        rows += rows / OVERFETCH_MARGIN;
+        return Math.max(readableResults, Math.min(rows, maximumRows));
+    }
+
+    /**
+     * Gets the ratio of censored results observed for a user.
+     *
+     * @param userId user running the search.
+     * @return the ratio of censored results, 0 if nothing has been observed yet.
+     */
+    public double getCensorRatio(String userId) {
+        Double censorRatio = censorRatios.getIfPresent(getKey(userId));
+        return (censorRatio != null) ? censorRatio : 0;
+    }
+
+    /**
+     * Records the number of censored results observed for a user.
+     *
+     * @param userId          user running the search.
+     * @param checkedResults  number of results checked.
+     * @param censoredResults number of results censored.
+     */
+    public void recordCensorship(String userId, int checkedResults, int censoredResults) {
+        if (checkedResults <= 0)
+            return;
+
+        double observedRatio = (double) censoredResults / checkedResults;
+        Double previousRatio = censorRatios.getIfPresent(getKey(userId));
+        double censorRatio = (previousRatio == null) ? observedRatio
+                : SMOOTHING_FACTOR * observedRatio + (1 - SMOOTHING_FACTOR) * previousRatio;
+        censorRatios.put(getKey(userId), censorRatio);
+    }
+
+    /**
+     * Gets the closest known position before a readable result.
+     * <p>
+     * The returned checkpoint holds the generation of the index it belongs to, which must be used to save the next
+     * checkpoints.
+     * </p>
+     *
+     * @param userId           user running the search.
+     * @param query            query currently executed.
+     * @param readablePosition position of the readable result.
+     * @return the closest checkpoint before the readable position in the current generation of the index, or the
+     *         beginning of the results.
+     */
+    public Checkpoint getCheckpoint(String userId, String query, int readablePosition) {
+        String generation = (indexGeneration != null) ? indexGeneration.getGeneration() : null;
+        Continuation continuation = continuations.getIfPresent(getKey(userId));
+        if (generation == null || continuation == null || !continuation.matches(query, generation))
+            return new Checkpoint(generation, 0, 0);
+        return continuation.getCheckpoint(readablePosition);
+    }
+
+    /**
+     * Saves the position of a readable result in the index.
+     * <p>
+     * Running a different query, or the same query on a different generation of the index, discards the checkpoints
+     * of the previous query.<br />
+     * Nothing is saved if the generation of the index is unknown.
+     * </p>
+     *
+     * @param userId           user running the search.
+     * @param query            query currently executed.
+     * @param generation       generation of the index in which the positions have been read.
+     * @param readablePosition position of the readable result.
+     * @param indexPosition    position of the same result in the index.
+     */
+    public void saveCheckpoint(String userId, String query, String generation, int readablePosition,
+                               int indexPosition) {
+        if (generation == null)
+            return;
+
+        Continuation continuation = continuations.getIfPresent(getKey(userId));
+        if (continuation == null || !continuation.matches(query, generation)) {
+            continuation = new Continuation(query, generation);
+            continuations.put(getKey(userId), continuation);
+        }
+        continuation.addCheckpoint(readablePosition, indexPosition);
+    }
+
+    public void setIndexGeneration(IndexGeneration indexGeneration) {
+        this.indexGeneration = indexGeneration;
+    }
+
+    private static String getKey(String userId) {
+        return (userId != null) ? userId : "";
+    }
+
+    /**
+     * Position of a readable result in the index.
+     */
+    public static final class Checkpoint {
+        private final String generation;
+        private final int readablePosition;
+        private final int indexPosition;
+
+        private Checkpoint(String generation, int readablePosition, int indexPosition) {
+            this.generation = generation;
+            this.readablePosition = readablePosition;
+            this.indexPosition = indexPosition;
+        }
+
+        /**
+         * Gets the generation of the index in which the position is valid.
+         *
+         * @return the generation of the index, null if it's unknown.
+         */
+        public String getGeneration() {
+            return generation;
+        }
+
+        public int getReadablePosition() {
+            return readablePosition;
+        }
+
+        public int getIndexPosition() {
+            return indexPosition;
+        }
+    }
+
+    /**
+     * Checkpoints for the last query of a user, in a generation of the index.
+     */
+    private static final class Continuation {
+        private final String query;
+        private final String generation;
+        private final NavigableMap<Integer, Integer> checkpoints = new TreeMap<Integer, Integer>();
+
+        private Continuation(String query, String generation) {
+            this.query = query;
+            this.generation = generation;
+        }
+
+        private boolean matches(String query, String generation) {
+            return this.query.equals(query) && this.generation.equals(generation);
+        }
+
+        private synchronized Checkpoint getCheckpoint(int readablePosition) {
+            Map.Entry<Integer, Integer> checkpoint = checkpoints.floorEntry(readablePosition);
+            return (checkpoint != null) ? new Checkpoint(generation, checkpoint.getKey(), checkpoint.getValue())
+                    : new Checkpoint(generation, 0, 0);
+        }
+
+        private synchronized void addCheckpoint(int readablePosition, int indexPosition) {
+            checkpoints.put(readablePosition, indexPosition);
+            if (checkpoints.size() > MAXIMUM_CHECKPOINTS)
+                checkpoints.pollFirstEntry();
+        }
+    }
+}
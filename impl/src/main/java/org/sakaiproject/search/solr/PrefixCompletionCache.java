@@ -0,0 +1,105 @@
+package org.sakaiproject.search.solr;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.sakaiproject.search.solr.util.StatisticsProvider;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cache of the terms completing the last word typed in a query.
+ * <p>
+ * Completions are requested on every keystroke and the same prefixes are typed by many users, the terms only depend
+ * on the prefix, on the filter queries (sites and access control) and on the content of the index.<br />
+ * The key is made of those and of the {@link IndexGeneration} in which the terms were counted, terms of a previous
+ * generation are never used again and are evicted as new completions are added.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class PrefixCompletionCache implements StatisticsProvider {
+    private final Cache<String, List<String>> completions;
+    private IndexGeneration indexGeneration;
+
+    /**
+     * Creates a completion cache.
+     *
+     * @param maximumPrefixes maximum number of prefixes for which the completions are kept.
+     */
+    public PrefixCompletionCache(int maximumPrefixes) {
+        completions = CacheBuilder.newBuilder()
+                .maximumSize(maximumPrefixes)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Gets the terms completing a prefix, loading them if they aren't in the cache.
+     * <p>
+     * If the generation of the index can't be obtained, the terms are loaded without being cached.
+     * </p>
+     *
+     * @param prefix        last word typed, in lower case.
+     * @param filterQueries filter queries restricting the documents in which the terms are counted.
+     * @param count         maximum number of terms.
+     * @param loader        loads the terms from solr.
+     * @return the terms completing the prefix, the most frequent first.
+     * @throws Exception if the loader failed, the exception (or error) thrown by the loader is rethrown as is.
+     */
+    public List<String> getCompletions(String prefix, Collection<String> filterQueries, int count,
+                                       final Callable<List<String>> loader) throws Exception {
+        String generation = indexGeneration.getGeneration();
+        if (generation == null)
+            return loader.call();
+
+        String key = generation + '|' + filterQueries + '|' + count + '|' + prefix;
+        try {
+            return completions.get(key, new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    return Collections.unmodifiableList(loader.call());
+                }
+            });
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw e;
+        } catch (UncheckedExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw e;
+        } catch (ExecutionError e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the statistics of the cache.
+     *
+     * @return the statistics of the cache (hits, misses, hitratio, evictions, size).
+     */
+    @Override
+    public Map<String, Object> getStatistics() {
+        CacheStats stats = completions.stats();
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("hitratio", stats.hitRate());
+        statistics.put("evictions", stats.evictionCount());
+        statistics.put("size", completions.size());
+        return statistics;
+    }
+
+    public void setIndexGeneration(IndexGeneration indexGeneration) {
+        this.indexGeneration = indexGeneration;
+    }
+}
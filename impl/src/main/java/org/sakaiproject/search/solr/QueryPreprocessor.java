@@ -0,0 +1,479 @@
+package org.sakaiproject.search.solr;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.sakaiproject.search.api.InvalidSearchQueryException;
+import org.sakaiproject.search.solr.util.StatisticsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Checks and rewrites the queries sent by users before they're parsed by solr.
+ * <p>
+ * Some constructs are cheap to type but expensive to run with edismax, as each wildcard term is expanded to every
+ * matching term of the index:
+ * <ul>
+ * <li>leading wildcards ({@code *ing}) enumerate the whole dictionary, the leading wildcards are removed;</li>
+ * <li>wildcards with a very short prefix ({@code a*}) match a large part of the dictionary, the wildcards are
+ * removed;</li>
+ * <li>regular expressions ({@code /.*ing/}) are run against the whole dictionary, their delimiters are escaped so they
+ * are searched as plain terms;</li>
+ * <li>queries matching every document ({@code *:*}, {@code field:*}, {@code *}) are rejected;</li>
+ * <li>queries longer than {@link #maximumQueryLength}, with more than {@link #maximumClauses} clauses or more than
+ * {@link #maximumWildcardTerms} wildcard or fuzzy ({@code lecture~2}) terms are rejected.</li>
+ * </ul>
+ * Whitespaces and control characters are normalised first, so equivalent queries share the same cache entries.<br />
+ * Phrases and ranges ({@code date:[2010 TO *]}) are single clauses and are kept as they are, except ranges without
+ * any bound which match every document with a value in a field. Only clauses made of a single phrase or range are
+ * kept, quotes and brackets elsewhere in a clause separate terms whose wildcards are checked as any other term.
+ * </p>
+ * <p>
+ * The outcome of the last queries is kept in a LRU cache, as users often send the same query again to get another
+ * page. Rejections are cached as well.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class QueryPreprocessor implements StatisticsProvider {
+    private static final Logger logger = LoggerFactory.getLogger(QueryPreprocessor.class);
+    private static final Set<String> OPERATORS = new HashSet<String>(Arrays.asList("AND", "OR", "NOT", "&&", "||"));
+    private static final String CLAUSE_PREFIX_CHARACTERS = "+-!(";
+    private static final char CLOSING_PARENTHESIS = ')';
+    private static final char FIELD_SEPARATOR = ':';
+    private static final char QUOTE = '"';
+    private static final String RANGE_START_CHARACTERS = "[{";
+    private static final String RANGE_END_CHARACTERS = "]}";
+    private static final String UNBOUNDED_RANGE = "* TO *";
+    /**
+     * Characters ending a term for the query parser, wildcards after them are at the beginning of another term.
+     */
+    private static final String TERM_SEPARATOR_CHARACTERS = " !():^[]\"{}~/";
+    private static final String PHRASE_PATTERN = "\"(?:[^\"\\\\]|\\\\.)*\"";
+    private static final String BOOST_PATTERN = "(?:\\^\\d+(?:\\.\\d+)?)?";
+    private static final Pattern PHRASE = Pattern.compile(PHRASE_PATTERN + "(?:~\\d+)?" + BOOST_PATTERN);
+    private static final Pattern RANGE = Pattern.compile("[\\[{](?:" + PHRASE_PATTERN + "|[^\\s\"\\]}]+) TO (?:"
+            + PHRASE_PATTERN + "|[^\\s\"\\]}]+)[\\]}]" + BOOST_PATTERN);
+    private static final char FUZZY = '~';
+    private static final char REGEX_DELIMITER = '/';
+    private static final char ESCAPE = '\\';
+    private final Cache<String, ProcessedQuery> processedQueries;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rewrittenQueries = new AtomicLong();
+    private final AtomicLong rejectedQueries = new AtomicLong();
+    /**
+     * Maximum number of characters in a query, after normalisation.
+     */
+    private int maximumQueryLength = 1000;
+    /**
+     * Maximum number of clauses (terms and phrases) in a query, operators aren't counted.
+     */
+    private int maximumClauses = 32;
+    /**
+     * Maximum number of terms containing a wildcard or fuzzy terms in a query.
+     */
+    private int maximumWildcardTerms = 4;
+    /**
+     * Minimum number of characters before the first wildcard of a term, shorter prefixes are searched as plain terms.
+     */
+    private int minimumWildcardPrefix = 2;
+
+    /**
+     * Creates a query preprocessor.
+     *
+     * @param maximumQueries maximum number of queries for which the outcome is kept.
+     */
+    public QueryPreprocessor(int maximumQueries) {
+        processedQueries = CacheBuilder.newBuilder()
+                .maximumSize(maximumQueries)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Normalises the terms of a query and rewrites or rejects the expensive constructs.
+     *
+     * @param searchTerms query sent by the user.
+     * @return the query to send to solr.
+     * @throws InvalidSearchQueryException if the query is too expensive to be run.
+     */
+    public String process(String searchTerms) throws InvalidSearchQueryException {
+        requests.incrementAndGet();
+        String normalisedTerms = normalise(searchTerms);
+        ProcessedQuery processedQuery = processedQueries.getIfPresent(normalisedTerms);
+        if (processedQuery == null) {
+            processedQuery = rewrite(normalisedTerms);
+            processedQueries.put(normalisedTerms, processedQuery);
+        }
+
+        if (processedQuery.rejection != null) {
+            rejectedQueries.incrementAndGet();
+            throw new InvalidSearchQueryException(processedQuery.rejection);
+        }
+        if (!processedQuery.query.equals(normalisedTerms)) {
+            rewrittenQueries.incrementAndGet();
+            logger.debug("Query '{}' rewritten to '{}'", normalisedTerms, processedQuery.query);
+        }
+        return processedQuery.query;
+    }
+
+    /**
+     * Gets the statistics of the preprocessor.
+     *
+     * @return the statistics of the preprocessor (requests, rewritten, rejected, hits, misses, hitratio, evictions,
+     *         size).
+     */
+    @Override
+    public Map<String, Object> getStatistics() {
+        CacheStats stats = processedQueries.stats();
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("requests", requests.get());
+        statistics.put("rewritten", rewrittenQueries.get());
+        statistics.put("rejected", rejectedQueries.get());
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("hitratio", stats.hitRate());
+        statistics.put("evictions", stats.evictionCount());
+        statistics.put("size", processedQueries.size());
+        return statistics;
+    }
+
+    /**
+     * Replaces control characters by spaces and normalises the whitespaces.
+     *
+     * @param searchTerms query sent by the user.
+     * @return the normalised query, empty if there are no terms.
+     */
+    private static String normalise(String searchTerms) {
+        if (searchTerms == null)
+            return "";
+        StringBuilder terms = new StringBuilder(searchTerms.length());
+        for (int i = 0; i < searchTerms.length(); i++) {
+            char c = searchTerms.charAt(i);
+            terms.append(Character.isISOControl(c) ? ' ' : c);
+        }
+        return QueryResultCache.normaliseTerms(terms.toString());
+    }
+
+    /**
+     * Rewrites a normalised query clause by clause.
+     *
+     * @param terms normalised query.
+     * @return the rewritten query, or the reason why the query is rejected.
+     */
+    private ProcessedQuery rewrite(String terms) {
+        if (terms.length() > maximumQueryLength)
+            return ProcessedQuery.rejected("Queries can't be longer than " + maximumQueryLength + " characters");
+
+        List<String> rewrittenClauses = new ArrayList<String>();
+        int clauses = 0;
+        int wildcardTerms = 0;
+        for (String clause : splitClauses(terms)) {
+            if (OPERATORS.contains(clause)) {
+                rewrittenClauses.add(clause);
+                continue;
+            }
+            clauses++;
+
+            int termStart = 0;
+            while (termStart < clause.length() && CLAUSE_PREFIX_CHARACTERS.indexOf(clause.charAt(termStart)) >= 0)
+                termStart++;
+            int termEnd = clause.length();
+            while (termEnd > termStart && clause.charAt(termEnd - 1) == CLOSING_PARENTHESIS)
+                termEnd--;
+            String term = clause.substring(termStart, termEnd);
+            String field = getField(term);
+            term = term.substring(field.length());
+
+            // Phrases don't support wildcards
+            if (PHRASE.matcher(term).matches()) {
+                rewrittenClauses.add(clause);
+                continue;
+            }
+            // The bounds of ranges aren't terms, "*" is an open bound
+            if (RANGE.matcher(term).matches()) {
+                if (term.contains(UNBOUNDED_RANGE))
+                    return ProcessedQuery.rejected("Queries matching every document aren't allowed");
+                rewrittenClauses.add(clause);
+                continue;
+            }
+
+            if (isMatchAll(term))
+                return ProcessedQuery.rejected("Queries matching every document aren't allowed");
+
+            // Lone parentheses and operators aren't clauses
+            if (term.isEmpty() && field.isEmpty()) {
+                clauses--;
+                rewrittenClauses.add(clause);
+                continue;
+            }
+
+            String rewrittenTerm = rewriteWildcards(escapeRegexDelimiters(term));
+            if (hasWildcard(rewrittenTerm) || indexOfUnescaped(rewrittenTerm, FUZZY) >= 0)
+                wildcardTerms++;
+            // The term was only made of wildcards
+            if (rewrittenTerm.isEmpty() && field.isEmpty()) {
+                clauses--;
+                if (termStart > 0 || termEnd < clause.length())
+                    rewrittenClauses.add(clause.substring(0, termStart) + clause.substring(termEnd));
+                continue;
+            }
+            rewrittenClauses.add(clause.substring(0, termStart) + field + rewrittenTerm + clause.substring(termEnd));
+        }
+
+        if (clauses > maximumClauses)
+            return ProcessedQuery.rejected("Queries can't have more than " + maximumClauses + " clauses");
+        if (wildcardTerms > maximumWildcardTerms)
+            return ProcessedQuery.rejected("Queries can't have more than " + maximumWildcardTerms
+                    + " wildcard or fuzzy terms");
+        if (clauses == 0 && !terms.isEmpty())
+            return ProcessedQuery.rejected("No search terms left in '" + terms + "'");
+        return ProcessedQuery.accepted(join(rewrittenClauses));
+    }
+
+    /**
+     * Gets the field of a clause, if the term starts with a field name.
+     *
+     * @param term term of the clause, without prefix operator.
+     * @return the field followed by its separator, or an empty string if the term isn't restricted to a field.
+     */
+    private static String getField(String term) {
+        int fieldSeparator = indexOfUnescaped(term, FIELD_SEPARATOR);
+        if (fieldSeparator <= 0)
+            return "";
+        for (int i = 0; i < fieldSeparator; i++) {
+            if (isTermSeparator(term, i))
+                return "";
+        }
+        return term.substring(0, fieldSeparator + 1);
+    }
+
+    /**
+     * Escapes the delimiters of regular expressions, so the expression is searched as a plain term.
+     *
+     * @param term term without field nor prefix operator.
+     * @return the term without any regular expression.
+     */
+    private static String escapeRegexDelimiters(String term) {
+        StringBuilder escapedTerm = new StringBuilder(term.length());
+        for (int i = 0; i < term.length(); i++) {
+            if (term.charAt(i) == REGEX_DELIMITER && !isEscaped(term, i))
+                escapedTerm.append(ESCAPE);
+            escapedTerm.append(term.charAt(i));
+        }
+        return escapedTerm.toString();
+    }
+
+    /**
+     * Removes the expensive wildcards of each term parsed by solr within a clause.
+     * <p>
+     * A clause such as {@code a*{x} or {@code "x"*ing} is made of several terms for the query parser, each term is
+     * checked separately.
+     * </p>
+     *
+     * @param term term without field nor prefix operator.
+     * @return the term without the expensive wildcards.
+     */
+    private String rewriteWildcards(String term) {
+        StringBuilder rewrittenTerm = new StringBuilder(term.length());
+        int segmentStart = 0;
+        for (int i = 0; i <= term.length(); i++) {
+            if (i == term.length() || isTermSeparator(term, i)) {
+                rewrittenTerm.append(rewriteSegmentWildcards(term.substring(segmentStart, i)));
+                if (i < term.length())
+                    rewrittenTerm.append(term.charAt(i));
+                segmentStart = i + 1;
+            }
+        }
+        return rewrittenTerm.toString();
+    }
+
+    /**
+     * Removes the wildcards at the beginning of a term, and every wildcard if the prefix before them is too short.
+     *
+     * @param term term without any separator.
+     * @return the term without the expensive wildcards.
+     */
+    private String rewriteSegmentWildcards(String term) {
+        int prefixLength = 0;
+        while (prefixLength < term.length() && CLAUSE_PREFIX_CHARACTERS.indexOf(term.charAt(prefixLength)) >= 0)
+            prefixLength++;
+        String prefix = term.substring(0, prefixLength);
+        while (prefixLength < term.length() && isWildcard(term, prefixLength))
+            prefixLength++;
+        String rewrittenTerm = term.substring(prefixLength);
+
+        // Escape characters aren't part of the prefix
+        int firstWildcard = 0;
+        int prefixCharacters = 0;
+        while (firstWildcard < rewrittenTerm.length() && !isWildcard(rewrittenTerm, firstWildcard)) {
+            if (rewrittenTerm.charAt(firstWildcard) != ESCAPE || isEscaped(rewrittenTerm, firstWildcard))
+                prefixCharacters++;
+            firstWildcard++;
+        }
+        if (firstWildcard == rewrittenTerm.length() || prefixCharacters >= minimumWildcardPrefix)
+            return (rewrittenTerm.isEmpty()) ? "" : prefix + rewrittenTerm;
+
+        StringBuilder plainTerm = new StringBuilder(prefix);
+        for (int i = 0; i < rewrittenTerm.length(); i++) {
+            if (!isWildcard(rewrittenTerm, i))
+                plainTerm.append(rewrittenTerm.charAt(i));
+        }
+        return plainTerm.toString();
+    }
+
+    /**
+     * Checks whether a clause matches every document, or every document with a value in a field.
+     *
+     * @param term term of the clause, without its field.
+     * @return true if the clause matches every document.
+     */
+    private static boolean isMatchAll(String term) {
+        return "*".equals(term);
+    }
+
+    private static boolean isTermSeparator(String term, int position) {
+        return TERM_SEPARATOR_CHARACTERS.indexOf(term.charAt(position)) >= 0 && !isEscaped(term, position);
+    }
+
+    private static boolean hasWildcard(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            if (isWildcard(term, i))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a character is a wildcard, escaped wildcards are plain characters.
+     *
+     * @param term     term containing the character.
+     * @param position position of the character in the term.
+     * @return true if the character is an unescaped wildcard.
+     */
+    private static boolean isWildcard(String term, int position) {
+        char c = term.charAt(position);
+        return (c == '*' || c == '?') && !isEscaped(term, position);
+    }
+
+    private static boolean isEscaped(CharSequence term, int position) {
+        int escapes = 0;
+        for (int i = position - 1; i >= 0 && term.charAt(i) == ESCAPE; i--)
+            escapes++;
+        return escapes % 2 == 1;
+    }
+
+    private static int indexOfUnescaped(String term, char c) {
+        for (int i = 0; i < term.length(); i++) {
+            if (term.charAt(i) == c && !isEscaped(term, i))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Splits a normalised query on spaces, keeping phrases and ranges in a single clause.
+     * <p>
+     * Phrases and ranges only start at the beginning of a term, after a prefix operator or a field.
+     * </p>
+     *
+     * @param terms normalised query.
+     * @return the clauses and operators of the query.
+     */
+    private static List<String> splitClauses(String terms) {
+        List<String> clauses = new ArrayList<String>();
+        StringBuilder clause = new StringBuilder();
+        boolean inPhrase = false;
+        boolean inRange = false;
+        for (int i = 0; i < terms.length(); i++) {
+            char c = terms.charAt(i);
+            if (c == QUOTE && !inRange && !isEscaped(terms, i) && (inPhrase || isTermStart(clause)))
+                inPhrase = !inPhrase;
+            else if (!inPhrase && !inRange && RANGE_START_CHARACTERS.indexOf(c) >= 0 && !isEscaped(terms, i)
+                    && isTermStart(clause))
+                inRange = true;
+            else if (inRange && RANGE_END_CHARACTERS.indexOf(c) >= 0 && !isEscaped(terms, i))
+                inRange = false;
+            if (c == ' ' && !inPhrase && !inRange) {
+                clauses.add(clause.toString());
+                clause.setLength(0);
+            } else {
+                clause.append(c);
+            }
+        }
+        if (clause.length() > 0)
+            clauses.add(clause.toString());
+        return clauses;
+    }
+
+    /**
+     * Checks whether the next character of a clause is at the beginning of a term.
+     *
+     * @param clause beginning of the clause.
+     * @return true if the clause is empty or ends with a prefix operator or a field separator.
+     */
+    private static boolean isTermStart(CharSequence clause) {
+        if (clause.length() == 0)
+            return true;
+        int last = clause.length() - 1;
+        char c = clause.charAt(last);
+        return (CLAUSE_PREFIX_CHARACTERS.indexOf(c) >= 0 || c == FIELD_SEPARATOR) && !isEscaped(clause, last);
+    }
+
+    private static String join(List<String> clauses) {
+        StringBuilder query = new StringBuilder();
+        for (String clause : clauses) {
+            if (query.length() > 0)
+                query.append(' ');
+            query.append(clause);
+        }
+        return query.toString();
+    }
+
+    public void setMaximumQueryLength(int maximumQueryLength) {
+        this.maximumQueryLength = maximumQueryLength;
+    }
+
+    public void setMaximumClauses(int maximumClauses) {
+        this.maximumClauses = maximumClauses;
+    }
+
+    public void setMaximumWildcardTerms(int maximumWildcardTerms) {
+        this.maximumWildcardTerms = maximumWildcardTerms;
+    }
+
+    public void setMinimumWildcardPrefix(int minimumWildcardPrefix) {
+        this.minimumWildcardPrefix = minimumWildcardPrefix;
+    }
+
+    /**
+     * Outcome of the preprocessing of a query, either the query to run or the reason of its rejection.
+     */
+    private static final class ProcessedQuery {
+        private final String query;
+        private final String rejection;
+
+        private ProcessedQuery(String query, String rejection) {
+            this.query = query;
+            this.rejection = rejection;
+        }
+
+        private static ProcessedQuery accepted(String query) {
+            return new ProcessedQuery(query, null);
+        }
+
+        private static ProcessedQuery rejected(String rejection) {
+            return new ProcessedQuery(null, rejection);
+        }
+    }
+}
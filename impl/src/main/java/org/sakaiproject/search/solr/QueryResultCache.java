@@ -0,0 +1,260 @@
+package org.sakaiproject.search.solr;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.search.solr.util.StatisticsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the responses sent by Solr for search queries.
+ * <p>
+ * Responses are kept before any permission check, so the results are still filtered for the current user. The key is
+ * the entire query (normalised terms, site and access control filter queries, paging window and search options), users
+ * sharing the same realms share the same entries.
+ * </p>
+ * <p>
+ * Entries are associated with the {@link IndexGeneration} currently searched, as soon as a commit opens a new searcher
+ * every entry is discarded.<br />
+ * If the current searcher can't be determined, queries are sent directly to Solr.
+ * </p>
+ * <p>
+ * The size of each response is estimated, and the cache is bounded by the total estimated size of its entries.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class QueryResultCache implements StatisticsProvider {
+    private static final Logger logger = LoggerFactory.getLogger(QueryResultCache.class);
+    /**
+     * Approximate size in bytes of an object reference and header, used to estimate the size of a response.
+     */
+    private static final int OBJECT_OVERHEAD = 16;
+    private final Cache<String, CachedResponse> responses;
+    /**
+     * Estimated size of every response currently in the cache.
+     */
+    private final AtomicLong totalWeight = new AtomicLong();
+    private SolrServer solrServer;
+    /**
+     * Shares the round trip of identical queries, if null each cache miss sends its own query.
+     * <p>
+     * Identical queries are already loaded once by the cache, the coalescer is still used when the generation of the
+     * index is unknown.
+     * </p>
+     */
+    private RequestCoalescer requestCoalescer;
+    private IndexGeneration indexGeneration;
+    /**
+     * Generation of the index of the cached responses.
+     */
+    private volatile String generation;
+
+    /**
+     * Creates a query result cache.
+     *
+     * @param maximumWeight maximum estimated size in bytes of the cached responses.
+     */
+    public QueryResultCache(long maximumWeight) {
+        responses = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher(new Weigher<String, CachedResponse>() {
+                    @Override
+                    public int weigh(String key, CachedResponse value) {
+                        return value.weight;
+                    }
+                })
+                .removalListener(new RemovalListener<String, CachedResponse>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, CachedResponse> notification) {
+                        totalWeight.addAndGet(-notification.getValue().weight);
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Runs a query, or gets its response from the cache if the index hasn't changed since the query was last run.
+     *
+     * @param query query to run.
+     * @return the response sent by solr.
+     * @throws SolrServerException if the query failed.
+     */
+    public QueryResponse query(final SolrQuery query) throws SolrServerException {
+        String currentGeneration = getGeneration();
+        if (currentGeneration == null)
+            return send(query);
+
+        String key = currentGeneration + '|' + createKey(query);
+        try {
+            return responses.get(key, new Callable<CachedResponse>() {
+                @Override
+                public CachedResponse call() throws SolrServerException {
+                    QueryResponse response = send(query);
+                    CachedResponse cachedResponse = new CachedResponse(response,
+                            OBJECT_OVERHEAD + estimateSize(response.getResponse()));
+                    totalWeight.addAndGet(cachedResponse.weight);
+                    return cachedResponse;
+                }
+            }).response;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SolrServerException)
+                throw (SolrServerException) e.getCause();
+            throw new SolrServerException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a query to solr, through the request coalescer if there is one.
+     *
+     * @param query query to run.
+     * @return the response sent by solr.
+     * @throws SolrServerException if the query failed.
+     */
+    private QueryResponse send(SolrQuery query) throws SolrServerException {
+        return (requestCoalescer != null) ? requestCoalescer.query(query) : solrServer.query(query);
+    }
+
+    /**
+     * Discards every cached response.
+     */
+    public void invalidateAll() {
+        responses.invalidateAll();
+    }
+
+    /**
+     * Gets the statistics of the cache.
+     *
+     * @return the statistics of the cache (hits, misses, hitratio, evictions, size, weight).
+     */
+    @Override
+    public Map<String, Object> getStatistics() {
+        CacheStats stats = responses.stats();
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("hitratio", stats.hitRate());
+        statistics.put("evictions", stats.evictionCount());
+        statistics.put("size", responses.size());
+        statistics.put("weight", totalWeight.get());
+        return statistics;
+    }
+
+    /**
+     * Gets the current generation of the index, discarding every entry of the previous generation if it changed.
+     *
+     * @return the current generation of the index, or null if it couldn't be obtained.
+     */
+    private String getGeneration() {
+        String currentGeneration = indexGeneration.getGeneration();
+        if (currentGeneration == null || !currentGeneration.equals(generation)) {
+            synchronized (this) {
+                if (currentGeneration == null || !currentGeneration.equals(generation)) {
+                    logger.debug("Cached responses of the generation '{}' discarded", generation);
+                    responses.invalidateAll();
+                    generation = currentGeneration;
+                }
+            }
+        }
+        return currentGeneration;
+    }
+
+    /**
+     * Creates the key of a query, normalising the whitespaces in the query terms.
+     *
+     * @param query query sent to solr.
+     * @return a key identifying the query.
+     */
+    static String createKey(SolrQuery query) {
+        ModifiableSolrParams params = new ModifiableSolrParams(query);
+        String terms = params.get(CommonParams.Q);
+        if (terms != null)
+            params.set(CommonParams.Q, normaliseTerms(terms));
+        return params.toString();
+    }
+
+    /**
+     * Normalises the whitespaces in query terms.
+     *
+     * @param terms terms sent by the user.
+     * @return the terms without leading, trailing and repeated whitespaces.
+     */
+    static String normaliseTerms(String terms) {
+        return terms.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Estimates the size in memory of a response.
+     *
+     * @param object part of the response.
+     * @return an approximate size in bytes.
+     */
+    private static int estimateSize(Object object) {
+        long size = OBJECT_OVERHEAD;
+        if (object instanceof CharSequence) {
+            size += 2L * ((CharSequence) object).length();
+        } else if (object instanceof NamedList) {
+            NamedList<?> namedList = (NamedList<?>) object;
+            for (int i = 0; i < namedList.size(); i++)
+                size += estimateSize(namedList.getName(i)) + estimateSize(namedList.getVal(i));
+        } else if (object instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet())
+                size += OBJECT_OVERHEAD + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+        } else if (object instanceof Iterable) {
+            for (Object element : (Iterable<?>) object)
+                size += estimateSize(element);
+        } else if (object instanceof Object[]) {
+            for (Object element : (Object[]) object)
+                size += estimateSize(element);
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    public void setIndexGeneration(IndexGeneration indexGeneration) {
+        this.indexGeneration = indexGeneration;
+    }
+
+    /**
+     * Response of solr and its estimated size.
+     */
+    private static final class CachedResponse {
+        private final QueryResponse response;
+        private final int weight;
+
+        private CachedResponse(QueryResponse response, int weight) {
+            this.response = response;
+            this.weight = weight;
+        }
+    }
+}
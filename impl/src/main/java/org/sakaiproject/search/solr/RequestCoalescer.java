@@ -0,0 +1,113 @@
+package org.sakaiproject.search.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.sakaiproject.search.solr.util.StatisticsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares a single round trip to Solr between identical queries running at the same time.
+ * <p>
+ * The first caller sends the query, callers running the same query (same terms, filter queries, paging window and
+ * options) before the response arrives wait for that response instead of sending their own query.<br />
+ * The response is shared as is, results are still filtered for each caller afterwards.
+ * </p>
+ * <p>
+ * Nothing is kept once the response has been received, see {@link QueryResultCache} to reuse responses.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class RequestCoalescer implements StatisticsProvider {
+    private static final Logger logger = LoggerFactory.getLogger(RequestCoalescer.class);
+    private final ConcurrentMap<String, FutureTask<QueryResponse>> inFlightQueries =
+            new ConcurrentHashMap<String, FutureTask<QueryResponse>>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+    private SolrServer solrServer;
+
+    /**
+     * Runs a query, or waits for the response of the same query if it is already running.
+     *
+     * @param query query to run.
+     * @return the response sent by solr.
+     * @throws SolrServerException if the query failed.
+     */
+    public QueryResponse query(final SolrQuery query) throws SolrServerException {
+        requests.incrementAndGet();
+        String key = QueryResultCache.createKey(query);
+        FutureTask<QueryResponse> queryTask = new FutureTask<QueryResponse>(new Callable<QueryResponse>() {
+            @Override
+            public QueryResponse call() throws SolrServerException {
+                return solrServer.query(query);
+            }
+        });
+
+        FutureTask<QueryResponse> inFlightQuery = inFlightQueries.putIfAbsent(key, queryTask);
+        if (inFlightQuery == null) {
+            try {
+                queryTask.run();
+            } finally {
+                inFlightQueries.remove(key, queryTask);
+            }
+            inFlightQuery = queryTask;
+        } else {
+            coalescedRequests.incrementAndGet();
+            logger.debug("Waiting for the response of the running query {}", key);
+        }
+
+        return getResponse(inFlightQuery);
+    }
+
+    /**
+     * Gets the statistics of the coalescer.
+     *
+     * @return the statistics of the coalescer (requests, coalesced, inflight).
+     */
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("requests", requests.get());
+        statistics.put("coalesced", coalescedRequests.get());
+        statistics.put("inflight", inFlightQueries.size());
+        return statistics;
+    }
+
+    /**
+     * Waits for the response of a query.
+     *
+     * @param queryTask task running the query.
+     * @return the response sent by solr.
+     * @throws SolrServerException if the query failed or if the current thread was interrupted.
+     */
+    private static QueryResponse getResponse(FutureTask<QueryResponse> queryTask) throws SolrServerException {
+        try {
+            return queryTask.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SolrServerException)
+                throw (SolrServerException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new SolrServerException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SolrServerException("Interrupted while waiting for a search response", e);
+        }
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+}
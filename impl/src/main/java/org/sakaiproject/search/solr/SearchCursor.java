@@ -0,0 +1,101 @@
+package org.sakaiproject.search.solr;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.StringUtils;
+import org.sakaiproject.search.api.SearchService;
+
+/**
+ * Position in the results of a search, used to get the next page without offset paging.
+ * <p>
+ * Results read with a cursor are sorted by reference, which is unique, so the reference of the last result of a page
+ * is enough to find the following results: those with a greater reference. Solr still visits the documents matching
+ * the query after the cursor, but only keeps one page of them in its priority queue instead of every result before
+ * the page.<br />
+ * The cursor is sent to clients as an opaque token.
+ * </p>
+ * <p>
+ * The cursor is only valid for the query which created it. Documents added or removed between two pages are found
+ * or missed depending on their reference, but no result is ever skipped or repeated because of its score.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public final class SearchCursor {
+    private final String reference;
+
+    private SearchCursor(String reference) {
+        this.reference = reference;
+    }
+
+    /**
+     * Creates a cursor positioned after a result.
+     *
+     * @param reference reference of the result.
+     * @return a cursor giving access to the results after the given one.
+     */
+    public static SearchCursor after(String reference) {
+        return new SearchCursor(reference);
+    }
+
+    /**
+     * Decodes a token sent by a client.
+     *
+     * @param token token obtained with {@link #encode()}.
+     * @return the cursor represented by the token.
+     * @throws IllegalArgumentException if the token isn't a valid cursor.
+     */
+    public static SearchCursor decode(String token) {
+        String reference = (token != null && Base64.isBase64(token))
+                ? StringUtils.newStringUtf8(Base64.decodeBase64(token)) : null;
+        if (reference == null || reference.isEmpty())
+            throw new IllegalArgumentException("Invalid cursor '" + token + "'");
+        return new SearchCursor(reference);
+    }
+
+    /**
+     * Encodes the cursor as an opaque token safe for URLs.
+     *
+     * @return the token representing the cursor.
+     */
+    public String encode() {
+        return Base64.encodeBase64URLSafeString(StringUtils.getBytesUtf8(reference));
+    }
+
+    /**
+     * Creates the filter query selecting results after the cursor.
+     * <p>
+     * The filter isn't cached, as it is only used once.
+     * </p>
+     *
+     * @return a filter query selecting results with a greater reference.
+     */
+    public String toFilterQuery() {
+        String escapedReference = reference.replace("\\", "\\\\").replace("\"", "\\\"");
+        return "{!lucene cache=false}" + SearchService.FIELD_REFERENCE + ":{\"" + escapedReference + "\" TO *]";
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        SearchCursor that = (SearchCursor) o;
+        return reference.equals(that.reference);
+    }
+
+    @Override
+    public int hashCode() {
+        return reference.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "SearchCursor{"
+                + "reference='" + reference + '\''
+                + '}';
+    }
+}
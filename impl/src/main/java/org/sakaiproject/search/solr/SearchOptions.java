@@ -0,0 +1,221 @@
+package org.sakaiproject.search.solr;
+
+import org.sakaiproject.search.api.SearchService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Options of a search query, defining which parts of the response should be computed by the search server.
+ * <p>
+ * Highlighting and term vectors are expensive to compute and should only be requested by callers using them.<br />
+ * Spelling suggestions can be computed along with the results, instead of sending a separate query.<br />
+ * Facet counts (by tool, type, site and indexation date) can be computed along with the results, so clients don't
+ * need to send one query per site or tool to narrow the results.<br />
+ * Results can be collapsed by container or by site, only the top results of each group are then returned.<br />
+ * Two profiles are available:
+ * <ul>
+ * <li>{@link #forUserInterface()} with highlighting, term vectors and spelling suggestions, used by the search
+ * tool.</li>
+ * <li>{@link #forApi()} with neither highlighting, term vectors nor suggestions and only the fields describing a
+ * result.</li>
+ * </ul>
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class SearchOptions {
+    /**
+     * Default number of highlighted snippets per result.
+     */
+    public static final int DEFAULT_SNIPPETS = 1;
+    /**
+     * Default size in characters of a highlighted snippet.
+     */
+    public static final int DEFAULT_FRAGMENT_SIZE = 100;
+    /**
+     * Default number of results returned for each group when results are collapsed.
+     */
+    public static final int DEFAULT_COLLAPSE_LIMIT = 1;
+    private boolean highlighting;
+    private boolean termVectors;
+    private boolean spellCheck;
+    private boolean facets;
+    private List<String> fields;
+    private int snippets = DEFAULT_SNIPPETS;
+    private int fragmentSize = DEFAULT_FRAGMENT_SIZE;
+    private Collapse collapse;
+    private int collapseLimit = DEFAULT_COLLAPSE_LIMIT;
+
+    /**
+     * Creates options without highlighting, term vectors, suggestions nor facets, returning every stored field.
+     */
+    public SearchOptions() {
+    }
+
+    /**
+     * Creates a copy of existing options.
+     *
+     * @param searchOptions options to copy.
+     */
+    public SearchOptions(SearchOptions searchOptions) {
+        this.highlighting = searchOptions.highlighting;
+        this.termVectors = searchOptions.termVectors;
+        this.spellCheck = searchOptions.spellCheck;
+        this.facets = searchOptions.facets;
+        this.fields = searchOptions.fields;
+        this.snippets = searchOptions.snippets;
+        this.fragmentSize = searchOptions.fragmentSize;
+        this.collapse = searchOptions.collapse;
+        this.collapseLimit = searchOptions.collapseLimit;
+    }
+
+    /**
+     * Creates options for the search tool, with highlighting, term vectors, suggestions and every stored field.
+     *
+     * @return options for the user interface.
+     */
+    public static SearchOptions forUserInterface() {
+        SearchOptions searchOptions = new SearchOptions();
+        searchOptions.setHighlighting(true);
+        searchOptions.setTermVectors(true);
+        searchOptions.setSpellCheck(true);
+        return searchOptions;
+    }
+
+    /**
+     * Creates options for remote clients, only returning the fields describing a result.
+     *
+     * @return options for the API.
+     */
+    public static SearchOptions forApi() {
+        SearchOptions searchOptions = new SearchOptions();
+        searchOptions.setFields(Arrays.asList("title", "tool", "url"));
+        return searchOptions;
+    }
+
+    public boolean isHighlighting() {
+        return highlighting;
+    }
+
+    public void setHighlighting(boolean highlighting) {
+        this.highlighting = highlighting;
+    }
+
+    public boolean isTermVectors() {
+        return termVectors;
+    }
+
+    public void setTermVectors(boolean termVectors) {
+        this.termVectors = termVectors;
+    }
+
+    public boolean isSpellCheck() {
+        return spellCheck;
+    }
+
+    public void setSpellCheck(boolean spellCheck) {
+        this.spellCheck = spellCheck;
+    }
+
+    public boolean isFacets() {
+        return facets;
+    }
+
+    public void setFacets(boolean facets) {
+        this.facets = facets;
+    }
+
+    /**
+     * Gets the stored fields to return with each result.
+     * <p>
+     * The fields required to identify a result (reference, id, site id and score) are always returned.
+     * </p>
+     *
+     * @return the fields to return, or null to return every stored field.
+     */
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public void setFields(List<String> fields) {
+        this.fields = (fields != null) ? Collections.unmodifiableList(new ArrayList<String>(fields)) : null;
+    }
+
+    public int getSnippets() {
+        return snippets;
+    }
+
+    public void setSnippets(int snippets) {
+        this.snippets = snippets;
+    }
+
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    public void setFragmentSize(int fragmentSize) {
+        this.fragmentSize = fragmentSize;
+    }
+
+    /**
+     * Gets the field by which results are collapsed.
+     *
+     * @return the field by which results are grouped, or null if results aren't collapsed.
+     */
+    public Collapse getCollapse() {
+        return collapse;
+    }
+
+    public void setCollapse(Collapse collapse) {
+        this.collapse = collapse;
+    }
+
+    public int getCollapseLimit() {
+        return collapseLimit;
+    }
+
+    public void setCollapseLimit(int collapseLimit) {
+        this.collapseLimit = collapseLimit;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchOptions{"
+                + "highlighting=" + highlighting
+                + ", termVectors=" + termVectors
+                + ", spellCheck=" + spellCheck
+                + ", facets=" + facets
+                + ", fields=" + fields
+                + ", snippets=" + snippets
+                + ", fragmentSize=" + fragmentSize
+                + ", collapse=" + collapse
+                + ", collapseLimit=" + collapseLimit
+                + '}';
+    }
+
+    /**
+     * Fields by which results can be collapsed.
+     */
+    public static enum Collapse {
+        /**
+         * One group per container, such as a folder or a forum.
+         */
+        CONTAINER(SearchService.FIELD_CONTAINER),
+        /**
+         * One group per site.
+         */
+        SITE(SearchService.FIELD_SITEID);
+        private final String field;
+
+        private Collapse(String field) {
+            this.field = field;
+        }
+
+        public String getField() {
+            return field;
+        }
+    }
+}
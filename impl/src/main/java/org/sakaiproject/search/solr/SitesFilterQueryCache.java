@@ -0,0 +1,116 @@
+package org.sakaiproject.search.solr;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.solr.util.StatisticsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last sites filter query of each user, users often search in the same sites again.
+ * <p>
+ * The site ids are sorted so the same set of sites always produces the same filter query, allowing solr to reuse
+ * the filter query from its filterCache.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class SitesFilterQueryCache implements StatisticsProvider {
+    private static final Logger logger = LoggerFactory.getLogger(SitesFilterQueryCache.class);
+    private final Cache<String, SitesFilterQuery> sitesFilterQueries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache of sites filter queries.
+     *
+     * @param maximumUsers  maximum number of users for which a filter query is kept.
+     * @param expiryMinutes time in minutes after which the filter query of an inactive user is discarded.
+     */
+    public SitesFilterQueryCache(int maximumUsers, int expiryMinutes) {
+        sitesFilterQueries = CacheBuilder.newBuilder()
+                .maximumSize(maximumUsers)
+                .expireAfterAccess(expiryMinutes, TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * Gets the solr filter query for a list of site ids, reusing the last filter query of the user if the sites
+     * haven't changed.
+     *
+     * @param userId  user running the search.
+     * @param siteIds sites ID to add to the filter
+     * @return a filter query allowing to search only in the given sites
+     */
+    public String getFilterQuery(String userId, Collection<String> siteIds) {
+        String key = (userId != null) ? userId : "";
+        Set<String> sites = new HashSet<String>(siteIds);
+        SitesFilterQuery sitesFilterQuery = sitesFilterQueries.getIfPresent(key);
+        if (sitesFilterQuery == null || !sitesFilterQuery.sites.equals(sites)) {
+            misses.incrementAndGet();
+            sitesFilterQuery = new SitesFilterQuery(sites, createFilterQuery(sites));
+            sitesFilterQueries.put(key, sitesFilterQuery);
+        } else {
+            hits.incrementAndGet();
+        }
+        return sitesFilterQuery.filterQuery;
+    }
+
+    /**
+     * Creates a solr filter query based on a set of site ids.
+     *
+     * @param siteIds sites ID to add to the filter
+     * @return a filter query allowing to search only in the given sites
+     */
+    public static String createFilterQuery(Collection<String> siteIds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('+').append(SearchService.FIELD_SITEID).append(":");
+        sb.append('(');
+        for (Iterator<String> siteIdsIterator = new TreeSet<String>(siteIds).iterator(); siteIdsIterator.hasNext(); ) {
+            sb.append('"').append(siteIdsIterator.next()).append('"');
+            if (siteIdsIterator.hasNext())
+                sb.append(" OR ");
+        }
+        sb.append(')');
+        logger.debug("Create filter query {}", sb);
+        return sb.toString();
+    }
+
+    /**
+     * Gets statistics about the reuse of the filter queries.
+     *
+     * @return the number of hits, misses and users currently cached.
+     */
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("hits", hits.get());
+        statistics.put("misses", misses.get());
+        statistics.put("size", sitesFilterQueries.size());
+        return statistics;
+    }
+
+    /**
+     * Filter query created for a set of sites.
+     */
+    private static final class SitesFilterQuery {
+        private final Set<String> sites;
+        private final String filterQuery;
+
+        private SitesFilterQuery(Set<String> sites, String filterQuery) {
+            this.sites = sites;
+            this.filterQuery = filterQuery;
+        }
+    }
+}
@@ -10,6 +10,8 @@ import org.sakaiproject.search.indexing.Task;
 import org.sakaiproject.search.model.SearchBuilderItem;
 import org.sakaiproject.search.producer.ContentProducerFactory;
 import org.sakaiproject.search.queueing.IndexQueueing;
+import org.sakaiproject.search.response.filter.AuthorizationDecisionCache;
+import org.sakaiproject.search.solr.indexing.IndexStatusMonitor;
 import org.sakaiproject.search.solr.indexing.SolrTools;
 import org.sakaiproject.site.api.SiteService;
 import org.slf4j.Logger;
@@ -30,6 +32,10 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
      * Unique identifier of the search tool across sakai.
      */
     public static final String SEARCH_TOOL_ID = "sakai.search";
+    /**
+     * Prefix of the events related to sites (such as "site.upd.site.mbrshp").
+     */
+    private static final String SITE_EVENT_PREFIX = "site.";
     private static final Logger logger = LoggerFactory.getLogger(SolrSearchIndexBuilder.class);
     private SiteService siteService;
     private SolrTools solrTools;
@@ -37,6 +43,18 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
     private boolean searchToolRequired;
     private boolean ignoreUserSites;
     private IndexQueueing indexQueueing;
+    /**
+     * Decisions to invalidate when an entity or a site is modified, if any.
+     */
+    private AuthorizationDecisionCache authorizationDecisionCache;
+    /**
+     * Filter queries to invalidate when the members of a site change, if any.
+     */
+    private AccessControlFilter accessControlFilter;
+    /**
+     * Periodic snapshot of the status of the index, if null the status is requested to solr on each call.
+     */
+    private IndexStatusMonitor indexStatusMonitor;
 
     @Override
     public void addResource(Notification notification, Event event) {
@@ -68,6 +86,12 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
             return;
         }
 
+        invalidateAuthorizationDecisions(event, resourceName, entityContentProducer);
+        if (accessControlFilter != null && event.getEvent().startsWith(SITE_EVENT_PREFIX)) {
+            logger.debug("Discard the access control filters after '{}'", event.getEvent());
+            accessControlFilter.invalidateAll();
+        }
+
         // If the indexing is only enabled on sites with search tool, check that the tool is actually enabled
         if (isOnlyIndexSearchToolSites()) {
             String siteId = entityContentProducer.getSiteId(resourceName);
@@ -102,6 +126,30 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
         indexQueueing.addTaskToQueue(task);
     }
 
+    /**
+     * Discards the authorization decisions which may be affected by an event.
+     * <p>
+     * Site events (membership, groups, ...) affect every entity of the site, other events only affect the
+     * modified entity.
+     * </p>
+     *
+     * @param event                 event modifying an entity.
+     * @param resourceName          reference of the modified entity.
+     * @param entityContentProducer content producer handling the modified entity.
+     */
+    private void invalidateAuthorizationDecisions(Event event, String resourceName,
+                                                  EntityContentProducer entityContentProducer) {
+        if (authorizationDecisionCache == null)
+            return;
+
+        authorizationDecisionCache.invalidateReference(resourceName);
+        if (event.getEvent().startsWith(SITE_EVENT_PREFIX)) {
+            String siteId = entityContentProducer.getSiteId(resourceName);
+            logger.debug("Discard the authorization decisions for the site '{}'", siteId);
+            authorizationDecisionCache.invalidateSite(siteId);
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -169,9 +217,23 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
         indexQueueing.addTaskToQueue(task);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * With an {@link IndexStatusMonitor}, the answer comes from its latest snapshot, which can be up to
+     * {@code refreshIntervalSeconds} (10 seconds by default) old. The queue is then empty when no document is pending
+     * and no indexing task is queued or running on this server.<br />
+     * Without it, only the documents pending on the server are checked, with a request to solr.
+     * </p>
+     */
     @Override
     public boolean isBuildQueueEmpty() {
-        return getPendingDocuments() == 0;
+        if (indexStatusMonitor != null) {
+            IndexStatusMonitor.Snapshot snapshot = indexStatusMonitor.getSnapshot();
+            return snapshot.getPendingDocuments() == 0 && snapshot.getQueuedTasks() == 0
+                    && snapshot.getActiveTasks() == 0;
+        }
+        return solrTools.getPendingDocuments() == 0;
     }
 
     @Override
@@ -188,6 +250,8 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
 
     @Override
     public int getPendingDocuments() {
+        if (indexStatusMonitor != null)
+            return indexStatusMonitor.getSnapshot().getPendingDocuments();
         return solrTools.getPendingDocuments();
     }
 
@@ -242,4 +306,16 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
     public void setIndexQueueing(IndexQueueing indexQueueing) {
         this.indexQueueing = indexQueueing;
     }
+
+    public void setAuthorizationDecisionCache(AuthorizationDecisionCache authorizationDecisionCache) {
+        this.authorizationDecisionCache = authorizationDecisionCache;
+    }
+
+    public void setAccessControlFilter(AccessControlFilter accessControlFilter) {
+        this.accessControlFilter = accessControlFilter;
+    }
+
+    public void setIndexStatusMonitor(IndexStatusMonitor indexStatusMonitor) {
+        this.indexStatusMonitor = indexStatusMonitor;
+    }
 }
@@ -1,11 +1,18 @@
 package org.sakaiproject.search.solr;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
 import org.apache.solr.client.solrj.request.SolrPing;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.SpellCheckResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.sakaiproject.component.cover.ServerConfigurationService;
 import org.sakaiproject.event.api.NotificationEdit;
@@ -14,16 +21,38 @@ import org.sakaiproject.search.api.*;
 import org.sakaiproject.search.model.SearchBuilderItem;
 import org.sakaiproject.search.notification.SearchNotificationAction;
 import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.response.filter.BatchSearchItemFilter;
 import org.sakaiproject.search.response.filter.SearchItemFilter;
+import org.sakaiproject.search.response.filter.SearchItemFilterAdapter;
+import org.sakaiproject.search.solr.indexing.IndexStatusMonitor;
+import org.sakaiproject.search.solr.response.ResultStreamWriter;
+import org.sakaiproject.search.solr.response.SolrResult;
 import org.sakaiproject.search.solr.response.SolrSearchList;
+import org.sakaiproject.search.solr.util.StatisticsReporter;
+import org.sakaiproject.tool.api.SessionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
  * Search service using Solr to execute search queries.
@@ -36,6 +65,42 @@ import java.util.Map;
  */
 public class SolrSearchService implements SearchService {
     private static final Logger logger = LoggerFactory.getLogger(SolrSearchService.class);
+    /**
+     * Field containing the prefixes of each word of the title.
+     */
+    private static final String TITLE_SUGGEST_FIELD = "title_suggest";
+    /**
+     * Field containing each word of the title, counted to complete the last word of a query.
+     */
+    private static final String TITLE_TERMS_FIELD = "title_terms";
+    private static final String INDEX_DATE_FIELD = "indexdate";
+    /**
+     * Minimum length of the last word before looking for terms completing it.
+     */
+    private static final int MINIMUM_TERM_PREFIX_LENGTH = 2;
+    /**
+     * Splits a title in lower case words, the way {@link #TITLE_TERMS_FIELD} is tokenised for most titles.
+     */
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    /**
+     * Fields counted when facets are requested, in addition to the ranges of {@link #INDEX_DATE_FIELD}.
+     */
+    private static final String[] FACET_FIELDS = {SearchService.FIELD_TOOL, SearchService.FIELD_TYPE,
+            SearchService.FIELD_SITEID};
+    /**
+     * Filter letting everything go through.
+     */
+    private static final BatchSearchItemFilter NO_FILTER = new BatchSearchItemFilter() {
+        @Override
+        public SearchResult filter(SearchResult result) {
+            return result;
+        }
+
+        @Override
+        public List<SearchResult> filter(List<SearchResult> results) {
+            return results;
+        }
+    };
     private SolrServer solrServer;
     private NotificationEdit notification;
     private SearchIndexBuilder searchIndexBuilder;
@@ -48,12 +113,81 @@ public class SolrSearchService implements SearchService {
      * By default the filter will let everything go through without any filtering.
      * </p>
      */
-    private SearchItemFilter searchItemFilter = new SearchItemFilter() {
-        @Override
-        public SearchResult filter(SearchResult result) {
-            return result;
-        }
-    };
+    private BatchSearchItemFilter searchItemFilter = NO_FILTER;
+    private SessionManager sessionManager;
+    /**
+     * Excludes obviously unreadable documents from the results, if null only the search item filter is applied.
+     */
+    private AccessControlFilter accessControlFilter;
+    /**
+     * Tracks censored results to fill pages, if null pages may contain censored results.
+     */
+    private PermissionAwarePaging permissionAwarePaging;
+    /**
+     * Maximum number of queries sent to fill a single page of results.
+     */
+    private int maximumFetchRounds = 5;
+    /**
+     * Maximum number of values counted for each facet field.
+     */
+    private int facetLimit = 20;
+    /**
+     * Maximum number of documents read from solr in an export.
+     */
+    private int maximumExportedResults = 10000;
+    /**
+     * Number of exported results checked together by the search item filter.
+     */
+    private int exportBatchSize = 100;
+    /**
+     * Position after which results can't be reached with offset paging, deeper pages must use a cursor.
+     */
+    private int maximumPagingDepth = 1000;
+    /**
+     * Normalises and rewrites the queries sent by users, if null queries are sent to solr as they are.
+     */
+    private QueryPreprocessor queryPreprocessor;
+    /**
+     * Cache of the responses sent by solr, if null every query is sent to solr.
+     */
+    private QueryResultCache queryResultCache;
+    /**
+     * Shares the round trip of identical concurrent queries when there is no query result cache.
+     */
+    private RequestCoalescer requestCoalescer;
+    /**
+     * Cache of the spelling suggestions, if null suggestions are always requested to solr.
+     */
+    private SuggestionCache suggestionCache;
+    /**
+     * Number of threads looking for suggestions asynchronously, if 0 suggestions are looked up by the caller.
+     */
+    private int suggestionThreadCount = 2;
+    /**
+     * Number of suggestions waiting for a thread, suggestions requested beyond that aren't looked up.
+     */
+    private int suggestionQueueSize = 100;
+    private ExecutorService suggestionExecutor;
+    /**
+     * Periodic snapshot of the status of the index, if null the number of documents is requested to solr each time.
+     */
+    private IndexStatusMonitor indexStatusMonitor;
+    /**
+     * Statistics of the search components, appended to the status of the service if not null.
+     */
+    private StatisticsReporter statisticsReporter;
+    /**
+     * Options used by the methods from {@link SearchService}, tuned for the search tool.
+     */
+    private SearchOptions defaultSearchOptions = SearchOptions.forUserInterface();
+    /**
+     * Last sites filter query of each user, if null the filter query is created for every search.
+     */
+    private SitesFilterQueryCache sitesFilterQueryCache;
+    /**
+     * Terms completing the prefixes typed recently, if null the terms are counted by solr on every keystroke.
+     */
+    private PrefixCompletionCache prefixCompletionCache;
 
     /**
      * Initialises the search service (as long is {@link #isEnabled()} is true) to capture and process event affecting
@@ -80,6 +214,30 @@ public class SolrSearchService implements SearchService {
 
         // set the action
         notification.setAction(new SearchNotificationAction(searchIndexBuilder));
+
+        if (suggestionThreadCount > 0) {
+            // When the queue is full, new suggestions are rejected rather than piling up behind slow queries
+            suggestionExecutor = new ThreadPoolExecutor(suggestionThreadCount, suggestionThreadCount,
+                    0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(suggestionQueueSize),
+                    new ThreadFactory() {
+                        private final AtomicInteger threadNumber = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "search-suggestion-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Stops the threads looking for suggestions.
+     */
+    public void destroy() {
+        if (suggestionExecutor != null)
+            suggestionExecutor.shutdownNow();
     }
 
     @Override
@@ -92,49 +250,654 @@ public class SolrSearchService implements SearchService {
     public SearchList search(String searchTerms, List<String> siteIds, int start, int end,
                              String filterName, String sorterName)
             throws InvalidSearchQueryException {
+        return search(searchTerms, siteIds, start, end, defaultSearchOptions);
+    }
+
+    /**
+     * Runs a search query computing only the parts of the response requested in the options.
+     *
+     * @param searchTerms   query sent by the user.
+     * @param siteIds       sites in which the search is done, every site if null or empty.
+     * @param start         position of the first result.
+     * @param end           position after the last result.
+     * @param searchOptions highlighting, term vectors and fields to return.
+     * @return a page of results.
+     * @throws InvalidSearchQueryException if the query couldn't be run or was rejected, or if the page is deeper than
+     *                                     {@link #maximumPagingDepth}.
+     */
+    public SearchList search(String searchTerms, List<String> siteIds, int start, int end,
+                             SearchOptions searchOptions)
+            throws InvalidSearchQueryException {
+        if (end > maximumPagingDepth)
+            throw new InvalidSearchQueryException("Results after " + maximumPagingDepth
+                    + " can only be reached with a cursor");
+        searchTerms = preprocess(searchTerms);
+
         try {
             SolrQuery query = new SolrQuery();
+            applySearchOptions(query, searchOptions);
+            addFilterQueries(query, siteIds);
+            addStableSort(query);
+
+            logger.debug("Searching with Solr '{}'", searchTerms);
+
+            query.setQuery(searchTerms);
+            if (searchOptions.getCollapse() != null)
+                addCollapse(query, searchOptions);
+            else if (permissionAwarePaging != null && end > start)
+                return searchReadableResults(query, start, end);
 
             query.setStart(start);
             query.setRows(end - start);
+            QueryResponse rsp = query(query);
+            recordSuggestion(searchTerms, rsp);
+            return new SolrSearchList(rsp, start, searchItemFilter, contentProducerFactory);
+        } catch (SolrServerException e) {
+            throw new InvalidSearchQueryException("Failed to parse Query", e);
+        }
+    }
+
+    /**
+     * Runs a search query returning the page of results after a cursor.
+     * <p>
+     * Results are sorted by reference instead of relevance, and each page selects the results with a reference
+     * greater than the last one read. Solr still visits every matching document after the cursor, but only keeps one
+     * page in its priority queue instead of every result before the page, so the memory used doesn't grow with the
+     * depth. Censored results are skipped and more results are fetched until the page is full, the results are
+     * exhausted or {@link #maximumFetchRounds} queries have been sent.<br />
+     * The total number of results of the returned list is the number of results after the cursor.
+     * </p>
+     *
+     * @param searchTerms   query sent by the user.
+     * @param siteIds       sites in which the search is done, every site if null or empty.
+     * @param cursor        token obtained with {@link SolrSearchList#getNextCursor()}, null for the first page.
+     * @param rows          number of results in the page.
+     * @param searchOptions highlighting, term vectors and fields to return.
+     * @return a page of readable results, with the cursor to the next page.
+     * @throws InvalidSearchQueryException if the query couldn't be run or was rejected, or if the cursor isn't valid.
+     */
+    public SolrSearchList searchAfter(String searchTerms, List<String> siteIds, String cursor, int rows,
+                                      SearchOptions searchOptions)
+            throws InvalidSearchQueryException {
+        SearchCursor position;
+        try {
+            position = (cursor != null) ? SearchCursor.decode(cursor) : null;
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSearchQueryException("Invalid cursor", e);
+        }
+        searchTerms = preprocess(searchTerms);
+
+        try {
+            SolrQuery query = new SolrQuery(searchTerms);
+            applySearchOptions(query, searchOptions);
+            addFilterQueries(query, siteIds);
+            // Unlike scores, references are unique and don't depend on the query, the position of a result is stable
+            query.addSort(SearchService.FIELD_REFERENCE, SolrQuery.ORDER.asc);
+            logger.debug("Searching with Solr '{}' after {}", searchTerms, position);
+
+            String userId = sessionManager.getCurrentSessionUserId();
+            List<SearchResult> page = new ArrayList<SearchResult>(rows);
+            QueryResponse firstRsp = null;
+            boolean exhausted = false;
+            int checkedResults = 0;
+            int censoredResults = 0;
+            for (int round = 0; round < maximumFetchRounds && page.size() < rows && !exhausted; round++) {
+                int missingResults = rows - page.size();
+                int fetchedRows = (permissionAwarePaging != null)
+                        ? permissionAwarePaging.estimateRows(userId, missingResults) : missingResults;
+                String cursorFilterQuery = (position != null) ? position.toFilterQuery() : null;
+                if (cursorFilterQuery != null)
+                    query.addFilterQuery(cursorFilterQuery);
+                query.setStart(0);
+                query.setRows(fetchedRows);
+                QueryResponse rsp = query(query);
+                if (cursorFilterQuery != null)
+                    query.removeFilterQuery(cursorFilterQuery);
+                exhausted = rsp.getResults().size() < fetchedRows;
+                if (round == 0) {
+                    firstRsp = rsp;
+                    recordSuggestion(searchTerms, rsp);
+                    query.setParam("spellcheck", false);
+                    query.setFacet(false);
+                }
+
+                // Censored results are replaced in place, the original result gives the position of the cursor
+                List<SearchResult> results = new SolrSearchList(rsp, 0, NO_FILTER, contentProducerFactory);
+                List<SearchResult> filteredResults = searchItemFilter.filter(results);
+                for (int i = 0; i < filteredResults.size(); i++) {
+                    if (page.size() >= rows) {
+                        exhausted = false;
+                        break;
+                    }
+                    SearchResult result = results.get(i);
+                    position = SearchCursor.after(result.getReference());
+                    checkedResults++;
+                    if (filteredResults.get(i).isCensored()) {
+                        censoredResults++;
+                        continue;
+                    }
+                    if (filteredResults.get(i) instanceof SolrResult)
+                        ((SolrResult) filteredResults.get(i)).setIndex(page.size());
+                    page.add(filteredResults.get(i));
+                }
+            }
+
+            if (permissionAwarePaging != null)
+                permissionAwarePaging.recordCensorship(userId, checkedResults, censoredResults);
+            String nextCursor = (!exhausted && position != null) ? position.encode() : null;
+            return new SolrSearchList(firstRsp, 0, page, nextCursor);
+        } catch (SolrServerException e) {
+            throw new InvalidSearchQueryException("Failed to parse Query", e);
+        }
+    }
+
+    /**
+     * Normalises the terms of a query and rewrites or rejects its expensive constructs.
+     *
+     * @param searchTerms query sent by the user.
+     * @return the query to send to solr.
+     * @throws InvalidSearchQueryException if the query is too expensive to be run.
+     */
+    private String preprocess(String searchTerms) throws InvalidSearchQueryException {
+        return (queryPreprocessor != null) ? queryPreprocessor.process(searchTerms) : searchTerms;
+    }
+
+    /**
+     * Groups the results by the collapse field, start and rows then apply to groups instead of results.
+     * <p>
+     * Only the top results of each group are returned and checked by the search item filter, which cuts the number of
+     * near-duplicates to check and send. Censored results are removed from their group without fetching more
+     * results, as the page is made of groups.<br />
+     * Term vectors aren't computed for collapsed results, the term vector component only handles flat results.
+     * </p>
+     *
+     * @param query         query to send to solr.
+     * @param searchOptions collapse field and number of results per group.
+     */
+    private void addCollapse(SolrQuery query, SearchOptions searchOptions) {
+        query.setParam("group", true);
+        query.setParam("group.field", searchOptions.getCollapse().getField());
+        query.setParam("group.limit", String.valueOf(searchOptions.getCollapseLimit()));
+        query.setParam("group.ngroups", true);
+        query.setParam("tv", false);
+    }
+
+    /**
+     * Sorts the results by score, then by reference so results with the same score are always in the same order.
+     * <p>
+     * The order must be stable for {@link PermissionAwarePaging} checkpoints to stay valid between two pages.
+     * </p>
+     *
+     * @param query query to send to solr.
+     */
+    private void addStableSort(SolrQuery query) {
+        query.addSort("score", SolrQuery.ORDER.desc);
+        query.addSort(SearchService.FIELD_REFERENCE, SolrQuery.ORDER.asc);
+    }
+
+    /**
+     * Runs a search query and writes the readable results as they are read from solr.
+     * <p>
+     * The response is streamed by solr, documents are transformed into results and checked by the search item
+     * filter in batches of {@link #exportBatchSize}, then written and discarded. The memory used doesn't depend on the
+     * number of results.<br />
+     * Highlighting, term vectors, suggestions and facets can't be streamed and are never computed. The query result
+     * cache isn't used either, as exported responses are too large to be kept.
+     * </p>
+     *
+     * @param searchTerms   query sent by the user.
+     * @param siteIds       sites in which the search is done, every site if null or empty.
+     * @param searchOptions fields to return.
+     * @param writer        output in which the results are written.
+     * @throws InvalidSearchQueryException if the query couldn't be run or was rejected.
+     * @throws IOException                 if the results couldn't be written.
+     */
+    public void export(String searchTerms, List<String> siteIds, SearchOptions searchOptions,
+                       final ResultStreamWriter writer) throws InvalidSearchQueryException, IOException {
+        SearchOptions exportOptions = new SearchOptions(searchOptions);
+        exportOptions.setHighlighting(false);
+        exportOptions.setTermVectors(false);
+        exportOptions.setSpellCheck(false);
+        exportOptions.setFacets(false);
+        searchTerms = preprocess(searchTerms);
+
+        SolrQuery query = new SolrQuery(searchTerms);
+        applySearchOptions(query, exportOptions);
+        addFilterQueries(query, siteIds);
+        query.setRows(maximumExportedResults);
+        logger.debug("Exporting the results of '{}'", searchTerms);
+
+        final List<SearchResult> batch = new ArrayList<SearchResult>(exportBatchSize);
+        try {
+            solrServer.queryAndStreamResponse(query, new StreamingResponseCallback() {
+                @Override
+                public void streamSolrDocument(SolrDocument document) {
+                    SolrResult result = new SolrResult();
+                    result.setDocument(document);
+                    result.setHighlights(Collections.<String, List<String>>emptyMap());
+                    result.setContentProducer(contentProducerFactory.getContentProducerForElement(
+                            (String) document.getFieldValue(SearchService.FIELD_REFERENCE)));
+                    batch.add(result);
+                    if (batch.size() >= exportBatchSize)
+                        writeReadableResults(batch, writer);
+                }
+
+                @Override
+                public void streamDocListInfo(long numFound, long start, Float maxScore) {
+                    // numFound includes the documents censored later, the writer counts the results it writes
+                    try {
+                        writer.start();
+                    } catch (IOException e) {
+                        throw new ExportException(e);
+                    }
+                }
+            });
+            writeReadableResults(batch, writer);
+            writer.end();
+        } catch (SolrServerException e) {
+            throw new InvalidSearchQueryException("Failed to export the results", e);
+        } catch (RuntimeException e) {
+            // Failures of the writer are wrapped by solr while the response is parsed
+            for (Throwable cause : Throwables.getCausalChain(e)) {
+                if (cause instanceof ExportException)
+                    throw (IOException) cause.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Filters a batch of results and writes the readable ones, then empties the batch.
+     *
+     * @param batch  results read from solr since the last batch.
+     * @param writer output in which the results are written.
+     */
+    private void writeReadableResults(List<SearchResult> batch, ResultStreamWriter writer) {
+        try {
+            for (SearchResult result : searchItemFilter.filter(batch)) {
+                if (!result.isCensored())
+                    writer.write(result);
+            }
+            batch.clear();
+        } catch (IOException e) {
+            throw new ExportException(e);
+        }
+    }
+
+    /**
+     * Finds readable documents similar to a given document.
+     * <p>
+     * The current user must be able to read the document, otherwise its existence and the documents similar to it
+     * could be probed.<br />
+     * The "/mlt" handler reads the most interesting terms of the document from the term vectors stored for its
+     * contents, and looks for documents containing them. The access control filter isn't applied, so responses only
+     * depend on the document, the sites and the index: they're shared through the query result cache by every user
+     * asking for the same document in the same sites, until the index changes. Results are checked by the search item
+     * filter afterwards and censored results are removed.
+     * </p>
+     *
+     * @param reference reference of the document.
+     * @param siteIds   sites in which similar documents are searched, every site if null or empty.
+     * @param count     maximum number of similar documents.
+     * @return readable documents similar to the given document, the most similar first.
+     * @throws InvalidSearchQueryException if the query couldn't be run or if the document can't be read.
+     */
+    public SearchList similar(String reference, List<String> siteIds, int count) throws InvalidSearchQueryException {
+        // Missing and unreadable documents are rejected the same way
+        EntityContentProducer contentProducer = contentProducerFactory.getContentProducerForElement(reference);
+        if (contentProducer == null || !contentProducer.canRead(reference))
+            throw new InvalidSearchQueryException("The document '" + reference + "' can't be read");
+
+        try {
+            String documentQuery = SearchService.FIELD_REFERENCE + ':' + ClientUtils.escapeQueryChars(reference);
+            SolrQuery query = new SolrQuery(documentQuery);
+            query.setRequestHandler("/mlt");
+            if (siteIds != null && !siteIds.isEmpty())
+                query.addFilterQuery(getSitesFilterQuery(siteIds));
+            // Some similar documents may be censored, the usual ratio of censored results is fetched on top
+            int rows = (permissionAwarePaging != null)
+                    ? permissionAwarePaging.estimateRows(sessionManager.getCurrentSessionUserId(), count) : count;
+            query.setRows(rows);
+            logger.debug("Looking for documents similar to '{}'", reference);
 
+            QueryResponse rsp = query(query);
+            List<SearchResult> readableResults = new ArrayList<SearchResult>(count);
+            for (SearchResult result : new SolrSearchList(rsp, 0, searchItemFilter, contentProducerFactory)) {
+                if (readableResults.size() >= count)
+                    break;
+                if (result.isCensored())
+                    continue;
+                if (result instanceof SolrResult)
+                    ((SolrResult) result).setIndex(readableResults.size());
+                readableResults.add(result);
+            }
+            return new SolrSearchList(rsp, 0, readableResults);
+        } catch (SolrServerException e) {
+            throw new InvalidSearchQueryException("Failed to find similar documents", e);
+        }
+    }
+
+    /**
+     * Proposes completions for a query being typed.
+     * <p>
+     * The completions are obtained from the "/suggest" handler:
+     * <ul>
+     * <li>distinct titles containing words starting with each word typed, restricted to readable documents,</li>
+     * <li>the most frequent words of the titles starting with the last word typed, in the searched sites.</li>
+     * </ul>
+     * Prefixes and words are indexed with each document, so completions follow the index as soon as a commit is done.
+     * Responses go through the query result cache, and terms are kept by the {@link PrefixCompletionCache} until the
+     * index changes, so popular prefixes are served without contacting solr.<br />
+     * Words are counted before the {@link #searchItemFilter} is applied, so only the words found in the titles of
+     * readable documents are proposed.
+     * </p>
+     *
+     * @param prefix  query typed so far.
+     * @param siteIds sites in which the search is done, every site if null or empty.
+     * @param count   maximum number of titles and of terms.
+     * @return the completions for the prefix.
+     * @throws InvalidSearchQueryException if the query couldn't be run.
+     */
+    public Autocompletion autocomplete(String prefix, List<String> siteIds, int count)
+            throws InvalidSearchQueryException {
+        String[] words = (prefix != null) ? QueryResultCache.normaliseTerms(prefix).split(" ") : new String[0];
+        if (words.length == 0 || words[0].isEmpty())
+            return Autocompletion.EMPTY;
+
+        try {
+            String lastWord = words[words.length - 1].toLowerCase(Locale.ROOT);
+            // Some candidates may only appear in unreadable titles, more are requested than needed
+            List<String> candidateTerms = (lastWord.length() >= MINIMUM_TERM_PREFIX_LENGTH)
+                    ? getTermCompletions(lastWord, siteIds, count * 2) : Collections.<String>emptyList();
+
+            SolrQuery query = new SolrQuery("*:*");
+            query.setRequestHandler("/suggest");
+            addFilterQueries(query, siteIds);
+            // Titles matching every word, not cached by solr as prefixes are rarely reused once the user types more
+            StringBuilder titleFilterQuery = new StringBuilder("{!cache=false}");
+            for (String word : words) {
+                titleFilterQuery.append('+').append(TITLE_SUGGEST_FIELD).append(':')
+                        .append(ClientUtils.escapeQueryChars(word)).append(' ');
+            }
+            query.addFilterQuery(titleFilterQuery.toString().trim());
+            query.setFields(SearchService.FIELD_REFERENCE, SearchService.FIELD_ID, SearchService.FIELD_SITEID,
+                    SearchService.FIELD_TITLE);
+            query.setSort(INDEX_DATE_FIELD, SolrQuery.ORDER.desc);
+            // Documents often share a title (versions, copies in several sites), duplicates are dropped
+            query.setRows(count * 2);
+
+            QueryResponse rsp = query(query);
+            Set<String> titles = new LinkedHashSet<String>(count);
+            Set<String> readableWords = new HashSet<String>();
+            for (SearchResult result : new SolrSearchList(rsp, 0, searchItemFilter, contentProducerFactory)) {
+                if (result.isCensored() || result.getTitle() == null)
+                    continue;
+                if (titles.size() < count)
+                    titles.add(result.getTitle());
+                readableWords.addAll(Arrays.asList(
+                        WORD_SEPARATOR.split(result.getTitle().toLowerCase(Locale.ROOT))));
+            }
+
+            // Words counted by solr may come from titles the current user can't read
+            List<String> terms = new ArrayList<String>(count);
+            for (String candidateTerm : candidateTerms) {
+                if (terms.size() == count)
+                    break;
+                if (readableWords.contains(candidateTerm))
+                    terms.add(candidateTerm);
+            }
+            return new Autocompletion(new ArrayList<String>(titles), terms);
+        } catch (SolrServerException e) {
+            throw new InvalidSearchQueryException("Failed to obtain completions", e);
+        }
+    }
+
+    /**
+     * Gets the most frequent words of the titles starting with a prefix.
+     * <p>
+     * The words are counted on {@link #TITLE_TERMS_FIELD}, a field much smaller than the entire text of the documents
+     * whose terms are uninverted once per searcher. Terms are kept in the {@link #prefixCompletionCache}, if any.
+     * </p>
+     *
+     * @param prefix  last word typed, in lower case.
+     * @param siteIds sites in which the search is done, every site if null or empty.
+     * @param count   maximum number of terms.
+     * @return the terms completing the prefix, the most frequent first.
+     * @throws SolrServerException if the terms couldn't be counted.
+     */
+    private List<String> getTermCompletions(String prefix, List<String> siteIds, int count)
+            throws SolrServerException {
+        final SolrQuery query = new SolrQuery("*:*");
+        query.setRequestHandler("/suggest");
+        addFilterQueries(query, siteIds);
+        query.setRows(0);
+        query.setFacet(true);
+        query.addFacetField(TITLE_TERMS_FIELD);
+        query.setFacetPrefix(prefix);
+        query.setFacetLimit(count);
+        query.setFacetMinCount(1);
+        Callable<List<String>> loader = new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws SolrServerException {
+                List<String> terms = new ArrayList<String>();
+                FacetField termsFacet = query(query).getFacetField(TITLE_TERMS_FIELD);
+                if (termsFacet != null && termsFacet.getValues() != null) {
+                    for (FacetField.Count term : termsFacet.getValues())
+                        terms.add(term.getName());
+                }
+                return terms;
+            }
+        };
+
+        try {
+            if (prefixCompletionCache == null)
+                return loader.call();
+            String[] filterQueries = query.getFilterQueries();
+            return prefixCompletionCache.getCompletions(prefix, (filterQueries != null)
+                    ? Arrays.asList(filterQueries) : Collections.<String>emptyList(), count, loader);
+        } catch (SolrServerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Restricts a query to the given sites and to the documents which may be readable by the current user.
+     *
+     * @param query   query to send to solr.
+     * @param siteIds sites in which the search is done, every site if null or empty.
+     */
+    private void addFilterQueries(SolrQuery query, List<String> siteIds) {
+        if (siteIds != null && !siteIds.isEmpty())
+            query.addFilterQuery(getSitesFilterQuery(siteIds));
+        if (accessControlFilter != null) {
+            String accessControlFilterQuery = accessControlFilter.getFilterQuery();
+            if (accessControlFilterQuery != null)
+                query.addFilterQuery(accessControlFilterQuery);
+        }
+    }
+
+    /**
+     * Sets the parameters of a query according to the search options.
+     *
+     * @param query         query to send to solr.
+     * @param searchOptions parts of the response requested.
+     */
+    private void applySearchOptions(SolrQuery query, SearchOptions searchOptions) {
+        if (searchOptions.isHighlighting()) {
             query.setHighlight(true);
             query.setParam("hl.useFastVectorHighlighter", true);
             query.setParam("hl.mergeContiguous", true);
             query.setParam("hl.fl", SearchService.FIELD_CONTENTS);
             query.setParam("hl.formatter", "html");
+            query.setHighlightSnippets(searchOptions.getSnippets());
+            query.setHighlightFragsize(searchOptions.getFragmentSize());
+        }
 
-            if (siteIds != null && !siteIds.isEmpty())
-                query.addFilterQuery(createSitesFilterQuery(siteIds));
+        if (searchOptions.isTermVectors()) {
+            query.setParam("tv", true);
+            query.setParam("tv.fl", SearchService.FIELD_CONTENTS);
+            query.setParam("tv.tf", true);
+        }
 
-            logger.debug("Searching with Solr '{}'", searchTerms);
+        if (searchOptions.isSpellCheck()) {
+            query.setParam("spellcheck", true);
+            query.setParam("spellcheck.collate", true);
+            query.setParam("spellcheck.count", "1");
+        }
 
-            query.setQuery(searchTerms);
-            QueryResponse rsp = solrServer.query(query);
-            return new SolrSearchList(rsp, start, searchItemFilter, contentProducerFactory);
-        } catch (SolrServerException e) {
-            throw new InvalidSearchQueryException("Failed to parse Query", e);
+        if (searchOptions.isFacets()) {
+            query.setFacet(true);
+            query.addFacetField(FACET_FIELDS);
+            query.setFacetLimit(facetLimit);
+            query.setFacetMinCount(1);
+            // Monthly ranges over the last year, rounded to the month so the query stays the same for a month
+            query.setParam("facet.range", INDEX_DATE_FIELD);
+            query.setParam("f." + INDEX_DATE_FIELD + ".facet.range.start", "NOW/MONTH-11MONTHS");
+            query.setParam("f." + INDEX_DATE_FIELD + ".facet.range.end", "NOW/MONTH+1MONTH");
+            query.setParam("f." + INDEX_DATE_FIELD + ".facet.range.gap", "+1MONTH");
+            query.setParam("f." + INDEX_DATE_FIELD + ".facet.range.other", "before");
+        }
+
+        if (searchOptions.getFields() != null) {
+            // Fields required to identify and check each result
+            Set<String> fields = new LinkedHashSet<String>(Arrays.asList(SearchService.FIELD_REFERENCE,
+                    SearchService.FIELD_ID, SearchService.FIELD_SITEID, "score"));
+            fields.addAll(searchOptions.getFields());
+            query.setFields(fields.toArray(new String[fields.size()]));
+        } else {
+            query.setFields("*", "score");
         }
     }
 
     /**
-     * Creates a solr filter query based on a list of site ids.
+     * Runs a search query and returns a page containing only readable results.
+     * <p>
+     * The readable results before the page are skipped from the closest checkpoint, whatever the number of queries
+     * it takes, so a page is never returned empty while readable results remain. Then censored results are skipped and
+     * more results are fetched until the page is full, the results are exhausted or {@link #maximumFetchRounds}
+     * queries have been sent to fill the page.<br />
+     * The number of results fetched depends on the ratio of censored results usually observed for the current user.
+     * Once the page is filled, the position reached in the index is kept so the next page can start from there, as
+     * long as the index doesn't change.
+     * </p>
+     *
+     * @param query query to run (without start and rows).
+     * @param start position of the first readable result.
+     * @param end   position after the last readable result.
+     * @return a page of readable results.
+     * @throws SolrServerException if the query failed.
+     */
+    private SearchList searchReadableResults(SolrQuery query, int start, int end) throws SolrServerException {
+        String userId = sessionManager.getCurrentSessionUserId();
+        String queryKey = query.toString();
+        int pageSize = end - start;
+        PermissionAwarePaging.Checkpoint checkpoint = permissionAwarePaging.getCheckpoint(userId, queryKey, start);
+        int readablePosition = checkpoint.getReadablePosition();
+        int indexPosition = checkpoint.getIndexPosition();
+        logger.debug("Page starting at {} looked up from {} in the index", start, indexPosition);
+
+        List<SearchResult> page = new ArrayList<SearchResult>(pageSize);
+        QueryResponse firstRsp = null;
+        long numFound = Long.MAX_VALUE;
+        int checkedResults = 0;
+        int censoredResults = 0;
+        int fillingRounds = 0;
+        while (firstRsp == null
+                || (page.size() < pageSize && indexPosition < numFound && fillingRounds < maximumFetchRounds)) {
+            // Only the rounds reaching the page are limited, the results before the page have to be skipped anyway
+            if (readablePosition >= start)
+                fillingRounds++;
+            int missingResults = (start - readablePosition) + (pageSize - page.size());
+            query.setStart(indexPosition);
+            query.setRows(permissionAwarePaging.estimateRows(userId, missingResults));
+            QueryResponse rsp = query(query);
+            numFound = rsp.getResults().getNumFound();
+            if (firstRsp == null) {
+                firstRsp = rsp;
+                recordSuggestion(query.getQuery(), rsp);
+                // Suggestions and facet counts don't change with the position, they're only computed once
+                query.setParam("spellcheck", false);
+                query.setFacet(false);
+            }
+
+            // Results fetched are filtered together
+            List<SearchResult> filteredResults = searchItemFilter.filter(
+                    new SolrSearchList(rsp, indexPosition, NO_FILTER, contentProducerFactory));
+            for (SearchResult filteredResult : filteredResults) {
+                checkedResults++;
+                if (filteredResult.isCensored())
+                    censoredResults++;
+            }
+
+            for (SearchResult filteredResult : filteredResults) {
+                if (page.size() >= pageSize)
+                    break;
+                indexPosition++;
+                if (filteredResult.isCensored())
+                    continue;
+
+                if (readablePosition >= start) {
+                    if (filteredResult instanceof SolrResult)
+                        ((SolrResult) filteredResult).setIndex(page.size());
+                    page.add(filteredResult);
+                }
+                readablePosition++;
+            }
+            // A new searcher can end the results before the number found by a previous one
+            if (filteredResults.isEmpty())
+                break;
+        }
+
+        permissionAwarePaging.recordCensorship(userId, checkedResults, censoredResults);
+        permissionAwarePaging.saveCheckpoint(userId, queryKey, checkpoint.getGeneration(), readablePosition,
+                indexPosition);
+        logger.debug("{} results checked to fill a page of {}, {} were censored",
+                new Object[]{checkedResults, page.size(), censoredResults});
+        return new SolrSearchList(firstRsp, start, page);
+    }
+
+    /**
+     * Keeps the suggestion sent with the results of a query, so {@link #getSearchSuggestion(String)} doesn't need to
+     * query solr again.
+     *
+     * @param searchTerms terms of the query.
+     * @param rsp         response sent by solr.
+     */
+    private void recordSuggestion(String searchTerms, QueryResponse rsp) {
+        if (suggestionCache != null && rsp.getSpellCheckResponse() != null)
+            suggestionCache.putSuggestion(searchTerms, extractSuggestion(rsp.getSpellCheckResponse()));
+    }
+
+    /**
+     * Runs a search query, through the query result cache or the request coalescer if there is one.
+     *
+     * @param query query to run.
+     * @return the response sent by solr.
+     * @throws SolrServerException if the query failed.
+     */
+    private QueryResponse query(SolrQuery query) throws SolrServerException {
+        if (queryResultCache != null)
+            return queryResultCache.query(query);
+        else if (requestCoalescer != null)
+            return requestCoalescer.query(query);
+        else
+            return solrServer.query(query);
+    }
+
+    /**
+     * Gets the solr filter query for a list of site ids, reusing the last filter query of the current user if the
+     * sites haven't changed.
      *
      * @param siteIds sites ID to add to the filter
      * @return a filter query allowing to search only in the given sites
      */
-    private String createSitesFilterQuery(List<String> siteIds) {
-        StringBuilder sb = new StringBuilder();
-        sb.append('+').append(SearchService.FIELD_SITEID).append(":");
-        sb.append('(');
-        for (Iterator<String> siteIdsIterator = siteIds.iterator(); siteIdsIterator.hasNext(); ) {
-            sb.append('"').append(siteIdsIterator.next()).append('"');
-            if (siteIdsIterator.hasNext())
-                sb.append(" OR ");
-        }
-        sb.append(')');
-        logger.debug("Create filter query {}", sb);
-        return sb.toString();
+    private String getSitesFilterQuery(List<String> siteIds) {
+        if (sitesFilterQueryCache != null)
+            return sitesFilterQueryCache.getFilterQuery(sessionManager.getCurrentSessionUserId(), siteIds);
+        else
+            return SitesFilterQueryCache.createFilterQuery(siteIds);
     }
 
     @Override
@@ -169,16 +932,20 @@ public class SolrSearchService implements SearchService {
 
     @Override
     public String getStatus() {
+        String status;
         try {
             logger.debug("Obtaining search server status");
-            return String.valueOf(new SolrPing().process(solrServer).getStatus());
+            status = String.valueOf(new SolrPing().process(solrServer).getStatus());
         } catch (Exception e) {
-            return e.getLocalizedMessage();
+            status = e.getLocalizedMessage();
         }
+        return (statisticsReporter != null) ? status + '\n' + statisticsReporter.describe() : status;
     }
 
     @Override
     public int getNDocs() {
+        if (indexStatusMonitor != null)
+            return indexStatusMonitor.getSnapshot().getNumberOfDocuments();
         try {
             logger.debug("Obtaining the number of documents available on the server");
             QueryResponse rsp = solrServer.query(new SolrQuery().setRows(0).setQuery("*:*"));
@@ -284,27 +1051,88 @@ public class SolrSearchService implements SearchService {
     }
 
     @Override
-    public String getSearchSuggestion(String searchString) {
+    public String getSearchSuggestion(final String searchString) {
         logger.debug("Search a suggestion for '{}'", searchString);
         try {
-            ModifiableSolrParams params = new ModifiableSolrParams();
-            params.set("qt", "/spell");
-            params.set("q", searchString);
-            params.set("spellcheck", true);
-            params.set("spellcheck.collate", true);
-
-            QueryResponse response = solrServer.query(params);
-            SpellCheckResponse spellCheckResponse = response.getSpellCheckResponse();
-            if (spellCheckResponse == null || !spellCheckResponse.isCorrectlySpelled())
-                return null;
-            else
-                return spellCheckResponse.getCollatedResult();
-        } catch (SolrServerException e) {
+            if (suggestionCache == null)
+                return loadSearchSuggestion(searchString);
+
+            return suggestionCache.getSuggestion(searchString, new Callable<String>() {
+                @Override
+                public String call() throws SolrServerException {
+                    return loadSearchSuggestion(searchString);
+                }
+            });
+        } catch (Exception e) {
             logger.warn("Failed to obtain a suggestion", e);
             return null;
         }
     }
 
+    /**
+     * Gets a suggestion for a query without waiting for solr.
+     * <p>
+     * If the suggestion was obtained along with the results of the query, it is available immediately. Otherwise the
+     * suggestion is requested in the background so the results can be displayed first.<br />
+     * If too many suggestions are already waiting to be looked up, no suggestion is given for this query.
+     * </p>
+     *
+     * @param searchString terms of the query.
+     * @return the suggestion, null if there is no suggestion.
+     */
+    public Future<String> getSearchSuggestionAsync(final String searchString) {
+        Optional<String> cachedSuggestion = (suggestionCache != null)
+                ? suggestionCache.getCachedSuggestion(searchString) : null;
+        if (cachedSuggestion != null)
+            return Futures.immediateFuture(cachedSuggestion.orNull());
+        if (suggestionExecutor == null)
+            return Futures.immediateFuture(getSearchSuggestion(searchString));
+
+        try {
+            return suggestionExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return getSearchSuggestion(searchString);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Too many suggestions waiting, no suggestion for '{}'", searchString);
+            return Futures.<String>immediateFuture(null);
+        }
+    }
+
+    /**
+     * Requests a suggestion for a query to solr.
+     *
+     * @param searchString terms of the query.
+     * @return the suggestion, null if there is no suggestion.
+     * @throws SolrServerException if the query failed.
+     */
+    private String loadSearchSuggestion(String searchString) throws SolrServerException {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("qt", "/spell");
+        params.set("q", searchString);
+        params.set("spellcheck", true);
+        params.set("spellcheck.collate", true);
+
+        QueryResponse response = solrServer.query(params);
+        return extractSuggestion(response.getSpellCheckResponse());
+    }
+
+    /**
+     * Extracts the suggestion from a spell check response.
+     *
+     * @param spellCheckResponse spell check part of the response sent by solr.
+     * @return the collated suggestion, or null if the query is correctly spelled or if there is no suggestion.
+     */
+    private static String extractSuggestion(SpellCheckResponse spellCheckResponse) {
+        // isCorrectlySpelled is only set with extended results
+        if (spellCheckResponse == null || Boolean.TRUE.equals(spellCheckResponse.isCorrectlySpelled()))
+            return null;
+        else
+            return spellCheckResponse.getCollatedResult();
+    }
+
     //-------------------------------------------------------------------------------------------
     // As far as I know, this implementation isn't diagnosable, so this is a dummy implementation
     //-------------------------------------------------------------------------------------------
@@ -338,7 +1166,7 @@ public class SolrSearchService implements SearchService {
     }
 
     public void setSearchItemFilter(SearchItemFilter searchItemFilter) {
-        this.searchItemFilter = searchItemFilter;
+        this.searchItemFilter = SearchItemFilterAdapter.adapt(searchItemFilter);
     }
 
     public void setTriggerFunctions(List<String> triggerFunctions) {
@@ -352,4 +1180,92 @@ public class SolrSearchService implements SearchService {
     public void setContentProducerFactory(ContentProducerFactory contentProducerFactory) {
         this.contentProducerFactory = contentProducerFactory;
     }
+
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public void setAccessControlFilter(AccessControlFilter accessControlFilter) {
+        this.accessControlFilter = accessControlFilter;
+    }
+
+    public void setPermissionAwarePaging(PermissionAwarePaging permissionAwarePaging) {
+        this.permissionAwarePaging = permissionAwarePaging;
+    }
+
+    public void setFacetLimit(int facetLimit) {
+        this.facetLimit = facetLimit;
+    }
+
+    public void setMaximumExportedResults(int maximumExportedResults) {
+        this.maximumExportedResults = maximumExportedResults;
+    }
+
+    public void setExportBatchSize(int exportBatchSize) {
+        this.exportBatchSize = exportBatchSize;
+    }
+
+    public void setMaximumPagingDepth(int maximumPagingDepth) {
+        this.maximumPagingDepth = maximumPagingDepth;
+    }
+
+    public void setMaximumFetchRounds(int maximumFetchRounds) {
+        if (maximumFetchRounds < 1)
+            throw new IllegalArgumentException("At least one query must be sent to fill a page, not "
+                    + maximumFetchRounds);
+        this.maximumFetchRounds = maximumFetchRounds;
+    }
+
+    public void setDefaultSearchOptions(SearchOptions defaultSearchOptions) {
+        this.defaultSearchOptions = defaultSearchOptions;
+    }
+
+    public void setQueryPreprocessor(QueryPreprocessor queryPreprocessor) {
+        this.queryPreprocessor = queryPreprocessor;
+    }
+
+    public void setQueryResultCache(QueryResultCache queryResultCache) {
+        this.queryResultCache = queryResultCache;
+    }
+
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    public void setSuggestionCache(SuggestionCache suggestionCache) {
+        this.suggestionCache = suggestionCache;
+    }
+
+    public void setSuggestionThreadCount(int suggestionThreadCount) {
+        this.suggestionThreadCount = suggestionThreadCount;
+    }
+
+    public void setSuggestionQueueSize(int suggestionQueueSize) {
+        this.suggestionQueueSize = suggestionQueueSize;
+    }
+
+    public void setIndexStatusMonitor(IndexStatusMonitor indexStatusMonitor) {
+        this.indexStatusMonitor = indexStatusMonitor;
+    }
+
+    public void setSitesFilterQueryCache(SitesFilterQueryCache sitesFilterQueryCache) {
+        this.sitesFilterQueryCache = sitesFilterQueryCache;
+    }
+
+    public void setPrefixCompletionCache(PrefixCompletionCache prefixCompletionCache) {
+        this.prefixCompletionCache = prefixCompletionCache;
+    }
+
+    public void setStatisticsReporter(StatisticsReporter statisticsReporter) {
+        this.statisticsReporter = statisticsReporter;
+    }
+
+    /**
+     * Failure of the result writer, thrown out of the streaming callback which can't throw an IOException.
+     */
+    private static final class ExportException extends RuntimeException {
+        private ExportException(IOException cause) {
+            super(cause);
+        }
+    }
 }
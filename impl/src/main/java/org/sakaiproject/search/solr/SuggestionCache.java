@@ -0,0 +1,133 @@
+package org.sakaiproject.search.solr;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.sakaiproject.search.solr.util.StatisticsProvider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cache of the spelling suggestions for search queries.
+ * <p>
+ * Suggestions only depend on the terms of the query and on the content of the index, they're shared by every user.
+ * The key is made of the normalised terms and of the {@link IndexGeneration} in which the suggestion was found.<br />
+ * The absence of suggestion is cached as well, as most queries are correctly spelled. Suggestions of a previous
+ * generation are never used again and are evicted as new suggestions are added.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class SuggestionCache implements StatisticsProvider {
+    private final Cache<String, Optional<String>> suggestions;
+    private IndexGeneration indexGeneration;
+
+    /**
+     * Creates a suggestion cache.
+     *
+     * @param maximumSuggestions maximum number of queries for which the suggestion is kept.
+     */
+    public SuggestionCache(int maximumSuggestions) {
+        suggestions = CacheBuilder.newBuilder()
+                .maximumSize(maximumSuggestions)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Gets the suggestion for query terms, loading it if it isn't in the cache.
+     * <p>
+     * If the generation of the index can't be obtained, the suggestion is loaded without being cached.
+     * </p>
+     *
+     * @param searchTerms terms of the query.
+     * @param loader      loads the suggestion from solr, returns null if there is no suggestion.
+     * @return the suggestion, or null if there is no suggestion.
+     * @throws Exception if the loader failed, the exception (or error) thrown by the loader is rethrown as is.
+     */
+    public String getSuggestion(String searchTerms, final Callable<String> loader) throws Exception {
+        String key = createKey(searchTerms);
+        if (key == null)
+            return loader.call();
+
+        try {
+            return suggestions.get(key, new Callable<Optional<String>>() {
+                @Override
+                public Optional<String> call() throws Exception {
+                    return Optional.fromNullable(loader.call());
+                }
+            }).orNull();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw e;
+        } catch (UncheckedExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw e;
+        } catch (ExecutionError e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the suggestion for query terms if it is in the cache.
+     *
+     * @param searchTerms terms of the query.
+     * @return the suggestion (absent if there is no suggestion), or null if the suggestion isn't in the cache.
+     */
+    public Optional<String> getCachedSuggestion(String searchTerms) {
+        String key = createKey(searchTerms);
+        return (key != null) ? suggestions.getIfPresent(key) : null;
+    }
+
+    /**
+     * Keeps a suggestion obtained along with the results of a query.
+     *
+     * @param searchTerms terms of the query.
+     * @param suggestion  suggestion found, null if there is no suggestion.
+     */
+    public void putSuggestion(String searchTerms, String suggestion) {
+        String key = createKey(searchTerms);
+        if (key != null)
+            suggestions.put(key, Optional.fromNullable(suggestion));
+    }
+
+    /**
+     * Gets the statistics of the cache.
+     *
+     * @return the statistics of the cache (hits, misses, hitratio, evictions, size).
+     */
+    @Override
+    public Map<String, Object> getStatistics() {
+        CacheStats stats = suggestions.stats();
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("hitratio", stats.hitRate());
+        statistics.put("evictions", stats.evictionCount());
+        statistics.put("size", suggestions.size());
+        return statistics;
+    }
+
+    /**
+     * Creates the key of a suggestion.
+     *
+     * @param searchTerms terms of the query.
+     * @return the key of the suggestion, or null if the generation of the index is unknown.
+     */
+    private String createKey(String searchTerms) {
+        String generation = indexGeneration.getGeneration();
+        return (generation != null) ? generation + '|' + QueryResultCache.normaliseTerms(searchTerms) : null;
+    }
+
+    public void setIndexGeneration(IndexGeneration indexGeneration) {
+        this.indexGeneration = indexGeneration;
+    }
+}
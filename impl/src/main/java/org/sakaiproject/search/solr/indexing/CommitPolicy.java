@@ -0,0 +1,117 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.search.solr.util.AdminStatRequest;
+import org.sakaiproject.search.solr.util.StatisticsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when changes made to the search index become visible.
+ * <p>
+ * Two modes are available:
+ * <ul>
+ * <li>Interactive updates (a single document created, modified or removed) are sent with a short commitWithin,
+ * grouping the changes made by concurrent users in a single soft commit.</li>
+ * <li>Bulk updates (indexation of a site or of the entire instance) don't trigger any commit, a soft commit is sent
+ * once a site has been indexed and a hard commit once the rebuild is over.</li>
+ * </ul>
+ * This avoids opening a new searcher (and dropping the caches) every second during a complete rebuild.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class CommitPolicy implements StatisticsProvider {
+    /**
+     * Value of commitWithin meaning that no commit should be triggered by the update.
+     */
+    public static final int NO_COMMIT_WITHIN = -1;
+    /**
+     * Default maximum time in milliseconds before an interactive update is visible.
+     */
+    public static final int DEFAULT_INTERACTIVE_COMMIT_WITHIN = 1000;
+    private static final Logger logger = LoggerFactory.getLogger(CommitPolicy.class);
+    private final AtomicLong softCommits = new AtomicLong();
+    private final AtomicLong hardCommits = new AtomicLong();
+    private SolrServer solrServer;
+    private int interactiveCommitWithin = DEFAULT_INTERACTIVE_COMMIT_WITHIN;
+
+    /**
+     * Gets the commitWithin to use for interactive updates.
+     *
+     * @return the maximum time in milliseconds before an interactive update is visible.
+     */
+    public int getInteractiveCommitWithin() {
+        return interactiveCommitWithin;
+    }
+
+    /**
+     * Makes the documents of a site visible once the site has been indexed as part of a bulk operation.
+     *
+     * @throws SolrServerException if the commit failed.
+     * @throws IOException         if the server couldn't be reached.
+     */
+    public void siteCompleted() throws SolrServerException, IOException {
+        logger.debug("Soft commit after the indexation of a site");
+        solrServer.commit(false, false, true);
+        softCommits.incrementAndGet();
+    }
+
+    /**
+     * Persists every change once a rebuild of the index is over.
+     *
+     * @throws SolrServerException if the commit failed.
+     * @throws IOException         if the server couldn't be reached.
+     */
+    public void rebuildCompleted() throws SolrServerException, IOException {
+        logger.debug("Hard commit after a rebuild");
+        solrServer.commit(true, true, false);
+        hardCommits.incrementAndGet();
+        logger.info("Commit statistics after the rebuild: {}", getStatistics());
+    }
+
+    /**
+     * Gets statistics about the commits and the searchers opened as a result.
+     * <p>
+     * The statistics contain the number of explicit commits sent by this policy, the number of commits handled by
+     * the server (including commitWithin and autoCommit), as well as the warm-up time of the current searcher.
+     * </p>
+     *
+     * @return the commit statistics, the statistics from the server are omitted if they can't be obtained.
+     */
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("explicitSoftCommits", softCommits.get());
+        statistics.put("explicitHardCommits", hardCommits.get());
+        try {
+            NamedList<Object> updateHandlerStats =
+                    AdminStatRequest.getStatistics(solrServer, "UPDATEHANDLER", "updateHandler");
+            statistics.put("commits", updateHandlerStats.get("commits"));
+            statistics.put("autocommits", updateHandlerStats.get("autocommits"));
+            statistics.put("softAutocommits", updateHandlerStats.get("soft autocommits"));
+
+            NamedList<Object> searcherStats = AdminStatRequest.getStatistics(solrServer, "CORE", "searcher");
+            statistics.put("searcherOpenedAt", searcherStats.get("openedAt"));
+            statistics.put("searcherWarmupTime", searcherStats.get("warmupTime"));
+        } catch (Exception e) {
+            logger.warn("Couldn't obtain the commit statistics from the search server", e);
+        }
+        return statistics;
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+
+    public void setInteractiveCommitWithin(int interactiveCommitWithin) {
+        this.interactiveCommitWithin = interactiveCommitWithin;
+    }
+}
@@ -0,0 +1,253 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.cluster.api.ClusterService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.search.solr.util.AdminStatRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains the search index by merging segments only when necessary.
+ * <p>
+ * Instead of optimising the whole index into a single segment, the statistics of the index are checked first:
+ * <ul>
+ * <li>If there are too many segments, segments are merged down to a target number of segments.</li>
+ * <li>If there are too many deleted documents, segments containing deleted documents are merged.</li>
+ * <li>Otherwise nothing is done.</li>
+ * </ul>
+ * As merges are heavy on I/O and evict caches, the maintenance only happens during an off-peak window.<br />
+ * A check is scheduled periodically, the maintenance can also be requested with {@link #maintain()}.
+ * </p>
+ * <p>
+ * Every node of the cluster schedules the check, but only the node with the lowest server id among the active
+ * servers known by the {@link ClusterService} runs it. If that node stops, the next one takes over at its next
+ * check. The segments are merged by the search server, and one request at a time is enough.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class IndexMaintenance {
+    private static final Logger logger = LoggerFactory.getLogger(IndexMaintenance.class);
+    private SolrServer solrServer;
+    /**
+     * Elects the node running the scheduled maintenance, if null every node runs it.
+     */
+    private ClusterService clusterService;
+    private ServerConfigurationService serverConfigurationService;
+    private double maximumDeletedDocumentsRatio = 0.1;
+    private int maximumSegmentCount = 20;
+    private int targetSegmentCount = 10;
+    private int offPeakStartHour = 1;
+    private int offPeakEndHour = 5;
+    private long checkIntervalMinutes = 60;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Schedules the periodic check of the index.
+     */
+    public void init() {
+        if (checkIntervalMinutes <= 0) {
+            logger.info("The index maintenance won't be scheduled");
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "search-index-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runScheduledMaintenance();
+                } catch (Exception e) {
+                    logger.error("The scheduled index maintenance failed", e);
+                }
+            }
+        }, checkIntervalMinutes, checkIntervalMinutes, TimeUnit.MINUTES);
+        logger.info("Index maintenance checked every {} minutes between {}h and {}h",
+                new Object[]{checkIntervalMinutes, offPeakStartHour, offPeakEndHour});
+    }
+
+    /**
+     * Stops the periodic check of the index.
+     */
+    public void destroy() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * Runs the periodic maintenance if this node is in charge of it.
+     *
+     * @throws SolrServerException if the statistics couldn't be obtained or the merge failed.
+     * @throws IOException         if the server couldn't be reached.
+     */
+    void runScheduledMaintenance() throws SolrServerException, IOException {
+        if (!isMaintenanceNode()) {
+            logger.debug("The index maintenance is handled by another node");
+            return;
+        }
+        maintain();
+    }
+
+    /**
+     * Checks whether this node is in charge of the scheduled maintenance.
+     * <p>
+     * The node with the lowest server id among the active servers is elected, every node reaches the same decision
+     * without any coordination. If the cluster is unknown, the node considers itself alone.
+     * </p>
+     *
+     * @return true if the scheduled maintenance should run on this node.
+     */
+    public boolean isMaintenanceNode() {
+        if (clusterService == null)
+            return true;
+        List<String> servers = clusterService.getServers();
+        if (servers == null || servers.isEmpty())
+            return true;
+        return Collections.min(servers).equals(serverConfigurationService.getServerIdInstance());
+    }
+
+    /**
+     * Merges the index segments if the index requires it and the current time is within the off-peak window.
+     *
+     * @throws SolrServerException if the statistics couldn't be obtained or the merge failed.
+     * @throws IOException         if the server couldn't be reached.
+     */
+    public void maintain() throws SolrServerException, IOException {
+        if (!isOffPeak(new Date())) {
+            logger.debug("The index maintenance is postponed until the off-peak window");
+            return;
+        }
+
+        int segmentCount = getSegmentCount();
+        double deletedDocumentsRatio = getDeletedDocumentsRatio();
+        logger.debug("The index contains {} segments and {} deleted documents",
+                segmentCount, deletedDocumentsRatio);
+
+        if (segmentCount > maximumSegmentCount) {
+            logger.info("Merging {} segments down to {} segments", segmentCount, targetSegmentCount);
+            solrServer.optimize(true, true, targetSegmentCount);
+        } else if (deletedDocumentsRatio > maximumDeletedDocumentsRatio) {
+            logger.info("Expunging deleted documents ({} of the index)", deletedDocumentsRatio);
+            UpdateRequest expungeDeletes = new UpdateRequest();
+            expungeDeletes.setAction(AbstractUpdateRequest.ACTION.COMMIT, true, true);
+            expungeDeletes.setParam(UpdateParams.EXPUNGE_DELETES, Boolean.TRUE.toString());
+            expungeDeletes.process(solrServer);
+        } else {
+            logger.debug("The index doesn't need any maintenance");
+        }
+    }
+
+    /**
+     * Checks if a date is within the off-peak window.
+     * <p>
+     * The window starts at {@code offPeakStartHour} (included) and ends at {@code offPeakEndHour} (excluded), it can
+     * span over midnight (eg. from 22h to 4h).
+     * </p>
+     *
+     * @param date date to check.
+     * @return true if the date is within the off-peak window, false otherwise.
+     */
+    public boolean isOffPeak(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        if (offPeakStartHour <= offPeakEndHour)
+            return offPeakStartHour <= hour && hour < offPeakEndHour;
+        else
+            return offPeakStartHour <= hour || hour < offPeakEndHour;
+    }
+
+    /**
+     * Gets the ratio of deleted documents still present in the index from the searcher statistics.
+     *
+     * @return the ratio of deleted documents against every document stored in the index.
+     * @throws SolrServerException if the statistics couldn't be obtained.
+     * @throws IOException         if the server couldn't be reached.
+     */
+    private double getDeletedDocumentsRatio() throws SolrServerException, IOException {
+        NamedList<Object> stats = AdminStatRequest.getStatistics(solrServer, "CORE", "searcher");
+        long maxDoc = ((Number) stats.get("maxDoc")).longValue();
+        long numDocs = ((Number) stats.get("numDocs")).longValue();
+        return (maxDoc > 0) ? (double) (maxDoc - numDocs) / maxDoc : 0;
+    }
+
+    /**
+     * Gets the number of segments in the index from the luke handler.
+     *
+     * @return the number of segments in the index.
+     * @throws SolrServerException if the statistics couldn't be obtained.
+     * @throws IOException         if the server couldn't be reached.
+     */
+    @SuppressWarnings("unchecked")
+    private int getSegmentCount() throws SolrServerException, IOException {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("show", "index");
+        params.set("numTerms", 0);
+        QueryRequest lukeRequest = new QueryRequest(params);
+        lukeRequest.setPath("/admin/luke");
+        NamedList<Object> index = (NamedList<Object>) solrServer.request(lukeRequest).get("index");
+        Number segmentCount = (Number) index.get("segmentCount");
+        return (segmentCount != null) ? segmentCount.intValue() : 0;
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+
+    public void setClusterService(ClusterService clusterService) {
+        this.clusterService = clusterService;
+    }
+
+    public void setServerConfigurationService(ServerConfigurationService serverConfigurationService) {
+        this.serverConfigurationService = serverConfigurationService;
+    }
+
+    public void setMaximumDeletedDocumentsRatio(double maximumDeletedDocumentsRatio) {
+        this.maximumDeletedDocumentsRatio = maximumDeletedDocumentsRatio;
+    }
+
+    public void setMaximumSegmentCount(int maximumSegmentCount) {
+        this.maximumSegmentCount = maximumSegmentCount;
+    }
+
+    public void setTargetSegmentCount(int targetSegmentCount) {
+        this.targetSegmentCount = targetSegmentCount;
+    }
+
+    public void setOffPeakStartHour(int offPeakStartHour) {
+        this.offPeakStartHour = offPeakStartHour;
+    }
+
+    public void setOffPeakEndHour(int offPeakEndHour) {
+        this.offPeakEndHour = offPeakEndHour;
+    }
+
+    public void setCheckIntervalMinutes(long checkIntervalMinutes) {
+        this.checkIntervalMinutes = checkIntervalMinutes;
+    }
+}
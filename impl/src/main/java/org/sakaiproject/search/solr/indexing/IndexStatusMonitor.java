@@ -0,0 +1,222 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.search.solr.util.AdminStatRequest;
+import org.sakaiproject.search.solr.util.StatisticsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a snapshot of the status of the index, refreshed periodically in the background.
+ * <p>
+ * Status pages and {@link org.sakaiproject.search.api.SearchIndexBuilder#isBuildQueueEmpty()} are called often, and
+ * used to send a query to Solr each time. The snapshot contains:
+ * <ul>
+ * <li>the number of searchable documents,</li>
+ * <li>the number of documents sent to Solr and not committed yet,</li>
+ * <li>the number of indexing tasks queued and running on this server,</li>
+ * <li>the time at which the current searcher has been opened, which is the time of the last visible commit.</li>
+ * </ul>
+ * The values can be up to {@link #refreshIntervalSeconds} old. If the status of the server can't be obtained, the
+ * previous values are kept.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class IndexStatusMonitor implements StatisticsProvider {
+    private static final Logger logger = LoggerFactory.getLogger(IndexStatusMonitor.class);
+    private SolrServer solrServer;
+    /**
+     * Executors running the indexing tasks on this server, used to count queued and running tasks.
+     */
+    private List<ThreadPoolExecutor> indexingExecutors = Collections.emptyList();
+    private long refreshIntervalSeconds = 10;
+    private ScheduledExecutorService scheduler;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Schedules the periodic refresh of the snapshot.
+     */
+    public void init() {
+        if (refreshIntervalSeconds <= 0) {
+            logger.info("The index status won't be refreshed in the background");
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "search-index-status");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    logger.error("The refresh of the index status failed", e);
+                }
+            }
+        }, 0, refreshIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic refresh of the snapshot.
+     */
+    public void destroy() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * Gets the latest snapshot of the status, creating it if it hasn't been created yet.
+     *
+     * @return the latest snapshot.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot currentSnapshot = snapshot;
+        return (currentSnapshot != null) ? currentSnapshot : refresh();
+    }
+
+    /**
+     * Gets the latest snapshot of the status as a map, for status pages.
+     *
+     * @return the values of the latest snapshot.
+     */
+    @Override
+    public Map<String, Object> getStatistics() {
+        Snapshot currentSnapshot = getSnapshot();
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("numDocs", currentSnapshot.getNumberOfDocuments());
+        statistics.put("docsPending", currentSnapshot.getPendingDocuments());
+        statistics.put("queuedTasks", currentSnapshot.getQueuedTasks());
+        statistics.put("activeTasks", currentSnapshot.getActiveTasks());
+        statistics.put("lastCommit", currentSnapshot.getLastCommit());
+        statistics.put("refreshedAt", currentSnapshot.getRefreshedAt());
+        return statistics;
+    }
+
+    /**
+     * Creates a new snapshot from the statistics of the server and of the local executors.
+     *
+     * @return the new snapshot.
+     */
+    public synchronized Snapshot refresh() {
+        Snapshot previousSnapshot = snapshot;
+        int numberOfDocuments = (previousSnapshot != null) ? previousSnapshot.numberOfDocuments : 0;
+        int pendingDocuments = (previousSnapshot != null) ? previousSnapshot.pendingDocuments : 0;
+        Date lastCommit = (previousSnapshot != null) ? previousSnapshot.lastCommit : null;
+        try {
+            NamedList<Object> searcherStats = AdminStatRequest.getStatistics(solrServer, "CORE", "searcher");
+            numberOfDocuments = ((Number) searcherStats.get("numDocs")).intValue();
+            lastCommit = (Date) searcherStats.get("openedAt");
+            NamedList<Object> updateHandlerStats =
+                    AdminStatRequest.getStatistics(solrServer, "UPDATEHANDLER", "updateHandler");
+            pendingDocuments = ((Number) updateHandlerStats.get("docsPending")).intValue();
+        } catch (Exception e) {
+            logger.warn("Couldn't obtain the status of the search server, the previous status is kept", e);
+        }
+
+        int queuedTasks = 0;
+        int activeTasks = 0;
+        for (ThreadPoolExecutor indexingExecutor : indexingExecutors) {
+            queuedTasks += indexingExecutor.getQueue().size();
+            activeTasks += indexingExecutor.getActiveCount();
+        }
+
+        snapshot = new Snapshot(numberOfDocuments, pendingDocuments, queuedTasks, activeTasks, lastCommit,
+                new Date());
+        logger.debug("Index status refreshed: {}", snapshot);
+        return snapshot;
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+
+    public void setIndexingExecutors(List<ThreadPoolExecutor> indexingExecutors) {
+        this.indexingExecutors = indexingExecutors;
+    }
+
+    public void setRefreshIntervalSeconds(long refreshIntervalSeconds) {
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+    }
+
+    /**
+     * Immutable status of the index at a given time.
+     */
+    public static final class Snapshot {
+        private final int numberOfDocuments;
+        private final int pendingDocuments;
+        private final int queuedTasks;
+        private final int activeTasks;
+        private final Date lastCommit;
+        private final Date refreshedAt;
+
+        private Snapshot(int numberOfDocuments, int pendingDocuments, int queuedTasks, int activeTasks,
+                         Date lastCommit, Date refreshedAt) {
+            this.numberOfDocuments = numberOfDocuments;
+            this.pendingDocuments = pendingDocuments;
+            this.queuedTasks = queuedTasks;
+            this.activeTasks = activeTasks;
+            this.lastCommit = lastCommit;
+            this.refreshedAt = refreshedAt;
+        }
+
+        public int getNumberOfDocuments() {
+            return numberOfDocuments;
+        }
+
+        public int getPendingDocuments() {
+            return pendingDocuments;
+        }
+
+        public int getQueuedTasks() {
+            return queuedTasks;
+        }
+
+        public int getActiveTasks() {
+            return activeTasks;
+        }
+
+        /**
+         * Gets the time of the last commit visible in the searches.
+         *
+         * @return the time at which the current searcher was opened, null if it is unknown.
+         */
+        public Date getLastCommit() {
+            return lastCommit;
+        }
+
+        public Date getRefreshedAt() {
+            return refreshedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{"
+                    + "numberOfDocuments=" + numberOfDocuments
+                    + ", pendingDocuments=" + pendingDocuments
+                    + ", queuedTasks=" + queuedTasks
+                    + ", activeTasks=" + activeTasks
+                    + ", lastCommit=" + lastCommit
+                    + ", refreshedAt=" + refreshedAt
+                    + '}';
+        }
+    }
+}
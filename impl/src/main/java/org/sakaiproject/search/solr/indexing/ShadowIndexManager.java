@@ -0,0 +1,307 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.common.params.CoreAdminParams;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.cluster.api.ClusterService;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.search.indexing.exception.TaskHandlingException;
+import org.sakaiproject.search.solr.util.SolrServerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Handles the complete reindexation of the search index in a shadow core.
+ * <p>
+ * Instead of rebuilding the live index in place, a new core sharing the configuration of the live one is created
+ * and every site is indexed in it. Once every site has been indexed, the number of documents in the shadow core is
+ * compared to the live one and if the new index seems complete the two cores are swapped (CoreAdmin SWAP).<br />
+ * The former live core is then unloaded and its index deleted.
+ * </p>
+ * <p>
+ * Documents updated during the rebuild must be written in both cores, {@link #getShadowServer()} provides the
+ * shadow core while a rebuild is in progress and {@link #getUpdateLock()} prevents the swap from happening in the
+ * middle of an update.
+ * </p>
+ * <p>
+ * The progress of the rebuild is kept in memory, which means that every site task must be executed by this
+ * instance of Sakai and that no other instance may update the index in the meantime, as it wouldn't write in the
+ * shadow core. A rebuild is therefore refused when the {@link ClusterService} knows more than one active server, and
+ * discarded if other servers joined the cluster before the swap. The site tasks are queued on this instance only by
+ * {@link SolrSplitterProcesses}.<br />
+ * A site which couldn't be indexed aborts the rebuild, an incomplete index is never swapped in.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class ShadowIndexManager {
+    private static final String SHADOW_CORE_SUFFIX = "-shadow";
+    private static final double DEFAULT_MINIMUM_DOCUMENT_RATIO = 0.9;
+    private static final Logger logger = LoggerFactory.getLogger(ShadowIndexManager.class);
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final Set<String> pendingSites = new HashSet<String>();
+    private SolrServerAdapter solrServerAdapter;
+    private boolean enabled;
+    private double minimumDocumentRatio = DEFAULT_MINIMUM_DOCUMENT_RATIO;
+    private boolean optimiseBeforeSwap = true;
+    private volatile SolrServer shadowServer;
+    private String shadowCoreName;
+    private ClusterService clusterService;
+
+    /**
+     * Enables the shadow rebuild if search.solr.rebuild.shadow is set in sakai.properties.
+     */
+    public void init() {
+        enabled = ServerConfigurationService.getBoolean("search.solr.rebuild.shadow", enabled);
+        logger.info("Complete rebuilds will be done {}", enabled ? "in a shadow core" : "in place");
+    }
+
+    /**
+     * Checks whether complete rebuilds should be done in a shadow core.
+     *
+     * @return true if the rebuilds should be done in a shadow core, false otherwise.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Creates the shadow core and starts to track the indexation of the given sites.
+     *
+     * @param siteIds every site that will be indexed in the shadow core.
+     * @return true if the rebuild started, false if another rebuild is already in progress or if other servers could
+     *         update the index during the rebuild.
+     */
+    public synchronized boolean startRebuild(Collection<String> siteIds) {
+        if (shadowServer != null) {
+            logger.warn("A rebuild is already in progress in '{}'", shadowCoreName);
+            return false;
+        }
+        if (!isSingleServer()) {
+            logger.warn("A rebuild in a shadow core can't be done while other servers update the index");
+            return false;
+        }
+
+        String liveCoreName = solrServerAdapter.getCoreName();
+        shadowCoreName = liveCoreName + SHADOW_CORE_SUFFIX;
+        SolrServer adminServer = solrServerAdapter.getCoreAdminServer();
+        try {
+            NamedList<Object> liveStatus = CoreAdminRequest.getStatus(liveCoreName, adminServer)
+                    .getCoreStatus(liveCoreName);
+            if (coreExists(shadowCoreName, adminServer)) {
+                logger.info("Removing the leftover shadow core '{}'", shadowCoreName);
+                CoreAdminRequest.unloadCore(shadowCoreName, true, adminServer);
+            }
+
+            logger.info("Creating the shadow core '{}'", shadowCoreName);
+            CoreAdminRequest.Create create = new CoreAdminRequest.Create();
+            create.setCoreName(shadowCoreName);
+            create.setInstanceDir((String) liveStatus.get("instanceDir"));
+            create.setDataDir("data-" + System.currentTimeMillis());
+            create.process(adminServer);
+        } catch (Exception e) {
+            throw new TaskHandlingException("Couldn't create the shadow core '" + shadowCoreName + "'", e);
+        }
+
+        pendingSites.clear();
+        pendingSites.addAll(siteIds);
+        shadowServer = solrServerAdapter.getCoreServer(shadowCoreName);
+        logger.info("Rebuilding {} sites in '{}'", pendingSites.size(), shadowCoreName);
+
+        if (pendingSites.isEmpty())
+            promote();
+        return true;
+    }
+
+    /**
+     * Notifies the manager that a site has been indexed in the shadow core.
+     * <p>
+     * Once every site has been indexed, the shadow core replaces the live core.
+     * </p>
+     *
+     * @param siteId indexed site.
+     */
+    public synchronized void siteIndexed(String siteId) {
+        if (!pendingSites.remove(siteId) || !pendingSites.isEmpty())
+            return;
+
+        promote();
+    }
+
+    /**
+     * Stops the current rebuild because the shadow core can't be complete, and removes the shadow core.
+     *
+     * @param reason description of the failure which made the shadow core incomplete.
+     */
+    public synchronized void abortRebuild(String reason) {
+        if (shadowServer == null)
+            return;
+
+        logger.error("The rebuild in '{}' is aborted, the live index is kept: {}", shadowCoreName, reason);
+        pendingSites.clear();
+        discardShadowCore(solrServerAdapter.getCoreAdminServer());
+    }
+
+    /**
+     * Gets the server for the shadow core.
+     *
+     * @return the shadow core, or null if no rebuild is in progress.
+     */
+    public SolrServer getShadowServer() {
+        return shadowServer;
+    }
+
+    /**
+     * Gets the url of the shadow core.
+     *
+     * @return the url of the shadow core, or null if no rebuild is in progress or the server is embedded.
+     */
+    public String getShadowServerUrl() {
+        return (shadowServer != null) ? solrServerAdapter.getCoreUrl(shadowCoreName) : null;
+    }
+
+    /**
+     * Gets the lock that must be held while a document is updated in both cores.
+     * <p>
+     * The cores won't be swapped while this lock is held.
+     * </p>
+     *
+     * @return the lock preventing the cores from being swapped.
+     */
+    public Lock getUpdateLock() {
+        return swapLock.readLock();
+    }
+
+    /**
+     * Validates the shadow core and swaps it with the live core.
+     * <p>
+     * If the shadow core doesn't contain enough documents, the live index is kept and the shadow core is discarded.
+     * <br />
+     * Commits and the optimisation of the shadow core are sent through a client with a long read timeout, on a
+     * complete index they take much longer than the timeout of the client used for updates.
+     * </p>
+     */
+    private void promote() {
+        String liveCoreName = solrServerAdapter.getCoreName();
+        SolrServer adminServer = solrServerAdapter.getCoreAdminServer();
+        SolrServer maintenanceServer = solrServerAdapter.getLongRequestServer(shadowCoreName);
+        try {
+            if (!isSingleServer()) {
+                logger.error("Other servers joined the cluster during the rebuild, their updates may be missing from "
+                        + "the shadow core '{}' which won't be used", shadowCoreName);
+                discardShadowCore(adminServer);
+                return;
+            }
+            maintenanceServer.commit();
+            long shadowCount = countDocuments(shadowServer);
+            long liveCount = countDocuments(solrServerAdapter);
+            if (shadowCount < liveCount * minimumDocumentRatio) {
+                logger.error("The shadow core '{}' contains {} documents against {} in the live core, "
+                        + "the rebuilt index won't be used", new Object[]{shadowCoreName, shadowCount, liveCount});
+                discardShadowCore(adminServer);
+                return;
+            }
+            if (optimiseBeforeSwap)
+                maintenanceServer.optimize();
+
+            Lock lock = swapLock.writeLock();
+            lock.lock();
+            try {
+                // Make updates done during the rebuild visible before the swap
+                maintenanceServer.commit();
+                logger.info("Swapping '{}' ({} documents) with '{}' ({} documents)",
+                        new Object[]{shadowCoreName, shadowCount, liveCoreName, liveCount});
+                CoreAdminRequest swap = new CoreAdminRequest();
+                swap.setAction(CoreAdminParams.CoreAdminAction.SWAP);
+                swap.setCoreName(liveCoreName);
+                swap.setOtherCoreName(shadowCoreName);
+                swap.process(adminServer);
+                shadowServer = null;
+            } finally {
+                lock.unlock();
+            }
+
+            // The former live core now has the name of the shadow core
+            CoreAdminRequest.unloadCore(shadowCoreName, true, adminServer);
+        } catch (Exception e) {
+            logger.error("Couldn't replace the live core with the shadow core '" + shadowCoreName + "'", e);
+            discardShadowCore(adminServer);
+        }
+    }
+
+    /**
+     * Stops the current rebuild and removes the shadow core.
+     *
+     * @param adminServer server handling CoreAdmin requests.
+     */
+    private void discardShadowCore(SolrServer adminServer) {
+        if (shadowServer == null)
+            return;
+
+        Lock lock = swapLock.writeLock();
+        lock.lock();
+        try {
+            shadowServer = null;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            CoreAdminRequest.unloadCore(shadowCoreName, true, adminServer);
+        } catch (Exception e) {
+            logger.error("Couldn't remove the shadow core '" + shadowCoreName + "'", e);
+        }
+    }
+
+    /**
+     * Checks that this server is the only active server of the cluster, hence the only one updating the index.
+     *
+     * @return true if no other server is active, or if the cluster is unknown.
+     */
+    private boolean isSingleServer() {
+        if (clusterService == null)
+            return true;
+        List<String> servers = clusterService.getServers();
+        return servers == null || servers.size() <= 1;
+    }
+
+    private boolean coreExists(String coreName, SolrServer adminServer) throws SolrServerException, IOException {
+        NamedList<Object> coreStatus = CoreAdminRequest.getStatus(coreName, adminServer).getCoreStatus(coreName);
+        return coreStatus != null && coreStatus.get("instanceDir") != null;
+    }
+
+    private long countDocuments(SolrServer server) throws SolrServerException {
+        return server.query(new SolrQuery("*:*").setRows(0)).getResults().getNumFound();
+    }
+
+    public void setSolrServerAdapter(SolrServerAdapter solrServerAdapter) {
+        this.solrServerAdapter = solrServerAdapter;
+    }
+
+    public void setClusterService(ClusterService clusterService) {
+        this.clusterService = clusterService;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMinimumDocumentRatio(double minimumDocumentRatio) {
+        this.minimumDocumentRatio = minimumDocumentRatio;
+    }
+
+    public void setOptimiseBeforeSwap(boolean optimiseBeforeSwap) {
+        this.optimiseBeforeSwap = optimiseBeforeSwap;
+    }
+}
@@ -24,6 +24,15 @@ import static org.sakaiproject.search.solr.indexing.SolrTask.Type.REMOVE_ALL_DOC
  * An optimisation is also triggered after those heavy operations.
  * </p>
  * <p>
+ * Generated subtasks are flagged with {@link SolrTask#BULK} so their documents can be streamed to the search server.
+ * </p>
+ * <p>
+ * If enabled, "reindex everything" is done in a shadow core handled by the {@link ShadowIndexManager}, the live index
+ * is then replaced at once and doesn't need to be cleaned up. As the progress of the rebuild is only known by this
+ * instance, its site tasks are queued in {@link #localQueueing} instead of the possibly distributed
+ * {@link #indexQueueing}.
+ * </p>
+ * <p>
  * If a task isn't an heavy one that deserves to be split, the task will be sent to another {@link TaskHandler}.
  * </p>
  *
@@ -33,14 +42,22 @@ public class SolrSplitterProcesses implements TaskHandler {
     private static final Logger logger = LoggerFactory.getLogger(SolrSplitterProcesses.class);
     private TaskHandler actualTaskHandler;
     private IndexQueueing indexQueueing;
+    /**
+     * Queueing system executing tasks on this instance only, used for the site tasks of a rebuild in a shadow core.
+     */
+    private IndexQueueing localQueueing;
     private SolrTools solrTools;
+    private ShadowIndexManager shadowIndexManager;
 
     @Override
     public void executeTask(Task task) {
         try {
             logger.debug("Attempt to handle '{}'", task);
             String taskType = task.getType();
-            if (INDEX_ALL.getTypeName().equals(taskType)) {
+            if (INDEX_ALL.getTypeName().equals(taskType)
+                    && shadowIndexManager != null && shadowIndexManager.isEnabled()) {
+                createShadowTaskForEverySite(task.getCreationDate());
+            } else if (INDEX_ALL.getTypeName().equals(taskType)) {
                 createTaskForEverySite(INDEX_SITE, task.getCreationDate());
             } else if (REFRESH_ALL.getTypeName().equals(taskType)) {
                 createTaskForEverySite(REFRESH_SITE, task.getCreationDate());
@@ -67,7 +84,8 @@ public class SolrSplitterProcesses implements TaskHandler {
     private void createTaskForEverySite(DefaultTask.Type taskType, Date creationDate) {
         Queue<String> sites = solrTools.getIndexableSites();
         while (sites.peek() != null) {
-            Task refreshSite = new DefaultTask(taskType, creationDate).setProperty(DefaultTask.SITE_ID, sites.poll());
+            Task refreshSite = new DefaultTask(taskType, creationDate).setProperty(DefaultTask.SITE_ID, sites.poll())
+                    .setProperty(SolrTask.BULK, Boolean.TRUE.toString());
             indexQueueing.addTaskToQueue(refreshSite);
         }
 
@@ -76,6 +94,27 @@ public class SolrSplitterProcesses implements TaskHandler {
         indexQueueing.addTaskToQueue(removeAll);
     }
 
+    /**
+     * Starts a rebuild in a shadow core and queues an "index site" task for every site on this instance.
+     *
+     * @param creationDate creation date of the task (should be the same as the original task).
+     */
+    private void createShadowTaskForEverySite(Date creationDate) {
+        if (localQueueing == null)
+            throw new TaskHandlingException("No local queueing system, the rebuild can't be done in a shadow core");
+        Queue<String> sites = solrTools.getIndexableSites();
+        if (!shadowIndexManager.startRebuild(sites))
+            throw new TaskHandlingException("Couldn't start a new rebuild in a shadow core, "
+                    + "another one is already in progress or other servers are active");
+
+        while (sites.peek() != null) {
+            Task indexSite = new DefaultTask(INDEX_SITE, creationDate).setProperty(DefaultTask.SITE_ID, sites.poll())
+                    .setProperty(SolrTask.BULK, Boolean.TRUE.toString())
+                    .setProperty(SolrTask.SHADOW, Boolean.TRUE.toString());
+            localQueueing.addTaskToQueue(indexSite);
+        }
+    }
+
     public void setActualTaskHandler(TaskHandler actualTaskHandler) {
         this.actualTaskHandler = actualTaskHandler;
     }
@@ -84,7 +123,15 @@ public class SolrSplitterProcesses implements TaskHandler {
         this.indexQueueing = indexQueueing;
     }
 
+    public void setLocalQueueing(IndexQueueing localQueueing) {
+        this.localQueueing = localQueueing;
+    }
+
     public void setSolrTools(SolrTools solrTools) {
         this.solrTools = solrTools;
     }
+
+    public void setShadowIndexManager(ShadowIndexManager shadowIndexManager) {
+        this.shadowIndexManager = shadowIndexManager;
+    }
 }
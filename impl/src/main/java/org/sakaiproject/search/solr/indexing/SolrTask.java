@@ -10,6 +10,15 @@ import java.util.Date;
  * @author Colin Hebert
  */
 public class SolrTask extends DefaultTask {
+    /**
+     * Property flagging a task as part of a bulk operation, its documents can be streamed to the search server.
+     */
+    public static final String BULK = SolrTask.class.getCanonicalName() + ".bulk";
+    /**
+     * Property flagging a task as part of a rebuild in a shadow index (see {@link ShadowIndexManager}).
+     */
+    public static final String SHADOW = SolrTask.class.getCanonicalName() + ".shadow";
+
     /**
      * Creates a solr task based on the types provided in {@link Type}.
      * <p>
@@ -1,13 +1,17 @@
 package org.sakaiproject.search.solr.indexing;
 
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
 import org.sakaiproject.search.api.SearchService;
 import org.sakaiproject.search.indexing.DefaultTask;
 import org.sakaiproject.search.indexing.Task;
@@ -15,13 +19,25 @@ import org.sakaiproject.search.indexing.TaskHandler;
 import org.sakaiproject.search.indexing.exception.NestedTaskHandlingException;
 import org.sakaiproject.search.indexing.exception.TaskHandlingException;
 import org.sakaiproject.search.indexing.exception.TemporaryTaskHandlingException;
+import org.sakaiproject.search.solr.util.BulkSolrServerFactory;
+import org.sakaiproject.search.solr.util.BulkUpdateSolrServer;
 import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.sakaiproject.search.indexing.DefaultTask.Type.*;
 import static org.sakaiproject.search.solr.indexing.SolrTask.Type.*;
@@ -34,9 +50,23 @@ import static org.sakaiproject.search.solr.indexing.SolrTask.Type.*;
 public class SolrTaskHandler implements TaskHandler {
     private static final Logger logger = LoggerFactory.getLogger(SolrTaskHandler.class);
     private static final String VERSION_FIELD = "_version_";
+    /**
+     * Shared read lock used when there is no shadow core, it never blocks.
+     */
+    private static final Lock NO_LOCK = new ReentrantReadWriteLock().readLock();
+    /**
+     * Maximum number of documents removed with a single update request.
+     */
+    private static final int REMOVAL_BATCH_SIZE = 100;
+    private final Queue<PendingRemoval> pendingRemovals = new ConcurrentLinkedQueue<PendingRemoval>();
+    private final Object removalMonitor = new Object();
     private SolrServer solrServer;
     private SolrTools solrTools;
     private ThreadLocalManager threadLocalManager;
+    private BulkSolrServerFactory bulkSolrServerFactory;
+    private ShadowIndexManager shadowIndexManager;
+    private IndexMaintenance indexMaintenance;
+    private CommitPolicy commitPolicy;
 
     @Override
     public void executeTask(Task task) {
@@ -47,10 +77,12 @@ public class SolrTaskHandler implements TaskHandler {
                 indexDocument(task.getProperty(DefaultTask.REFERENCE), task.getCreationDate());
             } else if (REMOVE_DOCUMENT.getTypeName().equals(taskType)) {
                 removeDocument(task.getProperty(DefaultTask.REFERENCE), task.getCreationDate());
+            } else if (INDEX_SITE.getTypeName().equals(taskType) && isShadowTask(task)) {
+                indexShadowSite(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate(), isBulkTask(task));
             } else if (INDEX_SITE.getTypeName().equals(taskType)) {
-                indexSite(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate());
+                indexSite(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate(), isBulkTask(task));
             } else if (REFRESH_SITE.getTypeName().equals(taskType)) {
-                refreshSite(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate());
+                refreshSite(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate(), isBulkTask(task));
             } else if (INDEX_ALL.getTypeName().equals(taskType)) {
                 indexAll(task.getCreationDate());
             } else if (REFRESH_ALL.getTypeName().equals(taskType)) {
@@ -72,13 +104,48 @@ public class SolrTaskHandler implements TaskHandler {
     /**
      * Indexes a document based on the reference to the document and a date.
      * <p>
-     * If the document has been updated since the actionDate, the document won't be updated.
+     * If the document has been updated since the actionDate, the document won't be updated.<br />
+     * If the index is being rebuilt in a shadow core, the document is indexed in both cores.
      * </p>
      *
      * @param reference  reference to the document.
      * @param actionDate creation date of the task.
      */
     public void indexDocument(String reference, Date actionDate) {
+        indexDocument(reference, actionDate, getInteractiveCommitWithin());
+    }
+
+    /**
+     * Indexes a document in the live core (and the shadow core if any).
+     *
+     * @param reference    reference to the document.
+     * @param actionDate   creation date of the task.
+     * @param commitWithin maximum time in milliseconds before the update is visible, -1 to rely on explicit commits.
+     */
+    private void indexDocument(String reference, Date actionDate, int commitWithin) {
+        Lock updateLock = getUpdateLock();
+        updateLock.lock();
+        try {
+            indexDocument(reference, actionDate, solrServer, solrServer, commitWithin);
+            SolrServer shadowServer = getShadowServer();
+            if (shadowServer != null)
+                indexDocument(reference, actionDate, shadowServer, shadowServer, commitWithin);
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * Indexes a document and sends the update through the given server.
+     *
+     * @param reference    reference to the document.
+     * @param actionDate   creation date of the task.
+     * @param lookupServer server providing the currently indexed version of the document.
+     * @param updateServer server in charge of the update.
+     * @param commitWithin maximum time in milliseconds before the update is visible, -1 to rely on explicit commits.
+     */
+    private void indexDocument(String reference, Date actionDate, SolrServer lookupServer, SolrServer updateServer,
+                               int commitWithin) {
         logger.debug("Add '{}' to the index", reference);
 
         try {
@@ -87,7 +154,7 @@ public class SolrTaskHandler implements TaskHandler {
                     .setRequestHandler("/get")
                     .set("id", reference)
                     .set("fl", VERSION_FIELD + "," + SearchService.DATE_STAMP);
-            SolrDocument currentDocument = (SolrDocument) solrServer.query(q).getResponse().get("doc");
+            SolrDocument currentDocument = (SolrDocument) lookupServer.query(q).getResponse().get("doc");
 
             // Check if the document exists and hasn't been indexed since the creation of the task
             if (currentDocument != null
@@ -101,7 +168,7 @@ public class SolrTaskHandler implements TaskHandler {
                 document.setField(VERSION_FIELD, currentDocument.getFieldValue(VERSION_FIELD));
             }
             logger.debug("Adding the document '{}'", document);
-            solrServer.add(document);
+            updateServer.add(document, commitWithin);
         } catch (Exception e) {
             Task task = new DefaultTask(INDEX_DOCUMENT, actionDate).setProperty(DefaultTask.REFERENCE, reference);
             throw wrapException(e, "An exception occurred while indexing the document '" + reference + "'", task);
@@ -111,24 +178,199 @@ public class SolrTaskHandler implements TaskHandler {
     /**
      * Removes a document from the index based on the given reference.
      * <p>
-     * If the action date is inferior to the indexation date of the document, the document won't be removed.
+     * If the action date is inferior to the indexation date of the document, the document won't be removed.<br />
+     * If the index is being rebuilt in a shadow core, the document is removed from both cores.
+     * </p>
+     * <p>
+     * Removals executed concurrently are grouped and sent to the live index in a single request.
      * </p>
      *
      * @param reference  reference to the document.
      * @param actionDate creation date of the task.
      */
     public void removeDocument(String reference, Date actionDate) {
+        Lock updateLock = getUpdateLock();
+        updateLock.lock();
+        try {
+            removeDocumentInBatch(reference, actionDate);
+            SolrServer shadowServer = getShadowServer();
+            if (shadowServer != null)
+                removeDocument(reference, actionDate, shadowServer);
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a document from the index of the given server.
+     *
+     * @param reference    reference to the document.
+     * @param actionDate   creation date of the task.
+     * @param updateServer server in charge of the update.
+     */
+    private void removeDocument(String reference, Date actionDate, SolrServer updateServer) {
         logger.debug("Remove '{}' from the index", reference);
         try {
-            solrServer.deleteByQuery(
-                    SearchService.DATE_STAMP + ":{* TO " + solrTools.format(actionDate) + "} AND "
-                            + SearchService.FIELD_REFERENCE + ":" + ClientUtils.escapeQueryChars(reference));
+            removeDocuments(Collections.singletonMap(reference, actionDate), updateServer,
+                    getInteractiveCommitWithin());
         } catch (Exception e) {
             Task task = new DefaultTask(REMOVE_DOCUMENT, actionDate).setProperty(DefaultTask.REFERENCE, reference);
             throw wrapException(e, "An exception occurred while removing the document '" + reference + "'", task);
         }
     }
 
+    /**
+     * Removes a document from the live index along with the documents concurrently removed by other tasks.
+     * <p>
+     * Each removal is queued, the first thread obtaining the monitor sends every queued removal in a single request
+     * while the other threads wait for the outcome of the request containing their own removal.<br />
+     * A version conflict on a single document makes solr reject the whole request, the removals of the batch are
+     * then sent separately so only the conflicting documents are retried.
+     * </p>
+     *
+     * @param reference  reference to the document.
+     * @param actionDate creation date of the task.
+     */
+    private void removeDocumentInBatch(String reference, Date actionDate) {
+        logger.debug("Remove '{}' from the index", reference);
+        PendingRemoval removal = new PendingRemoval(reference, actionDate);
+        pendingRemovals.offer(removal);
+        synchronized (removalMonitor) {
+            while (!removal.done) {
+                List<PendingRemoval> batch = new ArrayList<PendingRemoval>(REMOVAL_BATCH_SIZE);
+                while (batch.size() < REMOVAL_BATCH_SIZE && pendingRemovals.peek() != null) {
+                    batch.add(pendingRemovals.poll());
+                }
+
+                // If a document is removed twice, only the most recent removal matters
+                Map<String, Date> removals = new HashMap<String, Date>(batch.size());
+                for (PendingRemoval pendingRemoval : batch) {
+                    Date previousDate = removals.get(pendingRemoval.reference);
+                    if (previousDate == null || previousDate.before(pendingRemoval.actionDate))
+                        removals.put(pendingRemoval.reference, pendingRemoval.actionDate);
+                }
+
+                Exception batchFailure = null;
+                Map<String, Exception> failures = Collections.emptyMap();
+                try {
+                    removeDocuments(removals, solrServer, getInteractiveCommitWithin());
+                } catch (Exception e) {
+                    if (removals.size() > 1 && isConflict(e))
+                        failures = removeDocumentsSeparately(removals);
+                    else
+                        batchFailure = e;
+                }
+                for (PendingRemoval pendingRemoval : batch) {
+                    pendingRemoval.failure = (batchFailure != null)
+                            ? batchFailure : failures.get(pendingRemoval.reference);
+                    pendingRemoval.done = true;
+                }
+            }
+        }
+
+        if (removal.failure != null) {
+            Task task = new DefaultTask(REMOVE_DOCUMENT, actionDate).setProperty(DefaultTask.REFERENCE, reference);
+            throw wrapException(removal.failure,
+                    "An exception occurred while removing the document '" + reference + "'", task);
+        }
+    }
+
+    /**
+     * Removes documents from the live index one request at a time.
+     *
+     * @param removals removal date for each document reference.
+     * @return the failure of each document which couldn't be removed.
+     */
+    private Map<String, Exception> removeDocumentsSeparately(Map<String, Date> removals) {
+        logger.debug("A conflict occurred in a batch of {} removals, removing the documents separately",
+                removals.size());
+        Map<String, Exception> failures = new HashMap<String, Exception>();
+        for (Map.Entry<String, Date> removal : removals.entrySet()) {
+            try {
+                removeDocuments(Collections.singletonMap(removal.getKey(), removal.getValue()), solrServer,
+                        getInteractiveCommitWithin());
+            } catch (Exception e) {
+                failures.put(removal.getKey(), e);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Checks whether an update failed because a document was modified since its version was obtained.
+     *
+     * @param e failure of the update.
+     * @return true if the update was rejected because of a version conflict.
+     */
+    private static boolean isConflict(Exception e) {
+        Throwable cause = (e instanceof SolrServerException && e.getCause() != null) ? e.getCause() : e;
+        return cause instanceof SolrException
+                && ((SolrException) cause).code() == SolrException.ErrorCode.CONFLICT.code;
+    }
+
+    /**
+     * Removes documents by their unique key if they were indexed before their removal date.
+     * <p>
+     * The current version of each document is obtained with a real-time get and the deletion only applies to that
+     * version. If a document is updated in the meantime, the update request fails with a conflict.
+     * </p>
+     *
+     * @param removals     removal date for each document reference.
+     * @param updateServer server in charge of the update.
+     * @param commitWithin maximum time in milliseconds before the update is visible, -1 to rely on explicit commits.
+     * @throws SolrServerException if the update failed on the server side (conflict included).
+     * @throws IOException         if the server couldn't be reached.
+     */
+    private void removeDocuments(Map<String, Date> removals, SolrServer updateServer, int commitWithin)
+            throws SolrServerException, IOException {
+        List<SolrDocument> currentDocuments = realTimeGet(updateServer, removals.keySet(),
+                SearchService.FIELD_REFERENCE, VERSION_FIELD, SearchService.DATE_STAMP);
+
+        UpdateRequest updateRequest = new UpdateRequest();
+        updateRequest.setCommitWithin(commitWithin);
+        int removedDocuments = 0;
+        for (SolrDocument currentDocument : currentDocuments) {
+            String reference = (String) currentDocument.getFieldValue(SearchService.FIELD_REFERENCE);
+            Date indexationDate = (Date) currentDocument.getFieldValue(SearchService.DATE_STAMP);
+            if (removals.get(reference).compareTo(indexationDate) > 0) {
+                updateRequest.deleteById(reference, (Long) currentDocument.getFieldValue(VERSION_FIELD));
+                removedDocuments++;
+            }
+        }
+
+        logger.debug("{} out of {} documents will be removed", removedDocuments, removals.size());
+        if (removedDocuments > 0)
+            updateRequest.process(updateServer);
+    }
+
+    /**
+     * Obtains the last version of documents with a real-time get.
+     *
+     * @param server     server to query.
+     * @param references references of the documents.
+     * @param fields     fields to retrieve.
+     * @return every document found.
+     * @throws SolrServerException if the request failed.
+     */
+    private List<SolrDocument> realTimeGet(SolrServer server, Collection<String> references, String... fields)
+            throws SolrServerException {
+        SolrQuery query = new SolrQuery().setRequestHandler("/get").setFields(fields);
+        // Each reference gets its own parameter as a reference can contain a comma
+        for (String reference : references) {
+            query.add("id", reference);
+        }
+
+        // A batch of long references doesn't fit in the request line of a GET
+        NamedList<Object> response = server.query(query, SolrRequest.METHOD.POST).getResponse();
+        // The response differs whether one or many documents are requested
+        if (response.get("doc") != null)
+            return Collections.singletonList((SolrDocument) response.get("doc"));
+        else if (response.get("response") != null)
+            return (SolrDocumentList) response.get("response");
+        else
+            return Collections.emptyList();
+    }
+
     /**
      * Indexes every document available within a site.
      * <p>
@@ -139,23 +381,33 @@ public class SolrTaskHandler implements TaskHandler {
      * @param actionDate creation date of the task.
      */
     public void indexSite(final String siteId, Date actionDate) {
+        indexSite(siteId, actionDate, false);
+    }
+
+    /**
+     * Indexes every document available within a site.
+     * <p>
+     * In bulk mode, documents are streamed to the search server if possible.
+     * </p>
+     *
+     * @param siteId     id of the site to index.
+     * @param actionDate creation date of the task.
+     * @param bulk       whether the documents should be streamed to the search server.
+     * @see #indexSite(String, java.util.Date)
+     */
+    public void indexSite(final String siteId, Date actionDate, boolean bulk) {
         logger.info("Rebuilding the index for '{}'", siteId);
         NestedTaskHandlingException nthe = new NestedTaskHandlingException(
                 "An exception occurred while indexing the site '" + siteId + "'");
         Queue<String> siteReferences = solrTools.getSiteDocumentsReferences(siteId);
-        while (siteReferences.peek() != null) {
-            try {
-                indexDocument(siteReferences.poll(), actionDate);
-            } catch (TaskHandlingException t) {
-                nthe.addTaskHandlingException(t);
-            }
-        }
+        indexDocuments(siteReferences, actionDate, bulk, null, nthe);
 
         try {
-            removeSiteDocuments(siteId, actionDate);
+            removeSiteDocuments(siteId, actionDate, solrServer, CommitPolicy.NO_COMMIT_WITHIN);
         } catch (TaskHandlingException t) {
             nthe.addTaskHandlingException(t);
         }
+        siteCompleted(siteId);
 
         if (!nthe.isEmpty()) throw nthe;
     }
@@ -170,6 +422,21 @@ public class SolrTaskHandler implements TaskHandler {
      * @param actionDate creation date of the task to execute
      */
     public void refreshSite(String siteId, Date actionDate) {
+        refreshSite(siteId, actionDate, false);
+    }
+
+    /**
+     * Updates the documents currently indexed for a given site.
+     * <p>
+     * In bulk mode, documents are streamed to the search server if possible.
+     * </p>
+     *
+     * @param siteId     Id of the site to update
+     * @param actionDate creation date of the task to execute
+     * @param bulk       whether the documents should be streamed to the search server.
+     * @see #refreshSite(String, java.util.Date)
+     */
+    public void refreshSite(String siteId, Date actionDate, boolean bulk) {
         logger.info("Refreshing the index for '{}'", siteId);
         NestedTaskHandlingException nthe = new NestedTaskHandlingException(
                 "An exception occurred while indexing the site '" + siteId + "'");
@@ -185,24 +452,156 @@ public class SolrTaskHandler implements TaskHandler {
         logger.debug("{} elements will be refreshed", references.size());
 
         // Index already indexed documents
-        while (!references.isEmpty()) {
-            try {
-                indexDocument(references.poll(), actionDate);
-            } catch (TaskHandlingException t) {
-                nthe.addTaskHandlingException(t);
-            }
-        }
+        indexDocuments(references, actionDate, bulk, null, nthe);
 
         // Remove documents that were indexed before
         try {
-            removeSiteDocuments(siteId, actionDate);
+            removeSiteDocuments(siteId, actionDate, solrServer, CommitPolicy.NO_COMMIT_WITHIN);
         } catch (TaskHandlingException t) {
             nthe.addTaskHandlingException(t);
         }
+        siteCompleted(siteId);
 
         if (!nthe.isEmpty()) throw nthe;
     }
 
+    /**
+     * Indexes every document available within a site in the shadow core.
+     * <p>
+     * The {@link ShadowIndexManager} is notified once every document of the site has been indexed. If some documents
+     * failed temporarily, the whole site is indexed again later and stays pending. If the site failed permanently, the
+     * shadow core can't be complete and the rebuild is aborted.
+     * </p>
+     *
+     * @param siteId     id of the site to index.
+     * @param actionDate creation date of the task.
+     * @param bulk       whether the documents should be streamed to the search server.
+     */
+    public void indexShadowSite(String siteId, Date actionDate, boolean bulk) {
+        logger.info("Rebuilding the index for '{}' in the shadow core", siteId);
+        SolrServer shadowServer = getShadowServer();
+        if (shadowServer == null)
+            throw new TaskHandlingException("No rebuild in progress, '" + siteId + "' can't be indexed in a shadow core");
+
+        Task task = new DefaultTask(INDEX_SITE, actionDate).setProperty(DefaultTask.SITE_ID, siteId)
+                .setProperty(SolrTask.SHADOW, Boolean.TRUE.toString())
+                .setProperty(SolrTask.BULK, Boolean.toString(bulk));
+        TaskHandlingException t;
+        try {
+            NestedTaskHandlingException nthe = new NestedTaskHandlingException(
+                    "An exception occurred while indexing the site '" + siteId + "' in the shadow core");
+            Queue<String> siteReferences = solrTools.getSiteDocumentsReferences(siteId);
+            indexDocuments(siteReferences, actionDate, bulk, shadowServer, nthe);
+            if (nthe.isEmpty()) {
+                shadowIndexManager.siteIndexed(siteId);
+                return;
+            }
+            // The documents of the site aren't indexed again one by one, the site is kept pending instead
+            if (isTemporary(nthe))
+                t = new TemporaryTaskHandlingException("Some documents of '" + siteId + "' couldn't be indexed "
+                        + "in the shadow core yet", nthe, task);
+            else
+                t = nthe;
+        } catch (Exception e) {
+            t = wrapException(e, "Couldn't index '" + siteId + "' in the shadow core", task);
+        }
+
+        if (!(t instanceof TemporaryTaskHandlingException))
+            shadowIndexManager.abortRebuild("the site '" + siteId + "' couldn't be indexed");
+        throw t;
+    }
+
+    /**
+     * Checks whether every failure of a group can be solved by executing the task again.
+     *
+     * @param nthe group of failures.
+     * @return true if every failure is temporary, false otherwise.
+     */
+    private static boolean isTemporary(NestedTaskHandlingException nthe) {
+        for (TaskHandlingException t : nthe.getTaskHandlingExceptions()) {
+            if (!(t instanceof TemporaryTaskHandlingException))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Indexes every document from the queue.
+     * <p>
+     * In bulk mode the documents are sent through a streaming server, as the failures are only known once every
+     * document has been sent, each document sent during the process is scheduled to be indexed again if an update
+     * failed.<br />
+     * If no streaming server is available, documents are sent one by one.
+     * </p>
+     *
+     * @param references   references of the documents to index.
+     * @param actionDate   creation date of the task.
+     * @param bulk         whether the documents should be streamed to the search server.
+     * @param shadowServer shadow core in which the documents are indexed, or null for the live core.
+     * @param nthe         exception collecting every failure.
+     */
+    private void indexDocuments(Queue<String> references, Date actionDate, boolean bulk, SolrServer shadowServer,
+                                NestedTaskHandlingException nthe) {
+        BulkUpdateSolrServer bulkServer = bulk ? createBulkServer(shadowServer != null) : null;
+        if (bulkServer == null) {
+            while (references.peek() != null) {
+                try {
+                    if (shadowServer == null)
+                        indexDocument(references.poll(), actionDate, CommitPolicy.NO_COMMIT_WITHIN);
+                    else
+                        indexDocument(references.poll(), actionDate, shadowServer, shadowServer,
+                                CommitPolicy.NO_COMMIT_WITHIN);
+                } catch (TaskHandlingException t) {
+                    nthe.addTaskHandlingException(t);
+                }
+            }
+            return;
+        }
+
+        SolrServer lookupServer = (shadowServer != null) ? shadowServer : solrServer;
+        List<String> sentReferences = new LinkedList<String>();
+        try {
+            while (references.peek() != null) {
+                String reference = references.poll();
+                try {
+                    indexDocument(reference, actionDate, lookupServer, bulkServer, CommitPolicy.NO_COMMIT_WITHIN);
+                    sentReferences.add(reference);
+                } catch (TaskHandlingException t) {
+                    nthe.addTaskHandlingException(t);
+                }
+            }
+        } finally {
+            bulkServer.blockUntilFinished();
+            bulkServer.shutdown();
+        }
+
+        if (bulkServer.hasErrors()) {
+            Throwable cause = bulkServer.getErrors().iterator().next();
+            logger.warn("{} update(s) failed while streaming documents, {} documents will be indexed again",
+                    bulkServer.getErrors().size(), sentReferences.size());
+            for (String reference : sentReferences) {
+                Task task = new DefaultTask(INDEX_DOCUMENT, actionDate).setProperty(DefaultTask.REFERENCE, reference);
+                nthe.addTaskHandlingException(new TemporaryTaskHandlingException(
+                        "Couldn't stream the document '" + reference + "'", cause, task));
+            }
+        }
+    }
+
+    /**
+     * Creates a streaming server for the live core or the shadow core.
+     *
+     * @param shadow whether the updates will be sent to the shadow core.
+     * @return a new streaming server, or null if streaming updates aren't available.
+     */
+    private BulkUpdateSolrServer createBulkServer(boolean shadow) {
+        if (bulkSolrServerFactory == null)
+            return null;
+        else if (!shadow)
+            return bulkSolrServerFactory.createServer();
+        else
+            return bulkSolrServerFactory.createServer(shadowIndexManager.getShadowServerUrl());
+    }
+
     /**
      * Indexes every available site.
      * <p>
@@ -277,18 +676,40 @@ public class SolrTaskHandler implements TaskHandler {
     /**
      * Removes every document from a site.
      * <p>
-     * Every document of this site, indexed before the creation date of that task will be removed from the index.
+     * Every document of this site, indexed before the creation date of that task will be removed from the index.<br />
+     * If the index is being rebuilt in a shadow core, the documents are removed from both cores, otherwise a site
+     * removed during the rebuild would come back once the shadow core is swapped in.
      * </p>
      *
      * @param siteId       Identifier of the site to clean.
      * @param creationDate creation date of the task.
      */
     public void removeSiteDocuments(String siteId, Date creationDate) {
+        Lock updateLock = getUpdateLock();
+        updateLock.lock();
+        try {
+            removeSiteDocuments(siteId, creationDate, solrServer, getInteractiveCommitWithin());
+            SolrServer shadowServer = getShadowServer();
+            if (shadowServer != null)
+                removeSiteDocuments(siteId, creationDate, shadowServer, getInteractiveCommitWithin());
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * Removes every document from a site in the index of the given server.
+     *
+     * @param siteId       Identifier of the site to clean.
+     * @param creationDate creation date of the task.
+     * @param server       server in which the documents are looked up and removed.
+     * @param commitWithin maximum time in milliseconds before the update is visible, -1 to rely on explicit commits.
+     */
+    private void removeSiteDocuments(String siteId, Date creationDate, SolrServer server, int commitWithin) {
         logger.info("Remove old documents from '{}'", siteId);
         try {
-            solrServer.deleteByQuery(
-                    SearchService.DATE_STAMP + ":{* TO " + solrTools.format(creationDate) + "} AND "
-                            + SearchService.FIELD_SITEID + ":" + ClientUtils.escapeQueryChars(siteId));
+            server.deleteByQuery(SearchService.DATE_STAMP + ":{* TO " + solrTools.format(creationDate) + "} AND "
+                    + SearchService.FIELD_SITEID + ":" + ClientUtils.escapeQueryChars(siteId), commitWithin);
         } catch (Exception e) {
             Task task = new SolrTask(REMOVE_SITE_DOCUMENTS, creationDate).setProperty(DefaultTask.SITE_ID, siteId);
             throw wrapException(e, "Couldn't remove old documents the site '" + siteId + "'", task);
@@ -298,7 +719,8 @@ public class SolrTaskHandler implements TaskHandler {
     /**
      * Removes every document from the index.
      * <p>
-     * Every document indexed before the creation date of that task will be removed from the index.
+     * Every document indexed before the creation date of that task will be removed from the index.<br />
+     * As this task ends a rebuild of the index, every change is committed.
      * </p>
      *
      * @param creationDate creation date of the task.
@@ -306,7 +728,12 @@ public class SolrTaskHandler implements TaskHandler {
     public void removeAllDocuments(Date creationDate) {
         logger.info("Remove old documents from every sites");
         try {
-            solrServer.deleteByQuery(SearchService.DATE_STAMP + ":{* TO " + solrTools.format(creationDate) + "}");
+            solrServer.deleteByQuery(SearchService.DATE_STAMP + ":{* TO " + solrTools.format(creationDate) + "}",
+                    CommitPolicy.NO_COMMIT_WITHIN);
+            if (commitPolicy != null)
+                commitPolicy.rebuildCompleted();
+            else
+                solrServer.commit();
         } catch (Exception e) {
             Task task = new SolrTask(REMOVE_ALL_DOCUMENTS, creationDate);
             throw wrapException(e, "Couldn't remove old documents from the entire instance", task);
@@ -315,17 +742,94 @@ public class SolrTaskHandler implements TaskHandler {
 
     /**
      * Optimises the solr index.
+     * <p>
+     * If an {@link IndexMaintenance} is available, segments are only merged when the index requires it and during
+     * the off-peak window. Otherwise the whole index is optimised.
+     * </p>
      */
     public void optimiseSolrIndex() {
         logger.info("Optimise the index");
         try {
-            solrServer.optimize();
+            if (indexMaintenance != null)
+                indexMaintenance.maintain();
+            else
+                solrServer.optimize();
         } catch (Exception e) {
             Task task = new SolrTask(OPTIMISE_INDEX);
             throw wrapException(e, "Couldn't optimise the index", task);
         }
     }
 
+    /**
+     * Checks whether a task has been flagged as a bulk task.
+     *
+     * @param task task to check.
+     * @return true if the documents handled by the task can be streamed to the search server.
+     */
+    private boolean isBulkTask(Task task) {
+        return Boolean.parseBoolean(task.getProperty(SolrTask.BULK));
+    }
+
+    /**
+     * Gets the commitWithin applied to interactive updates.
+     * <p>
+     * Without a {@link CommitPolicy} the default commitWithin is used, as the server doesn't soft commit on its own.
+     * </p>
+     *
+     * @return the commitWithin for interactive updates.
+     */
+    private int getInteractiveCommitWithin() {
+        return (commitPolicy != null) ? commitPolicy.getInteractiveCommitWithin()
+                : CommitPolicy.DEFAULT_INTERACTIVE_COMMIT_WITHIN;
+    }
+
+    /**
+     * Makes the documents of a site visible once the site has been indexed.
+     * <p>
+     * A failure isn't critical as the documents will be visible after the next commit.
+     * </p>
+     *
+     * @param siteId indexed site.
+     */
+    private void siteCompleted(String siteId) {
+        try {
+            if (commitPolicy != null)
+                commitPolicy.siteCompleted();
+            else
+                solrServer.commit(false, false, true);
+        } catch (Exception e) {
+            logger.warn("Couldn't commit the documents of '" + siteId + "'", e);
+        }
+    }
+
+    /**
+     * Checks whether a task is part of a rebuild in a shadow core.
+     *
+     * @param task task to check.
+     * @return true if the documents handled by the task must be indexed in the shadow core.
+     */
+    private boolean isShadowTask(Task task) {
+        return Boolean.parseBoolean(task.getProperty(SolrTask.SHADOW));
+    }
+
+    /**
+     * Gets the shadow core currently rebuilt.
+     *
+     * @return the shadow core or null if there is no rebuild in progress.
+     */
+    private SolrServer getShadowServer() {
+        return (shadowIndexManager != null) ? shadowIndexManager.getShadowServer() : null;
+    }
+
+    /**
+     * Gets the lock preventing the live and shadow cores from being swapped during an update.
+     *
+     * @return the lock to hold during an update.
+     */
+    private Lock getUpdateLock() {
+        return (shadowIndexManager != null) ? shadowIndexManager.getUpdateLock() : NO_LOCK;
+    }
+
     /**
      * Wraps an Exception in a TaskHandlingException that can be thrown.
      *
@@ -364,4 +868,35 @@ public class SolrTaskHandler implements TaskHandler {
     public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
         this.threadLocalManager = threadLocalManager;
     }
+
+    public void setBulkSolrServerFactory(BulkSolrServerFactory bulkSolrServerFactory) {
+        this.bulkSolrServerFactory = bulkSolrServerFactory;
+    }
+
+    public void setShadowIndexManager(ShadowIndexManager shadowIndexManager) {
+        this.shadowIndexManager = shadowIndexManager;
+    }
+
+    public void setIndexMaintenance(IndexMaintenance indexMaintenance) {
+        this.indexMaintenance = indexMaintenance;
+    }
+
+    public void setCommitPolicy(CommitPolicy commitPolicy) {
+        this.commitPolicy = commitPolicy;
+    }
+
+    /**
+     * Removal waiting to be sent to the search index with other removals.
+     */
+    private static final class PendingRemoval {
+        private final String reference;
+        private final Date actionDate;
+        private boolean done;
+        private Exception failure;
+
+        private PendingRemoval(String reference, Date actionDate) {
+            this.reference = reference;
+            this.actionDate = actionDate;
+        }
+    }
 }
@@ -15,6 +15,8 @@ import org.apache.tika.metadata.Metadata;
 import org.sakaiproject.search.api.EntityContentProducer;
 import org.sakaiproject.search.api.SearchIndexBuilder;
 import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.AccessControl;
+import org.sakaiproject.search.producer.AccessControlledContentProducer;
 import org.sakaiproject.search.producer.BinaryEntityContentProducer;
 import org.sakaiproject.search.producer.ContentProducerFactory;
 import org.sakaiproject.search.solr.SolrSearchIndexBuilder;
@@ -36,6 +38,26 @@ import java.util.*;
  * @author Colin Hebert
  */
 public class SolrTools {
+    /**
+     * Field set to true for documents readable by anyone.
+     */
+    public static final String ACL_PUBLIC = "acl_public";
+    /**
+     * Field containing the groups to which the access to a document is restricted.
+     */
+    public static final String ACL_GROUPS = "acl_groups";
+    /**
+     * Field set to true for hidden documents.
+     */
+    public static final String ACL_HIDDEN = "acl_hidden";
+    /**
+     * Field containing the date from which a document is available.
+     */
+    public static final String ACL_RELEASE = "acl_release";
+    /**
+     * Field containing the date from which a document isn't available anymore.
+     */
+    public static final String ACL_RETRACT = "acl_retract";
     private static final String PROPERTY_PREFIX = "property_";
     private static final String UPREFIX = PROPERTY_PREFIX + "tika_";
     private static final Logger logger = LoggerFactory.getLogger(SolrTools.class);
@@ -82,6 +104,10 @@ public class SolrTools {
         document.addField(SearchService.FIELD_URL, contentProducer.getUrl(reference));
         document.addField(SearchService.FIELD_SITEID, contentProducer.getSiteId(reference));
 
+        // Add the access control details
+        if (contentProducer instanceof AccessControlledContentProducer)
+            setDocumentAccessControl(reference, document, (AccessControlledContentProducer) contentProducer);
+
         // Add the custom properties
         Map<String, Collection<String>> properties = extractCustomProperties(reference, contentProducer);
         for (Map.Entry<String, Collection<String>> entry : properties.entrySet()) {
@@ -106,6 +132,32 @@ public class SolrTools {
         return document;
     }
 
+    /**
+     * Adds the coarse-grained access control details of a document.
+     * <p>
+     * These fields are used to filter out documents that are obviously unreadable for the current user,
+     * see {@link org.sakaiproject.search.solr.AccessControlFilter}. They only hold the access of the document itself,
+     * as documents aren't indexed again when the access of their container changes.
+     * </p>
+     *
+     * @param reference       reference of the document
+     * @param document        document to index
+     * @param contentProducer content producer providing the access control details
+     */
+    private void setDocumentAccessControl(String reference, SolrInputDocument document,
+                                          AccessControlledContentProducer contentProducer) {
+        AccessControl accessControl = contentProducer.getAccessControl(reference);
+        document.addField(ACL_PUBLIC, accessControl.isPublic());
+        document.addField(ACL_HIDDEN, accessControl.isHidden());
+        for (String group : accessControl.getGroups()) {
+            document.addField(ACL_GROUPS, group);
+        }
+        if (accessControl.getReleaseDate() != null)
+            document.addField(ACL_RELEASE, accessControl.getReleaseDate());
+        if (accessControl.getRetractDate() != null)
+            document.addField(ACL_RETRACT, accessControl.getRetractDate());
+    }
+
     /**
      * Gets the content of a document from a Reader and converts it to a String.
      *
@@ -392,16 +444,9 @@ public class SolrTools {
      *
      * @return the number of documents awaiting indexation in the solr server.
      */
-    @SuppressWarnings("unchecked")
     public int getPendingDocuments() {
         try {
-            AdminStatRequest adminStatRequest = new AdminStatRequest();
-            adminStatRequest.setParam("key", "updateHandler");
-            NamedList<Object> result = solrServer.request(adminStatRequest);
-            NamedList<Object> mbeans = (NamedList<Object>) result.get("solr-mbeans");
-            NamedList<Object> updateHandler = (NamedList<Object>) mbeans.get("UPDATEHANDLER");
-            NamedList<Object> updateHandler2 = (NamedList<Object>) updateHandler.get("updateHandler");
-            NamedList<Object> stats = (NamedList<Object>) updateHandler2.get("stats");
+            NamedList<Object> stats = AdminStatRequest.getStatistics(solrServer, "UPDATEHANDLER", "updateHandler");
             return ((Long) stats.get("docsPending")).intValue();
         } catch (SolrServerException e) {
             logger.warn("Couldn't obtain the number of pending documents", e);
@@ -0,0 +1,22 @@
+package org.sakaiproject.search.solr.response;
+
+import org.sakaiproject.search.api.SearchResult;
+import org.sakaiproject.search.api.TermFrequency;
+
+/**
+ * Search result able to select only the most frequent terms of the document.
+ * <p>
+ * Callers needing a handful of terms use it rather than {@link #getTerms()}, which sorts every term of the document.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface FrequentTermsSearchResult extends SearchResult {
+    /**
+     * Gets the most frequent terms of the document.
+     *
+     * @param maximumTerms maximum number of terms to return.
+     * @return the most frequent terms, sorted by decreasing frequency.
+     */
+    TermFrequency getTerms(int maximumTerms);
+}
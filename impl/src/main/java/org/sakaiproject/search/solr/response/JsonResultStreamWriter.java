@@ -0,0 +1,121 @@
+package org.sakaiproject.search.solr.response;
+
+import org.sakaiproject.search.api.SearchResult;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+/**
+ * Writes search results as a JSON object encoded in UTF-8.
+ * <p>
+ * The object contains a "results" array, each result having a reference, contentId, siteId, score, title, tool and
+ * url, followed by the "count" of results written.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class JsonResultStreamWriter implements ResultStreamWriter {
+    private static final char LINE_SEPARATOR = 0x2028;
+    private static final char PARAGRAPH_SEPARATOR = 0x2029;
+    private final Writer writer;
+    private long count;
+
+    /**
+     * Creates a writer for an output stream.
+     *
+     * @param outputStream stream in which the results are written, not closed by the writer.
+     */
+    public JsonResultStreamWriter(OutputStream outputStream) {
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 isn't supported", e);
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        writer.write("{\"results\":[");
+    }
+
+    @Override
+    public void write(SearchResult result) throws IOException {
+        if (count > 0)
+            writer.write(',');
+        count++;
+
+        writer.write('{');
+        writeProperty("reference", result.getReference());
+        writer.write(',');
+        writeProperty("contentId", result.getId());
+        writer.write(',');
+        writeProperty("siteId", result.getSiteId());
+        writer.write(",\"score\":");
+        writer.write(Float.toString(result.getScore()));
+        writer.write(',');
+        writeProperty("title", result.getTitle());
+        writer.write(',');
+        writeProperty("tool", result.getTool());
+        writer.write(',');
+        writeProperty("url", result.getUrl());
+        writer.write('}');
+    }
+
+    @Override
+    public void end() throws IOException {
+        writer.write("],\"count\":");
+        writer.write(Long.toString(count));
+        writer.write('}');
+        writer.flush();
+    }
+
+    private void writeProperty(String name, String value) throws IOException {
+        writeString(name);
+        writer.write(':');
+        if (value != null)
+            writeString(value);
+        else
+            writer.write("null");
+    }
+
+    /**
+     * Writes a JSON string, escaping quotes, backslashes and control characters.
+     *
+     * @param value string to write.
+     * @throws IOException if the output can't be written.
+     */
+    private void writeString(String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    // Other control characters, and separators which aren't valid in javascript strings
+                    if (c < 0x20 || c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR)
+                        writer.write(String.format("\\u%04x", (int) c));
+                    else
+                        writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,42 @@
+package org.sakaiproject.search.solr.response;
+
+import org.sakaiproject.search.api.SearchResult;
+
+import java.io.IOException;
+
+/**
+ * Writes search results to an output as soon as they are read from solr.
+ * <p>
+ * Results aren't kept once they're written, so exports use the same amount of memory regardless of the number of
+ * results.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface ResultStreamWriter {
+    /**
+     * Starts the output, before any result is written.
+     * <p>
+     * The number of matching documents isn't known yet as results may still be censored, it's written by
+     * {@link #end()}.
+     * </p>
+     *
+     * @throws IOException if the output can't be written.
+     */
+    void start() throws IOException;
+
+    /**
+     * Writes a readable result.
+     *
+     * @param result result to write.
+     * @throws IOException if the output can't be written.
+     */
+    void write(SearchResult result) throws IOException;
+
+    /**
+     * Ends the output once every result has been written with the number of results written, and flushes it.
+     *
+     * @throws IOException if the output can't be written.
+     */
+    void end() throws IOException;
+}
@@ -1,28 +1,40 @@
 package org.sakaiproject.search.solr.response;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.StringUtils;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.solr.common.SolrDocument;
 import org.sakaiproject.search.api.*;
+import org.sakaiproject.search.response.filter.ProducerAwareSearchResult;
 
 import java.io.IOException;
 import java.util.*;
 
-import static org.sakaiproject.search.solr.response.TermVectorExtractor.TermInfo;
+import static org.sakaiproject.search.solr.response.TermVectorExtractor.DocumentTermVectors;
+import static org.sakaiproject.search.solr.response.TermVectorExtractor.FieldTermVectors;
 
 /**
  * Search result obtained from a Solr server.
  *
  * @author Colin Hebert
  */
-public class SolrResult implements SearchResult {
+public class SolrResult implements ProducerAwareSearchResult, FrequentTermsSearchResult {
     private static final String SCORE_FIELD = "score";
     private int index;
     private SolrDocument document;
     private Map<String, List<String>> highlights;
+    private DocumentTermVectors termVectors;
+    /**
+     * Term frequencies, computed from the term vectors on first access.
+     */
     private TermFrequency terms;
     private String url;
     private EntityContentProducer contentProducer;
+    /**
+     * Value of the collapse field shared by the documents of the group, if the results were collapsed.
+     */
+    private String groupValue;
+    private long groupSize;
 
     public void setDocument(SolrDocument document) {
         this.document = document;
@@ -32,6 +44,35 @@ public class SolrResult implements SearchResult {
         this.highlights = highlights;
     }
 
+    /**
+     * Sets the group of the result, when the results are collapsed.
+     *
+     * @param groupValue value of the collapse field for the documents of the group.
+     * @param groupSize  number of documents in the group.
+     */
+    public void setGroup(String groupValue, long groupSize) {
+        this.groupValue = groupValue;
+        this.groupSize = groupSize;
+    }
+
+    public String getGroupValue() {
+        return groupValue;
+    }
+
+    /**
+     * Gets the number of documents in the group of this result.
+     *
+     * @return the number of documents in the group, 0 if the results weren't collapsed.
+     */
+    public long getGroupSize() {
+        return groupSize;
+    }
+
+    @Override
+    public EntityContentProducer getContentProducer() {
+        return contentProducer;
+    }
+
     public void setContentProducer(EntityContentProducer contentProducer) {
         this.contentProducer = contentProducer;
     }
@@ -108,11 +149,33 @@ public class SolrResult implements SearchResult {
 
     @Override
     public TermFrequency getTerms() throws IOException {
+        if (terms == null)
+            terms = extractTermFrequency(termVectors, Integer.MAX_VALUE);
         return terms;
     }
 
-    public void setTerms(Map<String, Map<String, TermInfo>> terms) {
-        this.terms = extractTermFrequency(terms);
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the selected terms are sorted, which is cheaper than {@link #getTerms()} on documents with many distinct
+     * terms.
+     * </p>
+     */
+    @Override
+    public TermFrequency getTerms(int maximumTerms) {
+        if (terms != null && terms.getTerms().length <= maximumTerms)
+            return terms;
+        return extractTermFrequency(termVectors, maximumTerms);
+    }
+
+    /**
+     * Sets the term vectors of the document, decoded only if the terms are requested.
+     *
+     * @param termVectors term vectors of the document, null if there are none.
+     */
+    public void setTermVectors(DocumentTermVectors termVectors) {
+        this.termVectors = termVectors;
+        this.terms = null;
     }
 
     @Override
@@ -138,7 +201,7 @@ public class SolrResult implements SearchResult {
         sb.append(" sid=\"").append(StringEscapeUtils.escapeXml(getId())).append("\" ");
         sb.append(" site=\"").append(StringEscapeUtils.escapeXml(getSiteId())).append("\" ");
         sb.append(" reference=\"").append(StringEscapeUtils.escapeXml(getReference())).append("\" ");
-        sb.append(" title=\"").append(Base64.encodeBase64String(getTitle().getBytes())).append("\" ");
+        sb.append(" title=\"").append(Base64.encodeBase64String(StringUtils.getBytesUtf8(getTitle()))).append("\" ");
         sb.append(" tool=\"").append(StringEscapeUtils.escapeXml(getTool())).append("\" ");
         sb.append(" url=\"").append(StringEscapeUtils.escapeXml(getUrl())).append("\" />");
     }
@@ -170,58 +233,27 @@ public class SolrResult implements SearchResult {
      * Extracts a {@link TermFrequency} from the result of a
      * {@link org.apache.solr.handler.component.TermVectorComponent}.
      *
-     * @param termsByField A map of field/terms.
+     * @param documentTermVectors term vectors of the document, null if there are none.
+     * @param maximumTerms        maximum number of terms to return.
      * @return a term frequency.
      */
-    private TermFrequency extractTermFrequency(Map<String, Map<String, TermInfo>> termsByField) {
-        Map<String, Long> termFrequencies = new HashMap<String, Long>();
+    private static TermFrequency extractTermFrequency(DocumentTermVectors documentTermVectors, int maximumTerms) {
+        Collection<FieldTermVectors> fields = (documentTermVectors != null)
+                ? documentTermVectors.getFields().values() : Collections.<FieldTermVectors>emptyList();
+        int expectedTerms = 0;
+        for (FieldTermVectors fieldTerms : fields)
+            expectedTerms = Math.max(expectedTerms, fieldTerms.size());
+
         // Count the frequencies for each term, based on the sum of the frequency in each field
-        for (Map<String, TermInfo> fieldTerms : termsByField.values()) {
-            for (Map.Entry<String, TermInfo> fieldTerm : fieldTerms.entrySet()) {
-                Long addedFrequency = fieldTerm.getValue().getTermFrequency();
+        TermFrequencyAccumulator accumulator = new TermFrequencyAccumulator(expectedTerms);
+        for (FieldTermVectors fieldTerms : fields) {
+            for (int i = 0; i < fieldTerms.size(); i++) {
+                long frequency = fieldTerms.getTermFrequency(i);
                 // Ignore when the frequency isn't specified (if tf isn't returned by solr)
-                if (addedFrequency == null)
-                    continue;
-                Long frequency = termFrequencies.get(fieldTerm.getKey());
-                termFrequencies.put(fieldTerm.getKey(),
-                        (frequency == null) ? addedFrequency : addedFrequency + frequency);
+                if (frequency >= 0)
+                    accumulator.add(fieldTerms.getTerm(i), frequency);
             }
         }
-
-        // Sort tuples (Term/Frequency)
-        // A SortedSet consider that two elements that are equals based on compare are the same
-        // This is why, if the frequency is the same, then the term is used to do the comparison
-        SortedSet<Map.Entry<String, Long>> sortedFrequencies = new TreeSet<Map.Entry<String, Long>>(
-                new Comparator<Map.Entry<String, Long>>() {
-                    @Override
-                    public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
-                        int longComparison = o2.getValue().compareTo(o1.getValue());
-                        return (longComparison != 0) ? longComparison : o1.getKey().compareTo(o2.getKey());
-                    }
-                });
-        sortedFrequencies.addAll(termFrequencies.entrySet());
-
-        // Extract data from each Entry into two arrays
-        final String[] rawTerms = new String[sortedFrequencies.size()];
-        final int[] frequencies = new int[sortedFrequencies.size()];
-        int i = 0;
-        for (Map.Entry<String, Long> term : sortedFrequencies) {
-            rawTerms[i] = term.getKey();
-            // There is a huge loss in precision, but there should not be any issue with null values
-            frequencies[i] = (int) (long) term.getValue();
-            i++;
-        }
-
-        return new TermFrequency() {
-            @Override
-            public String[] getTerms() {
-                return rawTerms;
-            }
-
-            @Override
-            public int[] getFrequencies() {
-                return frequencies;
-            }
-        };
+        return accumulator.toTermFrequency(maximumTerms);
     }
 }
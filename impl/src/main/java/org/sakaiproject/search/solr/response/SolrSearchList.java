@@ -1,18 +1,22 @@
 package org.sakaiproject.search.solr.response;
 
 import com.google.common.collect.ForwardingList;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.Group;
+import org.apache.solr.client.solrj.response.GroupCommand;
+import org.apache.solr.client.solrj.response.GroupResponse;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.RangeFacet;
 import org.apache.solr.common.SolrDocument;
 import org.sakaiproject.search.api.SearchList;
 import org.sakaiproject.search.api.SearchResult;
 import org.sakaiproject.search.api.SearchService;
 import org.sakaiproject.search.producer.ContentProducerFactory;
 import org.sakaiproject.search.response.filter.SearchItemFilter;
+import org.sakaiproject.search.response.filter.SearchItemFilterAdapter;
 
 import java.util.*;
 
-import static org.sakaiproject.search.solr.response.TermVectorExtractor.TermInfo;
-
 /**
  * List of results after a solr search query.
  *
@@ -22,51 +26,133 @@ public class SolrSearchList extends ForwardingList<SearchResult> implements Sear
     private final List<SearchResult> solrResults;
     private final QueryResponse rsp;
     private final int start;
+    /**
+     * Whether the results have been read from a cursor, in which case the next cursor is known.
+     */
+    private final boolean cursorPaging;
+    private final String nextCursor;
 
     /**
      * List of results for a solr query.
      *
      * @param rsp                    raw response from solr.
      * @param start                  position of the first result (overall).
-     * @param filter                 filter to apply on each result.
+     * @param filter                 filter to apply on the results.
      * @param contentProducerFactory factory to obtain a content producer for each result.
      */
     public SolrSearchList(QueryResponse rsp, int start, SearchItemFilter filter,
                           ContentProducerFactory contentProducerFactory) {
         this.rsp = rsp;
         this.start = start;
+        this.cursorPaging = false;
+        this.nextCursor = null;
 
-        List<SearchResult> results = new ArrayList<SearchResult>(rsp.getResults().size());
+        List<SearchResult> results = new ArrayList<SearchResult>();
 
-        // Extract TermVector information from the response
+        // Index TermVector information from the response, decoded only when a result's terms are requested
         TermVectorExtractor termVectorExtractor = new TermVectorExtractor(rsp);
-        Map<String, Map<String, Map<String, TermInfo>>> termsPerDocument = termVectorExtractor.getTermVectorInfo();
 
-        // Generate a SolrResult for each document
-        for (SolrDocument document : rsp.getResults()) {
-            String reference = (String) document.getFieldValue(SearchService.FIELD_REFERENCE);
+        // Generate a SolrResult for each document, groups are flattened with the top documents of each group
+        GroupCommand groupCommand = getGroupCommand(rsp);
+        if (groupCommand == null) {
+            for (SolrDocument document : rsp.getResults()) {
+                SolrResult solrResult = createResult(document, results.size(), termVectorExtractor,
+                        contentProducerFactory);
+                results.add(solrResult);
+            }
+        } else {
+            for (Group group : groupCommand.getValues()) {
+                for (SolrDocument document : group.getResult()) {
+                    SolrResult solrResult = createResult(document, results.size(), termVectorExtractor,
+                            contentProducerFactory);
+                    solrResult.setGroup(group.getGroupValue(), group.getResult().getNumFound());
+                    results.add(solrResult);
+                }
+            }
+        }
+        // Filter the whole page at once
+        this.solrResults = Collections.unmodifiableList(SearchItemFilterAdapter.adapt(filter).filter(results));
+    }
+
+    /**
+     * Creates a result for a document of the response.
+     *
+     * @param document               document sent by solr.
+     * @param index                  position of the result in the page.
+     * @param termVectorExtractor    term vectors of the response.
+     * @param contentProducerFactory factory to obtain a content producer for each result.
+     * @return the result for the document.
+     */
+    private SolrResult createResult(SolrDocument document, int index, TermVectorExtractor termVectorExtractor,
+                                    ContentProducerFactory contentProducerFactory) {
+        String reference = (String) document.getFieldValue(SearchService.FIELD_REFERENCE);
 
-            SolrResult solrResult = new SolrResult();
-            solrResult.setIndex(results.size());
-            solrResult.setDocument(document);
+        SolrResult solrResult = new SolrResult();
+        solrResult.setIndex(index);
+        solrResult.setDocument(document);
 
-            // Not mandatory highlighting
-            Map<String, List<String>> highlights = rsp.getHighlighting().get(reference);
-            if (highlights == null)
-                highlights = Collections.emptyMap();
-            solrResult.setHighlights(highlights);
+        // Not mandatory highlighting
+        Map<String, List<String>> highlights = (rsp.getHighlighting() != null)
+                ? rsp.getHighlighting().get(reference) : null;
+        if (highlights == null)
+            highlights = Collections.emptyMap();
+        solrResult.setHighlights(highlights);
 
-            // Not mandatory terms counting
-            Map<String, Map<String, TermInfo>> terms = termsPerDocument.get(reference);
-            if (terms == null)
-                terms = Collections.emptyMap();
-            solrResult.setTerms(terms);
+        // Not mandatory terms counting
+        solrResult.setTermVectors(termVectorExtractor.getDocumentTermVectors(reference));
 
-            solrResult.setContentProducer(contentProducerFactory.getContentProducerForElement(reference));
+        solrResult.setContentProducer(contentProducerFactory.getContentProducerForElement(reference));
+        return solrResult;
+    }
 
-            results.add(filter.filter(solrResult));
-        }
-        this.solrResults = Collections.unmodifiableList(results);
+    /**
+     * Gets the groups of a collapsed search.
+     *
+     * @param rsp raw response from solr.
+     * @return the only grouping command of the response, or null if the results weren't grouped.
+     */
+    private static GroupCommand getGroupCommand(QueryResponse rsp) {
+        GroupResponse groupResponse = rsp.getGroupResponse();
+        return (groupResponse != null && !groupResponse.getValues().isEmpty())
+                ? groupResponse.getValues().get(0) : null;
+    }
+
+    /**
+     * List of results already extracted from a solr query.
+     * <p>
+     * Used when the results have been selected across multiple responses, for example to replace censored results.
+     * </p>
+     *
+     * @param rsp     raw response from solr, used to get the total number of results and the facet counts.
+     * @param start   position of the first result (overall).
+     * @param results results to include in the list.
+     */
+    public SolrSearchList(QueryResponse rsp, int start, List<SearchResult> results) {
+        this.rsp = rsp;
+        this.start = start;
+        this.solrResults = Collections.unmodifiableList(new ArrayList<SearchResult>(results));
+        this.cursorPaging = false;
+        this.nextCursor = null;
+    }
+
+    /**
+     * List of results already extracted from a solr query, read from a cursor.
+     * <p>
+     * The next cursor can be different from the position of the last result, if results examined after it have been
+     * censored.
+     * </p>
+     *
+     * @param rsp        raw response from solr, used to get the total number of results and the facet counts.
+     * @param start      position of the first result (overall).
+     * @param results    results to include in the list.
+     * @param nextCursor token of the cursor after the last result examined, null if there are no more results.
+     */
+    public SolrSearchList(QueryResponse rsp, int start, List<SearchResult> results, String nextCursor) {
+        this.rsp = rsp;
+        this.start = start;
+        this.solrResults = Collections.unmodifiableList(new ArrayList<SearchResult>(results));
+        this.cursorPaging = true;
+        this.nextCursor = nextCursor;
     }
 
     @Override
@@ -80,7 +166,32 @@ public class SolrSearchList extends ForwardingList<SearchResult> implements Sear
 
     @Override
     public int getFullSize() {
-        return (int) rsp.getResults().getNumFound();
+        GroupCommand groupCommand = getGroupCommand(rsp);
+        if (groupCommand == null)
+            return (int) rsp.getResults().getNumFound();
+        else
+            return (groupCommand.getNGroups() != null) ? groupCommand.getNGroups() : groupCommand.getValues().size();
+    }
+
+    /**
+     * Gets the number of documents in each group of a collapsed search.
+     * <p>
+     * Only the top documents of each group are in the list, the counts include every matching document of the group,
+     * including those which may be censored later for the current user. The group of documents without a value for
+     * the collapse field is associated to null.
+     * </p>
+     *
+     * @return the number of documents in each group of the page, empty if the results weren't collapsed.
+     */
+    public Map<String, Long> getGroupCounts() {
+        GroupCommand groupCommand = getGroupCommand(rsp);
+        if (groupCommand == null)
+            return Collections.emptyMap();
+
+        Map<String, Long> groupCounts = new LinkedHashMap<String, Long>();
+        for (Group group : groupCommand.getValues())
+            groupCounts.put(group.getGroupValue(), group.getResult().getNumFound());
+        return groupCounts;
     }
 
     @Override
@@ -88,6 +199,57 @@ public class SolrSearchList extends ForwardingList<SearchResult> implements Sear
         return start;
     }
 
+    /**
+     * Gets the token of a cursor giving access to the results after this page.
+     * <p>
+     * Only pages obtained with {@link org.sakaiproject.search.solr.SolrSearchService#searchAfter} have a cursor, their
+     * results are sorted by reference. Pages obtained by offset are sorted by relevance and can't be followed by a
+     * cursor.
+     * </p>
+     *
+     * @return the token of the cursor after this page, or null if the last result has been reached or if the page
+     *         wasn't obtained with a cursor.
+     */
+    public String getNextCursor() {
+        return cursorPaging ? nextCursor : null;
+    }
+
+    /**
+     * Gets the facet counts computed along with the results.
+     * <p>
+     * Each facet (tool, type, site id, indexation date) is associated to the number of matching documents for each
+     * value, the most frequent value first. Date ranges are associated to the number of documents indexed since the
+     * beginning of the range, the oldest first, with "before" counting the documents older than the first range.<br />
+     * Counts include every matching document, including those which may be censored later for the current user.
+     * </p>
+     *
+     * @return the facet counts, empty if facets weren't requested.
+     */
+    public Map<String, Map<String, Long>> getFacetCounts() {
+        Map<String, Map<String, Long>> facetCounts = new LinkedHashMap<String, Map<String, Long>>();
+        if (rsp.getFacetFields() != null) {
+            for (FacetField facetField : rsp.getFacetFields()) {
+                Map<String, Long> counts = new LinkedHashMap<String, Long>();
+                if (facetField.getValues() != null) {
+                    for (FacetField.Count count : facetField.getValues())
+                        counts.put(count.getName(), count.getCount());
+                }
+                facetCounts.put(facetField.getName(), counts);
+            }
+        }
+        if (rsp.getFacetRanges() != null) {
+            for (RangeFacet<?, ?> rangeFacet : rsp.getFacetRanges()) {
+                Map<String, Long> counts = new LinkedHashMap<String, Long>();
+                if (rangeFacet.getBefore() != null)
+                    counts.put("before", rangeFacet.getBefore().longValue());
+                for (RangeFacet.Count count : rangeFacet.getCounts())
+                    counts.put(count.getValue(), (long) count.getCount());
+                facetCounts.put(rangeFacet.getName(), counts);
+            }
+        }
+        return facetCounts;
+    }
+
     @Override
     protected List<SearchResult> delegate() {
         return solrResults;
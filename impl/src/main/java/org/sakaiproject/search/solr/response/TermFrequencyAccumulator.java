@@ -0,0 +1,206 @@
+package org.sakaiproject.search.solr.response;
+
+import org.sakaiproject.search.api.TermFrequency;
+
+/**
+ * Accumulates the frequencies of terms without boxing, and sorts them by frequency.
+ * <p>
+ * Terms are stored in an open-addressing hash table (linear probing) with the frequencies in a primitive array.<br />
+ * Sorting is done on the indexes of the terms with a binary heap, which also allows to select only the most frequent
+ * terms without sorting every term.
+ * </p>
+ * <p>
+ * This class isn't thread-safe.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class TermFrequencyAccumulator {
+    private static final int DEFAULT_CAPACITY = 16;
+    private String[] terms;
+    private long[] frequencies;
+    private int size;
+
+    /**
+     * Creates an empty accumulator.
+     */
+    public TermFrequencyAccumulator() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty accumulator for an expected number of terms.
+     *
+     * @param expectedTerms number of distinct terms expected.
+     */
+    public TermFrequencyAccumulator(int expectedTerms) {
+        int capacity = DEFAULT_CAPACITY;
+        // Keep the load factor under 0.5
+        while (capacity < expectedTerms * 2)
+            capacity <<= 1;
+        terms = new String[capacity];
+        frequencies = new long[capacity];
+    }
+
+    /**
+     * Adds occurrences of a term.
+     *
+     * @param term      term found.
+     * @param frequency number of occurrences to add.
+     */
+    public void add(String term, long frequency) {
+        int slot = findSlot(terms, term);
+        if (terms[slot] == null) {
+            terms[slot] = term;
+            size++;
+            frequencies[slot] = frequency;
+            if (size * 2 > terms.length)
+                resize();
+        } else {
+            frequencies[slot] += frequency;
+        }
+    }
+
+    /**
+     * Gets the number of distinct terms.
+     *
+     * @return the number of distinct terms accumulated.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Creates a {@link TermFrequency} with every term sorted by decreasing frequency.
+     *
+     * @return the terms and their frequency.
+     */
+    public TermFrequency toTermFrequency() {
+        return toTermFrequency(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a {@link TermFrequency} with the most frequent terms sorted by decreasing frequency.
+     * <p>
+     * Terms with the same frequency are sorted alphabetically.
+     * </p>
+     *
+     * @param maximumTerms maximum number of terms to return.
+     * @return the most frequent terms and their frequency.
+     */
+    public TermFrequency toTermFrequency(int maximumTerms) {
+        int heapCapacity = Math.max(0, Math.min(maximumTerms, size));
+        // Heap of slots where the least frequent term is at the top
+        int[] heap = new int[heapCapacity];
+        int heapSize = 0;
+        if (heapCapacity > 0) {
+            for (int slot = 0; slot < terms.length; slot++) {
+                if (terms[slot] == null)
+                    continue;
+                if (heapSize < heapCapacity) {
+                    heap[heapSize] = slot;
+                    siftUp(heap, heapSize++);
+                } else if (isBefore(slot, heap[0])) {
+                    heap[0] = slot;
+                    siftDown(heap, 0, heapSize);
+                }
+            }
+        }
+
+        // Empty the heap from the least frequent to the most frequent term
+        final String[] sortedTerms = new String[heapSize];
+        final int[] sortedFrequencies = new int[heapSize];
+        while (heapSize > 0) {
+            int slot = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heap, 0, heapSize);
+            sortedTerms[heapSize] = terms[slot];
+            sortedFrequencies[heapSize] = (int) Math.min(frequencies[slot], Integer.MAX_VALUE);
+        }
+
+        return new TermFrequency() {
+            @Override
+            public String[] getTerms() {
+                return sortedTerms;
+            }
+
+            @Override
+            public int[] getFrequencies() {
+                return sortedFrequencies;
+            }
+        };
+    }
+
+    /**
+     * Checks if the term in a slot should be listed before the term in another slot.
+     *
+     * @param slot1 slot of the first term.
+     * @param slot2 slot of the second term.
+     * @return true if the first term is more frequent, or as frequent and alphabetically first.
+     */
+    private boolean isBefore(int slot1, int slot2) {
+        if (frequencies[slot1] != frequencies[slot2])
+            return frequencies[slot1] > frequencies[slot2];
+        return terms[slot1].compareTo(terms[slot2]) < 0;
+    }
+
+    private void siftUp(int[] heap, int position) {
+        int slot = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!isBefore(heap[parent], slot))
+                break;
+            heap[position] = heap[parent];
+            position = parent;
+        }
+        heap[position] = slot;
+    }
+
+    private void siftDown(int[] heap, int position, int heapSize) {
+        if (heapSize == 0)
+            return;
+        int slot = heap[position];
+        int half = heapSize >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            if (child + 1 < heapSize && isBefore(heap[child], heap[child + 1]))
+                child++;
+            if (!isBefore(slot, heap[child]))
+                break;
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = slot;
+    }
+
+    private void resize() {
+        String[] oldTerms = terms;
+        long[] oldFrequencies = frequencies;
+        terms = new String[oldTerms.length * 2];
+        frequencies = new long[oldTerms.length * 2];
+        for (int i = 0; i < oldTerms.length; i++) {
+            if (oldTerms[i] == null)
+                continue;
+            int slot = findSlot(terms, oldTerms[i]);
+            terms[slot] = oldTerms[i];
+            frequencies[slot] = oldFrequencies[i];
+        }
+    }
+
+    /**
+     * Finds the slot containing a term, or the empty slot where the term should be inserted.
+     *
+     * @param table table of terms, with a length which is a power of two.
+     * @param term  term to look for.
+     * @return the slot of the term.
+     */
+    private static int findSlot(String[] table, String term) {
+        int mask = table.length - 1;
+        int hash = term.hashCode();
+        // Spread the bits of the hash, as only the lower bits are used
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (table[slot] != null && !table[slot].equals(term))
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+}
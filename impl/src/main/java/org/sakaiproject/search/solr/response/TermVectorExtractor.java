@@ -8,16 +8,16 @@ import java.util.*;
 /**
  * Extract {@link org.apache.solr.handler.component.TermVectorComponent} results from a {@link QueryResponse}.
  * <p>
- * Based on <a href="https://issues.apache.org/jira/browse/SOLR-949">SOLR-949</a>, this extractor will get every
- * information provided by  {@link org.apache.solr.handler.component.TermVectorComponent} and put that in a {@link Map}
- * of documents with the documentReference as the key.<br />
- * The document map contain itself a {@link Map} of fields available in the document, with
- * the field name as the key.<br />
- * The field map contains itself a {@link Map} of terms used in the field, with the term as the key.<br />
- * The term map associate a term to a {@link TermInfo}.
+ * Based on <a href="https://issues.apache.org/jira/browse/SOLR-949">SOLR-949</a>, this extractor gives access to
+ * every information provided by {@link org.apache.solr.handler.component.TermVectorComponent} for each document,
+ * with the documentReference as the key.
+ * </p>
+ * <p>
+ * The extraction is lazy, the raw response is only indexed by document when the extractor is created.<br />
+ * The terms of a field are decoded into primitive arrays the first time they're accessed, and the positions and
+ * offsets of a term are only decoded when requested. As most callers never look at the term vectors, a page of
+ * results doesn't allocate anything more than the index of documents.
  * </p>
- * <p/>
- * TODO: Change nested {@link Map} to a custom data-structure able to contain more information?
  *
  * @author Colin Hebert
  */
@@ -33,19 +33,9 @@ public class TermVectorExtractor {
     private static final String WARNINGS = "warnings";
     private static final String UNIQUE_KEY_FIELD_NAME = "uniqueKeyFieldName";
     /**
-     * TermVector data in the form:
-     * <pre>
-     * "documentReference":{
-     *     "fieldName":{
-     *         "term": {@link TermInfo},
-     *         ...
-     *     },
-     *     ...
-     * },
-     * ...
-     * </pre>
+     * Raw TermVector data of each document, indexed by documentReference.
      */
-    private Map<String, Map<String, Map<String, TermInfo>>> termVectorInfo = Collections.emptyMap();
+    private final Map<String, NamedList<Object>> documentsRaw;
 
     /**
      * Creates a TermVectorExtractor for the given query response sent by Solr.
@@ -56,114 +46,81 @@ public class TermVectorExtractor {
     public TermVectorExtractor(QueryResponse queryResponse) {
         NamedList<Object> res = (NamedList<Object>) queryResponse.getResponse().get(TERM_VECTORS);
         if (res != null)
-            termVectorInfo = extractTermVectorInfo(res);
+            documentsRaw = indexDocuments(res);
+        else
+            documentsRaw = Collections.emptyMap();
     }
 
     /**
-     * Extracts documents from the {@link org.apache.solr.handler.component.TermVectorComponent} result.
+     * Indexes the raw data of each document by reference, without decoding the content of the documents.
      *
      * @param termVectorInfoRaw Raw data extracted from the solr query
-     * @return A map of document ids associated with a map of fields in these documents
+     * @return A map of document references associated with the raw data of these documents
      */
     @SuppressWarnings("unchecked")
-    private Map<String, Map<String, Map<String, TermInfo>>> extractTermVectorInfo(
-            NamedList<Object> termVectorInfoRaw) {
-        Map<String, Map<String, Map<String, TermInfo>>> documents =
-                new HashMap<String, Map<String, Map<String, TermInfo>>>(termVectorInfoRaw.size());
+    private static Map<String, NamedList<Object>> indexDocuments(NamedList<Object> termVectorInfoRaw) {
+        Map<String, NamedList<Object>> documents = new HashMap<String, NamedList<Object>>(termVectorInfoRaw.size());
         for (Map.Entry<String, Object> termVectorInfoEntryRaw : termVectorInfoRaw) {
             // Ignore unique key field name and warnings
             if (!UNIQUE_KEY_FIELD_NAME.equals(termVectorInfoEntryRaw.getKey())
                     && !WARNINGS.equals(termVectorInfoEntryRaw.getKey())) {
                 // From this point, the entry can be considered as always a document
                 NamedList<Object> documentContentRaw = (NamedList<Object>) termVectorInfoEntryRaw.getValue();
-                String documentReference = (String) documentContentRaw.get(UNIQUE_KEY);
-                Map<String, Map<String, TermInfo>> fieldTerms = extractDocumentContent(documentContentRaw);
-
-                documents.put(documentReference, fieldTerms);
+                documents.put((String) documentContentRaw.get(UNIQUE_KEY), documentContentRaw);
             }
         }
-        return Collections.unmodifiableMap(documents);
+        return documents;
     }
 
     /**
-     * Extracts fields from a document.
+     * Gets the term vectors of a document.
      *
-     * @param documentContentRaw Raw data extracted from the solr query
-     * @return A map of field names associated with a map of terms in these fields
+     * @param documentReference reference of the document.
+     * @return the term vectors of the document, or null if there are no term vectors for this document.
      */
-    @SuppressWarnings("unchecked")
-    private Map<String, Map<String, TermInfo>> extractDocumentContent(NamedList<Object> documentContentRaw) {
-        Map<String, Map<String, TermInfo>> fields =
-                new HashMap<String, Map<String, TermInfo>>(documentContentRaw.size());
-        for (Map.Entry<String, Object> documentContentEntryRaw : documentContentRaw) {
-            // Ignore documentId, we already got that earlier
-            if (!UNIQUE_KEY.equals(documentContentEntryRaw.getKey())) {
-                // From this point, the entry can be considered as always a field in the document
-                NamedList<Object> fieldContentRaw = (NamedList<Object>) documentContentEntryRaw.getValue();
-                String fieldName = documentContentEntryRaw.getKey();
-                Map<String, TermInfo> terms = extractFieldContent(fieldContentRaw);
-
-                fields.put(fieldName, terms);
-            }
-        }
-        return Collections.unmodifiableMap(fields);
+    public DocumentTermVectors getDocumentTermVectors(String documentReference) {
+        NamedList<Object> documentRaw = documentsRaw.get(documentReference);
+        return (documentRaw != null) ? new DocumentTermVectors(documentRaw) : null;
     }
 
     /**
-     * Extracts terms from a field.
-     *
-     * @param fieldContentRaw Raw data extracted from the solr query
-     * @return A map of terms associated with various data on these fields, {@link }
+     * Term vectors of every field of a document, decoded on first access.
      */
-    @SuppressWarnings("unchecked")
-    private Map<String, TermInfo> extractFieldContent(NamedList<Object> fieldContentRaw) {
-        Map<String, TermInfo> terms = new HashMap<String, TermInfo>(fieldContentRaw.size());
-        for (Map.Entry<String, Object> fieldContentEntryRaw : fieldContentRaw) {
-            String term = fieldContentEntryRaw.getKey();
-            NamedList<Object> termInfoRaw = (NamedList<Object>) fieldContentEntryRaw.getValue();
-            TermInfo termInfo = new TermInfo();
-            if (termInfoRaw.get(DF) != null)
-                termInfo.setDocumentFrequency(((Number) termInfoRaw.get(DF)).longValue());
-            if (termInfoRaw.get(TF) != null)
-                termInfo.setTermFrequency(((Number) termInfoRaw.get(TF)).longValue());
-            if (termInfoRaw.get(TF_IDF) != null)
-                termInfo.setTermFrequencyInverseDocumentFrequency(((Number) termInfoRaw.get(TF_IDF)).doubleValue());
-            if (termInfoRaw.get(POSITIONS) != null)
-                termInfo.setPositions(extractTermPositions((NamedList<Number>) termInfoRaw.get(POSITIONS)));
-            if (termInfoRaw.get(OFFSETS) != null)
-                termInfo.setOffsets(extractTermOffsets((NamedList<Number>) termInfoRaw.get(OFFSETS)));
-
-            terms.put(term, termInfo);
-        }
-        return Collections.unmodifiableMap(terms);
-    }
+    public static final class DocumentTermVectors {
+        private final NamedList<Object> documentRaw;
+        private Map<String, FieldTermVectors> fields;
 
-    private List<Long> extractTermPositions(NamedList<Number> termPositionsRaw) {
-        List<Long> positions = new ArrayList<Long>(termPositionsRaw.size());
-        for (Map.Entry<?, Number> position : termPositionsRaw)
-            positions.add(position.getValue().longValue());
-        return Collections.unmodifiableList(positions);
-    }
-
-    private List<TermInfo.Offset> extractTermOffsets(NamedList<Number> termOffsetsRaw) {
-        List<TermInfo.Offset> offsets = new ArrayList<TermInfo.Offset>(termOffsetsRaw.size() / 2);
-        for (Iterator<Map.Entry<String, Number>> iterator = termOffsetsRaw.iterator(); iterator.hasNext(); ) {
-            TermInfo.Offset offset = new TermInfo.Offset();
-            offset.setStart(iterator.next().getValue().longValue());
-            offset.setEnd(iterator.next().getValue().longValue());
-            offsets.add(offset);
+        private DocumentTermVectors(NamedList<Object> documentRaw) {
+            this.documentRaw = documentRaw;
         }
-        return Collections.unmodifiableList(offsets);
-    }
 
-    public Map<String, Map<String, Map<String, TermInfo>>> getTermVectorInfo() {
-        return termVectorInfo;
+        /**
+         * Gets the term vectors of each field in the document.
+         *
+         * @return A map of field names associated with the terms of these fields
+         */
+        @SuppressWarnings("unchecked")
+        public Map<String, FieldTermVectors> getFields() {
+            if (fields == null) {
+                Map<String, FieldTermVectors> decodedFields = new HashMap<String, FieldTermVectors>();
+                for (Map.Entry<String, Object> documentContentEntryRaw : documentRaw) {
+                    // Ignore documentId, we already got that earlier
+                    if (!UNIQUE_KEY.equals(documentContentEntryRaw.getKey())) {
+                        // From this point, the entry can be considered as always a field in the document
+                        decodedFields.put(documentContentEntryRaw.getKey(),
+                                new FieldTermVectors((NamedList<Object>) documentContentEntryRaw.getValue()));
+                    }
+                }
+                fields = Collections.unmodifiableMap(decodedFields);
+            }
+            return fields;
+        }
     }
 
     /**
-     * Various data about a term within a document.
+     * Various data about the terms within a field.
      * <p>
-     * The information on a term contains:
+     * The information on each term contains:
      * <ul>
      * <li>document frequency (df), which is the number of documents containing the term</li>
      * <li>term frequency (tf), which is the number of times the term appears in the current document</li>
@@ -171,83 +128,99 @@ public class TermVectorExtractor {
      * <li>positions</li>
      * <li>offsets</li>
      * </ul>
+     * Terms are accessed by index, from 0 to {@link #size()} (excluded). Frequencies which weren't returned by solr
+     * are set to -1 (or {@link Double#NaN} for tf-idf).
      * </p>
      */
-    public static final class TermInfo {
-        private Long documentFrequency;
-        private Long termFrequency;
-        private Double termFrequencyInverseDocumentFrequency;
-        private List<Offset> offsets;
-        private List<Long> positions;
-
-        private TermInfo() {
-        }
-
-        public Long getDocumentFrequency() {
-            return documentFrequency;
-        }
-
-        private void setDocumentFrequency(Long documentFrequency) {
-            this.documentFrequency = documentFrequency;
+    public static final class FieldTermVectors {
+        private final String[] terms;
+        private final long[] termFrequencies;
+        private final long[] documentFrequencies;
+        private final double[] termFrequencyInverseDocumentFrequencies;
+        private final NamedList<Object>[] termInfosRaw;
+
+        @SuppressWarnings("unchecked")
+        private FieldTermVectors(NamedList<Object> fieldContentRaw) {
+            int size = fieldContentRaw.size();
+            terms = new String[size];
+            termFrequencies = new long[size];
+            documentFrequencies = new long[size];
+            termFrequencyInverseDocumentFrequencies = new double[size];
+            termInfosRaw = new NamedList[size];
+            for (int i = 0; i < size; i++) {
+                terms[i] = fieldContentRaw.getName(i);
+                NamedList<Object> termInfoRaw = (NamedList<Object>) fieldContentRaw.getVal(i);
+                termInfosRaw[i] = termInfoRaw;
+                termFrequencies[i] = getLong(termInfoRaw, TF);
+                documentFrequencies[i] = getLong(termInfoRaw, DF);
+                Number tfIdf = (Number) termInfoRaw.get(TF_IDF);
+                termFrequencyInverseDocumentFrequencies[i] = (tfIdf != null) ? tfIdf.doubleValue() : Double.NaN;
+            }
         }
 
-        public Long getTermFrequency() {
-            return termFrequency;
+        private static long getLong(NamedList<Object> termInfoRaw, String name) {
+            Number value = (Number) termInfoRaw.get(name);
+            return (value != null) ? value.longValue() : -1;
         }
 
-        private void setTermFrequency(Long termFrequency) {
-            this.termFrequency = termFrequency;
+        /**
+         * Gets the number of terms in the field.
+         *
+         * @return the number of terms.
+         */
+        public int size() {
+            return terms.length;
         }
 
-        public Double getTermFrequencyInverseDocumentFrequency() {
-            return termFrequencyInverseDocumentFrequency;
+        public String getTerm(int termIndex) {
+            return terms[termIndex];
         }
 
-        private void setTermFrequencyInverseDocumentFrequency(Double termFrequencyInverseDocumentFrequency) {
-            this.termFrequencyInverseDocumentFrequency = termFrequencyInverseDocumentFrequency;
+        public long getTermFrequency(int termIndex) {
+            return termFrequencies[termIndex];
         }
 
-        public List<Offset> getOffsets() {
-            return offsets;
+        public long getDocumentFrequency(int termIndex) {
+            return documentFrequencies[termIndex];
         }
 
-        private void setOffsets(List<Offset> offsets) {
-            this.offsets = offsets;
+        public double getTermFrequencyInverseDocumentFrequency(int termIndex) {
+            return termFrequencyInverseDocumentFrequencies[termIndex];
         }
 
-        public List<Long> getPositions() {
+        /**
+         * Decodes the positions of a term.
+         *
+         * @param termIndex index of the term.
+         * @return the positions of the term, or an empty array if the positions weren't returned by solr.
+         */
+        @SuppressWarnings("unchecked")
+        public long[] getPositions(int termIndex) {
+            NamedList<Number> termPositionsRaw = (NamedList<Number>) termInfosRaw[termIndex].get(POSITIONS);
+            if (termPositionsRaw == null)
+                return new long[0];
+            long[] positions = new long[termPositionsRaw.size()];
+            for (int i = 0; i < positions.length; i++)
+                positions[i] = termPositionsRaw.getVal(i).longValue();
             return positions;
         }
 
-        private void setPositions(List<Long> positions) {
-            this.positions = positions;
-        }
-
         /**
-         * Offset of the term.
+         * Decodes the offsets of a term.
+         *
+         * @param termIndex index of the term.
+         * @return the offsets of the term as pairs (start, end), or an empty array if the offsets weren't returned
+         *         by solr.
          */
-        public static final class Offset {
-            private Long start;
-            private Long end;
-
-            private Offset() {
-            }
-
-            public Long getStart() {
-                return start;
-            }
-
-            private void setStart(Long start) {
-                this.start = start;
-            }
-
-            public Long getEnd() {
-                return end;
-            }
-
-            private void setEnd(Long end) {
-                this.end = end;
-            }
+        @SuppressWarnings("unchecked")
+        public long[] getOffsets(int termIndex) {
+            NamedList<Number> termOffsetsRaw = (NamedList<Number>) termInfosRaw[termIndex].get(OFFSETS);
+            if (termOffsetsRaw == null)
+                return new long[0];
+            long[] offsets = new long[termOffsetsRaw.size()];
+            for (int i = 0; i < offsets.length; i++)
+                offsets[i] = termOffsetsRaw.getVal(i).longValue();
+            return offsets;
         }
     }
 }
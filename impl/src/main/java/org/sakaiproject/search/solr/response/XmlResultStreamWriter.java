@@ -0,0 +1,83 @@
+package org.sakaiproject.search.solr.response;
+
+import org.sakaiproject.search.api.SearchResult;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes search results as an XML document encoded in UTF-8.
+ * <p>
+ * The root element "searchResults" contains a "result" element for each result, with the reference, contentId, siteId,
+ * score, title, tool and url as attributes, followed by a "count" element with the number of results written.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class XmlResultStreamWriter implements ResultStreamWriter {
+    private static final String ENCODING = "UTF-8";
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private final XMLStreamWriter writer;
+    private long count;
+
+    /**
+     * Creates a writer for an output stream.
+     *
+     * @param outputStream stream in which the results are written, not closed by the writer.
+     */
+    public XmlResultStreamWriter(OutputStream outputStream) {
+        try {
+            writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(outputStream, ENCODING);
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Couldn't create an XML writer", e);
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        try {
+            writer.writeStartDocument(ENCODING, "1.0");
+            writer.writeStartElement("searchResults");
+        } catch (XMLStreamException e) {
+            throw new IOException("Couldn't write the beginning of the results", e);
+        }
+    }
+
+    @Override
+    public void write(SearchResult result) throws IOException {
+        try {
+            writer.writeEmptyElement("result");
+            writeAttribute("reference", result.getReference());
+            writeAttribute("contentId", result.getId());
+            writeAttribute("siteId", result.getSiteId());
+            writeAttribute("score", Float.toString(result.getScore()));
+            writeAttribute("title", result.getTitle());
+            writeAttribute("tool", result.getTool());
+            writeAttribute("url", result.getUrl());
+            count++;
+        } catch (XMLStreamException e) {
+            throw new IOException("Couldn't write the result " + result.getReference(), e);
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        try {
+            writer.writeStartElement("count");
+            writer.writeCharacters(Long.toString(count));
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException("Couldn't write the end of the results", e);
+        }
+    }
+
+    private void writeAttribute(String name, String value) throws XMLStreamException {
+        if (value != null)
+            writer.writeAttribute(name, value);
+    }
+}
@@ -8,6 +8,7 @@ import org.apache.solr.client.solrj.response.SolrResponseBase;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.NamedList;
 
 import java.io.IOException;
 import java.util.Collection;
@@ -51,6 +52,29 @@ public class AdminStatRequest extends SolrRequest {
         params.set(param, value);
     }
 
+    /**
+     * Gets the statistics of a single component registered in {@link org.apache.solr.handler.admin.SolrInfoMBeanHandler}.
+     *
+     * @param server   server to query.
+     * @param category category of the component (such as "CORE", "UPDATEHANDLER", "CACHE").
+     * @param key      name of the component (such as "searcher", "updateHandler", "filterCache").
+     * @return the statistics of the component.
+     * @throws SolrServerException if the request failed.
+     * @throws IOException         if the server couldn't be reached.
+     */
+    @SuppressWarnings("unchecked")
+    public static NamedList<Object> getStatistics(SolrServer server, String category, String key)
+            throws SolrServerException, IOException {
+        AdminStatRequest adminStatRequest = new AdminStatRequest();
+        adminStatRequest.setParam("cat", category);
+        adminStatRequest.setParam("key", key);
+        NamedList<Object> result = server.request(adminStatRequest);
+        NamedList<Object> mbeans = (NamedList<Object>) result.get("solr-mbeans");
+        NamedList<Object> categoryMBeans = (NamedList<Object>) mbeans.get(category);
+        NamedList<Object> mbean = (NamedList<Object>) categoryMBeans.get(key);
+        return (NamedList<Object>) mbean.get("stats");
+    }
+
     @Override
     public SolrParams getParams() {
         return params;
@@ -0,0 +1,93 @@
+package org.sakaiproject.search.solr.util;
+
+import org.apache.http.client.HttpClient;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates {@link BulkUpdateSolrServer} instances used for heavy indexing operations.
+ * <p>
+ * Every created server shares the same {@link HttpClient}, keeping a small pool of persistent connections to the
+ * search server.<br />
+ * Streaming updates are only available for an external solr server (search.solr.server set in sakai.properties),
+ * with an embedded server {@link #createServer()} returns null and the documents should be sent synchronously.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class BulkSolrServerFactory {
+    private static final int DEFAULT_QUEUE_SIZE = 100;
+    private static final int DEFAULT_THREAD_COUNT = 4;
+    private static final int DEFAULT_MAXIMUM_CONNECTIONS = 32;
+    private static final Logger logger = LoggerFactory.getLogger(BulkSolrServerFactory.class);
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private int threadCount = DEFAULT_THREAD_COUNT;
+    private int maximumConnections = DEFAULT_MAXIMUM_CONNECTIONS;
+    private String serverUrl;
+    private HttpClient httpClient;
+
+    /**
+     * Sets up the shared http client if an external solr server is used.
+     */
+    public void init() {
+        serverUrl = ServerConfigurationService.getString("search.solr.server");
+        if (serverUrl.isEmpty()) {
+            logger.info("The Solr server is embedded, bulk updates will be sent synchronously");
+            return;
+        }
+
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, maximumConnections);
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, maximumConnections);
+        httpClient = HttpClientUtil.createClient(params);
+    }
+
+    /**
+     * Closes every connection opened by the shared http client.
+     */
+    public void destroy() {
+        if (httpClient != null)
+            httpClient.getConnectionManager().shutdown();
+    }
+
+    /**
+     * Creates a new streaming server.
+     * <p>
+     * The created server must be shut down once every document has been sent.
+     * </p>
+     *
+     * @return a new streaming server, or null if streaming updates aren't available.
+     */
+    public BulkUpdateSolrServer createServer() {
+        return createServer(serverUrl);
+    }
+
+    /**
+     * Creates a new streaming server for a specific core.
+     *
+     * @param coreUrl url of the core receiving the updates.
+     * @return a new streaming server, or null if streaming updates aren't available.
+     * @see #createServer()
+     */
+    public BulkUpdateSolrServer createServer(String coreUrl) {
+        if (httpClient == null || coreUrl == null)
+            return null;
+        logger.debug("Create a new streaming server for '{}'", coreUrl);
+        return new BulkUpdateSolrServer(coreUrl, httpClient, queueSize, threadCount);
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public void setMaximumConnections(int maximumConnections) {
+        this.maximumConnections = maximumConnections;
+    }
+}
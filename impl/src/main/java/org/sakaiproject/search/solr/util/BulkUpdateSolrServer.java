@@ -0,0 +1,66 @@
+package org.sakaiproject.search.solr.util;
+
+import org.apache.http.client.HttpClient;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.impl.ConcurrentUpdateSolrServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Streaming SolrServer used to send a large amount of documents to the search server.
+ * <p>
+ * Documents are queued and sent in the javabin format through a few persistent connections.
+ * As updates are sent asynchronously, failures can't be reported to the caller when a document is added.<br />
+ * Instead, every failure is recorded and can be checked with {@link #hasErrors()} once
+ * {@link #blockUntilFinished()} has been called.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class BulkUpdateSolrServer extends ConcurrentUpdateSolrServer {
+    private static final Logger logger = LoggerFactory.getLogger(BulkUpdateSolrServer.class);
+    private final Queue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+
+    /**
+     * Creates a streaming server sharing an existing {@link HttpClient}.
+     *
+     * @param solrServerUrl url of the solr server (and core).
+     * @param httpClient    http client shared between every streaming server.
+     * @param queueSize     number of update requests that can be queued before blocking.
+     * @param threadCount   number of threads (and connections) used to send the queued requests.
+     */
+    public BulkUpdateSolrServer(String solrServerUrl, HttpClient httpClient, int queueSize, int threadCount) {
+        super(solrServerUrl, httpClient, queueSize, threadCount);
+        setRequestWriter(new BinaryRequestWriter());
+    }
+
+    @Override
+    public void handleError(Throwable ex) {
+        logger.warn("An update failed while streaming documents to the search server", ex);
+        errors.add(ex);
+    }
+
+    /**
+     * Checks whether an update sent through this server failed.
+     *
+     * @return true if at least one update failed, false otherwise.
+     */
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    /**
+     * Gets every failure that occurred while sending updates to the search server.
+     *
+     * @return an unmodifiable collection of the failures.
+     */
+    public Collection<Throwable> getErrors() {
+        return Collections.unmodifiableCollection(new ArrayList<Throwable>(errors));
+    }
+}
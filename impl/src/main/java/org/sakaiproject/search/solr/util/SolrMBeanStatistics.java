@@ -0,0 +1,61 @@
+package org.sakaiproject.search.solr.util;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics of a component of the Solr core, such as the filter cache of the current searcher.
+ * <p>
+ * The statistics are read from {@link org.apache.solr.handler.admin.SolrInfoMBeanHandler} each time they're
+ * requested.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class SolrMBeanStatistics implements StatisticsProvider {
+    private static final Logger logger = LoggerFactory.getLogger(SolrMBeanStatistics.class);
+    private SolrServer solrServer;
+    private String category;
+    private String key;
+
+    /**
+     * Gets the statistics of the component.
+     *
+     * @return the statistics of the component (for a cache: lookups, hits, hitratio, evictions, ...), or an empty map
+     *         if the statistics can't be obtained.
+     */
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        try {
+            NamedList<Object> stats = AdminStatRequest.getStatistics(solrServer, category, key);
+            for (Map.Entry<String, Object> stat : stats) {
+                statistics.put(stat.getKey(), stat.getValue());
+            }
+        } catch (SolrServerException e) {
+            logger.warn("Couldn't obtain the statistics of '" + category + "/" + key + "'", e);
+        } catch (IOException e) {
+            logger.error("Can't contact the search server", e);
+        }
+        return statistics;
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+
+    public void setCategory(String category) {
+        this.category = category;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+}
@@ -24,7 +24,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * SolrServerAdapter allows to generate a SolrServer object on the fly depending on the configuration in
@@ -33,6 +35,12 @@ import java.util.List;
  * By default an embedded server will be spawned, otherwise, if search.solr.server is set in sakai.properties,
  * a client for that server will be created.
  * </p>
+ * <p>
+ * When an external server is used, search.solr.server is expected to be the url of a core (such as
+ * {@code http://localhost:8983/solr/search}), which allows to administrate and reach other cores on the same server.
+ * The clients for the other cores and for CoreAdmin requests are created once, each with its own connection pool,
+ * and shut down along with the adapter.
+ * </p>
  *
  * @author Colin Hebert
  */
@@ -43,7 +51,18 @@ public class SolrServerAdapter extends SolrServer {
     private static final String SOLR_CONFIGURATION_CLASSPATH = "/org/sakaiproject/search/solr/conf/";
     private static final int HTTP_SERVER_TIMEOUT = 10000;
     private static final Logger logger = LoggerFactory.getLogger(SolrServerAdapter.class);
+    /**
+     * Read timeout in milliseconds of the requests which can run for a long time (optimisations, commits of a rebuilt
+     * index), 0 for no timeout.
+     */
+    private int longRequestTimeout = 3600000;
     private SolrServer instance;
+    private CoreContainer coreContainer;
+    private String serverBaseUrl;
+    private String coreName;
+    private SolrServer coreAdminServer;
+    private final Map<String, SolrServer> coreServers = new HashMap<String, SolrServer>();
+    private final Map<String, SolrServer> longRequestServers = new HashMap<String, SolrServer>();
 
     /**
      * Sets up an actual SolrServer, embedded or external depending on the configuration.
@@ -56,6 +75,10 @@ public class SolrServerAdapter extends SolrServer {
             httpSolrServer.setConnectionTimeout(HTTP_SERVER_TIMEOUT);
             httpSolrServer.setSoTimeout(HTTP_SERVER_TIMEOUT);
             instance = httpSolrServer;
+
+            String trimmedUrl = serverUrl.endsWith("/") ? serverUrl.substring(0, serverUrl.length() - 1) : serverUrl;
+            serverBaseUrl = trimmedUrl.substring(0, trimmedUrl.lastIndexOf('/'));
+            coreName = trimmedUrl.substring(trimmedUrl.lastIndexOf('/') + 1);
         } else {
             logger.info("The Solr server isn't set up, using an embedded one");
             if (!new File(SOLR_CONFIGURATION_PATH).exists())
@@ -65,7 +88,8 @@ public class SolrServerAdapter extends SolrServer {
             Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
             System.setProperty(SOLR_HOME_PROPERTY, SOLR_CONFIGURATION_PATH);
             try {
-                CoreContainer coreContainer = new CoreContainer.Initializer().initialize();
+                coreContainer = new CoreContainer.Initializer().initialize();
+                coreName = CORE_NAME;
                 instance = new EmbeddedSolrServer(coreContainer, CORE_NAME);
                 Thread.currentThread().setContextClassLoader(currentClassLoader);
             } catch (FileNotFoundException e) {
@@ -74,6 +98,103 @@ public class SolrServerAdapter extends SolrServer {
         }
     }
 
+    /**
+     * Gets the name of the core used for the search index.
+     *
+     * @return the name of the search core.
+     */
+    public String getCoreName() {
+        return coreName;
+    }
+
+    /**
+     * Gets a SolrServer able to handle CoreAdmin requests.
+     *
+     * @return a SolrServer handling CoreAdmin requests.
+     */
+    public synchronized SolrServer getCoreAdminServer() {
+        if (coreContainer != null)
+            return instance;
+
+        if (coreAdminServer == null) {
+            HttpSolrServer httpSolrServer = new HttpSolrServer(serverBaseUrl);
+            httpSolrServer.setConnectionTimeout(HTTP_SERVER_TIMEOUT);
+            coreAdminServer = httpSolrServer;
+        }
+        return coreAdminServer;
+    }
+
+    /**
+     * Gets a SolrServer for another core hosted by the same server.
+     *
+     * @param otherCoreName name of the core.
+     * @return a SolrServer querying and updating the given core.
+     */
+    public synchronized SolrServer getCoreServer(String otherCoreName) {
+        SolrServer coreServer = coreServers.get(otherCoreName);
+        if (coreServer == null) {
+            coreServer = createCoreServer(otherCoreName, HTTP_SERVER_TIMEOUT);
+            coreServers.put(otherCoreName, coreServer);
+        }
+        return coreServer;
+    }
+
+    /**
+     * Gets a SolrServer for the search core, for requests which can take much longer than searches and updates.
+     *
+     * @return a SolrServer for the search core with a read timeout of {@link #longRequestTimeout}.
+     * @see #getLongRequestServer(String)
+     */
+    public SolrServer getLongRequestServer() {
+        return getLongRequestServer(coreName);
+    }
+
+    /**
+     * Gets a SolrServer for a core, for requests which can take much longer than searches and updates.
+     * <p>
+     * Merging the segments of a large index or committing a rebuilt index can take several minutes, far beyond the
+     * read timeout of the shared client.
+     * </p>
+     *
+     * @param otherCoreName name of the core.
+     * @return a SolrServer for the given core with a read timeout of {@link #longRequestTimeout}.
+     */
+    public synchronized SolrServer getLongRequestServer(String otherCoreName) {
+        SolrServer longRequestServer = longRequestServers.get(otherCoreName);
+        if (longRequestServer == null) {
+            longRequestServer = createCoreServer(otherCoreName, longRequestTimeout);
+            longRequestServers.put(otherCoreName, longRequestServer);
+        }
+        return longRequestServer;
+    }
+
+    /**
+     * Creates a SolrServer for a core hosted by the same server.
+     *
+     * @param otherCoreName name of the core.
+     * @param soTimeout     read timeout in milliseconds of the requests, ignored by embedded servers.
+     * @return a new SolrServer for the given core.
+     */
+    private SolrServer createCoreServer(String otherCoreName, int soTimeout) {
+        if (coreContainer != null)
+            return new EmbeddedSolrServer(coreContainer, otherCoreName);
+
+        HttpSolrServer httpSolrServer = new HttpSolrServer(getCoreUrl(otherCoreName));
+        httpSolrServer.setConnectionTimeout(HTTP_SERVER_TIMEOUT);
+        httpSolrServer.setSoTimeout(soTimeout);
+        return httpSolrServer;
+    }
+
+    /**
+     * Gets the url of another core hosted by the same server.
+     *
+     * @param otherCoreName name of the core.
+     * @return the url of the core, or null if the server is embedded.
+     */
+    public String getCoreUrl(String otherCoreName) {
+        return (serverBaseUrl != null) ? serverBaseUrl + '/' + otherCoreName : null;
+    }
+
     /**
      * Copies the default solr configuration in Sakai_home in order to use an embedded solr instance.
      */
@@ -105,6 +226,10 @@ public class SolrServerAdapter extends SolrServer {
         }
     }
 
+    public void setLongRequestTimeout(int longRequestTimeout) {
+        this.longRequestTimeout = longRequestTimeout;
+    }
+
     @Override
     public UpdateResponse add(Collection<SolrInputDocument> docs) throws SolrServerException, IOException {
         return instance.add(docs);
@@ -245,7 +370,19 @@ public class SolrServerAdapter extends SolrServer {
     }
 
     @Override
-    public void shutdown() {
+    public synchronized void shutdown() {
+        // Embedded servers share the core container, which is shut down with the main instance
+        if (coreContainer == null) {
+            for (SolrServer coreServer : coreServers.values())
+                coreServer.shutdown();
+            for (SolrServer longRequestServer : longRequestServers.values())
+                longRequestServer.shutdown();
+            if (coreAdminServer != null)
+                coreAdminServer.shutdown();
+        }
+        coreServers.clear();
+        longRequestServers.clear();
+        coreAdminServer = null;
         instance.shutdown();
     }
 }
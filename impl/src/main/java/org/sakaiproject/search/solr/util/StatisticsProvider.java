@@ -0,0 +1,21 @@
+package org.sakaiproject.search.solr.util;
+
+import java.util.Map;
+
+/**
+ * Component exposing statistics about its activity (cache hit rates, counters, ...).
+ * <p>
+ * Providers are registered in a {@link StatisticsReporter} which makes their statistics available on the status of
+ * the search service and in the logs.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface StatisticsProvider {
+    /**
+     * Gets the current statistics of the component.
+     *
+     * @return the name and value of each statistic, in a stable order.
+     */
+    Map<String, Object> getStatistics();
+}
@@ -0,0 +1,109 @@
+package org.sakaiproject.search.solr.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers the statistics of the components of the search service in a single place.
+ * <p>
+ * Each {@link StatisticsProvider} is registered with a name. The statistics of every provider are:
+ * <ul>
+ * <li>logged periodically, every {@link #logIntervalMinutes} minutes,</li>
+ * <li>appended to {@link org.sakaiproject.search.api.SearchService#getStatus()}, shown by the search admin tool.</li>
+ * </ul>
+ * A provider failing to compute its statistics doesn't prevent the others from being reported.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class StatisticsReporter {
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsReporter.class);
+    private Map<String, StatisticsProvider> providers = Collections.emptyMap();
+    private long logIntervalMinutes = 15;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Schedules the periodic logging of the statistics.
+     */
+    public void init() {
+        if (logIntervalMinutes <= 0) {
+            logger.info("The search statistics won't be logged periodically");
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "search-statistics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    logger.info("Search statistics:\n{}", describe());
+                } catch (Exception e) {
+                    logger.error("The search statistics couldn't be logged", e);
+                }
+            }
+        }, logIntervalMinutes, logIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops the periodic logging of the statistics.
+     */
+    public void destroy() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * Gets the statistics of every registered provider.
+     *
+     * @return the statistics of each provider by name, providers which failed are omitted.
+     */
+    public Map<String, Map<String, Object>> getStatistics() {
+        Map<String, Map<String, Object>> statistics = new LinkedHashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, StatisticsProvider> provider : providers.entrySet()) {
+            try {
+                statistics.put(provider.getKey(), provider.getValue().getStatistics());
+            } catch (RuntimeException e) {
+                logger.warn("Couldn't obtain the statistics of '" + provider.getKey() + "'", e);
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Describes the statistics of every registered provider, one provider per line.
+     *
+     * @return a human readable description of the statistics.
+     */
+    public String describe() {
+        StringBuilder description = new StringBuilder();
+        for (Map.Entry<String, Map<String, Object>> statistics : getStatistics().entrySet()) {
+            if (description.length() > 0)
+                description.append('\n');
+            description.append(statistics.getKey()).append(": ").append(statistics.getValue());
+        }
+        return description.toString();
+    }
+
+    public void setProviders(Map<String, StatisticsProvider> providers) {
+        this.providers = providers;
+    }
+
+    public void setLogIntervalMinutes(long logIntervalMinutes) {
+        this.logIntervalMinutes = logIntervalMinutes;
+    }
+}
@@ -0,0 +1,226 @@
+package uk.ac.ox.oucs.search.entitybroker;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.entity.api.Entity;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.exception.IdUnusedException;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the sites accessible for each user.
+ * <p>
+ * Sites are resolved from the realms in which the user can visit the site, instead of searching every accessible
+ * {@link Site} in the database.<br />
+ * As with {@link SiteService.SelectionType#ACCESS}, softly deleted sites are left out, and unpublished sites are only
+ * kept in the realms in which the user can also visit unpublished sites. Their status is read from the sites cached by
+ * the {@link SiteService}, and only when the sites of a user are resolved.<br />
+ * The site ids are only used to narrow down the search, every result is still checked against the permissions of the
+ * user.
+ * </p>
+ * <p>
+ * The sites of a user are kept for a limited time, and discarded as soon as an event of the cluster changes the sites
+ * a user can visit (membership, creation, removal of a site or update of its realm). Only the users affected by the
+ * event are discarded: the users who could visit the site and the users who can now visit it.<br />
+ * Users who gain access to a site through a role shared by every user (such as {@code .auth}) aren't members of the
+ * realm, their sites are resolved again once they expire.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class AccessibleSitesCache implements Observer {
+    private static final Logger logger = LoggerFactory.getLogger(AccessibleSitesCache.class);
+    private static final String SITE_REALM_PREFIX = "/site/";
+    private static final String GROUP_REALM_INFIX = "/group/";
+    private static final String REALM_REFERENCE_PREFIX = AuthzGroupService.REFERENCE_ROOT + Entity.SEPARATOR;
+    /**
+     * Events changing the sites a user can visit, other site events (such as "site.visit") are ignored.
+     */
+    private static final Set<String> ACCESS_EVENTS = new HashSet<String>(Arrays.asList(
+            SiteService.SECURE_ADD_SITE,
+            SiteService.SECURE_ADD_USER_SITE,
+            SiteService.SECURE_ADD_COURSE_SITE,
+            SiteService.SECURE_REMOVE_SITE,
+            SiteService.SECURE_UPDATE_SITE,
+            SiteService.SECURE_UPDATE_SITE_MEMBERSHIP,
+            AuthzGroupService.SECURE_ADD_AUTHZ_GROUP,
+            AuthzGroupService.SECURE_REMOVE_AUTHZ_GROUP,
+            AuthzGroupService.SECURE_UPDATE_AUTHZ_GROUP,
+            AuthzGroupService.SECURE_UPDATE_OWN_AUTHZ_GROUP));
+    private final Cache<String, List<String>> sitesPerUser;
+    private AuthzGroupService authzGroupService;
+    private EventTrackingService eventTrackingService;
+    private SiteService siteService;
+
+    /**
+     * Creates a cache of accessible sites.
+     *
+     * @param maximumUsers      maximum number of users for which the sites are kept.
+     * @param timeToLiveSeconds time in seconds after which the sites of a user are resolved again.
+     */
+    public AccessibleSitesCache(int maximumUsers, int timeToLiveSeconds) {
+        sitesPerUser = CacheBuilder.newBuilder()
+                .maximumSize(maximumUsers)
+                .expireAfterWrite(timeToLiveSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Registers the cache to be notified of the site and realm events of every server of the cluster.
+     */
+    public void init() {
+        eventTrackingService.addObserver(this);
+    }
+
+    /**
+     * Stops observing the events.
+     */
+    public void destroy() {
+        eventTrackingService.deleteObserver(this);
+    }
+
+    /**
+     * Gets the ids of the sites a user can visit.
+     *
+     * @param userId user for whom the sites are needed.
+     * @return an unmodifiable list of site ids.
+     */
+    public List<String> getSiteIds(final String userId) {
+        try {
+            return sitesPerUser.get((userId != null) ? userId : "", new Callable<List<String>>() {
+                @Override
+                public List<String> call() {
+                    return Collections.unmodifiableList(loadSiteIds(userId));
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Couldn't obtain the sites of '" + userId + "'", e);
+        }
+    }
+
+    @Override
+    public void update(Observable observable, Object arg) {
+        if (!(arg instanceof Event))
+            return;
+
+        Event event = (Event) arg;
+        if (!ACCESS_EVENTS.contains(event.getEvent()))
+            return;
+
+        String siteId = getSiteId(event.getResource());
+        if (siteId == null)
+            return;
+
+        Set<String> affectedUsers = new HashSet<String>();
+        // Users who could visit the site
+        for (Map.Entry<String, List<String>> userSites : sitesPerUser.asMap().entrySet()) {
+            if (userSites.getValue().contains(siteId))
+                affectedUsers.add(userSites.getKey());
+        }
+        // Users who can visit the site now
+        affectedUsers.addAll(authzGroupService.getUsersIsAllowed(SiteService.SITE_VISIT,
+                Collections.singleton(SITE_REALM_PREFIX + siteId)));
+        if (event.getUserId() != null)
+            affectedUsers.add(event.getUserId());
+
+        logger.debug("Discard the accessible sites of {} users after '{}' on '{}'",
+                new Object[]{affectedUsers.size(), event.getEvent(), siteId});
+        sitesPerUser.invalidateAll(affectedUsers);
+    }
+
+    /**
+     * Extracts the id of the site concerned by an event.
+     *
+     * @param resource reference of the site ("/site/siteId") or of its realm ("/realm//site/siteId").
+     * @return the id of the site, or null if the resource isn't a site or the realm of a site (group realms don't
+     *         change the sites a user can visit).
+     */
+    private static String getSiteId(String resource) {
+        if (resource == null)
+            return null;
+        if (resource.startsWith(REALM_REFERENCE_PREFIX))
+            resource = resource.substring(REALM_REFERENCE_PREFIX.length());
+        if (!resource.startsWith(SITE_REALM_PREFIX) || resource.contains(GROUP_REALM_INFIX))
+            return null;
+        return resource.substring(SITE_REALM_PREFIX.length());
+    }
+
+    /**
+     * Loads the ids of the sites a user can visit from the realms.
+     *
+     * @param userId user for whom the sites are needed.
+     * @return a list of site ids.
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> loadSiteIds(String userId) {
+        Collection<String> realms = authzGroupService.getAuthzGroupsIsAllowed(userId, SiteService.SITE_VISIT, null);
+        Collection<String> unpublishedRealms = null;
+        List<String> siteIds = new ArrayList<String>(realms.size());
+        for (String realm : realms) {
+            if (!realm.startsWith(SITE_REALM_PREFIX) || realm.contains(GROUP_REALM_INFIX))
+                continue;
+
+            String siteId = realm.substring(SITE_REALM_PREFIX.length());
+            Site site = getSite(siteId);
+            if (site == null || site.isSoftlyDeleted())
+                continue;
+            if (!site.isPublished()) {
+                // Only a few users can visit unpublished sites, their realms are loaded when needed
+                if (unpublishedRealms == null)
+                    unpublishedRealms = authzGroupService.getAuthzGroupsIsAllowed(userId,
+                            SiteService.SITE_VISIT_UNPUBLISHED, null);
+                if (!unpublishedRealms.contains(realm))
+                    continue;
+            }
+            siteIds.add(siteId);
+        }
+        logger.debug("{} sites accessible for '{}'", siteIds.size(), userId);
+        return siteIds;
+    }
+
+    /**
+     * Gets a site from the site service.
+     *
+     * @param siteId id of the site.
+     * @return the site, or null if the site doesn't exist anymore.
+     */
+    private Site getSite(String siteId) {
+        try {
+            return siteService.getSite(siteId);
+        } catch (IdUnusedException e) {
+            logger.debug("The site '{}' of a realm doesn't exist", siteId);
+            return null;
+        }
+    }
+
+    public void setAuthzGroupService(AuthzGroupService authzGroupService) {
+        this.authzGroupService = authzGroupService;
+    }
+
+    public void setEventTrackingService(EventTrackingService eventTrackingService) {
+        this.eventTrackingService = eventTrackingService;
+    }
+
+    public void setSiteService(SiteService siteService) {
+        this.siteService = siteService;
+    }
+}
@@ -1,20 +1,32 @@
 package uk.ac.ox.oucs.search.entitybroker;
 
+import org.sakaiproject.authz.api.SecurityService;
 import org.sakaiproject.entitybroker.EntityReference;
 import org.sakaiproject.entitybroker.EntityView;
 import org.sakaiproject.entitybroker.entityprovider.annotations.EntityCustomAction;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.ActionsExecutable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Describeable;
 import org.sakaiproject.entitybroker.entityprovider.capabilities.Outputable;
+import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
 import org.sakaiproject.entitybroker.entityprovider.extension.Formats;
 import org.sakaiproject.entitybroker.entityprovider.search.Restriction;
 import org.sakaiproject.entitybroker.entityprovider.search.Search;
 import org.sakaiproject.entitybroker.util.AbstractEntityProvider;
 import org.sakaiproject.search.api.*;
-import org.sakaiproject.site.api.Site;
+import org.sakaiproject.search.solr.Autocompletion;
+import org.sakaiproject.search.solr.SearchOptions;
+import org.sakaiproject.search.solr.SolrSearchService;
+import org.sakaiproject.search.solr.response.FrequentTermsSearchResult;
+import org.sakaiproject.search.solr.response.JsonResultStreamWriter;
+import org.sakaiproject.search.solr.response.ResultStreamWriter;
+import org.sakaiproject.search.solr.response.SolrResult;
+import org.sakaiproject.search.solr.response.SolrSearchList;
+import org.sakaiproject.search.solr.response.XmlResultStreamWriter;
 import org.sakaiproject.site.api.SiteService;
 import org.sakaiproject.user.api.UserDirectoryService;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 
 /**
@@ -26,10 +38,30 @@ import java.util.*;
 public class SearchEntityProvider extends AbstractEntityProvider
         implements ActionsExecutable, Outputable, Describeable {
     private static final int DEFAULT_RESULT_COUNT = 10;
+    private static final int DEFAULT_COMPLETION_COUNT = 5;
+    private static final int DEFAULT_SIMILAR_COUNT = 5;
+    /**
+     * Number of results exported when the search service can't stream its results.
+     */
+    private static final int MAXIMUM_EXPORTED_RESULTS = 10000;
+    /**
+     * Number of terms sent with each result, when term vectors are requested.
+     */
+    private static final int MAXIMUM_RESULT_TERMS = 10;
+    /**
+     * Value of the "cursor" parameter requesting the first page.
+     */
+    private static final String FIRST_PAGE_CURSOR = "*";
     private UserDirectoryService userDirectoryService;
     private SearchService searchService;
     private SearchIndexBuilder searchIndexBuilder;
     private SiteService siteService;
+    private AccessibleSitesCache accessibleSitesCache;
+    private SecurityService securityService;
+    /**
+     * Options used when the client doesn't specify them, tuned for remote clients.
+     */
+    private SearchOptions defaultSearchOptions = SearchOptions.forApi();
 
     /**
      * Gets the name of the service, here "search".
@@ -60,6 +92,126 @@ public class SearchEntityProvider extends AbstractEntityProvider
      */
     @EntityCustomAction(action = "search", viewKey = EntityView.VIEW_LIST)
     public List<SearchResultEntity> search(EntityReference ref, Search search) {
+        return toEntities(runSearch(search, extractSearchOptions(search)));
+    }
+
+    /**
+     * Search method returning the facet counts along with the results.
+     * <p>
+     * Clients can show how many results are in each tool, type, site and month without sending a query for each of
+     * them, then narrow the search with the "contexts" parameter.
+     * </p>
+     *
+     * @param ref    unused, required by EntityBroker.
+     * @param search parameters given to EntityBroker.
+     * @return the results, the total number of results and the facet counts.
+     */
+    @EntityCustomAction(action = "faceted", viewKey = EntityView.VIEW_LIST)
+    public SearchPageEntity faceted(EntityReference ref, Search search) {
+        SearchOptions searchOptions = extractSearchOptions(search);
+        searchOptions.setFacets(true);
+        return toPageEntity(runSearch(search, searchOptions));
+    }
+
+    /**
+     * Search method returning a cursor to the next page along with the results.
+     * <p>
+     * Clients paging through every result should send the "cursor" parameter ("*" for the first page) instead of an
+     * offset, then send the cursor returned with each page to get the next one. Results read with a cursor are
+     * sorted by reference instead of relevance.
+     * </p>
+     *
+     * @param ref    unused, required by EntityBroker.
+     * @param search parameters given to EntityBroker.
+     * @return the results, the total number of results and the cursor to the next page.
+     */
+    @EntityCustomAction(action = "page", viewKey = EntityView.VIEW_LIST)
+    public SearchPageEntity page(EntityReference ref, Search search) {
+        return toPageEntity(runSearch(search, extractSearchOptions(search)));
+    }
+
+    /**
+     * Finds documents similar to a given document, for "related material" panels.
+     *
+     * @param ref    unused, required by EntityBroker.
+     * @param search parameters given to EntityBroker, "reference" (mandatory) and "contexts" are used.
+     * @return readable documents similar to the given document.
+     */
+    @EntityCustomAction(action = "similar", viewKey = EntityView.VIEW_LIST)
+    public List<SearchResultEntity> similar(EntityReference ref, Search search) {
+        if (!(searchService instanceof SolrSearchService))
+            return Collections.emptyList();
+
+        Restriction reference = search.getRestrictionByProperty("reference");
+        if (reference == null)
+            throw new IllegalArgumentException("No reference supplied");
+
+        try {
+            List<String> contexts = extractContexts(search.getRestrictionByProperty("contexts"));
+            int count = (search.getLimit() < 0) ? DEFAULT_SIMILAR_COUNT : (int) search.getLimit();
+            return toEntities(((SolrSearchService) searchService).similar(reference.getStringValue(), contexts, count));
+        } catch (InvalidSearchQueryException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Search method writing every readable result directly in the response, for clients exporting large result sets.
+     * <p>
+     * Results are written in JSON or XML (UTF-8) as they are read from solr, instead of being collected and
+     * serialised by EntityBroker. Highlighting and term vectors are not available in exports.<br />
+     * With another search service, the first results are obtained as a regular search before being written.
+     * </p>
+     *
+     * @param view         view requested, used to get the output format.
+     * @param search       parameters given to EntityBroker, "searchTerms" and "contexts" are used.
+     * @param outputStream stream of the response.
+     * @return the stream in which the results have been written.
+     */
+    @EntityCustomAction(action = "export", viewKey = EntityView.VIEW_LIST)
+    public ActionReturn export(EntityView view, Search search, OutputStream outputStream) {
+        String query = extractQuery(search.getRestrictionByProperty("searchTerms"));
+        List<String> contexts = extractContexts(search.getRestrictionByProperty("contexts"));
+        ResultStreamWriter writer = Formats.XML.equals(view.getFormat())
+                ? new XmlResultStreamWriter(outputStream)
+                : new JsonResultStreamWriter(outputStream);
+        try {
+            if (searchService instanceof SolrSearchService)
+                ((SolrSearchService) searchService).export(query, contexts, extractSearchOptions(search), writer);
+            else
+                writeResults(searchService.search(query, contexts, 0, MAXIMUM_EXPORTED_RESULTS), writer);
+        } catch (InvalidSearchQueryException e) {
+            throw new IllegalArgumentException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't write the exported results", e);
+        }
+        return new ActionReturn(outputStream);
+    }
+
+    /**
+     * Writes the readable results of a search already done.
+     *
+     * @param searchResults results of the search.
+     * @param writer        output in which the results are written.
+     * @throws IOException if the results couldn't be written.
+     */
+    private static void writeResults(SearchList searchResults, ResultStreamWriter writer) throws IOException {
+        writer.start();
+        for (SearchResult result : searchResults) {
+            if (!result.isCensored())
+                writer.write(result);
+        }
+        writer.end();
+    }
+
+    /**
+     * Runs a search with the parameters given by the client.
+     *
+     * @param search        parameters given to EntityBroker.
+     * @param searchOptions parts of the response requested by the client.
+     * @return a page of results.
+     */
+    private SearchList runSearch(Search search, SearchOptions searchOptions) {
         try {
             // Get the query sent by the client
             String query = extractQuery(search.getRestrictionByProperty("searchTerms"));
@@ -71,17 +223,58 @@ public class SearchEntityProvider extends AbstractEntityProvider
             if (search.getLimit() < 0)
                 search.setLimit(DEFAULT_RESULT_COUNT);
 
-            // Actual search
-            SearchList searchResults = searchService.search(query, contexts,
-                    (int) search.getStart(), (int) search.getLimit());
+            // Actual search, with only the parts of the response requested by the client when possible
+            Restriction cursor = search.getRestrictionByProperty("cursor");
+            if (searchService instanceof SolrSearchService && cursor != null)
+                return ((SolrSearchService) searchService).searchAfter(query, contexts,
+                        FIRST_PAGE_CURSOR.equals(cursor.getStringValue()) ? null : cursor.getStringValue(),
+                        (int) search.getLimit(), searchOptions);
+            else if (searchService instanceof SolrSearchService)
+                return ((SolrSearchService) searchService).search(query, contexts,
+                        (int) search.getStart(), (int) search.getLimit(), searchOptions);
+            else
+                return searchService.search(query, contexts,
+                        (int) search.getStart(), (int) search.getLimit());
+        } catch (InvalidSearchQueryException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
 
-            // Transforms SearchResult in a SearchResultEntity to avoid conflicts with the getId() method (see SRCH-85)
-            List<SearchResultEntity> results = new ArrayList<SearchResultEntity>(searchResults.size());
-            for (SearchResult result : searchResults) {
-                results.add(new SearchResultEntity(result));
-            }
+    /**
+     * Transforms SearchResult in a SearchResultEntity to avoid conflicts with the getId() method (see SRCH-85).
+     *
+     * @param searchResults results of the search.
+     * @return the results sent to the client.
+     */
+    private List<SearchResultEntity> toEntities(SearchList searchResults) {
+        List<SearchResultEntity> results = new ArrayList<SearchResultEntity>(searchResults.size());
+        for (SearchResult result : searchResults) {
+            results.add(new SearchResultEntity(result));
+        }
+        return results;
+    }
 
-            return results;
+    /**
+     * Proposes completions for a query being typed.
+     *
+     * @param ref    unused, required by EntityBroker.
+     * @param search parameters given to EntityBroker.
+     * @return titles and terms completing the query.
+     */
+    @EntityCustomAction(action = "suggest", viewKey = EntityView.VIEW_LIST)
+    public Autocompletion suggest(EntityReference ref, Search search) {
+        if (!(searchService instanceof SolrSearchService))
+            return Autocompletion.EMPTY;
+
+        Restriction prefixRestriction = search.getRestrictionByProperty("prefix");
+        if (prefixRestriction == null)
+            throw new IllegalArgumentException("No prefix supplied");
+
+        try {
+            String prefix = extractQuery(prefixRestriction);
+            List<String> contexts = extractContexts(search.getRestrictionByProperty("contexts"));
+            int count = (search.getLimit() < 0) ? DEFAULT_COMPLETION_COUNT : (int) search.getLimit();
+            return ((SolrSearchService) searchService).autocomplete(prefix, contexts, count);
         } catch (InvalidSearchQueryException e) {
             throw new IllegalArgumentException(e);
         }
@@ -103,6 +296,24 @@ public class SearchEntityProvider extends AbstractEntityProvider
         return tools;
     }
 
+    /**
+     * Transforms a page of results with the facet counts, the group counts and the cursor to the next page, when
+     * they're available.
+     *
+     * @param searchResults results of the search.
+     * @return the page sent to the client.
+     */
+    private SearchPageEntity toPageEntity(SearchList searchResults) {
+        if (searchResults instanceof SolrSearchList) {
+            SolrSearchList solrSearchList = (SolrSearchList) searchResults;
+            return new SearchPageEntity(toEntities(searchResults), searchResults.getFullSize(),
+                    solrSearchList.getFacetCounts(), solrSearchList.getGroupCounts(), solrSearchList.getNextCursor());
+        } else {
+            return new SearchPageEntity(toEntities(searchResults), searchResults.getFullSize(),
+                    Collections.<String, Map<String, Long>>emptyMap(), Collections.<String, Long>emptyMap(), null);
+        }
+    }
+
     /**
      * Extracts the query from users parameters.
      *
@@ -122,20 +333,73 @@ public class SearchEntityProvider extends AbstractEntityProvider
         return searchQuery.toString();
     }
 
+    /**
+     * Extracts the search options from users parameters.
+     * <p>
+     * Options which aren't provided by the user are taken from {@link #defaultSearchOptions}.<br />
+     * Available parameters are "highlight", "termVectors", "facets", "collapse" ("container" or "site"),
+     * "collapseLimit" (results per group), "fields" (stored fields to return), "snippets" and "fragmentSize".
+     * </p>
+     *
+     * @param search parameters given to EntityBroker
+     * @return the search options for this search
+     */
+    private SearchOptions extractSearchOptions(Search search) {
+        SearchOptions searchOptions = new SearchOptions(defaultSearchOptions);
+        Restriction highlight = search.getRestrictionByProperty("highlight");
+        if (highlight != null)
+            searchOptions.setHighlighting(Boolean.parseBoolean(highlight.getStringValue()));
+        Restriction termVectors = search.getRestrictionByProperty("termVectors");
+        if (termVectors != null)
+            searchOptions.setTermVectors(Boolean.parseBoolean(termVectors.getStringValue()));
+        Restriction facets = search.getRestrictionByProperty("facets");
+        if (facets != null)
+            searchOptions.setFacets(Boolean.parseBoolean(facets.getStringValue()));
+        Restriction collapse = search.getRestrictionByProperty("collapse");
+        if (collapse != null)
+            searchOptions.setCollapse(
+                    SearchOptions.Collapse.valueOf(collapse.getStringValue().toUpperCase(Locale.ROOT)));
+        Restriction collapseLimit = search.getRestrictionByProperty("collapseLimit");
+        if (collapseLimit != null)
+            searchOptions.setCollapseLimit(Integer.parseInt(collapseLimit.getStringValue()));
+        Restriction fields = search.getRestrictionByProperty("fields");
+        if (fields != null)
+            searchOptions.setFields(Arrays.asList((String[]) fields.getArrayValue()));
+        Restriction snippets = search.getRestrictionByProperty("snippets");
+        if (snippets != null)
+            searchOptions.setSnippets(Integer.parseInt(snippets.getStringValue()));
+        Restriction fragmentSize = search.getRestrictionByProperty("fragmentSize");
+        if (fragmentSize != null)
+            searchOptions.setFragmentSize(Integer.parseInt(fragmentSize.getStringValue()));
+        return searchOptions;
+    }
+
     /**
      * Extracts contexts from users parameters.
+     * <p>
+     * Contexts the current user can't visit are ignored (unless the user is a super user). Results of those sites
+     * would be censored, but they would still be part of the total number of results and of the facet counts.
+     * </p>
      *
      * @param contextsRestriction parameter given to EntityBroker
      * @return A list of contexts (sites) where the search will be done
+     * @throws IllegalArgumentException if none of the contexts supplied can be visited by the current user.
      */
     private List<String> extractContexts(Restriction contextsRestriction) {
-        List<String> contexts;
-        if (contextsRestriction != null)
-            contexts = Arrays.asList((String[]) contextsRestriction.getArrayValue());
-        else
+        if (contextsRestriction == null)
             // No contexts supplied. Get all the sites the current user is a member of
-            contexts = getAllSites();
-        return contexts;
+            return getAllSites();
+
+        List<String> contexts = Arrays.asList((String[]) contextsRestriction.getArrayValue());
+        if (securityService != null && securityService.isSuperUser())
+            return contexts;
+
+        List<String> accessibleContexts = new ArrayList<String>(contexts);
+        accessibleContexts.retainAll(new HashSet<String>(getAllSites()));
+        // An empty list of sites would search in every site
+        if (accessibleContexts.isEmpty())
+            throw new IllegalArgumentException("None of the contexts supplied is accessible");
+        return accessibleContexts;
     }
 
     /**
@@ -144,15 +408,13 @@ public class SearchEntityProvider extends AbstractEntityProvider
      * @return a list of contexts (sites IDs) available for the current user
      */
     private List<String> getAllSites() {
-        List<Site> sites = siteService.getSites(SiteService.SelectionType.ACCESS, null, null, null, null, null);
-        List<String> siteIds = new ArrayList<String>(sites.size());
-        for (Site site : sites) {
-            if (site != null && site.getId() != null)
-                siteIds.add(site.getId());
-        }
+        String userId = userDirectoryService.getCurrentUser().getId();
+        List<String> siteIds = new ArrayList<String>(accessibleSitesCache.getSiteIds(userId));
 
         // Manually add the user's site
-        siteIds.add(siteService.getUserSiteId(userDirectoryService.getCurrentUser().getId()));
+        String userSiteId = siteService.getUserSiteId(userId);
+        if (!siteIds.contains(userSiteId))
+            siteIds.add(userSiteId);
         return siteIds;
     }
 
@@ -175,6 +437,18 @@ public class SearchEntityProvider extends AbstractEntityProvider
         this.searchIndexBuilder = searchIndexBuilder;
     }
 
+    public void setAccessibleSitesCache(AccessibleSitesCache accessibleSitesCache) {
+        this.accessibleSitesCache = accessibleSitesCache;
+    }
+
+    public void setSecurityService(SecurityService securityService) {
+        this.securityService = securityService;
+    }
+
+    public void setDefaultSearchOptions(SearchOptions defaultSearchOptions) {
+        this.defaultSearchOptions = defaultSearchOptions;
+    }
+
     /**
      * A wrapper to customise the result sent through EntityBroker.
      * <p>
@@ -217,5 +491,86 @@ public class SearchEntityProvider extends AbstractEntityProvider
         public String getUrl() {
             return searchResult.getUrl();
         }
+
+        /**
+         * Gets the group of the result, when the results are collapsed.
+         *
+         * @return the value of the collapse field shared by the results of the group, null if results aren't collapsed.
+         */
+        public String getGroup() {
+            return (searchResult instanceof SolrResult) ? ((SolrResult) searchResult).getGroupValue() : null;
+        }
+
+        /**
+         * Gets the most frequent terms of the result, when term vectors are requested.
+         *
+         * @return the most frequent terms and their frequency, empty if the term vectors weren't requested.
+         */
+        public Map<String, Integer> getTerms() {
+            if (!(searchResult instanceof FrequentTermsSearchResult))
+                return Collections.emptyMap();
+
+            TermFrequency termFrequency = ((FrequentTermsSearchResult) searchResult).getTerms(MAXIMUM_RESULT_TERMS);
+            Map<String, Integer> terms = new LinkedHashMap<String, Integer>(termFrequency.getTerms().length);
+            for (int i = 0; i < termFrequency.getTerms().length; i++)
+                terms.put(termFrequency.getTerms()[i], termFrequency.getFrequencies()[i]);
+            return terms;
+        }
+    }
+
+    /**
+     * Page of results of a search sent along with the facet counts, the group counts and the cursor to the next page.
+     */
+    public static final class SearchPageEntity {
+        private final List<SearchResultEntity> results;
+        private final int fullSize;
+        private final Map<String, Map<String, Long>> facets;
+        private final Map<String, Long> groups;
+        private final String nextCursor;
+
+        private SearchPageEntity(List<SearchResultEntity> results, int fullSize,
+                                 Map<String, Map<String, Long>> facets, Map<String, Long> groups,
+                                 String nextCursor) {
+            this.results = results;
+            this.fullSize = fullSize;
+            this.facets = facets;
+            this.groups = groups;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<SearchResultEntity> getResults() {
+            return results;
+        }
+
+        public int getFullSize() {
+            return fullSize;
+        }
+
+        /**
+         * Gets the number of results for each value of the tool, type, siteid and indexdate facets.
+         *
+         * @return the facet counts, empty if the search service doesn't support facets.
+         */
+        public Map<String, Map<String, Long>> getFacets() {
+            return facets;
+        }
+
+        /**
+         * Gets the number of results in each group, when the results are collapsed.
+         *
+         * @return the number of results for each value of the collapse field, empty if the results weren't collapsed.
+         */
+        public Map<String, Long> getGroups() {
+            return groups;
+        }
+
+        /**
+         * Gets the cursor to send with the "cursor" parameter to get the next page.
+         *
+         * @return the token of the cursor, or null if there are no more results.
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
     }
 }
@@ -0,0 +1,94 @@
+package org.sakaiproject.search.producer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.content.api.ContentHostingService;
+import org.sakaiproject.content.api.ContentResource;
+import org.sakaiproject.content.api.GroupAwareEntity.AccessMode;
+import org.sakaiproject.entity.api.EntityManager;
+import org.sakaiproject.entity.api.Reference;
+
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that only the access set on a resource is indexed, not the access inherited from its collections.
+ *
+ * @author Colin Hebert
+ */
+public class ContentHostingContentProducerTest {
+    private static final String REFERENCE = "/content/group/site1/folder/file.txt";
+    private static final String RESOURCE_ID = "/group/site1/folder/file.txt";
+    private static final String GROUP = "/site/site1/group/group1";
+    @Mock
+    private ContentHostingService contentHostingService;
+    @Mock
+    private EntityManager entityManager;
+    @Mock
+    private Reference reference;
+    @Mock
+    private ContentResource contentResource;
+    private ContentHostingContentProducer contentProducer;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(entityManager.newReference(REFERENCE)).thenReturn(reference);
+        when(reference.getId()).thenReturn(RESOURCE_ID);
+        when(contentHostingService.getResource(RESOURCE_ID)).thenReturn(contentResource);
+        when(contentResource.getId()).thenReturn(RESOURCE_ID);
+
+        contentProducer = new CitationContentProducer();
+        contentProducer.setContentHostingService(contentHostingService);
+        contentProducer.setEntityManager(entityManager);
+    }
+
+    /**
+     * Checks that the groups of a resource restricted to groups are indexed.
+     */
+    @Test
+    public void testOwnGroupsIndexed() throws Exception {
+        when(contentResource.getAccess()).thenReturn(AccessMode.GROUPED);
+        when(contentResource.getGroups()).thenReturn(Collections.singletonList(GROUP));
+
+        AccessControl accessControl = contentProducer.getAccessControl(REFERENCE);
+
+        assertThat(accessControl.getGroups().contains(GROUP), is(true));
+    }
+
+    /**
+     * Checks that the groups of a parent collection aren't indexed with a resource inheriting its access, as the
+     * resource isn't indexed again when the collection changes.
+     */
+    @Test
+    public void testInheritedGroupsNotIndexed() throws Exception {
+        when(contentResource.getAccess()).thenReturn(AccessMode.INHERITED);
+        when(contentResource.getInheritedAccess()).thenReturn(AccessMode.GROUPED);
+        when(contentResource.getInheritedGroups()).thenReturn(Collections.singletonList(GROUP));
+
+        AccessControl accessControl = contentProducer.getAccessControl(REFERENCE);
+
+        assertThat(accessControl.getGroups().isEmpty(), is(true));
+    }
+
+    /**
+     * Checks that a resource is only public if the public access is set on the resource itself.
+     */
+    @Test
+    public void testInheritedPublicAccessNotIndexed() throws Exception {
+        when(contentResource.getAccess()).thenReturn(AccessMode.INHERITED);
+        when(contentHostingService.isPubView(RESOURCE_ID)).thenReturn(true);
+        when(contentHostingService.isInheritingPubView(RESOURCE_ID)).thenReturn(true);
+
+        assertThat(contentProducer.getAccessControl(REFERENCE).isPublic(), is(false));
+
+        when(contentHostingService.isInheritingPubView(RESOURCE_ID)).thenReturn(false);
+
+        assertThat(contentProducer.getAccessControl(REFERENCE).isPublic(), is(true));
+    }
+}
@@ -0,0 +1,64 @@
+package org.sakaiproject.search.response.filter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that authorization decisions are discarded when the entities or sites are modified.
+ *
+ * @author Colin Hebert
+ */
+public class AuthorizationDecisionCacheTest {
+    private AuthorizationDecisionCache authorizationDecisionCache;
+
+    @Before
+    public void setUp() throws Exception {
+        authorizationDecisionCache = new AuthorizationDecisionCache(100, 60);
+    }
+
+    /**
+     * Checks that decisions are kept per user.
+     */
+    @Test
+    public void testDecisionPerUser() {
+        authorizationDecisionCache.putDecision("user1", "/content/group/site1/file", "site1", true);
+        authorizationDecisionCache.putDecision("user2", "/content/group/site1/file", "site1", false);
+
+        assertThat(authorizationDecisionCache.getDecision("user1", "/content/group/site1/file"), is(true));
+        assertThat(authorizationDecisionCache.getDecision("user2", "/content/group/site1/file"), is(false));
+        assertThat(authorizationDecisionCache.getDecision("user3", "/content/group/site1/file"), is(nullValue()));
+    }
+
+    /**
+     * Checks that modifying a collection discards the decisions for its content only.
+     */
+    @Test
+    public void testInvalidateCollection() {
+        authorizationDecisionCache.putDecision("user", "/content/group/site1/folder/file", "site1", true);
+        authorizationDecisionCache.putDecision("user", "/content/group/site1/other", "site1", true);
+
+        authorizationDecisionCache.invalidateReference("/content/group/site1/folder/");
+
+        assertThat(authorizationDecisionCache.getDecision("user", "/content/group/site1/folder/file"),
+                is(nullValue()));
+        assertThat(authorizationDecisionCache.getDecision("user", "/content/group/site1/other"), is(true));
+    }
+
+    /**
+     * Checks that modifying a site discards the decisions for every entity of that site only.
+     */
+    @Test
+    public void testInvalidateSite() {
+        authorizationDecisionCache.putDecision("user", "/content/group/site1/file", "site1", true);
+        authorizationDecisionCache.putDecision("user", "/content/group/site2/file", "site2", true);
+
+        authorizationDecisionCache.invalidateSite("site1");
+
+        assertThat(authorizationDecisionCache.getDecision("user", "/content/group/site1/file"), is(nullValue()));
+        assertThat(authorizationDecisionCache.getDecision("user", "/content/group/site2/file"), is(true));
+    }
+}
@@ -1,18 +1,27 @@
 package org.sakaiproject.search.response.filter;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.authz.api.SecurityService;
 import org.sakaiproject.search.api.EntityContentProducer;
 import org.sakaiproject.search.api.SearchResult;
 import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.SessionManager;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
+import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.*;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
 
 /**
  * @author Colin Hebert
@@ -21,12 +30,26 @@ public class SecuritySearchFilterTest {
     private SecuritySearchFilter securitySearchFilter;
     @Mock
     private ContentProducerFactory contentProducerFactory;
+    @Mock
+    private SessionManager sessionManager;
+    @Mock
+    private SecurityService securityService;
+    @Mock
+    private ThreadLocalManager threadLocalManager;
 
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
         securitySearchFilter = new SecuritySearchFilter();
         securitySearchFilter.setContentProducerFactory(contentProducerFactory);
+        securitySearchFilter.setSessionManager(sessionManager);
+        securitySearchFilter.setSecurityService(securityService);
+        securitySearchFilter.setThreadLocalManager(threadLocalManager);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        securitySearchFilter.destroy();
     }
 
     @Test
@@ -60,4 +83,123 @@ public class SecuritySearchFilterTest {
         assertEquals(searchResult, actualResult);
         assertFalse(actualResult.isCensored());
     }
+
+    /**
+     * Filters a page of results spread across multiple sites with a pool of threads.
+     * <p>
+     * Checks that the order of the results is preserved and that only the unreadable results are censored.
+     * </p>
+     */
+    @Test
+    public void testPageFilteredConcurrently() {
+        securitySearchFilter.setThreadCount(2);
+        securitySearchFilter.init();
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        for (int i = 0; i < 10; i++)
+            results.add(mockSearchResult("site" + (i % 3), i % 2 == 0));
+
+        List<SearchResult> filteredResults = securitySearchFilter.filter(results);
+
+        assertThat(filteredResults.size(), is(results.size()));
+        for (int i = 0; i < results.size(); i++) {
+            if (i % 2 == 0)
+                assertEquals(results.get(i), filteredResults.get(i));
+            else
+                assertTrue(filteredResults.get(i).isCensored());
+        }
+    }
+
+    /**
+     * Filters a page of results where the access to one result can't be checked.
+     * <p>
+     * Checks that this result is censored while the other results are kept.
+     * </p>
+     */
+    @Test
+    public void testPageFilteredWithFailure() {
+        securitySearchFilter.setThreadCount(2);
+        securitySearchFilter.init();
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        results.add(mockSearchResult("site1", true));
+        SearchResult failingResult = mockSearchResult("site2", true);
+        String failingReference = failingResult.getReference();
+        when(contentProducerFactory.getContentProducerForElement(failingReference)).thenThrow(new RuntimeException());
+        results.add(failingResult);
+
+        List<SearchResult> filteredResults = securitySearchFilter.filter(results);
+
+        assertEquals(results.get(0), filteredResults.get(0));
+        assertTrue(filteredResults.get(1).isCensored());
+    }
+
+    /**
+     * Filters a page of results for a super user.
+     * <p>
+     * Checks that no result is censored and that no content producer is asked.
+     * </p>
+     */
+    @Test
+    public void testPageNotCheckedForSuperUser() {
+        securitySearchFilter.setThreadCount(2);
+        securitySearchFilter.init();
+        when(securityService.isSuperUser()).thenReturn(true);
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        for (int i = 0; i < 4; i++)
+            results.add(mockSearchResult("site" + i, false));
+
+        List<SearchResult> filteredResults = securitySearchFilter.filter(results);
+
+        assertEquals(results, filteredResults);
+        verify(contentProducerFactory, never()).getContentProducerForElement(anyString());
+    }
+
+    /**
+     * Filters a page of results while the caller pushed a security advisor.
+     * <p>
+     * Checks that every result is checked by the caller, where the advisor applies.
+     * </p>
+     */
+    @Test
+    public void testPageCheckedByCallerWithAdvisors() {
+        securitySearchFilter.setThreadCount(2);
+        securitySearchFilter.init();
+        when(securityService.hasAdvisors()).thenReturn(true);
+        final Thread callerThread = Thread.currentThread();
+        final List<Thread> checkingThreads = new ArrayList<Thread>();
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        for (int i = 0; i < 4; i++) {
+            SearchResult result = mockSearchResult("site" + i, true);
+            EntityContentProducer contentProducer = mock(EntityContentProducer.class);
+            when(contentProducer.canRead(result.getReference())).thenAnswer(new Answer<Boolean>() {
+                @Override
+                public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                    synchronized (checkingThreads) {
+                        checkingThreads.add(Thread.currentThread());
+                    }
+                    return true;
+                }
+            });
+            when(contentProducerFactory.getContentProducerForElement(result.getReference()))
+                    .thenReturn(contentProducer);
+            results.add(result);
+        }
+
+        securitySearchFilter.filter(results);
+
+        assertThat(checkingThreads.size(), is(results.size()));
+        for (Thread checkingThread : checkingThreads)
+            assertEquals(callerThread, checkingThread);
+    }
+
+    private SearchResult mockSearchResult(String siteId, boolean readable) {
+        String reference = UUID.randomUUID().toString();
+        SearchResult searchResult = mock(SearchResult.class);
+        EntityContentProducer entityContentProducer = mock(EntityContentProducer.class);
+
+        when(searchResult.getReference()).thenReturn(reference);
+        when(searchResult.getSiteId()).thenReturn(siteId);
+        when(entityContentProducer.canRead(reference)).thenReturn(readable);
+        when(contentProducerFactory.getContentProducerForElement(reference)).thenReturn(entityContentProducer);
+        return searchResult;
+    }
 }
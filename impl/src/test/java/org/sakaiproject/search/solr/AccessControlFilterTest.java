@@ -0,0 +1,154 @@
+package org.sakaiproject.search.solr;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.authz.api.SecurityService;
+import org.sakaiproject.content.api.ContentHostingService;
+import org.sakaiproject.tool.api.SessionManager;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the filter query created from the realms of a user.
+ *
+ * @author Colin Hebert
+ */
+public class AccessControlFilterTest {
+    private static final String USER_ID = "userId";
+    @Mock
+    private AuthzGroupService authzGroupService;
+    @Mock
+    private SecurityService securityService;
+    @Mock
+    private SessionManager sessionManager;
+    private AccessControlFilter accessControlFilter;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        accessControlFilter = new AccessControlFilter(100, 60);
+        accessControlFilter.setAuthzGroupService(authzGroupService);
+        accessControlFilter.setSecurityService(securityService);
+        accessControlFilter.setSessionManager(sessionManager);
+        when(sessionManager.getCurrentSessionUserId()).thenReturn(USER_ID);
+    }
+
+    /**
+     * Checks that the sites and groups of the user are part of the filter query.
+     * <p>
+     * Checks that the realms are only loaded once.
+     * </p>
+     */
+    @Test
+    public void testFilterQueryContainsRealms() {
+        when(authzGroupService.getAuthzGroupsIsAllowed(eq(USER_ID), eq(ContentHostingService.AUTH_RESOURCE_READ),
+                isNull(Collection.class)))
+                .thenReturn(new HashSet<String>(Arrays.asList("/site/site1", "/site/site1/group/group1")));
+        when(authzGroupService.getAuthzGroupsIsAllowed(eq(USER_ID), eq(ContentHostingService.AUTH_RESOURCE_HIDDEN),
+                isNull(Collection.class)))
+                .thenReturn(Collections.emptySet());
+
+        String filterQuery = accessControlFilter.getFilterQuery();
+        accessControlFilter.getFilterQuery();
+
+        assertThat(filterQuery, containsString("siteid:(\"site1\")"));
+        assertThat(filterQuery, containsString("acl_groups:(\"/site/site1/group/group1\")"));
+        assertThat(filterQuery, not(containsString("\"site1/group/group1\"")));
+        verify(authzGroupService, times(3)).getAuthzGroupsIsAllowed(anyString(), anyString(),
+                isNull(Collection.class));
+    }
+
+    /**
+     * Checks that nothing is excluded for a user without any site, as documents may be readable through other realms.
+     */
+    @Test
+    public void testFilterQueryWithoutSites() {
+        when(authzGroupService.getAuthzGroupsIsAllowed(anyString(), anyString(), isNull(Collection.class)))
+                .thenReturn(Collections.emptySet());
+
+        assertThat(accessControlFilter.getFilterQuery(), is(nullValue()));
+    }
+
+    /**
+     * Checks that only the documents with access control fields, in the sites readable by the user, are excluded.
+     * <p>
+     * Documents without access control fields (site documents, messages...) and documents of other sites are kept.
+     * </p>
+     */
+    @Test
+    public void testOnlyAccessControlledDocumentsExcluded() {
+        mockRealms(ContentHostingService.AUTH_RESOURCE_READ, "/site/site1");
+
+        assertThat(accessControlFilter.getFilterQuery(), is("*:* -(-acl_public:true"
+                + " +((+siteid:(\"site1\") +acl_groups:[* TO *])"
+                + " OR (+siteid:(\"site1\") +(acl_hidden:true OR acl_release:[NOW/MINUTE TO *]"
+                + " OR acl_retract:[* TO NOW/MINUTE]))))"));
+    }
+
+    /**
+     * Checks that group content isn't excluded in the sites where the user can access every group.
+     */
+    @Test
+    public void testGroupContentKeptWithAllGroups() {
+        mockRealms(ContentHostingService.AUTH_RESOURCE_READ, "/site/site1", "/site/site2");
+        mockRealms(ContentHostingService.AUTH_RESOURCE_ALL_GROUPS, "/site/site1");
+
+        String filterQuery = accessControlFilter.getFilterQuery();
+
+        assertThat(filterQuery, containsString("(+siteid:(\"site2\") +acl_groups:[* TO *])"));
+        assertThat(filterQuery, containsString("(+siteid:(\"site1\" OR \"site2\") +(acl_hidden:true"));
+    }
+
+    /**
+     * Checks that nothing is excluded in a site where the user has been granted access to a folder.
+     */
+    @Test
+    public void testFolderRealmKeepsSite() {
+        mockRealms(ContentHostingService.AUTH_RESOURCE_READ, "/site/site1", "/site/site2",
+                "/content/group/site2/folder/");
+
+        String filterQuery = accessControlFilter.getFilterQuery();
+
+        assertThat(filterQuery, containsString("siteid:(\"site1\")"));
+        assertThat(filterQuery, not(containsString("site2")));
+    }
+
+    /**
+     * Checks that nothing is excluded if the user has permissions on content which doesn't belong to a site.
+     */
+    @Test
+    public void testNoFilterQueryWithContentOutsideOfSites() {
+        mockRealms(ContentHostingService.AUTH_RESOURCE_READ, "/site/site1", "/content/attachment/");
+
+        assertThat(accessControlFilter.getFilterQuery(), is(nullValue()));
+    }
+
+    /**
+     * Checks that no filter is applied for a super user.
+     */
+    @Test
+    public void testNoFilterQueryForSuperUser() {
+        when(securityService.isSuperUser()).thenReturn(true);
+
+        assertThat(accessControlFilter.getFilterQuery(), is(nullValue()));
+        verifyZeroInteractions(authzGroupService);
+    }
+
+    private void mockRealms(String function, String... realms) {
+        when(authzGroupService.getAuthzGroupsIsAllowed(eq(USER_ID), eq(function), isNull(Collection.class)))
+                .thenReturn(new HashSet<String>(Arrays.asList(realms)));
+    }
+}
@@ -0,0 +1,116 @@
+package org.sakaiproject.search.solr;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.search.api.EntityContentProducer;
+import org.sakaiproject.search.api.SearchResult;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.response.filter.SearchItemFilter;
+import org.sakaiproject.tool.api.SessionManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that the completions obtained from the "/suggest" handler of the embedded core only come from titles the
+ * current user can read.
+ *
+ * @author Colin Hebert
+ */
+@org.apache.lucene.util.LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class AutocompletionIT extends AbstractSolrTestCase {
+    @Mock
+    private EntityContentProducer contentProducer;
+    private SolrSearchService solrSearchService;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        initCore("org/sakaiproject/search/solr/conf/search/conf/solrconfig.xml",
+                "org/sakaiproject/search/solr/conf/search/conf/schema.xml",
+                "org/sakaiproject/search/solr/conf",
+                "search");
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        MockitoAnnotations.initMocks(this);
+        SolrServer solrServer = new EmbeddedSolrServer(h.getCoreContainer(), h.getCore().getName());
+        clearIndex();
+
+        when(contentProducer.matches(anyString())).thenReturn(true);
+        when(contentProducer.canRead(anyString())).thenReturn(true);
+        ContentProducerFactory contentProducerFactory = new ContentProducerFactory();
+        contentProducerFactory.addContentProducer(contentProducer);
+        solrSearchService = new SolrSearchService();
+        solrSearchService.setSolrServer(solrServer);
+        solrSearchService.setSessionManager(mock(SessionManager.class));
+        solrSearchService.setContentProducerFactory(contentProducerFactory);
+
+        solrServer.add(createDocument("/public/recipes", "Seasonal recipes"));
+        solrServer.add(createDocument("/public/menu", "Seasonal menu"));
+        solrServer.add(createDocument("/private/plans", "Secret plans"));
+        solrServer.commit();
+    }
+
+    /**
+     * Checks that titles and terms are proposed for every matching document when everything is readable.
+     */
+    @Test
+    public void testReadableTermsProposed() throws Exception {
+        Autocompletion autocompletion = solrSearchService.autocomplete("se", null, 5);
+
+        assertThat(autocompletion.getTitles().size(), is(3));
+        assertThat(autocompletion.getTerms(), is(Arrays.asList("seasonal", "secret")));
+    }
+
+    /**
+     * Checks that the words of a title censored by the search item filter are never proposed, even though solr
+     * counted them.
+     */
+    @Test
+    public void testTermsOfCensoredTitlesRemoved() throws Exception {
+        solrSearchService.setSearchItemFilter(new SearchItemFilter() {
+            @Override
+            public SearchResult filter(SearchResult result) {
+                if (!"/private/plans".equals(result.getReference()))
+                    return result;
+                SearchResult censoredResult = mock(SearchResult.class);
+                when(censoredResult.isCensored()).thenReturn(true);
+                return censoredResult;
+            }
+        });
+
+        Autocompletion autocompletion = solrSearchService.autocomplete("se", null, 5);
+
+        assertThat(autocompletion.getTitles().contains("Secret plans"), is(false));
+        assertThat(autocompletion.getTerms(), is(Collections.singletonList("seasonal")));
+    }
+
+    private static SolrInputDocument createDocument(String reference, String title) {
+        SolrInputDocument document = new SolrInputDocument();
+        document.addField(SearchService.FIELD_REFERENCE, reference);
+        document.addField(SearchService.FIELD_ID, reference);
+        document.addField(SearchService.FIELD_SITEID, "site1");
+        document.addField(SearchService.FIELD_TOOL, "tool");
+        document.addField(SearchService.FIELD_TYPE, "type");
+        document.addField(SearchService.FIELD_TITLE, title);
+        document.addField(SearchService.FIELD_URL, "http://localhost" + reference);
+        document.addField(SearchService.FIELD_CONTENTS, title);
+        return document;
+    }
+}
@@ -0,0 +1,164 @@
+package org.sakaiproject.search.solr;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.solr.response.SolrSearchList;
+import org.sakaiproject.tool.api.SessionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures the latency of faceted searches on an index of a realistic size.
+ * <p>
+ * The number of documents can be set with the system property "facet.benchmark.documents" (100000 by default).
+ * Documents are spread over 1000 sites, 10 tools, 20 types and two years of indexation.<br />
+ * The median and 95th percentile latencies are logged for searches with and without facets.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+@org.apache.lucene.util.LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class FacetLatencyIT extends AbstractSolrTestCase {
+    private static final Logger logger = LoggerFactory.getLogger(FacetLatencyIT.class);
+    private static final int DOCUMENTS = Integer.getInteger("facet.benchmark.documents", 100000);
+    private static final int SITES = 1000;
+    private static final int TOOLS = 10;
+    private static final int TYPES = 20;
+    private static final int VOCABULARY = 2000;
+    private static final int WORDS_PER_DOCUMENT = 50;
+    private static final int QUERIES = 200;
+    private static final int BATCH_SIZE = 1000;
+    private final Random random = new Random(42);
+    private SolrServer solrServer;
+    private SolrSearchService solrSearchService;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        initCore("org/sakaiproject/search/solr/conf/search/conf/solrconfig.xml",
+                "org/sakaiproject/search/solr/conf/search/conf/schema.xml",
+                "org/sakaiproject/search/solr/conf",
+                "search");
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        solrServer = new EmbeddedSolrServer(h.getCoreContainer(), h.getCore().getName());
+        clearIndex();
+
+        solrSearchService = new SolrSearchService();
+        solrSearchService.setSolrServer(solrServer);
+        solrSearchService.setSessionManager(mock(SessionManager.class));
+        solrSearchService.setContentProducerFactory(new ContentProducerFactory());
+    }
+
+    /**
+     * Compares the latency of searches with and without facets.
+     * <p>
+     * Checks that the tool counts add up to the number of results, as every document has exactly one tool.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testFacetLatency() throws Exception {
+        indexDocuments();
+        SearchOptions plainOptions = SearchOptions.forApi();
+        SearchOptions facetOptions = SearchOptions.forApi();
+        facetOptions.setFacets(true);
+
+        // Warm up the caches and the JIT
+        for (int i = 0; i < QUERIES / 10; i++) {
+            solrSearchService.search(randomWord(), null, 0, 10, plainOptions);
+            solrSearchService.search(randomWord(), null, 0, 10, facetOptions);
+        }
+
+        long[] plainLatencies = new long[QUERIES];
+        long[] facetLatencies = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String searchTerms = randomWord();
+            long start = System.nanoTime();
+            solrSearchService.search(searchTerms, null, 0, 10, plainOptions);
+            plainLatencies[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            SolrSearchList results = (SolrSearchList) solrSearchService.search(searchTerms, null, 0, 10, facetOptions);
+            facetLatencies[i] = System.nanoTime() - start;
+
+            assertToolCountsMatch(results);
+        }
+
+        logger.info("Search latency on {} documents without facets: {}",
+                DOCUMENTS, describeLatencies(plainLatencies));
+        logger.info("Search latency on {} documents with facets: {}",
+                DOCUMENTS, describeLatencies(facetLatencies));
+    }
+
+    private void indexDocuments() throws Exception {
+        DateTime now = new DateTime();
+        List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(BATCH_SIZE);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            SolrInputDocument document = new SolrInputDocument();
+            document.addField(SearchService.FIELD_REFERENCE, "/document/" + i);
+            document.addField(SearchService.FIELD_ID, String.valueOf(i));
+            document.addField(SearchService.FIELD_SITEID, "site" + random.nextInt(SITES));
+            document.addField(SearchService.FIELD_TOOL, "tool" + random.nextInt(TOOLS));
+            document.addField(SearchService.FIELD_TYPE, "type" + random.nextInt(TYPES));
+            document.addField(SearchService.FIELD_TITLE, randomWord() + ' ' + randomWord());
+            document.addField(SearchService.FIELD_URL, "http://localhost/document/" + i);
+            document.addField("indexdate", now.minusDays(random.nextInt(730)).toDate());
+            StringBuilder contents = new StringBuilder();
+            for (int j = 0; j < WORDS_PER_DOCUMENT; j++)
+                contents.append(randomWord()).append(' ');
+            document.addField(SearchService.FIELD_CONTENTS, contents.toString());
+            batch.add(document);
+
+            if (batch.size() == BATCH_SIZE) {
+                solrServer.add(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty())
+            solrServer.add(batch);
+        solrServer.commit();
+    }
+
+    private void assertToolCountsMatch(SolrSearchList results) {
+        Map<String, Long> toolCounts = results.getFacetCounts().get(SearchService.FIELD_TOOL);
+        long total = 0;
+        for (Long count : toolCounts.values())
+            total += count;
+        assertThat(total, is((long) results.getFullSize()));
+    }
+
+    private String randomWord() {
+        // Skewed distribution, a few words are in most documents while most words are rare
+        int word = (int) (VOCABULARY * Math.pow(random.nextDouble(), 3));
+        return "word" + word;
+    }
+
+    private static String describeLatencies(long[] latencies) {
+        long[] sortedLatencies = Arrays.copyOf(latencies, latencies.length);
+        Arrays.sort(sortedLatencies);
+        return "median " + sortedLatencies[sortedLatencies.length / 2] / 1000 + " microseconds"
+                + ", 95th percentile " + sortedLatencies[sortedLatencies.length * 95 / 100] / 1000 + " microseconds";
+    }
+}
@@ -0,0 +1,114 @@
+package org.sakaiproject.search.solr;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the estimation of the results to fetch and the continuation of the results.
+ *
+ * @author Colin Hebert
+ */
+public class PermissionAwarePagingTest {
+    private static final String USER_ID = "userId";
+    private static final String QUERY = "q=test";
+    private static final String GENERATION = "searcher/1";
+    @Mock
+    private IndexGeneration indexGeneration;
+    private PermissionAwarePaging permissionAwarePaging;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(indexGeneration.getGeneration()).thenReturn(GENERATION);
+        permissionAwarePaging = new PermissionAwarePaging(100, 30, 200);
+        permissionAwarePaging.setIndexGeneration(indexGeneration);
+    }
+
+    /**
+     * Checks that nothing more than a margin is fetched when no result has been censored yet.
+     */
+    @Test
+    public void testEstimateRowsWithoutCensorship() {
+        assertThat(permissionAwarePaging.estimateRows(USER_ID, 10), is(11));
+    }
+
+    /**
+     * Checks that more results are fetched for a user with censored results.
+     * <p>
+     * Checks that the number of results to fetch never exceeds the maximum.
+     * </p>
+     */
+    @Test
+    public void testEstimateRowsWithCensorship() {
+        permissionAwarePaging.recordCensorship(USER_ID, 10, 5);
+
+        assertThat(permissionAwarePaging.estimateRows(USER_ID, 10), is(22));
+        assertThat(permissionAwarePaging.estimateRows(USER_ID, 1000), is(1000));
+        assertThat(permissionAwarePaging.estimateRows(USER_ID, 150), is(200));
+    }
+
+    /**
+     * Checks that the censor ratio follows new observations without forgetting the previous ones.
+     */
+    @Test
+    public void testCensorRatioSmoothing() {
+        permissionAwarePaging.recordCensorship(USER_ID, 10, 10);
+        permissionAwarePaging.recordCensorship(USER_ID, 10, 0);
+
+        assertThat(permissionAwarePaging.getCensorRatio(USER_ID), is(0.7));
+        assertThat(permissionAwarePaging.getCensorRatio("otherUser"), is(0.0));
+    }
+
+    /**
+     * Checks that the closest checkpoint is used to continue a query.
+     * <p>
+     * Checks that a different query starts from the beginning.
+     * </p>
+     */
+    @Test
+    public void testCheckpoints() {
+        permissionAwarePaging.saveCheckpoint(USER_ID, QUERY, GENERATION, 10, 15);
+        permissionAwarePaging.saveCheckpoint(USER_ID, QUERY, GENERATION, 20, 32);
+
+        assertThat(permissionAwarePaging.getCheckpoint(USER_ID, QUERY, 20).getIndexPosition(), is(32));
+        assertThat(permissionAwarePaging.getCheckpoint(USER_ID, QUERY, 25).getReadablePosition(), is(20));
+        assertThat(permissionAwarePaging.getCheckpoint(USER_ID, QUERY, 15).getIndexPosition(), is(15));
+        assertThat(permissionAwarePaging.getCheckpoint(USER_ID, QUERY, 5).getIndexPosition(), is(0));
+        assertThat(permissionAwarePaging.getCheckpoint(USER_ID, "q=other", 20).getIndexPosition(), is(0));
+    }
+
+    /**
+     * Checks that the checkpoints of a query aren't used once a commit opened a new searcher.
+     */
+    @Test
+    public void testCheckpointsDiscardedWithNewGeneration() {
+        permissionAwarePaging.saveCheckpoint(USER_ID, QUERY, GENERATION, 20, 32);
+        when(indexGeneration.getGeneration()).thenReturn("searcher/2");
+
+        PermissionAwarePaging.Checkpoint checkpoint = permissionAwarePaging.getCheckpoint(USER_ID, QUERY, 20);
+        assertThat(checkpoint.getIndexPosition(), is(0));
+        assertThat(checkpoint.getGeneration(), is("searcher/2"));
+    }
+
+    /**
+     * Checks that checkpoints are neither saved nor used when the generation of the index is unknown.
+     */
+    @Test
+    public void testCheckpointsIgnoredWithoutGeneration() {
+        permissionAwarePaging.saveCheckpoint(USER_ID, QUERY, null, 20, 32);
+        assertThat(permissionAwarePaging.getCheckpoint(USER_ID, QUERY, 20).getIndexPosition(), is(0));
+
+        permissionAwarePaging.saveCheckpoint(USER_ID, QUERY, GENERATION, 20, 32);
+        when(indexGeneration.getGeneration()).thenReturn(null);
+        PermissionAwarePaging.Checkpoint checkpoint = permissionAwarePaging.getCheckpoint(USER_ID, QUERY, 20);
+        assertThat(checkpoint.getIndexPosition(), is(0));
+        assertThat(checkpoint.getGeneration(), is(nullValue()));
+    }
+}
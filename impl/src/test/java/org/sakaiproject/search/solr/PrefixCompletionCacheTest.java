@@ -0,0 +1,73 @@
+package org.sakaiproject.search.solr;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that the completions of a prefix are kept until the index changes.
+ *
+ * @author Colin Hebert
+ */
+public class PrefixCompletionCacheTest {
+    private static final List<String> SITE_FILTER = Collections.singletonList("+siteid:(\"site1\")");
+    @Mock
+    private IndexGeneration indexGeneration;
+    @Mock
+    private Callable<List<String>> loader;
+    private PrefixCompletionCache prefixCompletionCache;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        prefixCompletionCache = new PrefixCompletionCache(100);
+        prefixCompletionCache.setIndexGeneration(indexGeneration);
+        when(indexGeneration.getGeneration()).thenReturn("generation1");
+        when(loader.call()).thenReturn(Arrays.asList("search", "searcher"));
+    }
+
+    /**
+     * Checks that the completions of a prefix are only loaded once for the same filter queries.
+     */
+    @Test
+    public void testCompletionsAreCached() throws Exception {
+        prefixCompletionCache.getCompletions("sea", SITE_FILTER, 5, loader);
+        List<String> completions = prefixCompletionCache.getCompletions("sea", SITE_FILTER, 5, loader);
+
+        assertThat(completions, is(Arrays.asList("search", "searcher")));
+        verify(loader, times(1)).call();
+    }
+
+    /**
+     * Checks that completions aren't shared between searches restricted to different documents.
+     */
+    @Test
+    public void testFilterQueriesArePartOfTheKey() throws Exception {
+        prefixCompletionCache.getCompletions("sea", SITE_FILTER, 5, loader);
+        prefixCompletionCache.getCompletions("sea", Collections.<String>emptyList(), 5, loader);
+
+        verify(loader, times(2)).call();
+    }
+
+    /**
+     * Checks that completions are loaded again once the index changed.
+     */
+    @Test
+    public void testNewGenerationLoadsCompletions() throws Exception {
+        prefixCompletionCache.getCompletions("sea", SITE_FILTER, 5, loader);
+        when(indexGeneration.getGeneration()).thenReturn("generation2");
+        prefixCompletionCache.getCompletions("sea", SITE_FILTER, 5, loader);
+
+        verify(loader, times(2)).call();
+    }
+}
@@ -0,0 +1,179 @@
+package org.sakaiproject.search.solr;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.search.api.InvalidSearchQueryException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that expensive queries are rewritten or rejected before being sent to solr.
+ *
+ * @author Colin Hebert
+ */
+public class QueryPreprocessorTest {
+    private QueryPreprocessor queryPreprocessor;
+
+    @Before
+    public void setUp() throws Exception {
+        queryPreprocessor = new QueryPreprocessor(100);
+        queryPreprocessor.setMaximumClauses(5);
+        queryPreprocessor.setMaximumWildcardTerms(2);
+    }
+
+    /**
+     * Checks that whitespaces and control characters are normalised without counting the query as rewritten.
+     */
+    @Test
+    public void testWhitespacesAreNormalised() throws Exception {
+        assertThat(queryPreprocessor.process("  lecture \t notes\n"), is("lecture notes"));
+        assertThat((Long) queryPreprocessor.getStatistics().get("rewritten"), is(0L));
+    }
+
+    /**
+     * Checks that leading wildcards and wildcards after a very short prefix are removed.
+     */
+    @Test
+    public void testExpensiveWildcardsAreRewritten() throws Exception {
+        assertThat(queryPreprocessor.process("*ing"), is("ing"));
+        assertThat(queryPreprocessor.process("title:?ecture"), is("title:ecture"));
+        assertThat(queryPreprocessor.process("(a* OR lect*)"), is("(a OR lect*)"));
+        assertThat((Long) queryPreprocessor.getStatistics().get("rewritten"), is(3L));
+    }
+
+    /**
+     * Checks that phrases and escaped wildcards are left untouched.
+     */
+    @Test
+    public void testPhrasesAndEscapedWildcardsAreKept() throws Exception {
+        assertThat(queryPreprocessor.process("\"*what is\" \\*"), is("\"*what is\" \\*"));
+    }
+
+    /**
+     * Checks that queries matching every document are rejected.
+     */
+    @Test(expected = InvalidSearchQueryException.class)
+    public void testMatchAllIsRejected() throws Exception {
+        queryPreprocessor.process("*:*");
+    }
+
+    /**
+     * Checks that field existence queries are rejected.
+     */
+    @Test(expected = InvalidSearchQueryException.class)
+    public void testFieldWildcardIsRejected() throws Exception {
+        queryPreprocessor.process("lecture OR title:*");
+    }
+
+    /**
+     * Checks that operators aren't counted as clauses, and that queries with too many clauses are rejected.
+     */
+    @Test
+    public void testClauseLimit() throws Exception {
+        assertThat(queryPreprocessor.process("a AND b OR c NOT d e"), is("a AND b OR c NOT d e"));
+
+        try {
+            queryPreprocessor.process("a b c d e f");
+            fail("The query with too many clauses wasn't rejected");
+        } catch (InvalidSearchQueryException e) {
+            assertThat((Long) queryPreprocessor.getStatistics().get("rejected"), is(1L));
+        }
+    }
+
+    /**
+     * Checks that ranges are kept as they are, open bounds included.
+     */
+    @Test
+    public void testRangesAreKept() throws Exception {
+        assertThat(queryPreprocessor.process("date:[2010 TO *]"), is("date:[2010 TO *]"));
+        assertThat(queryPreprocessor.process("lect* title:{* TO m}"), is("lect* title:{* TO m}"));
+        assertThat((Long) queryPreprocessor.getStatistics().get("rewritten"), is(0L));
+    }
+
+    /**
+     * Checks that a range is counted as a single clause, its bounds and "TO" aren't clauses.
+     */
+    @Test
+    public void testRangeIsSingleClause() throws Exception {
+        assertThat(queryPreprocessor.process("a b c d date:[2010 TO 2012]"), is("a b c d date:[2010 TO 2012]"));
+    }
+
+    /**
+     * Checks that ranges without any bound are rejected, as they match every document with a value in the field.
+     */
+    @Test(expected = InvalidSearchQueryException.class)
+    public void testUnboundedRangeIsRejected() throws Exception {
+        queryPreprocessor.process("lecture OR date:[* TO *]");
+    }
+
+    /**
+     * Checks that brackets and quotes within a term don't make it a range or a phrase, and that the wildcards of the
+     * terms around them are still checked.
+     */
+    @Test
+    public void testBracketsAndQuotesInTermsAreChecked() throws Exception {
+        assertThat(queryPreprocessor.process("*foo["), is("foo["));
+        assertThat(queryPreprocessor.process("a*{x"), is("a{x"));
+        assertThat(queryPreprocessor.process("\"x\"*ing"), is("\"x\"ing"));
+        assertThat(queryPreprocessor.process("[a TO b]*ing"), is("[a TO b]ing"));
+    }
+
+    /**
+     * Checks that regular expressions are searched as plain terms, their wildcards being counted as any other.
+     */
+    @Test
+    public void testRegexIsEscaped() throws Exception {
+        assertThat(queryPreprocessor.process("/.*foo.*/"), is("\\/.*foo.*\\/"));
+
+        try {
+            queryPreprocessor.process("/.*a.*/ /.*b.*/ /.*c.*/");
+            fail("The query with too many regular expressions wasn't rejected");
+        } catch (InvalidSearchQueryException e) {
+            assertThat((Long) queryPreprocessor.getStatistics().get("rejected"), is(1L));
+        }
+    }
+
+    /**
+     * Checks that fuzzy terms are kept but count toward the wildcard terms limit.
+     */
+    @Test
+    public void testFuzzyTermsAreCounted() throws Exception {
+        assertThat(queryPreprocessor.process("lecture~2 notes"), is("lecture~2 notes"));
+
+        try {
+            queryPreprocessor.process("lect~ not~1 sem~");
+            fail("The query with too many fuzzy terms wasn't rejected");
+        } catch (InvalidSearchQueryException e) {
+            assertThat((Long) queryPreprocessor.getStatistics().get("rejected"), is(1L));
+        }
+    }
+
+    /**
+     * Checks that queries with too many wildcard terms are rejected.
+     */
+    @Test(expected = InvalidSearchQueryException.class)
+    public void testWildcardLimit() throws Exception {
+        queryPreprocessor.process("lect* not?s sem*");
+    }
+
+    /**
+     * Checks that the outcome of a query is reused by equivalent queries, rejections included.
+     */
+    @Test
+    public void testOutcomeIsCached() throws Exception {
+        queryPreprocessor.process("lecture  notes");
+        queryPreprocessor.process("lecture notes");
+        for (int i = 0; i < 2; i++) {
+            try {
+                queryPreprocessor.process("*");
+            } catch (InvalidSearchQueryException e) {
+                // Expected
+            }
+        }
+
+        assertThat((Long) queryPreprocessor.getStatistics().get("hits"), is(2L));
+        assertThat((Long) queryPreprocessor.getStatistics().get("rejected"), is(2L));
+    }
+}
@@ -0,0 +1,122 @@
+package org.sakaiproject.search.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that responses are reused until the index changes.
+ *
+ * @author Colin Hebert
+ */
+public class QueryResultCacheTest {
+    @Mock
+    private SolrServer solrServer;
+    @Mock
+    private QueryResponse queryResponse;
+    private QueryResultCache queryResultCache;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        queryResultCache = new QueryResultCache(1024 * 1024);
+        queryResultCache.setSolrServer(solrServer);
+        IndexGeneration indexGeneration = new IndexGeneration();
+        indexGeneration.setSolrServer(solrServer);
+        // Check the generation on every query
+        indexGeneration.setCheckIntervalMillis(0);
+        queryResultCache.setIndexGeneration(indexGeneration);
+        when(solrServer.request(any(SolrRequest.class))).thenReturn(createSearcherStatistics("Searcher@1", 1L));
+        when(solrServer.query(any(SolrQuery.class))).thenReturn(queryResponse);
+        when(queryResponse.getResponse()).thenReturn(new NamedList<Object>());
+    }
+
+    /**
+     * Checks that the same query is only sent once to solr while the index doesn't change.
+     */
+    @Test
+    public void testSameQueryIsCached() throws Exception {
+        QueryResponse firstResponse = queryResultCache.query(new SolrQuery("search"));
+        QueryResponse secondResponse = queryResultCache.query(new SolrQuery("search"));
+
+        assertThat(secondResponse, is(sameInstance(firstResponse)));
+        verify(solrServer, times(1)).query(any(SolrQuery.class));
+        assertThat((Long) queryResultCache.getStatistics().get("hits"), is(1L));
+        assertThat((Long) queryResultCache.getStatistics().get("misses"), is(1L));
+    }
+
+    /**
+     * Checks that queries only differing by whitespaces share the same entry.
+     */
+    @Test
+    public void testQueryTermsAreNormalised() throws Exception {
+        queryResultCache.query(new SolrQuery("search engine"));
+        queryResultCache.query(new SolrQuery("  search \t engine "));
+
+        verify(solrServer, times(1)).query(any(SolrQuery.class));
+    }
+
+    /**
+     * Checks that different paging windows are cached separately.
+     */
+    @Test
+    public void testPagingIsPartOfTheKey() throws Exception {
+        queryResultCache.query(new SolrQuery("search").setStart(0).setRows(10));
+        queryResultCache.query(new SolrQuery("search").setStart(10).setRows(10));
+
+        verify(solrServer, times(2)).query(any(SolrQuery.class));
+    }
+
+    /**
+     * Checks that cached responses are discarded once a new searcher is opened.
+     */
+    @Test
+    public void testNewGenerationDiscardsResponses() throws Exception {
+        queryResultCache.query(new SolrQuery("search"));
+        when(solrServer.request(any(SolrRequest.class))).thenReturn(createSearcherStatistics("Searcher@2", 2L));
+        queryResultCache.query(new SolrQuery("search"));
+
+        verify(solrServer, times(2)).query(any(SolrQuery.class));
+        assertThat((Long) queryResultCache.getStatistics().get("size"), is(1L));
+    }
+
+    /**
+     * Checks that queries are still run when the generation of the index can't be obtained.
+     */
+    @Test
+    public void testUnknownGenerationBypassesCache() throws Exception {
+        when(solrServer.request(any(SolrRequest.class))).thenThrow(new SolrServerException("Unavailable"));
+
+        queryResultCache.query(new SolrQuery("search"));
+        queryResultCache.query(new SolrQuery("search"));
+
+        verify(solrServer, times(2)).query(any(SolrQuery.class));
+    }
+
+    private static NamedList<Object> createSearcherStatistics(String searcherName, long indexVersion) {
+        NamedList<Object> stats = new NamedList<Object>();
+        stats.add("searcherName", searcherName);
+        stats.add("indexVersion", indexVersion);
+        NamedList<Object> searcher = new NamedList<Object>();
+        searcher.add("stats", stats);
+        NamedList<Object> core = new NamedList<Object>();
+        core.add("searcher", searcher);
+        NamedList<Object> mbeans = new NamedList<Object>();
+        mbeans.add("CORE", core);
+        NamedList<Object> result = new NamedList<Object>();
+        result.add("solr-mbeans", mbeans);
+        return result;
+    }
+}
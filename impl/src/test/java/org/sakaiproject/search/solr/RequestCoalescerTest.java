@@ -0,0 +1,123 @@
+package org.sakaiproject.search.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that identical concurrent queries share a single round trip to Solr.
+ *
+ * @author Colin Hebert
+ */
+public class RequestCoalescerTest {
+    @Mock
+    private SolrServer solrServer;
+    @Mock
+    private QueryResponse queryResponse;
+    private RequestCoalescer requestCoalescer;
+    private ExecutorService executorService;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        requestCoalescer = new RequestCoalescer();
+        requestCoalescer.setSolrServer(solrServer);
+        executorService = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Checks that a query sent while the same query is running waits for the running query.
+     */
+    @Test
+    public void testConcurrentQueriesAreCoalesced() throws Exception {
+        final CountDownLatch queryStarted = new CountDownLatch(1);
+        final CountDownLatch responseReceived = new CountDownLatch(1);
+        when(solrServer.query(any(SolrQuery.class))).thenAnswer(new Answer<QueryResponse>() {
+            @Override
+            public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                queryStarted.countDown();
+                responseReceived.await(5, TimeUnit.SECONDS);
+                return queryResponse;
+            }
+        });
+
+        Future<QueryResponse> firstResponse = executorService.submit(createQuery("search"));
+        queryStarted.await(5, TimeUnit.SECONDS);
+        Future<QueryResponse> secondResponse = executorService.submit(createQuery("search"));
+        waitForCoalescedRequests(1L);
+        responseReceived.countDown();
+
+        assertThat(firstResponse.get(5, TimeUnit.SECONDS), is(sameInstance(queryResponse)));
+        assertThat(secondResponse.get(5, TimeUnit.SECONDS), is(sameInstance(queryResponse)));
+        verify(solrServer, times(1)).query(any(SolrQuery.class));
+        assertThat((Integer) requestCoalescer.getStatistics().get("inflight"), is(0));
+    }
+
+    /**
+     * Checks that the same query is sent again once the previous one has completed.
+     */
+    @Test
+    public void testCompletedQueriesAreNotKept() throws Exception {
+        when(solrServer.query(any(SolrQuery.class))).thenReturn(queryResponse);
+
+        requestCoalescer.query(new SolrQuery("search"));
+        requestCoalescer.query(new SolrQuery("search"));
+
+        verify(solrServer, times(2)).query(any(SolrQuery.class));
+        assertThat((Long) requestCoalescer.getStatistics().get("coalesced"), is(0L));
+    }
+
+    /**
+     * Checks that a failure is sent back to the caller.
+     */
+    @Test(expected = SolrServerException.class)
+    public void testFailureIsPropagated() throws Exception {
+        when(solrServer.query(any(SolrQuery.class))).thenThrow(new SolrServerException("Unavailable"));
+
+        requestCoalescer.query(new SolrQuery("search"));
+    }
+
+    private Callable<QueryResponse> createQuery(final String terms) {
+        return new Callable<QueryResponse>() {
+            @Override
+            public QueryResponse call() throws Exception {
+                return requestCoalescer.query(new SolrQuery(terms));
+            }
+        };
+    }
+
+    private void waitForCoalescedRequests(long coalescedRequests) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            if (requestCoalescer.getStatistics().get("coalesced").equals(coalescedRequests))
+                return;
+            Thread.sleep(10);
+        }
+        fail("The second query wasn't coalesced");
+    }
+}
@@ -0,0 +1,65 @@
+package org.sakaiproject.search.solr;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks the encoding of cursors and the filter selecting the results after them.
+ *
+ * @author Colin Hebert
+ */
+public class SearchCursorTest {
+    /**
+     * Checks that a decoded token gives the exact same reference.
+     */
+    @Test
+    public void testTokenKeepsPosition() {
+        SearchCursor cursor = SearchCursor.after("/content/group/site/a:b \"c\".txt");
+
+        SearchCursor decodedCursor = SearchCursor.decode(cursor.encode());
+
+        assertThat(decodedCursor, is(cursor));
+        assertThat(decodedCursor.getReference(), is("/content/group/site/a:b \"c\".txt"));
+    }
+
+    /**
+     * Checks that tokens can be sent in a URL without being encoded.
+     */
+    @Test
+    public void testTokenIsUrlSafe() {
+        String token = SearchCursor.after("/content/group/site/été?x=1&y=2").encode();
+
+        assertThat(token.matches("[A-Za-z0-9_-]+"), is(true));
+    }
+
+    /**
+     * Checks that a token which isn't base64 is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTokenIsRejected() {
+        SearchCursor.decode("%not a cursor%");
+    }
+
+    /**
+     * Checks that an empty token is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyTokenIsRejected() {
+        SearchCursor.decode("");
+    }
+
+    /**
+     * Checks that the filter selects greater references only, with a range the filter cache doesn't keep.
+     */
+    @Test
+    public void testFilterQuery() {
+        String filterQuery = SearchCursor.after("/content/\"quoted\"").toFilterQuery();
+
+        assertThat(filterQuery, is("{!lucene cache=false}reference:{\"/content/\\\"quoted\\\"\" TO *]"));
+        assertThat(filterQuery, not(containsString("frange")));
+    }
+}
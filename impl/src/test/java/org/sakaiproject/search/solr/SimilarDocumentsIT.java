@@ -0,0 +1,149 @@
+package org.sakaiproject.search.solr;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.search.api.EntityContentProducer;
+import org.sakaiproject.search.api.InvalidSearchQueryException;
+import org.sakaiproject.search.api.SearchResult;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.response.filter.SearchItemFilter;
+import org.sakaiproject.tool.api.SessionManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that similar documents are found by the "/mlt" handler of the embedded core, restricted to the given sites
+ * and to what the current user can read.
+ *
+ * @author Colin Hebert
+ */
+@org.apache.lucene.util.LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class SimilarDocumentsIT extends AbstractSolrTestCase {
+    private static final String FRUITS = "apple banana cherry apple banana cherry orchard harvest orchard harvest";
+    private static final String ENGINES = "piston crankshaft piston crankshaft gearbox clutch gearbox clutch";
+    @Mock
+    private EntityContentProducer contentProducer;
+    private SolrSearchService solrSearchService;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        initCore("org/sakaiproject/search/solr/conf/search/conf/solrconfig.xml",
+                "org/sakaiproject/search/solr/conf/search/conf/schema.xml",
+                "org/sakaiproject/search/solr/conf",
+                "search");
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        MockitoAnnotations.initMocks(this);
+        SolrServer solrServer = new EmbeddedSolrServer(h.getCoreContainer(), h.getCore().getName());
+        clearIndex();
+
+        when(contentProducer.matches(anyString())).thenReturn(true);
+        when(contentProducer.canRead(anyString())).thenReturn(true);
+        ContentProducerFactory contentProducerFactory = new ContentProducerFactory();
+        contentProducerFactory.addContentProducer(contentProducer);
+        solrSearchService = new SolrSearchService();
+        solrSearchService.setSolrServer(solrServer);
+        solrSearchService.setSessionManager(mock(SessionManager.class));
+        solrSearchService.setContentProducerFactory(contentProducerFactory);
+
+        solrServer.add(createDocument("/fruits/source", "site1", FRUITS));
+        solrServer.add(createDocument("/fruits/same-site", "site1", FRUITS + " basket"));
+        solrServer.add(createDocument("/fruits/other-site", "site2", FRUITS + " market"));
+        solrServer.add(createDocument("/engines/first", "site1", ENGINES));
+        solrServer.add(createDocument("/engines/second", "site1", ENGINES + " oil"));
+        solrServer.commit();
+    }
+
+    /**
+     * Checks that documents sharing the terms of the source are found, without the source itself.
+     */
+    @Test
+    public void testSimilarDocumentsFound() throws Exception {
+        List<String> references = getReferences(solrSearchService.similar("/fruits/source", null, 5));
+
+        assertThat(references.size(), is(2));
+        assertThat(references.contains("/fruits/same-site"), is(true));
+        assertThat(references.contains("/fruits/other-site"), is(true));
+    }
+
+    /**
+     * Checks that only documents of the given sites are returned.
+     */
+    @Test
+    public void testSimilarDocumentsRestrictedToSites() throws Exception {
+        List<String> references = getReferences(
+                solrSearchService.similar("/fruits/source", Collections.singletonList("site1"), 5));
+
+        assertThat(references, is(Collections.singletonList("/fruits/same-site")));
+    }
+
+    /**
+     * Checks that similar documents censored by the search item filter are removed.
+     */
+    @Test
+    public void testCensoredDocumentsRemoved() throws Exception {
+        solrSearchService.setSearchItemFilter(new SearchItemFilter() {
+            @Override
+            public SearchResult filter(SearchResult result) {
+                if (!"/fruits/other-site".equals(result.getReference()))
+                    return result;
+                SearchResult censoredResult = mock(SearchResult.class);
+                when(censoredResult.isCensored()).thenReturn(true);
+                return censoredResult;
+            }
+        });
+
+        List<String> references = getReferences(solrSearchService.similar("/fruits/source", null, 5));
+
+        assertThat(references, is(Collections.singletonList("/fruits/same-site")));
+    }
+
+    /**
+     * Checks that a document the current user can't read can't be used to find similar documents.
+     */
+    @Test(expected = InvalidSearchQueryException.class)
+    public void testUnreadableSourceRejected() throws Exception {
+        when(contentProducer.canRead("/fruits/source")).thenReturn(false);
+
+        solrSearchService.similar("/fruits/source", null, 5);
+    }
+
+    private static SolrInputDocument createDocument(String reference, String siteId, String contents) {
+        SolrInputDocument document = new SolrInputDocument();
+        document.addField(SearchService.FIELD_REFERENCE, reference);
+        document.addField(SearchService.FIELD_ID, reference);
+        document.addField(SearchService.FIELD_SITEID, siteId);
+        document.addField(SearchService.FIELD_TOOL, "tool");
+        document.addField(SearchService.FIELD_TYPE, "type");
+        document.addField(SearchService.FIELD_TITLE, reference);
+        document.addField(SearchService.FIELD_URL, "http://localhost" + reference);
+        document.addField(SearchService.FIELD_CONTENTS, contents);
+        return document;
+    }
+
+    private static List<String> getReferences(List<SearchResult> results) {
+        List<String> references = new ArrayList<String>(results.size());
+        for (SearchResult result : results)
+            references.add(result.getReference());
+        return references;
+    }
+}
@@ -0,0 +1,50 @@
+package org.sakaiproject.search.solr;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that the sites filter queries are canonical and reused for each user.
+ *
+ * @author Colin Hebert
+ */
+public class SitesFilterQueryCacheTest {
+    private SitesFilterQueryCache sitesFilterQueryCache;
+
+    @Before
+    public void setUp() throws Exception {
+        sitesFilterQueryCache = new SitesFilterQueryCache(10, 30);
+    }
+
+    /**
+     * Checks that the same set of sites always produces the same filter query, whatever the order of the sites.
+     */
+    @Test
+    public void testFilterQueryIsCanonical() throws Exception {
+        String filterQuery = SitesFilterQueryCache.createFilterQuery(Arrays.asList("siteB", "siteA", "siteB"));
+
+        assertThat(filterQuery, is("+siteid:(\"siteA\" OR \"siteB\")"));
+    }
+
+    /**
+     * Checks that the filter query of a user is reused as long as the sites don't change.
+     */
+    @Test
+    public void testFilterQueryReusedForSameSites() throws Exception {
+        String filterQuery = sitesFilterQueryCache.getFilterQuery("userId", Arrays.asList("siteA", "siteB"));
+        String sameFilterQuery = sitesFilterQueryCache.getFilterQuery("userId", Arrays.asList("siteB", "siteA"));
+        sitesFilterQueryCache.getFilterQuery("userId", Arrays.asList("siteC"));
+
+        assertThat(sameFilterQuery, is(sameInstance(filterQuery)));
+        Map<String, Object> statistics = sitesFilterQueryCache.getStatistics();
+        assertThat((Long) statistics.get("hits"), is(1L));
+        assertThat((Long) statistics.get("misses"), is(2L));
+    }
+}
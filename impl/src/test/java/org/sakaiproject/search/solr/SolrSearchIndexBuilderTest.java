@@ -11,6 +11,7 @@ import org.sakaiproject.search.indexing.TaskMatcher;
 import org.sakaiproject.search.producer.ContentProducerFactory;
 import org.sakaiproject.search.producer.ProducerBuilder;
 import org.sakaiproject.search.queueing.IndexQueueing;
+import org.sakaiproject.search.response.filter.AuthorizationDecisionCache;
 
 import java.util.Date;
 
@@ -54,6 +55,54 @@ public class SolrSearchIndexBuilderTest {
 
     }
 
+    /**
+     * Checks that the authorization decisions for a modified resource are discarded.
+     */
+    @Test
+    public void testAddResourceInvalidatesAuthorizationDecisions() {
+        AuthorizationDecisionCache authorizationDecisionCache = mock(AuthorizationDecisionCache.class);
+        solrSearchIndexBuilder.setAuthorizationDecisionCache(authorizationDecisionCache);
+        String reference = "reference";
+        String eventType = "eventType";
+        Event event = mock(Event.class);
+        when(event.getEventTime()).thenReturn(new Date());
+        when(event.getResource()).thenReturn(reference);
+        when(event.getEvent()).thenReturn(eventType);
+        ProducerBuilder producerBuilder = ProducerBuilder.create().addDoc(reference)
+                .addEvent(eventType, ProducerBuilder.ActionType.ADD);
+        contentProducerFactory.addContentProducer(producerBuilder.build());
+
+        solrSearchIndexBuilder.addResource(null, event);
+
+        verify(authorizationDecisionCache).invalidateReference(reference);
+        verify(authorizationDecisionCache, never()).invalidateSite(anyString());
+    }
+
+    /**
+     * Checks that a site event discards the authorization decisions and filter queries of the site members.
+     */
+    @Test
+    public void testSiteEventInvalidatesAccessControl() {
+        AuthorizationDecisionCache authorizationDecisionCache = mock(AuthorizationDecisionCache.class);
+        AccessControlFilter accessControlFilter = mock(AccessControlFilter.class);
+        solrSearchIndexBuilder.setAuthorizationDecisionCache(authorizationDecisionCache);
+        solrSearchIndexBuilder.setAccessControlFilter(accessControlFilter);
+        String reference = "/site/siteId";
+        String eventType = "site.upd.site.mbrshp";
+        Event event = mock(Event.class);
+        when(event.getEventTime()).thenReturn(new Date());
+        when(event.getResource()).thenReturn(reference);
+        when(event.getEvent()).thenReturn(eventType);
+        ProducerBuilder producerBuilder = ProducerBuilder.create().addDoc(reference, "siteId")
+                .addEvent(eventType, ProducerBuilder.ActionType.ADD);
+        contentProducerFactory.addContentProducer(producerBuilder.build());
+
+        solrSearchIndexBuilder.addResource(null, event);
+
+        verify(authorizationDecisionCache).invalidateSite("siteId");
+        verify(accessControlFilter).invalidateAll();
+    }
+
     @Test
     public void testUnsupportedEventResource() {
         Date eventTime = new Date();
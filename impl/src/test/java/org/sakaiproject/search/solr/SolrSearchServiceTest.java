@@ -0,0 +1,180 @@
+package org.sakaiproject.search.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.search.api.SearchList;
+import org.sakaiproject.search.api.SearchResult;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.solr.response.SolrSearchList;
+import org.sakaiproject.search.response.filter.SearchItemFilter;
+import org.sakaiproject.tool.api.SessionManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that pages of readable results are filled whatever the number of censored results before them.
+ *
+ * @author Colin Hebert
+ */
+public class SolrSearchServiceTest {
+    private static final int DOCUMENTS = 500;
+    private static final int MAXIMUM_ROWS = 20;
+    @Mock
+    private SolrServer solrServer;
+    @Mock
+    private SessionManager sessionManager;
+    @Mock
+    private ContentProducerFactory contentProducerFactory;
+    @Mock
+    private IndexGeneration indexGeneration;
+    private SolrSearchService solrSearchService;
+    private List<Integer> queriedPositions;
+    private List<String> queriedFilters;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        queriedPositions = new ArrayList<Integer>();
+        queriedFilters = new ArrayList<String>();
+        when(sessionManager.getCurrentSessionUserId()).thenReturn("userId");
+        when(indexGeneration.getGeneration()).thenReturn("searcher/1");
+        when(solrServer.query(any(SolrQuery.class))).thenAnswer(new Answer<QueryResponse>() {
+            @Override
+            public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                SolrQuery query = (SolrQuery) invocation.getArguments()[0];
+                queriedPositions.add(query.getStart());
+                if (query.getFilterQueries() != null)
+                    queriedFilters.addAll(Arrays.asList(query.getFilterQueries()));
+                return createResponse(query.getStart(), query.getRows());
+            }
+        });
+
+        PermissionAwarePaging permissionAwarePaging = new PermissionAwarePaging(100, 30, MAXIMUM_ROWS);
+        permissionAwarePaging.setIndexGeneration(indexGeneration);
+        solrSearchService = new SolrSearchService();
+        solrSearchService.setSolrServer(solrServer);
+        solrSearchService.setSessionManager(sessionManager);
+        solrSearchService.setContentProducerFactory(contentProducerFactory);
+        solrSearchService.setSearchItemFilter(new EvenDocumentsFilter());
+        solrSearchService.setPermissionAwarePaging(permissionAwarePaging);
+        solrSearchService.setMaximumFetchRounds(1);
+    }
+
+    /**
+     * Checks that a deep page without checkpoint is filled even if skipping the previous results takes more queries
+     * than the maximum number of fetch rounds.
+     */
+    @Test
+    public void testDeepPageWithoutCheckpoint() throws Exception {
+        SearchList page = solrSearchService.search("test", null, 100, 110, SearchOptions.forApi());
+
+        assertThat(page.size(), is(10));
+        assertThat(page.get(0).getReference(), is(getReference(200)));
+        assertThat(page.get(9).getReference(), is(getReference(218)));
+    }
+
+    /**
+     * Checks that the next page starts from the position reached by the previous one.
+     */
+    @Test
+    public void testNextPageStartsFromCheckpoint() throws Exception {
+        solrSearchService.search("test", null, 0, 10, SearchOptions.forApi());
+        queriedPositions.clear();
+
+        SearchList page = solrSearchService.search("test", null, 10, 20, SearchOptions.forApi());
+
+        // The first page read the first 11 documents (10 results and a margin)
+        assertThat(queriedPositions.get(0), is(11));
+        assertThat(page.get(0).getReference(), is(getReference(20)));
+    }
+
+    /**
+     * Checks that the checkpoints are discarded once a commit opened a new searcher.
+     */
+    @Test
+    public void testCheckpointsDiscardedAfterCommit() throws Exception {
+        solrSearchService.search("test", null, 0, 10, SearchOptions.forApi());
+        queriedPositions.clear();
+        when(indexGeneration.getGeneration()).thenReturn("searcher/2");
+
+        solrSearchService.search("test", null, 10, 20, SearchOptions.forApi());
+
+        assertThat(queriedPositions.get(0), is(0));
+    }
+
+    /**
+     * Checks that the page after a cursor is selected with a range on the reference of the last result read.
+     */
+    @Test
+    public void testNextPageAfterCursor() throws Exception {
+        SolrSearchList firstPage = solrSearchService.searchAfter("test", null, null, 10, SearchOptions.forApi());
+        queriedFilters.clear();
+
+        solrSearchService.searchAfter("test", null, firstPage.getNextCursor(), 10, SearchOptions.forApi());
+
+        // The only fetch round of the first page read the first 11 documents (10 results and a margin)
+        assertThat(queriedFilters, hasItem("{!lucene cache=false}reference:{\"" + getReference(10) + "\" TO *]"));
+    }
+
+    /**
+     * Checks that at least one query must be sent to fill a page.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testFetchRoundsMustBePositive() throws Exception {
+        solrSearchService.setMaximumFetchRounds(0);
+    }
+
+    private static QueryResponse createResponse(int start, int rows) {
+        SolrDocumentList documents = new SolrDocumentList();
+        documents.setNumFound(DOCUMENTS);
+        documents.setStart(start);
+        for (int i = start; i < Math.min(start + rows, DOCUMENTS); i++) {
+            SolrDocument document = new SolrDocument();
+            document.setField(SearchService.FIELD_REFERENCE, getReference(i));
+            documents.add(document);
+        }
+
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(documents);
+        when(response.getResponse()).thenReturn(new NamedList<Object>());
+        return response;
+    }
+
+    private static String getReference(int index) {
+        return "/document/" + index;
+    }
+
+    /**
+     * Censors the documents with an odd number.
+     */
+    private static class EvenDocumentsFilter implements SearchItemFilter {
+        @Override
+        public SearchResult filter(SearchResult result) {
+            String reference = result.getReference();
+            if (Integer.parseInt(reference.substring(reference.lastIndexOf('/') + 1)) % 2 == 0)
+                return result;
+
+            SearchResult censoredResult = mock(SearchResult.class);
+            when(censoredResult.isCensored()).thenReturn(true);
+            return censoredResult;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.sakaiproject.search.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.Callable;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that suggestions are kept until the index changes.
+ *
+ * @author Colin Hebert
+ */
+public class SuggestionCacheTest {
+    @Mock
+    private IndexGeneration indexGeneration;
+    @Mock
+    private Callable<String> loader;
+    private SuggestionCache suggestionCache;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        suggestionCache = new SuggestionCache(100);
+        suggestionCache.setIndexGeneration(indexGeneration);
+        when(indexGeneration.getGeneration()).thenReturn("generation1");
+        when(loader.call()).thenReturn("search engine");
+    }
+
+    /**
+     * Checks that a suggestion is only loaded once for the same normalised terms.
+     */
+    @Test
+    public void testSuggestionIsCached() throws Exception {
+        suggestionCache.getSuggestion("serch  engine", loader);
+        String suggestion = suggestionCache.getSuggestion(" serch engine ", loader);
+
+        assertThat(suggestion, is("search engine"));
+        verify(loader, times(1)).call();
+    }
+
+    /**
+     * Checks that the absence of suggestion is cached as well.
+     */
+    @Test
+    public void testAbsentSuggestionIsCached() throws Exception {
+        suggestionCache.putSuggestion("search", null);
+
+        assertThat(suggestionCache.getSuggestion("search", loader), is(nullValue()));
+        assertThat(suggestionCache.getCachedSuggestion("search").isPresent(), is(false));
+        verify(loader, never()).call();
+    }
+
+    /**
+     * Checks that a suggestion is loaded again once the index has changed.
+     */
+    @Test
+    public void testNewGenerationLoadsSuggestion() throws Exception {
+        suggestionCache.getSuggestion("serch", loader);
+        when(indexGeneration.getGeneration()).thenReturn("generation2");
+        suggestionCache.getSuggestion("serch", loader);
+
+        verify(loader, times(2)).call();
+    }
+
+    /**
+     * Checks that suggestions aren't cached when the generation of the index is unknown.
+     */
+    @Test
+    public void testUnknownGenerationBypassesCache() throws Exception {
+        when(indexGeneration.getGeneration()).thenReturn(null);
+
+        suggestionCache.getSuggestion("serch", loader);
+        suggestionCache.getSuggestion("serch", loader);
+
+        verify(loader, times(2)).call();
+        assertThat(suggestionCache.getCachedSuggestion("serch"), is(nullValue()));
+    }
+
+    /**
+     * Checks that a checked exception thrown by the loader is rethrown as is.
+     */
+    @Test(expected = SolrServerException.class)
+    public void testLoaderExceptionRethrown() throws Exception {
+        when(loader.call()).thenThrow(new SolrServerException("Failure"));
+
+        suggestionCache.getSuggestion("serch", loader);
+    }
+
+    /**
+     * Checks that an error thrown by the loader is rethrown as is instead of failing with a ClassCastException.
+     */
+    @Test(expected = AssertionError.class)
+    public void testLoaderErrorRethrown() throws Exception {
+        when(loader.call()).thenThrow(new AssertionError());
+
+        suggestionCache.getSuggestion("serch", loader);
+    }
+}
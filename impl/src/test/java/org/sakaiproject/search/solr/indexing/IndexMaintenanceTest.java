@@ -0,0 +1,248 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.NamedList;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.cluster.api.ClusterService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that the index maintenance only happens when needed, during the off-peak window and on a single node.
+ *
+ * @author Colin Hebert
+ */
+public class IndexMaintenanceTest {
+    @Mock
+    private SolrServer mockSolrServer;
+    @Mock
+    private ClusterService mockClusterService;
+    @Mock
+    private ServerConfigurationService mockServerConfigurationService;
+    private IndexMaintenance indexMaintenance;
+    private int segmentCount;
+    private long maxDoc;
+    private long numDocs;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        indexMaintenance = new IndexMaintenance();
+        indexMaintenance.setSolrServer(mockSolrServer);
+        indexMaintenance.setMaximumSegmentCount(20);
+        indexMaintenance.setTargetSegmentCount(10);
+        indexMaintenance.setMaximumDeletedDocumentsRatio(0.1);
+        indexMaintenance.setClusterService(mockClusterService);
+        indexMaintenance.setServerConfigurationService(mockServerConfigurationService);
+        when(mockClusterService.getServers()).thenReturn(Arrays.asList("node2-1", "node1-1", "node3-1"));
+        when(mockServerConfigurationService.getServerIdInstance()).thenReturn("node1-1");
+        when(mockSolrServer.request(any(SolrRequest.class))).thenAnswer(new Answer<NamedList<Object>>() {
+            @Override
+            public NamedList<Object> answer(InvocationOnMock invocation) throws Throwable {
+                SolrRequest request = (SolrRequest) invocation.getArguments()[0];
+                NamedList<Object> response = new NamedList<Object>();
+                if ("/admin/luke".equals(request.getPath())) {
+                    NamedList<Object> index = new NamedList<Object>();
+                    index.add("segmentCount", segmentCount);
+                    response.add("index", index);
+                } else if ("/admin/stats".equals(request.getPath())) {
+                    NamedList<Object> stats = new NamedList<Object>();
+                    stats.add("maxDoc", maxDoc);
+                    stats.add("numDocs", numDocs);
+                    response = createMBeans("CORE", "searcher", stats);
+                }
+                return response;
+            }
+        });
+    }
+
+    /**
+     * Checks the off-peak window within a single day.
+     */
+    @Test
+    public void testOffPeakWindow() {
+        indexMaintenance.setOffPeakStartHour(1);
+        indexMaintenance.setOffPeakEndHour(5);
+
+        assertThat(indexMaintenance.isOffPeak(new DateTime(2013, 3, 10, 0, 59).toDate()), is(false));
+        assertThat(indexMaintenance.isOffPeak(new DateTime(2013, 3, 10, 1, 0).toDate()), is(true));
+        assertThat(indexMaintenance.isOffPeak(new DateTime(2013, 3, 10, 4, 59).toDate()), is(true));
+        assertThat(indexMaintenance.isOffPeak(new DateTime(2013, 3, 10, 5, 0).toDate()), is(false));
+    }
+
+    /**
+     * Checks the off-peak window spanning over midnight.
+     */
+    @Test
+    public void testOffPeakWindowOverMidnight() {
+        indexMaintenance.setOffPeakStartHour(22);
+        indexMaintenance.setOffPeakEndHour(4);
+
+        assertThat(indexMaintenance.isOffPeak(new DateTime(2013, 3, 10, 21, 59).toDate()), is(false));
+        assertThat(indexMaintenance.isOffPeak(new DateTime(2013, 3, 10, 23, 0).toDate()), is(true));
+        assertThat(indexMaintenance.isOffPeak(new DateTime(2013, 3, 10, 3, 0).toDate()), is(true));
+        assertThat(indexMaintenance.isOffPeak(new DateTime(2013, 3, 10, 12, 0).toDate()), is(false));
+    }
+
+    /**
+     * Attempts to run the maintenance outside of the off-peak window.
+     * <p>
+     * Checks that the search server isn't contacted.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testMaintenanceOutsideOffPeakWindow() throws Exception {
+        int currentHour = new DateTime().getHourOfDay();
+        indexMaintenance.setOffPeakStartHour((currentHour + 1) % 24);
+        indexMaintenance.setOffPeakEndHour((currentHour + 2) % 24);
+
+        indexMaintenance.maintain();
+
+        verify(mockSolrServer, never()).request(any(SolrRequest.class));
+        verify(mockSolrServer, never()).optimize(anyBoolean(), anyBoolean(), anyInt());
+    }
+
+    /**
+     * Checks that segments are merged down to the target when there are too many segments.
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testTooManySegmentsAreMerged() throws Exception {
+        setOffPeakAllDay();
+        segmentCount = 21;
+        maxDoc = 1000;
+        numDocs = 1000;
+
+        indexMaintenance.maintain();
+
+        verify(mockSolrServer).optimize(true, true, 10);
+        verify(mockSolrServer, never()).request(argThat(new IsExpungeDeletes()));
+    }
+
+    /**
+     * Checks that deleted documents are expunged when their ratio is above the limit.
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testDeletedDocumentsAreExpunged() throws Exception {
+        setOffPeakAllDay();
+        segmentCount = 20;
+        maxDoc = 1000;
+        numDocs = 899;
+
+        indexMaintenance.maintain();
+
+        verify(mockSolrServer).request(argThat(new IsExpungeDeletes()));
+        verify(mockSolrServer, never()).optimize(anyBoolean(), anyBoolean(), anyInt());
+    }
+
+    /**
+     * Checks that nothing is merged when the index is within the limits.
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testHealthyIndexIsLeftAlone() throws Exception {
+        setOffPeakAllDay();
+        segmentCount = 20;
+        maxDoc = 1000;
+        numDocs = 900;
+
+        indexMaintenance.maintain();
+
+        verify(mockSolrServer, never()).request(argThat(new IsExpungeDeletes()));
+        verify(mockSolrServer, never()).optimize(anyBoolean(), anyBoolean(), anyInt());
+    }
+
+    /**
+     * Checks that the scheduled maintenance runs on the node with the lowest server id.
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testScheduledMaintenanceRunsOnElectedNode() throws Exception {
+        setOffPeakAllDay();
+        segmentCount = 21;
+
+        indexMaintenance.runScheduledMaintenance();
+
+        assertThat(indexMaintenance.isMaintenanceNode(), is(true));
+        verify(mockSolrServer).optimize(true, true, 10);
+    }
+
+    /**
+     * Checks that the scheduled maintenance doesn't run on the other nodes.
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testScheduledMaintenanceSkippedOnOtherNodes() throws Exception {
+        setOffPeakAllDay();
+        segmentCount = 21;
+        when(mockServerConfigurationService.getServerIdInstance()).thenReturn("node2-1");
+
+        indexMaintenance.runScheduledMaintenance();
+
+        assertThat(indexMaintenance.isMaintenanceNode(), is(false));
+        verify(mockSolrServer, never()).request(any(SolrRequest.class));
+        verify(mockSolrServer, never()).optimize(anyBoolean(), anyBoolean(), anyInt());
+    }
+
+    /**
+     * Checks that another node takes over when the elected node leaves the cluster.
+     */
+    @Test
+    public void testNextNodeTakesOver() {
+        when(mockServerConfigurationService.getServerIdInstance()).thenReturn("node2-1");
+        when(mockClusterService.getServers()).thenReturn(Arrays.asList("node2-1", "node3-1"));
+
+        assertThat(indexMaintenance.isMaintenanceNode(), is(true));
+    }
+
+    private void setOffPeakAllDay() {
+        indexMaintenance.setOffPeakStartHour(0);
+        indexMaintenance.setOffPeakEndHour(24);
+    }
+
+    private static NamedList<Object> createMBeans(String category, String key, NamedList<Object> stats) {
+        NamedList<Object> mbean = new NamedList<Object>();
+        mbean.add("stats", stats);
+        NamedList<Object> categoryMBeans = new NamedList<Object>();
+        categoryMBeans.add(key, mbean);
+        NamedList<Object> mbeans = new NamedList<Object>();
+        mbeans.add(category, categoryMBeans);
+        NamedList<Object> result = new NamedList<Object>();
+        result.add("solr-mbeans", mbeans);
+        return result;
+    }
+
+    /**
+     * Matches the update requests expunging deleted documents.
+     */
+    private static class IsExpungeDeletes extends ArgumentMatcher<SolrRequest> {
+        @Override
+        public boolean matches(Object argument) {
+            return argument instanceof UpdateRequest
+                    && Boolean.parseBoolean(((UpdateRequest) argument).getParams().get(UpdateParams.EXPUNGE_DELETES));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the snapshot of the status of the index.
+ *
+ * @author Colin Hebert
+ */
+public class IndexStatusMonitorTest {
+    private static final Date OPENED_AT = new Date(1000000L);
+    @Mock
+    private SolrServer mockSolrServer;
+    @Mock
+    private ThreadPoolExecutor mockIndexingExecutor;
+    private IndexStatusMonitor indexStatusMonitor;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        indexStatusMonitor = new IndexStatusMonitor();
+        indexStatusMonitor.setSolrServer(mockSolrServer);
+        indexStatusMonitor.setIndexingExecutors(Arrays.asList(mockIndexingExecutor));
+        ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(10);
+        queue.add(mock(Runnable.class));
+        queue.add(mock(Runnable.class));
+        when(mockIndexingExecutor.getQueue()).thenReturn(queue);
+        when(mockIndexingExecutor.getActiveCount()).thenReturn(3);
+        when(mockSolrServer.request(any(SolrRequest.class))).thenAnswer(new Answer<NamedList<Object>>() {
+            @Override
+            public NamedList<Object> answer(InvocationOnMock invocation) throws Throwable {
+                String category = ((SolrRequest) invocation.getArguments()[0]).getParams().get("cat");
+                NamedList<Object> stats = new NamedList<Object>();
+                if ("CORE".equals(category)) {
+                    stats.add("numDocs", 42);
+                    stats.add("openedAt", OPENED_AT);
+                } else {
+                    stats.add("docsPending", 5L);
+                }
+                return createMBeans(category, ("CORE".equals(category)) ? "searcher" : "updateHandler", stats);
+            }
+        });
+    }
+
+    /**
+     * Checks that the snapshot contains the statistics of the server and of the executors.
+     */
+    @Test
+    public void testSnapshotContent() {
+        IndexStatusMonitor.Snapshot snapshot = indexStatusMonitor.getSnapshot();
+
+        assertThat(snapshot.getNumberOfDocuments(), is(42));
+        assertThat(snapshot.getPendingDocuments(), is(5));
+        assertThat(snapshot.getQueuedTasks(), is(2));
+        assertThat(snapshot.getActiveTasks(), is(3));
+        assertThat(snapshot.getLastCommit(), is(OPENED_AT));
+    }
+
+    /**
+     * Checks that the server is only contacted when the snapshot is refreshed.
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSnapshotIsReused() throws Exception {
+        indexStatusMonitor.getSnapshot();
+        indexStatusMonitor.getSnapshot();
+
+        verify(mockSolrServer, times(2)).request(any(SolrRequest.class));
+    }
+
+    /**
+     * Checks that the previous values are kept if the server can't be reached.
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testFailedRefreshKeepsPreviousValues() throws Exception {
+        indexStatusMonitor.refresh();
+        reset(mockSolrServer);
+        when(mockSolrServer.request(any(SolrRequest.class))).thenThrow(new SolrServerException("Unavailable"));
+
+        IndexStatusMonitor.Snapshot snapshot = indexStatusMonitor.refresh();
+
+        assertThat(snapshot.getNumberOfDocuments(), is(42));
+        assertThat(snapshot.getPendingDocuments(), is(5));
+    }
+
+    private static NamedList<Object> createMBeans(String category, String key, NamedList<Object> stats) {
+        NamedList<Object> mbean = new NamedList<Object>();
+        mbean.add("stats", stats);
+        NamedList<Object> categoryMBeans = new NamedList<Object>();
+        categoryMBeans.add(key, mbean);
+        NamedList<Object> mbeans = new NamedList<Object>();
+        mbeans.add(category, categoryMBeans);
+        NamedList<Object> result = new NamedList<Object>();
+        result.add("solr-mbeans", mbeans);
+        return result;
+    }
+}
@@ -0,0 +1,223 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares the removal of documents by id with optimistic version checks to the former delete-by-query removal.
+ * <p>
+ * Removals are sent by several threads at once, as the indexation tasks are, while another thread keeps updating
+ * documents. The duration of the removals and the latency of the concurrent updates are logged for both methods.<br />
+ * The number of documents can be set with the system properties "removal.benchmark.documents" (20000 by default)
+ * and "removal.benchmark.removals" (2000 by default).
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+@org.apache.lucene.util.LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class RemovalBenchmarkIT extends AbstractSolrTestCase {
+    private static final Logger logger = LoggerFactory.getLogger(RemovalBenchmarkIT.class);
+    private static final Date INDEXATION_DATE = new DateTime(2013, 3, 10, 16, 0, 0).toDate();
+    private static final Date REMOVAL_DATE = new DateTime(2013, 3, 10, 17, 0, 0).toDate();
+    private static final int DOCUMENTS = Integer.getInteger("removal.benchmark.documents", 20000);
+    private static final int REMOVALS = Integer.getInteger("removal.benchmark.removals", 2000);
+    private static final int THREADS = 8;
+    private static final int BATCH_SIZE = 1000;
+    private SolrServer solrServer;
+    private SolrTools solrTools;
+    private SolrTaskHandler solrTaskHandler;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        initCore("org/sakaiproject/search/solr/conf/search/conf/solrconfig.xml",
+                "org/sakaiproject/search/solr/conf/search/conf/schema.xml",
+                "org/sakaiproject/search/solr/conf",
+                "search");
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        solrServer = new EmbeddedSolrServer(h.getCoreContainer(), h.getCore().getName());
+        clearIndex();
+
+        solrTaskHandler = new SolrTaskHandler();
+        solrTaskHandler.setSolrServer(solrServer);
+        solrTools = new SolrTools();
+        solrTools.setSolrServer(solrServer);
+        solrTools.setContentProducerFactory(new ContentProducerFactory());
+        solrTaskHandler.setSolrTools(solrTools);
+        solrTaskHandler.setThreadLocalManager(mock(ThreadLocalManager.class));
+    }
+
+    /**
+     * Removes the same number of documents with both methods, while documents are updated concurrently.
+     * <p>
+     * Checks that both methods remove exactly the requested documents.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testRemovalBenchmark() throws Exception {
+        indexDocuments("deleteByQuery");
+        indexDocuments("deleteById");
+
+        String deleteByQueryResults = runRemovals("deleteByQuery", new Remover() {
+            @Override
+            public void remove(String reference) throws Exception {
+                // Removal as it was done before the optimistic removal by id
+                solrServer.deleteByQuery(SearchService.DATE_STAMP + ":{* TO " + solrTools.format(REMOVAL_DATE)
+                        + "} AND " + SearchService.FIELD_REFERENCE + ":" + ClientUtils.escapeQueryChars(reference));
+            }
+        });
+        String deleteByIdResults = runRemovals("deleteById", new Remover() {
+            @Override
+            public void remove(String reference) {
+                solrTaskHandler.removeDocument(reference, REMOVAL_DATE);
+            }
+        });
+
+        logger.info("Removal of {} documents out of {} with delete-by-query: {}",
+                new Object[]{REMOVALS, DOCUMENTS, deleteByQueryResults});
+        logger.info("Removal of {} documents out of {} with delete-by-id: {}",
+                new Object[]{REMOVALS, DOCUMENTS, deleteByIdResults});
+    }
+
+    /**
+     * Removes documents of a site from several threads while another thread updates the other documents of the site.
+     *
+     * @param siteId  site containing the documents.
+     * @param remover removal method.
+     * @return a description of the duration of the removals and of the latency of concurrent updates.
+     * @throws Exception any exception.
+     */
+    private String runRemovals(final String siteId, final Remover remover) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        final AtomicBoolean removing = new AtomicBoolean(true);
+        try {
+            Future<long[]> updates = executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    List<Long> latencies = new ArrayList<Long>();
+                    for (int i = REMOVALS; removing.get(); i = (i + 1 < DOCUMENTS) ? i + 1 : REMOVALS) {
+                        long start = System.nanoTime();
+                        solrServer.add(createDocument(siteId, i, INDEXATION_DATE), 1000);
+                        latencies.add(System.nanoTime() - start);
+                    }
+                    long[] updateLatencies = new long[latencies.size()];
+                    for (int i = 0; i < updateLatencies.length; i++)
+                        updateLatencies[i] = latencies.get(i);
+                    return updateLatencies;
+                }
+            });
+
+            long start = System.nanoTime();
+            List<Future<Void>> removals = new ArrayList<Future<Void>>(REMOVALS);
+            for (int i = 0; i < REMOVALS; i++) {
+                final String reference = getReference(siteId, i);
+                removals.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        remover.remove(reference);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> removal : removals)
+                removal.get();
+            long duration = System.nanoTime() - start;
+            removing.set(false);
+            long[] updateLatencies = updates.get();
+
+            solrServer.commit();
+            assertThat(countDocuments(siteId), is((long) DOCUMENTS - REMOVALS));
+
+            return "removals done in " + duration / 1000000 + " milliseconds, "
+                    + updateLatencies.length + " concurrent updates, " + describeLatencies(updateLatencies);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void indexDocuments(String siteId) throws Exception {
+        List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(BATCH_SIZE);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            batch.add(createDocument(siteId, i, INDEXATION_DATE));
+            if (batch.size() == BATCH_SIZE) {
+                solrServer.add(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty())
+            solrServer.add(batch);
+        solrServer.commit();
+    }
+
+    private SolrInputDocument createDocument(String siteId, int index, Date indexationDate) {
+        String reference = getReference(siteId, index);
+        SolrInputDocument document = new SolrInputDocument();
+        document.addField(SearchService.FIELD_REFERENCE, reference);
+        document.addField(SearchService.FIELD_ID, String.valueOf(index));
+        document.addField(SearchService.FIELD_SITEID, siteId);
+        document.addField(SearchService.FIELD_TOOL, "tool");
+        document.addField(SearchService.FIELD_TYPE, "type");
+        document.addField(SearchService.FIELD_TITLE, "Document " + index);
+        document.addField(SearchService.FIELD_URL, "http://localhost" + reference);
+        document.addField(SearchService.FIELD_CONTENTS, "Contents of the document " + index);
+        document.addField(SearchService.DATE_STAMP, indexationDate);
+        return document;
+    }
+
+    private static String getReference(String siteId, int index) {
+        return "/" + siteId + "/document " + index;
+    }
+
+    private long countDocuments(String siteId) throws Exception {
+        SolrQuery query = new SolrQuery(SearchService.FIELD_SITEID + ":" + siteId).setRows(0);
+        return solrServer.query(query).getResults().getNumFound();
+    }
+
+    private static String describeLatencies(long[] latencies) {
+        if (latencies.length == 0)
+            return "no update latency";
+        long[] sortedLatencies = Arrays.copyOf(latencies, latencies.length);
+        Arrays.sort(sortedLatencies);
+        return "update latency median " + sortedLatencies[sortedLatencies.length / 2] / 1000 + " microseconds"
+                + ", 95th percentile " + sortedLatencies[sortedLatencies.length * 95 / 100] / 1000 + " microseconds";
+    }
+
+    /**
+     * Removal method compared by the benchmark.
+     */
+    private interface Remover {
+        void remove(String reference) throws Exception;
+    }
+}
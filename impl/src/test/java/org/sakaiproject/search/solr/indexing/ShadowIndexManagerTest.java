@@ -0,0 +1,102 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.cluster.api.ClusterService;
+import org.sakaiproject.search.solr.util.SolrServerAdapter;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that a rebuild in a shadow core is only started and promoted when the shadow core can be complete.
+ *
+ * @author Colin Hebert
+ */
+public class ShadowIndexManagerTest {
+    @Mock
+    private SolrServerAdapter solrServerAdapter;
+    @Mock
+    private SolrServer adminServer;
+    @Mock
+    private SolrServer shadowServer;
+    @Mock
+    private ClusterService clusterService;
+    private ShadowIndexManager shadowIndexManager;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(solrServerAdapter.getCoreName()).thenReturn("search");
+        when(solrServerAdapter.getCoreAdminServer()).thenReturn(adminServer);
+        when(solrServerAdapter.getCoreServer("search-shadow")).thenReturn(shadowServer);
+        when(clusterService.getServers()).thenReturn(Collections.singletonList("server1"));
+        when(adminServer.request(any(SolrRequest.class))).thenReturn(createStatusResponse());
+
+        shadowIndexManager = new ShadowIndexManager();
+        shadowIndexManager.setSolrServerAdapter(solrServerAdapter);
+        shadowIndexManager.setClusterService(clusterService);
+    }
+
+    /**
+     * Checks that no shadow core is created while other servers could update the live index without the shadow one.
+     */
+    @Test
+    public void testRebuildRefusedWithSeveralServers() throws Exception {
+        when(clusterService.getServers()).thenReturn(Arrays.asList("server1", "server2"));
+
+        assertThat(shadowIndexManager.startRebuild(Arrays.asList("site1", "site2")), is(false));
+        assertThat(shadowIndexManager.getShadowServer(), is(nullValue()));
+        verify(adminServer, never()).request(any(SolrRequest.class));
+    }
+
+    /**
+     * Checks that the shadow core is used for the sites of a rebuild started on a single server.
+     */
+    @Test
+    public void testRebuildStartedOnSingleServer() throws Exception {
+        assertThat(shadowIndexManager.startRebuild(Arrays.asList("site1", "site2")), is(true));
+        assertThat(shadowIndexManager.getShadowServer(), is(shadowServer));
+    }
+
+    /**
+     * Checks that an aborted rebuild discards the shadow core and is never promoted, even once the remaining sites
+     * are reported as indexed.
+     */
+    @Test
+    public void testAbortedRebuildNeverPromoted() throws Exception {
+        shadowIndexManager.startRebuild(Arrays.asList("site1", "site2"));
+
+        shadowIndexManager.abortRebuild("site1 failed");
+        shadowIndexManager.siteIndexed("site1");
+        shadowIndexManager.siteIndexed("site2");
+
+        assertThat(shadowIndexManager.getShadowServer(), is(nullValue()));
+        verify(solrServerAdapter, never()).getLongRequestServer(anyString());
+    }
+
+    /**
+     * Creates a CoreAdmin STATUS response in which only the live core exists.
+     *
+     * @return the response of the admin server.
+     */
+    private static NamedList<Object> createStatusResponse() {
+        NamedList<Object> liveCoreStatus = new NamedList<Object>();
+        liveCoreStatus.add("instanceDir", "/solr/search/");
+        NamedList<Object> coresStatus = new NamedList<Object>();
+        coresStatus.add("search", liveCoreStatus);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("status", coresStatus);
+        return response;
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.sakaiproject.search.indexing.DefaultTask;
@@ -16,7 +17,9 @@ import org.sakaiproject.search.queueing.IndexQueueing;
 import java.util.LinkedList;
 import java.util.Queue;
 
+import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.*;
 
 /**
@@ -32,7 +35,11 @@ public class SolrSplitterProcessesTest {
     @Mock
     private IndexQueueing mockIndexQueueing;
     @Mock
+    private IndexQueueing mockLocalQueueing;
+    @Mock
     private SolrTools mockSolrTools;
+    @Mock
+    private ShadowIndexManager mockShadowIndexManager;
     private Queue<String> indexableSites = new LinkedList<String>();
     private SolrSplitterProcesses solrSplitterProcesses;
 
@@ -42,6 +49,7 @@ public class SolrSplitterProcessesTest {
         solrSplitterProcesses = new SolrSplitterProcesses();
         solrSplitterProcesses.setActualTaskHandler(mockTaskHandler);
         solrSplitterProcesses.setIndexQueueing(mockIndexQueueing);
+        solrSplitterProcesses.setLocalQueueing(mockLocalQueueing);
         solrSplitterProcesses.setSolrTools(mockSolrTools);
 
         indexableSites.offer("test1");
@@ -146,4 +154,80 @@ public class SolrSplitterProcessesTest {
         verify(mockIndexQueueing, times(indexableSitesSize)).addTaskToQueue(
                 argThat(new TaskMatcher(DefaultTask.Type.REFRESH_SITE.getTypeName())));
     }
+
+    /**
+     * Attempts to execute an "IndexAll" task.
+     * <p>
+     * Checks that every "IndexSite" subtask is flagged as a bulk task.<br />
+     * Checks that the "RemoveAll" task isn't flagged as a bulk task.
+     * </p>
+     */
+    @Test
+    public void testIndexAllSubtasksAreBulk() {
+        Task task = mock(Task.class);
+        when(task.getType()).thenReturn(DefaultTask.Type.INDEX_ALL.getTypeName());
+        when(mockSolrTools.getIndexableSites()).thenReturn(indexableSites);
+        ArgumentCaptor<Task> subtasks = ArgumentCaptor.forClass(Task.class);
+        solrSplitterProcesses.executeTask(task);
+
+        verify(mockIndexQueueing, atLeastOnce()).addTaskToQueue(subtasks.capture());
+        for (Task subtask : subtasks.getAllValues()) {
+            boolean isIndexSite = DefaultTask.Type.INDEX_SITE.getTypeName().equals(subtask.getType());
+            assertThat(Boolean.parseBoolean(subtask.getProperty(SolrTask.BULK)), equalTo(isIndexSite));
+        }
+    }
+
+    /**
+     * Attempts to execute an "IndexAll" task with the shadow rebuild enabled.
+     * <p>
+     * Checks that the rebuild is started in the shadow core.<br />
+     * Checks that a shadow "IndexSite" task has been queued on this instance for each site available.<br />
+     * Checks that nothing has been sent to the shared queueing system, so no "RemoveAll" task has been created.
+     * </p>
+     */
+    @Test
+    public void testIndexAllTaskInShadowCore() {
+        solrSplitterProcesses.setShadowIndexManager(mockShadowIndexManager);
+        Task task = mock(Task.class);
+        when(task.getType()).thenReturn(DefaultTask.Type.INDEX_ALL.getTypeName());
+        when(mockSolrTools.getIndexableSites()).thenReturn(indexableSites);
+        when(mockShadowIndexManager.isEnabled()).thenReturn(true);
+        when(mockShadowIndexManager.startRebuild(indexableSites)).thenReturn(true);
+        int indexableSitesSize = indexableSites.size();
+        ArgumentCaptor<Task> subtasks = ArgumentCaptor.forClass(Task.class);
+        solrSplitterProcesses.executeTask(task);
+
+        verify(mockShadowIndexManager).startRebuild(indexableSites);
+        verify(mockLocalQueueing, times(indexableSitesSize)).addTaskToQueue(subtasks.capture());
+        verify(mockIndexQueueing, never()).addTaskToQueue(any(Task.class));
+        for (Task subtask : subtasks.getAllValues()) {
+            assertThat(subtask.getType(), equalTo(DefaultTask.Type.INDEX_SITE.getTypeName()));
+            assertThat(subtask.getProperty(SolrTask.SHADOW), equalTo(Boolean.TRUE.toString()));
+        }
+    }
+
+    /**
+     * Attempts to execute an "IndexAll" task while a shadow rebuild is already in progress.
+     * <p>
+     * Checks that no subtask is created and that a {@link TaskHandlingException} is thrown.
+     * </p>
+     */
+    @Test
+    public void testIndexAllTaskInShadowCoreAlreadyInProgress() {
+        solrSplitterProcesses.setShadowIndexManager(mockShadowIndexManager);
+        Task task = mock(Task.class);
+        when(task.getType()).thenReturn(DefaultTask.Type.INDEX_ALL.getTypeName());
+        when(mockSolrTools.getIndexableSites()).thenReturn(indexableSites);
+        when(mockShadowIndexManager.isEnabled()).thenReturn(true);
+        when(mockShadowIndexManager.startRebuild(indexableSites)).thenReturn(false);
+
+        thrown.expect(TaskHandlingException.class);
+
+        try {
+            solrSplitterProcesses.executeTask(task);
+        } finally {
+            verify(mockIndexQueueing, never()).addTaskToQueue(any(Task.class));
+            verify(mockLocalQueueing, never()).addTaskToQueue(any(Task.class));
+        }
+    }
 }
@@ -278,6 +278,56 @@ public class SolrTaskHandlerIT extends AbstractSolrTestCase {
         assertIndexIsEmpty();
     }
 
+    /**
+     * Attempts to remove the old documents of a site while one of them has been reindexed but not committed yet.
+     * <p>
+     * Checks that the reindexed document is kept.<br />
+     * Checks that every other document is removed.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testRemoveSiteDocumentsKeepsReindexedDocuments() throws Exception {
+        String siteId = "removeSiteId";
+        int numberOfDocs = 7;
+        ProducerBuilder contentProducerBuilder = ProducerBuilder.create()
+                .addDocsToSite(siteId, numberOfDocs);
+        contentProducerFactory.addContentProducer(contentProducerBuilder.build());
+        addSiteToIndex(siteId, DATE_1);
+        String reindexedReference = contentProducerBuilder.getSiteDocs(siteId).iterator().next();
+        solrTaskHandler.indexDocument(reindexedReference, DATE_2);
+
+        solrTaskHandler.removeSiteDocuments(siteId, DATE_2);
+
+        SolrDocumentList results = getSolrDocuments();
+        assertThat(results.getNumFound(), is(1L));
+        assertThat(results.get(0).getFieldValue(SearchService.FIELD_REFERENCE),
+                CoreMatchers.<Object>equalTo(reindexedReference));
+    }
+
+    /**
+     * Attempts to remove every old document when there are more documents than a single removal batch.
+     * <p>
+     * Checks that every document is removed.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testRemoveAllDocumentsRemovesEveryPage() throws Exception {
+        ProducerBuilder contentProducerBuilder = ProducerBuilder.create()
+                .addDocsToSite("removeSiteId1", 150)
+                .addDocsToSite("removeSiteId2", 120);
+        contentProducerFactory.addContentProducer(contentProducerBuilder.build());
+        addSiteToIndex("removeSiteId1", DATE_1);
+        addSiteToIndex("removeSiteId2", DATE_1);
+
+        solrTaskHandler.removeAllDocuments(DATE_2);
+
+        assertIndexIsEmpty();
+    }
+
     private void assertIndexIsEmpty() throws Exception {
         assertThat(getSolrDocuments().getNumFound(), is(0L));
     }
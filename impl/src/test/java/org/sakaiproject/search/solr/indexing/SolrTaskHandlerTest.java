@@ -0,0 +1,167 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.indexing.exception.TemporaryTaskHandlingException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that the removals grouped in a single request don't fail because of an unrelated document.
+ *
+ * @author Colin Hebert
+ */
+public class SolrTaskHandlerTest {
+    private static final Date INDEXATION_DATE = new DateTime(2013, 3, 10, 16, 0, 0).toDate();
+    private static final Date REMOVAL_DATE = new DateTime(2013, 3, 10, 17, 0, 0).toDate();
+    private static final String BLOCKING_REFERENCE = "/document/blocking";
+    private static final String CONFLICTING_REFERENCE = "/document/conflicting";
+    private static final String OTHER_REFERENCE = "/document/other";
+    @Mock
+    private SolrServer solrServer;
+    private SolrTaskHandler solrTaskHandler;
+    private final List<Set<String>> removalRequests = new CopyOnWriteArrayList<Set<String>>();
+    private final CountDownLatch blockingRequestSent = new CountDownLatch(1);
+    private final CountDownLatch blockingRequestReleased = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(solrServer.query(any(SolrParams.class), eq(SolrRequest.METHOD.POST))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                SolrParams params = (SolrParams) invocation.getArguments()[0];
+                return createRealTimeGetResponse(params.getParams("id"));
+            }
+        });
+        when(solrServer.request(any(UpdateRequest.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Set<String> references = new HashSet<String>(
+                        ((UpdateRequest) invocation.getArguments()[0]).getDeleteById());
+                removalRequests.add(references);
+                if (references.contains(BLOCKING_REFERENCE)) {
+                    blockingRequestSent.countDown();
+                    blockingRequestReleased.await();
+                }
+                if (references.contains(CONFLICTING_REFERENCE))
+                    throw new SolrException(SolrException.ErrorCode.CONFLICT, "version conflict");
+                return new NamedList<Object>();
+            }
+        });
+
+        solrTaskHandler = new SolrTaskHandler();
+        solrTaskHandler.setSolrServer(solrServer);
+    }
+
+    /**
+     * Removes a document updated concurrently in the same batch as another document.
+     * <p>
+     * Checks that both removals were sent in a single request first.<br />
+     * Checks that only the removal of the conflicting document fails and is retried.
+     * </p>
+     */
+    @Test
+    public void testConflictOnlyFailsConflictingRemoval() throws Exception {
+        RemovalThread blockingRemoval = new RemovalThread(BLOCKING_REFERENCE);
+        blockingRemoval.start();
+        assertThat(blockingRequestSent.await(10, TimeUnit.SECONDS), is(true));
+
+        // Both removals are queued while the first request is running, they're sent in the next batch
+        RemovalThread conflictingRemoval = new RemovalThread(CONFLICTING_REFERENCE);
+        RemovalThread otherRemoval = new RemovalThread(OTHER_REFERENCE);
+        conflictingRemoval.start();
+        otherRemoval.start();
+        waitUntilBlocked(conflictingRemoval, otherRemoval);
+        blockingRequestReleased.countDown();
+        for (RemovalThread removal : Arrays.asList(blockingRemoval, conflictingRemoval, otherRemoval))
+            removal.join(10000);
+
+        Set<String> batchedRemovals = new HashSet<String>(Arrays.asList(CONFLICTING_REFERENCE, OTHER_REFERENCE));
+        Set<String> separateRemoval = Collections.singleton(OTHER_REFERENCE);
+        assertThat(removalRequests, hasItem(batchedRemovals));
+        assertThat(removalRequests, hasItem(separateRemoval));
+        assertThat(blockingRemoval.failure, is(nullValue()));
+        assertThat(otherRemoval.failure, is(nullValue()));
+        assertThat(conflictingRemoval.failure, instanceOf(TemporaryTaskHandlingException.class));
+    }
+
+    private static void waitUntilBlocked(Thread... threads) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        for (Thread thread : threads) {
+            while (thread.getState() != Thread.State.BLOCKED && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+        }
+    }
+
+    private static QueryResponse createRealTimeGetResponse(String[] references) {
+        SolrDocumentList documents = new SolrDocumentList();
+        for (String reference : references) {
+            SolrDocument document = new SolrDocument();
+            document.setField(SearchService.FIELD_REFERENCE, reference);
+            document.setField("_version_", 1L);
+            document.setField(SearchService.DATE_STAMP, INDEXATION_DATE);
+            documents.add(document);
+        }
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("response", documents);
+
+        QueryResponse queryResponse = mock(QueryResponse.class);
+        when(queryResponse.getResponse()).thenReturn(response);
+        return queryResponse;
+    }
+
+    /**
+     * Thread removing a document and keeping the outcome of the removal.
+     */
+    private final class RemovalThread extends Thread {
+        private final String reference;
+        private volatile Exception failure;
+
+        private RemovalThread(String reference) {
+            this.reference = reference;
+        }
+
+        @Override
+        public void run() {
+            try {
+                solrTaskHandler.removeDocument(reference, REMOVAL_DATE);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.sakaiproject.search.solr.response;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.search.api.SearchResult;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the output of the JSON and XML result writers.
+ *
+ * @author Colin Hebert
+ */
+public class ResultStreamWriterTest {
+    private static final String TITLE = "Café \"menu\" <2013>";
+    @Mock
+    private SearchResult searchResult;
+    private ByteArrayOutputStream outputStream;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        outputStream = new ByteArrayOutputStream();
+        when(searchResult.getReference()).thenReturn("/content/group/site/menu");
+        when(searchResult.getId()).thenReturn("menu");
+        when(searchResult.getSiteId()).thenReturn("site");
+        when(searchResult.getScore()).thenReturn(1.5f);
+        when(searchResult.getTitle()).thenReturn(TITLE);
+        when(searchResult.getTool()).thenReturn("sakai.resources");
+        when(searchResult.getUrl()).thenReturn(null);
+    }
+
+    /**
+     * Checks that results are written as a JSON object in UTF-8, with escaped strings.
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testJsonOutput() throws Exception {
+        ResultStreamWriter writer = new JsonResultStreamWriter(outputStream);
+
+        writer.start();
+        writer.write(searchResult);
+        writer.write(searchResult);
+        writer.end();
+
+        String result = "{\"reference\":\"/content/group/site/menu\",\"contentId\":\"menu\",\"siteId\":\"site\","
+                + "\"score\":1.5,\"title\":\"Café \\\"menu\\\" <2013>\",\"tool\":\"sakai.resources\",\"url\":null}";
+        assertThat(outputStream.toString("UTF-8"), is("{\"results\":[" + result + ',' + result + "],\"count\":2}"));
+    }
+
+    /**
+     * Checks that an export without readable results is still a valid JSON object, counting no result.
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testEmptyJsonOutput() throws Exception {
+        ResultStreamWriter writer = new JsonResultStreamWriter(outputStream);
+
+        writer.start();
+        writer.end();
+
+        assertThat(outputStream.toString("UTF-8"), is("{\"results\":[],\"count\":0}"));
+    }
+
+    /**
+     * Checks that results are written as an XML document in UTF-8, with escaped attributes.
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testXmlOutput() throws Exception {
+        ResultStreamWriter writer = new XmlResultStreamWriter(outputStream);
+
+        writer.start();
+        writer.write(searchResult);
+        writer.end();
+
+        String output = outputStream.toString("UTF-8");
+        assertThat(output, containsString("encoding=\"UTF-8\""));
+        assertThat(output, containsString("<searchResults>"));
+        assertThat(output, containsString("<count>1</count></searchResults>"));
+        assertThat(output, containsString("title=\"Café &quot;menu&quot; &lt;2013&gt;\""));
+        assertThat(output, containsString("</searchResults>"));
+    }
+}
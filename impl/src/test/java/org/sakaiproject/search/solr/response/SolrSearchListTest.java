@@ -0,0 +1,100 @@
+package org.sakaiproject.search.solr.response;
+
+import org.apache.solr.client.solrj.response.Group;
+import org.apache.solr.client.solrj.response.GroupCommand;
+import org.apache.solr.client.solrj.response.GroupResponse;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.search.api.SearchResult;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.response.filter.SearchItemFilter;
+
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the results extracted from grouped responses.
+ *
+ * @author Colin Hebert
+ */
+public class SolrSearchListTest {
+    @Mock
+    private QueryResponse queryResponse;
+    @Mock
+    private SearchItemFilter searchItemFilter;
+    private SolrSearchList solrSearchList;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(searchItemFilter.filter(any(SearchResult.class))).then(returnsFirstArg());
+        when(queryResponse.getResponse()).thenReturn(new NamedList<Object>());
+
+        GroupCommand groupCommand = new GroupCommand("container", 42, 7);
+        groupCommand.add(new Group("/content/group/site1/", createDocuments(15, "a1", "a2")));
+        groupCommand.add(new Group("/content/group/site2/", createDocuments(3, "b1")));
+        GroupResponse groupResponse = new GroupResponse();
+        groupResponse.add(groupCommand);
+        when(queryResponse.getGroupResponse()).thenReturn(groupResponse);
+
+        solrSearchList = new SolrSearchList(queryResponse, 0, searchItemFilter, new ContentProducerFactory());
+    }
+
+    /**
+     * Checks that the top documents of each group are flattened in order.
+     */
+    @Test
+    public void testGroupsAreFlattened() {
+        assertThat(solrSearchList.size(), is(3));
+        assertThat(solrSearchList.get(0).getReference(), is("a1"));
+        assertThat(solrSearchList.get(1).getReference(), is("a2"));
+        assertThat(solrSearchList.get(2).getReference(), is("b1"));
+        assertThat(((SolrResult) solrSearchList.get(2)).getGroupValue(), is("/content/group/site2/"));
+        assertThat(((SolrResult) solrSearchList.get(2)).getGroupSize(), is(3L));
+    }
+
+    /**
+     * Checks that the number of documents of each group is available, and that pages are counted in groups.
+     */
+    @Test
+    public void testGroupCounts() {
+        Map<String, Long> groupCounts = solrSearchList.getGroupCounts();
+
+        assertThat(groupCounts.get("/content/group/site1/"), is(15L));
+        assertThat(groupCounts.get("/content/group/site2/"), is(3L));
+        assertThat(solrSearchList.getFullSize(), is(7));
+    }
+
+    /**
+     * Checks that no cursor is proposed for grouped results.
+     */
+    @Test
+    public void testNoCursorForGroups() {
+        assertThat(solrSearchList.getNextCursor(), is(nullValue()));
+    }
+
+    private static SolrDocumentList createDocuments(long numFound, String... references) {
+        SolrDocumentList documents = new SolrDocumentList();
+        documents.setNumFound(numFound);
+        for (String reference : references) {
+            SolrDocument document = new SolrDocument();
+            document.setField(SearchService.FIELD_REFERENCE, reference);
+            document.setField("score", 1f);
+            documents.add(document);
+        }
+        return documents;
+    }
+}
@@ -0,0 +1,114 @@
+package org.sakaiproject.search.solr.response;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.search.api.TermFrequency;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks the accumulation and the sorting of term frequencies.
+ *
+ * @author Colin Hebert
+ */
+public class TermFrequencyAccumulatorTest {
+    private TermFrequencyAccumulator accumulator;
+
+    @Before
+    public void setUp() throws Exception {
+        accumulator = new TermFrequencyAccumulator();
+    }
+
+    /**
+     * Checks that the frequencies of a term added multiple times are summed.
+     */
+    @Test
+    public void testFrequenciesAreSummed() {
+        accumulator.add("search", 2);
+        accumulator.add("engine", 1);
+        accumulator.add("search", 3);
+
+        TermFrequency termFrequency = accumulator.toTermFrequency();
+
+        assertThat(accumulator.size(), is(2));
+        assertArrayEquals(new String[]{"search", "engine"}, termFrequency.getTerms());
+        assertArrayEquals(new int[]{5, 1}, termFrequency.getFrequencies());
+    }
+
+    /**
+     * Checks that terms are sorted by decreasing frequency, then alphabetically.
+     */
+    @Test
+    public void testTermsSortedByFrequencyThenAlphabetically() {
+        accumulator.add("delta", 1);
+        accumulator.add("charlie", 4);
+        accumulator.add("bravo", 1);
+        accumulator.add("alpha", 4);
+
+        TermFrequency termFrequency = accumulator.toTermFrequency();
+
+        assertArrayEquals(new String[]{"alpha", "charlie", "bravo", "delta"}, termFrequency.getTerms());
+        assertArrayEquals(new int[]{4, 4, 1, 1}, termFrequency.getFrequencies());
+    }
+
+    /**
+     * Checks that only the most frequent terms are returned when a maximum is set.
+     */
+    @Test
+    public void testMostFrequentTerms() {
+        for (int i = 0; i < 10; i++)
+            accumulator.add("term" + i, i);
+
+        TermFrequency termFrequency = accumulator.toTermFrequency(3);
+
+        assertArrayEquals(new String[]{"term9", "term8", "term7"}, termFrequency.getTerms());
+        assertArrayEquals(new int[]{9, 8, 7}, termFrequency.getFrequencies());
+    }
+
+    /**
+     * Checks that a frequency exceeding an int is capped instead of overflowing.
+     */
+    @Test
+    public void testFrequencyCapped() {
+        accumulator.add("search", Integer.MAX_VALUE);
+        accumulator.add("search", 1);
+
+        TermFrequency termFrequency = accumulator.toTermFrequency();
+
+        assertArrayEquals(new int[]{Integer.MAX_VALUE}, termFrequency.getFrequencies());
+    }
+
+    /**
+     * Checks that an empty accumulator returns no terms.
+     */
+    @Test
+    public void testEmptyAccumulator() {
+        TermFrequency termFrequency = accumulator.toTermFrequency();
+
+        assertThat(termFrequency.getTerms().length, is(0));
+        assertThat(termFrequency.getFrequencies().length, is(0));
+    }
+
+    /**
+     * Checks that no term is lost when the table grows.
+     */
+    @Test
+    public void testGrowthKeepsEveryTerm() {
+        int termCount = 1000;
+        for (int i = 0; i < termCount; i++) {
+            accumulator.add("term" + i, 1);
+            accumulator.add("term" + i, i);
+        }
+
+        TermFrequency termFrequency = accumulator.toTermFrequency();
+
+        assertThat(accumulator.size(), is(termCount));
+        assertThat(termFrequency.getTerms().length, is(termCount));
+        assertThat(termFrequency.getTerms()[0], is("term" + (termCount - 1)));
+        assertThat(termFrequency.getFrequencies()[0], is(termCount));
+        assertThat(termFrequency.getTerms()[termCount - 1], is("term0"));
+        assertThat(termFrequency.getFrequencies()[termCount - 1], is(1));
+    }
+}
@@ -0,0 +1,105 @@
+package org.sakaiproject.search.solr.response;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+import static org.sakaiproject.search.solr.response.TermVectorExtractor.DocumentTermVectors;
+import static org.sakaiproject.search.solr.response.TermVectorExtractor.FieldTermVectors;
+
+/**
+ * Checks the extraction of term vectors from a response similar to the one sent by the TermVectorComponent.
+ *
+ * @author Colin Hebert
+ */
+public class TermVectorExtractorTest {
+    private static final String REFERENCE = "/content/group/site/document";
+    @Mock
+    private QueryResponse queryResponse;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        NamedList<Object> searchTerm = new NamedList<Object>();
+        searchTerm.add("tf", 3);
+        searchTerm.add("df", 12L);
+        searchTerm.add("tf-idf", 0.25);
+        NamedList<Object> positions = new NamedList<Object>();
+        positions.add("position", 4);
+        positions.add("position", 9);
+        searchTerm.add("positions", positions);
+        NamedList<Object> offsets = new NamedList<Object>();
+        offsets.add("start", 10);
+        offsets.add("end", 16);
+        searchTerm.add("offsets", offsets);
+        NamedList<Object> engineTerm = new NamedList<Object>();
+        engineTerm.add("tf", 1);
+
+        NamedList<Object> contents = new NamedList<Object>();
+        contents.add("search", searchTerm);
+        contents.add("engine", engineTerm);
+        NamedList<Object> document = new NamedList<Object>();
+        document.add("uniqueKey", REFERENCE);
+        document.add("contents", contents);
+        NamedList<Object> termVectors = new NamedList<Object>();
+        termVectors.add("uniqueKeyFieldName", "reference");
+        termVectors.add("doc-0", document);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("termVectors", termVectors);
+
+        when(queryResponse.getResponse()).thenReturn(response);
+    }
+
+    /**
+     * Checks that the frequencies of each term are extracted for the right document and field.
+     */
+    @Test
+    public void testTermFrequencies() {
+        DocumentTermVectors documentTermVectors = new TermVectorExtractor(queryResponse)
+                .getDocumentTermVectors(REFERENCE);
+        FieldTermVectors contents = documentTermVectors.getFields().get("contents");
+
+        assertThat(documentTermVectors.getFields().size(), is(1));
+        assertThat(contents.size(), is(2));
+        assertThat(contents.getTerm(0), is("search"));
+        assertThat(contents.getTermFrequency(0), is(3L));
+        assertThat(contents.getDocumentFrequency(0), is(12L));
+        assertThat(contents.getTermFrequencyInverseDocumentFrequency(0), is(0.25));
+        assertThat(contents.getTerm(1), is("engine"));
+        assertThat(contents.getTermFrequency(1), is(1L));
+        assertThat(contents.getDocumentFrequency(1), is(-1L));
+    }
+
+    /**
+     * Checks that positions and offsets are decoded when requested.
+     */
+    @Test
+    public void testPositionsAndOffsets() {
+        FieldTermVectors contents = new TermVectorExtractor(queryResponse)
+                .getDocumentTermVectors(REFERENCE).getFields().get("contents");
+
+        assertArrayEquals(new long[]{4, 9}, contents.getPositions(0));
+        assertArrayEquals(new long[]{10, 16}, contents.getOffsets(0));
+        assertArrayEquals(new long[0], contents.getPositions(1));
+    }
+
+    /**
+     * Checks that a document without term vectors or a response without term vectors returns nothing.
+     */
+    @Test
+    public void testMissingTermVectors() {
+        assertThat(new TermVectorExtractor(queryResponse).getDocumentTermVectors("unknown"), is(nullValue()));
+
+        when(queryResponse.getResponse()).thenReturn(new NamedList<Object>());
+        assertThat(new TermVectorExtractor(queryResponse).getDocumentTermVectors(REFERENCE), is(nullValue()));
+    }
+}
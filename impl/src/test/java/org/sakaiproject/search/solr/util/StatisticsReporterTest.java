@@ -0,0 +1,62 @@
+package org.sakaiproject.search.solr.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that the statistics of every component are gathered and described.
+ *
+ * @author Colin Hebert
+ */
+public class StatisticsReporterTest {
+    @Mock
+    private StatisticsProvider cacheProvider;
+    @Mock
+    private StatisticsProvider failingProvider;
+    private StatisticsReporter statisticsReporter;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        Map<String, StatisticsProvider> providers = new LinkedHashMap<String, StatisticsProvider>();
+        providers.put("cache", cacheProvider);
+        providers.put("failing", failingProvider);
+        statisticsReporter = new StatisticsReporter();
+        statisticsReporter.setProviders(providers);
+
+        Map<String, Object> cacheStatistics = new LinkedHashMap<String, Object>();
+        cacheStatistics.put("hits", 3L);
+        cacheStatistics.put("misses", 1L);
+        when(cacheProvider.getStatistics()).thenReturn(cacheStatistics);
+        when(failingProvider.getStatistics()).thenThrow(new IllegalStateException());
+    }
+
+    /**
+     * Checks that a provider failing to compute its statistics is omitted without hiding the other providers.
+     */
+    @Test
+    public void testFailingProviderIsOmitted() throws Exception {
+        Map<String, Map<String, Object>> statistics = statisticsReporter.getStatistics();
+
+        assertThat(statistics.keySet(), is(Collections.singleton("cache")));
+        assertThat((Long) statistics.get("cache").get("hits"), is(3L));
+    }
+
+    /**
+     * Checks that the description contains one line per provider.
+     */
+    @Test
+    public void testDescription() throws Exception {
+        assertThat(statisticsReporter.describe(), is("cache: {hits=3, misses=1}"));
+    }
+}
@@ -0,0 +1,176 @@
+package uk.ac.ox.oucs.search.entitybroker;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.exception.IdUnusedException;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that the accessible sites are resolved from the realms and discarded after site events.
+ *
+ * @author Colin Hebert
+ */
+public class AccessibleSitesCacheTest {
+    private static final String USER_ID = "userId";
+    private static final String OTHER_USER_ID = "otherUserId";
+    @Mock
+    private AuthzGroupService authzGroupService;
+    @Mock
+    private SiteService siteService;
+    private AccessibleSitesCache accessibleSitesCache;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        accessibleSitesCache = new AccessibleSitesCache(100, 60);
+        accessibleSitesCache.setAuthzGroupService(authzGroupService);
+        accessibleSitesCache.setSiteService(siteService);
+        for (String siteId : Arrays.asList("site1", "site2")) {
+            Site site = createSite(true, false);
+            when(siteService.getSite(siteId)).thenReturn(site);
+        }
+        when(authzGroupService.getAuthzGroupsIsAllowed(eq(USER_ID), eq(SiteService.SITE_VISIT),
+                isNull(Collection.class)))
+                .thenReturn(new HashSet<String>(Arrays.asList("/site/site1", "/site/site1/group/group1")));
+        when(authzGroupService.getAuthzGroupsIsAllowed(eq(OTHER_USER_ID), eq(SiteService.SITE_VISIT),
+                isNull(Collection.class)))
+                .thenReturn(new HashSet<String>(Arrays.asList("/site/site2")));
+    }
+
+    /**
+     * Checks that only the site realms are kept and that they are only loaded once.
+     */
+    @Test
+    public void testSiteIdsLoadedOnce() {
+        List<String> siteIds = accessibleSitesCache.getSiteIds(USER_ID);
+        accessibleSitesCache.getSiteIds(USER_ID);
+
+        assertThat(siteIds, is(Arrays.asList("site1")));
+        verify(authzGroupService, times(1)).getAuthzGroupsIsAllowed(anyString(), anyString(),
+                isNull(Collection.class));
+    }
+
+    /**
+     * Checks that a membership event discards the sites while other events don't.
+     */
+    @Test
+    public void testSiteIdsDiscardedAfterMembershipEvent() {
+        Event contentEvent = createEvent("content.new", "/content/group/site1/file");
+        Event visitEvent = createEvent("site.visit", "/site/site1");
+        Event membershipEvent = createEvent(SiteService.SECURE_UPDATE_SITE_MEMBERSHIP, "/site/site1");
+
+        accessibleSitesCache.getSiteIds(USER_ID);
+        accessibleSitesCache.update(null, contentEvent);
+        accessibleSitesCache.update(null, visitEvent);
+        accessibleSitesCache.getSiteIds(USER_ID);
+        accessibleSitesCache.update(null, membershipEvent);
+        accessibleSitesCache.getSiteIds(USER_ID);
+
+        verify(authzGroupService, times(2)).getAuthzGroupsIsAllowed(eq(USER_ID), anyString(),
+                isNull(Collection.class));
+    }
+
+    /**
+     * Checks that only the users who could visit the site, or who can visit it now, are discarded.
+     */
+    @Test
+    public void testOnlyAffectedUsersDiscarded() {
+        when(authzGroupService.getUsersIsAllowed(SiteService.SITE_VISIT, Collections.singleton("/site/site3")))
+                .thenReturn(Collections.singleton(OTHER_USER_ID));
+        Event realmEvent = createEvent(AuthzGroupService.SECURE_UPDATE_AUTHZ_GROUP, "/realm//site/site3");
+
+        accessibleSitesCache.getSiteIds(USER_ID);
+        accessibleSitesCache.getSiteIds(OTHER_USER_ID);
+        accessibleSitesCache.update(null, realmEvent);
+        accessibleSitesCache.getSiteIds(USER_ID);
+        accessibleSitesCache.getSiteIds(OTHER_USER_ID);
+
+        verify(authzGroupService, times(1)).getAuthzGroupsIsAllowed(eq(USER_ID), anyString(),
+                isNull(Collection.class));
+        verify(authzGroupService, times(2)).getAuthzGroupsIsAllowed(eq(OTHER_USER_ID), anyString(),
+                isNull(Collection.class));
+    }
+
+    /**
+     * Checks that the removal of a site discards the users who could visit it.
+     */
+    @Test
+    public void testSiteIdsDiscardedAfterSiteRemoval() {
+        accessibleSitesCache.getSiteIds(USER_ID);
+        accessibleSitesCache.getSiteIds(OTHER_USER_ID);
+        accessibleSitesCache.update(null, createEvent(SiteService.SECURE_REMOVE_SITE, "/site/site1"));
+        accessibleSitesCache.getSiteIds(USER_ID);
+        accessibleSitesCache.getSiteIds(OTHER_USER_ID);
+
+        verify(authzGroupService, times(2)).getAuthzGroupsIsAllowed(eq(USER_ID), anyString(),
+                isNull(Collection.class));
+        verify(authzGroupService, times(1)).getAuthzGroupsIsAllowed(eq(OTHER_USER_ID), anyString(),
+                isNull(Collection.class));
+    }
+
+    /**
+     * Checks that an unpublished site is only kept for the users who can visit unpublished sites in its realm.
+     */
+    @Test
+    public void testUnpublishedSiteRequiresUnpublishedVisit() throws Exception {
+        Site unpublishedSite = createSite(false, false);
+        when(siteService.getSite("site1")).thenReturn(unpublishedSite);
+        when(authzGroupService.getAuthzGroupsIsAllowed(eq(OTHER_USER_ID), eq(SiteService.SITE_VISIT),
+                isNull(Collection.class)))
+                .thenReturn(new HashSet<String>(Arrays.asList("/site/site1", "/site/site2")));
+        when(authzGroupService.getAuthzGroupsIsAllowed(eq(OTHER_USER_ID), eq(SiteService.SITE_VISIT_UNPUBLISHED),
+                isNull(Collection.class)))
+                .thenReturn(new HashSet<String>(Arrays.asList("/site/site1")));
+        when(authzGroupService.getAuthzGroupsIsAllowed(eq(USER_ID), eq(SiteService.SITE_VISIT_UNPUBLISHED),
+                isNull(Collection.class)))
+                .thenReturn(Collections.<String>emptySet());
+
+        assertThat(accessibleSitesCache.getSiteIds(USER_ID).isEmpty(), is(true));
+        assertThat(new HashSet<String>(accessibleSitesCache.getSiteIds(OTHER_USER_ID)),
+                is(new HashSet<String>(Arrays.asList("site1", "site2"))));
+    }
+
+    /**
+     * Checks that softly deleted sites and sites which don't exist anymore are left out.
+     */
+    @Test
+    public void testDeletedSitesLeftOut() throws Exception {
+        Site softlyDeletedSite = createSite(true, true);
+        when(siteService.getSite("site1")).thenReturn(softlyDeletedSite);
+        when(siteService.getSite("site2")).thenThrow(new IdUnusedException("site2"));
+        when(authzGroupService.getAuthzGroupsIsAllowed(eq(USER_ID), eq(SiteService.SITE_VISIT),
+                isNull(Collection.class)))
+                .thenReturn(new HashSet<String>(Arrays.asList("/site/site1", "/site/site2")));
+
+        assertThat(accessibleSitesCache.getSiteIds(USER_ID).isEmpty(), is(true));
+    }
+
+    private static Site createSite(boolean published, boolean softlyDeleted) {
+        Site site = mock(Site.class);
+        when(site.isPublished()).thenReturn(published);
+        when(site.isSoftlyDeleted()).thenReturn(softlyDeleted);
+        return site;
+    }
+
+    private static Event createEvent(String eventName, String resource) {
+        Event event = mock(Event.class);
+        when(event.getEvent()).thenReturn(eventName);
+        when(event.getResource()).thenReturn(resource);
+        return event;
+    }
+}